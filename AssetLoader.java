@@ -0,0 +1,312 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLContext;
+import com.jogamp.opengl.GLDrawable;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AssetLoader.java
+ *
+ * Loads files onto the GPU while the window is already drawing, so init() doesn't have to wait for them.
+ *
+ * Every asset goes through three steps, each on its own thread:
+ * 	1. read()      a pool thread: open the file, page it in, decode it. No GL
+ * 	2. upload()    the upload thread, on a second GL context that shares objects with the renderer's:
+ * 	               create the buffers and textures. Then a fence (glFenceSync) and a glFlush
+ * 	3. resident()  the GL thread, once update() sees the fence signalled: the per-context objects
+ * 	               (VAOs aren't shared between contexts), then hand it to the renderer
+ * Until then the renderer draws whatever it has instead (the disc for the body mesh, no stars...).
+ * The fence is what makes the handoff safe: an object changed on one context is only guaranteed to be
+ * complete on another once the commands that changed it have finished, and it's bound again there.
+ *
+ * Not every driver will make a shared context for us (or the dummy drawable it needs). Then there's
+ * no upload thread, and update() uploads on the GL thread instead, one asset per frame.
+ *
+ * @author CLLFTVTV
+ */
+public class AssetLoader {
+
+
+	public enum State { QUEUED, READING, UPLOADING, RESIDENT, FAILED }
+
+
+	// One thing to load. Subclasses do the work of each step
+	public abstract static class Asset {
+
+		public final String name;
+
+		private volatile State state = State.QUEUED;
+		private long fence;
+		private long queuedNanos, loadNanos;
+
+		protected Asset(String name) {
+			this.name = name;
+		}
+
+		// A pool thread: everything that doesn't need GL. Exceptions fail the asset
+		protected abstract void read() throws IOException;
+
+		// The upload context (or the GL thread): only objects shared between contexts, buffers and textures
+		protected abstract void upload(GL3 gl);
+
+		// The GL thread, once the upload is complete: VAOs and the like, then start drawing it
+		protected abstract void resident(GL3 gl);
+
+		public State getState() {
+			return state;
+		}
+
+		public boolean isResident() {
+			return state == State.RESIDENT;
+		}
+
+		// From load() to resident
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+	}
+
+
+	private final ExecutorService readers;
+
+	// read() done, waiting for upload(); upload() done, waiting for the GL thread to see the fence
+	private final LinkedBlockingQueue<Asset> toUpload = new LinkedBlockingQueue<>();
+	private final ConcurrentLinkedQueue<Asset> uploaded = new ConcurrentLinkedQueue<>();
+	private final List<Asset> fenced = new ArrayList<>(); // GL thread only
+
+	// Assets loaded but not resident or failed yet
+	private final AtomicInteger pending = new AtomicInteger();
+
+	// The shared context and its thread (null = upload on the GL thread), and the renderer's context
+	private GLContext mainContext;
+	private GLDrawable uploadDrawable;
+	private GLContext uploadContext;
+	private Thread uploadThread;
+	private volatile boolean running;
+
+	// Stats
+	private int resident;
+	private final AtomicInteger failed = new AtomicInteger();
+	private long fencePolls;
+
+
+	// threads: how many files are read and decoded at once
+	public AssetLoader(int threads) {
+		readers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread t = new Thread(r, "AssetRead");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+
+	// Make the upload context and start its thread. Call from init(), with the drawable's context current.
+	// Returns false if the driver won't share: uploads happen in update() then
+	public boolean startUploadContext(GLAutoDrawable drawable) {
+		GLContext main = mainContext = drawable.getContext();
+		try {
+			GLDrawableFactory factory = GLDrawableFactory.getFactory(drawable.getGLProfile());
+			uploadDrawable = factory.createDummyDrawable(null, true, drawable.getChosenGLCapabilities(), null);
+			uploadDrawable.setRealized(true);
+			uploadContext = uploadDrawable.createContext(main);
+
+			// Create it right here, next to the main context: some platforms can only share with a
+			// context that isn't current on another thread. Making it current releases the main one
+			boolean created = uploadContext.makeCurrent() != GLContext.CONTEXT_NOT_CURRENT;
+			if (created) uploadContext.release();
+			main.makeCurrent();
+			if (!created || !uploadContext.isCreated()) throw new GLException("the shared context couldn't be made current");
+		} catch (GLException e) {
+			System.err.println("AssetLoader: no upload context (" + e.getMessage() + "), uploading on the GL thread");
+			if (!main.isCurrent()) main.makeCurrent();
+			destroyUploadContext();
+			return false;
+		}
+
+		running = true;
+		uploadThread = new Thread(this::uploadLoop, "AssetUpload");
+		uploadThread.setDaemon(true);
+		uploadThread.start();
+		return true;
+	}
+
+
+	// Start loading. Returns at once, the asset becomes resident during a later update()
+	public void load(Asset asset) {
+		asset.queuedNanos = System.nanoTime();
+		pending.incrementAndGet();
+		readers.execute(() -> {
+			asset.state = State.READING;
+			try {
+				asset.read();
+				asset.state = State.UPLOADING;
+				toUpload.add(asset);
+			} catch (IOException | RuntimeException e) {
+				fail(asset, e);
+			}
+		});
+	}
+
+
+	// The upload thread: the shared context stays current on it for good
+	private void uploadLoop() {
+		if (uploadContext.makeCurrent() == GLContext.CONTEXT_NOT_CURRENT) {
+			System.err.println("AssetLoader: the upload context can't be made current, uploading on the GL thread");
+			running = false;
+			return;
+		}
+		try {
+			GL3 gl = uploadContext.getGL().getGL3();
+			while (running) {
+				Asset asset = toUpload.poll(100, TimeUnit.MILLISECONDS);
+				if (asset == null) continue;
+				try {
+					asset.upload(gl);
+					asset.fence = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+					gl.glFlush(); // Or the fence might never reach the GPU, and the GL thread would wait forever
+					uploaded.add(asset);
+				} catch (RuntimeException e) {
+					fail(asset, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			uploadContext.release();
+		}
+	}
+
+
+	// Once a frame, on the GL thread: make the assets whose uploads have finished resident
+	public void update(GL3 gl) {
+		// Without a working upload thread, upload one asset here
+		if (!running) {
+			Asset asset = toUpload.poll();
+			if (asset != null) uploadHere(gl, asset);
+		}
+
+		Asset asset;
+		while ((asset = uploaded.poll()) != null) fenced.add(asset);
+		for (int i = fenced.size() - 1; i >= 0; i--) {
+			asset = fenced.get(i);
+			fencePolls++;
+			int status = gl.glClientWaitSync(asset.fence, 0, 0);
+			if (status != GL3.GL_ALREADY_SIGNALED && status != GL3.GL_CONDITION_SATISFIED) continue;
+			gl.glDeleteSync(asset.fence);
+			asset.fence = 0;
+			fenced.remove(i);
+			makeResident(gl, asset);
+		}
+	}
+
+
+	// Block until everything loaded so far is resident, uploading on this (the GL) thread.
+	// For loading synchronously in init(), without an upload context
+	public void finish(GL3 gl) {
+		while (pending.get() > 0) {
+			try {
+				Asset asset = toUpload.poll(10, TimeUnit.MILLISECONDS);
+				if (asset != null) uploadHere(gl, asset);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			update(gl);
+		}
+	}
+
+
+	private void uploadHere(GL3 gl, Asset asset) {
+		try {
+			asset.upload(gl);
+			makeResident(gl, asset); // Same context: nothing to wait for
+		} catch (RuntimeException e) {
+			fail(asset, e);
+		}
+	}
+
+
+	private void makeResident(GL3 gl, Asset asset) {
+		asset.loadNanos = System.nanoTime() - asset.queuedNanos;
+		try {
+			asset.resident(gl);
+		} catch (RuntimeException e) {
+			fail(asset, e);
+			return;
+		}
+		asset.state = State.RESIDENT;
+		resident++;
+		pending.decrementAndGet();
+	}
+
+
+	private void fail(Asset asset, Exception e) {
+		asset.state = State.FAILED;
+		failed.incrementAndGet();
+		pending.decrementAndGet();
+		System.err.println("AssetLoader: " + asset.name + ": " + e.getMessage());
+	}
+
+
+	// Nothing loading any more
+	public boolean isIdle() {
+		return pending.get() == 0;
+	}
+
+
+	public boolean hasUploadContext() {
+		return uploadThread != null && running;
+	}
+
+
+	public String summary() {
+		return String.format("%d resident, %d failed, %d still loading, %s, %d fence polls", resident, failed.get(), pending.get(),
+				hasUploadContext() ? "uploaded on a shared context" : "uploaded on the GL thread", fencePolls);
+	}
+
+
+	// Stop the threads. Assets still on their way are dropped (their GL objects go with the share group)
+	public void dispose(GL3 gl) {
+		readers.shutdownNow();
+		running = false;
+		if (uploadThread != null) {
+			try {
+				uploadThread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (Asset asset : fenced) gl.glDeleteSync(asset.fence);
+		fenced.clear();
+		for (Asset asset : uploaded) gl.glDeleteSync(asset.fence);
+		uploaded.clear();
+		destroyUploadContext();
+	}
+
+
+	// Destroying it makes it current on this thread for a moment, so the main context is made current again
+	private void destroyUploadContext() {
+		if (uploadContext != null) {
+			boolean mainCurrent = mainContext.isCurrent();
+			uploadContext.destroy();
+			uploadContext = null;
+			if (mainCurrent && !mainContext.isCurrent()) mainContext.makeCurrent();
+		}
+		if (uploadDrawable != null) {
+			uploadDrawable.setRealized(false);
+			uploadDrawable = null;
+		}
+	}
+}
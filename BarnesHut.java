@@ -0,0 +1,338 @@
+import java.util.Arrays;
+
+/**
+ * BarnesHut.java
+ *
+ * Barnes-Hut tree code for gravity. O(n log n) instead of O(n * sources).
+ *
+ * Every step we build an octree around the massive bodies: a cube that is split into 8 smaller
+ * cubes, which are split again, until every cube holds one body. Each cube remembers the total
+ * mass and the centre of mass of everything inside it.
+ * When working out the pull on a body, a cube that is far away (compared to its size) is treated
+ * as ONE body at its centre of mass, instead of visiting everything inside it.
+ * The opening angle theta sets what "far away" means: cube size / distance < theta.
+ * 	theta = 0   -> exact (same as the direct sum, but slower)
+ * 	theta = 0.5 -> the usual choice, around 0.1% error
+ * 	theta = 1   -> fast and rough
+ *
+ * The tree is NOT made of Node objects. The nodes live in flat primitive arrays (a "pool"),
+ * node number k is index k in every array, and children are found through an int index.
+ * The pool is reused every step, so rebuilding the tree doesn't allocate.
+ *
+ * @author CLLFTVTV
+ */
+public class BarnesHut implements ForceModel {
+
+
+	// Deeper than this, bodies sharing a cube are just chained together in a list.
+	// Stops two bodies at (almost) the same position from splitting the cube forever.
+	private static final int MAX_DEPTH = 40;
+
+	// body[] value for a node that has children instead of a body
+	private static final int INTERNAL = -1;
+
+
+	private final double softening2;
+	private double theta;
+	private double theta2;
+
+
+	// The node pool.
+	// Everything a node needs for the opening test sits side by side in one double[],
+	// so visiting a node touches one or two cache lines instead of eight separate arrays.
+	private static final int NODE_STRIDE = 8;
+	private static final int CX = 0, CY = 1, CZ = 2, HALF = 3; // The cube
+	private static final int MX = 4, MY = 5, MZ = 6, MASS = 7; // Centre of mass and total mass
+	private int nodeCapacity;
+	private int nodeCount;
+	private double[] node;
+	private int[] child; // 8 children per node, -1 for none
+	private int[] body; // Leaf: the first body in this cube. INTERNAL otherwise
+
+	// Bodies chained in the same leaf (only happens at MAX_DEPTH). -1 ends the chain
+	private final int[] nextInLeaf;
+
+	// Traversal stacks. The build uses its own, and every thread walking the tree in accelerate() gets one
+	private static final int STACK_SIZE = 8 * MAX_DEPTH + 8;
+	private final int[] stack = new int[STACK_SIZE];
+	private static final ThreadLocal<int[]> WALK_STACK = ThreadLocal.withInitial(() -> new int[STACK_SIZE]);
+
+	// The order bodies are evaluated in: sources in tree order, then the massless bodies.
+	// Neighbouring bodies walk almost the same path through the tree, so doing them
+	// one after another keeps the tree in the cache. Makes a huge difference at a million bodies.
+	private final int[] order;
+
+
+	public BarnesHut(int capacity, double softening, double theta) {
+		this.softening2 = softening * softening;
+		this.nextInLeaf = new int[capacity];
+		this.order = new int[capacity];
+		setTheta(theta);
+		allocateNodes(Math.max(64, 2 * capacity));
+	}
+
+
+	public void setTheta(double theta) {
+		this.theta = theta;
+		this.theta2 = theta * theta;
+	}
+
+
+	public double getTheta() {
+		return theta;
+	}
+
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+
+	// Build the tree and the evaluation order
+	@Override
+	public void prepare(BodySystem b) {
+		int ordered = buildTree(b);
+		for (int i = 0; i < b.count; i++) {
+			if (b.mass[i] == 0.0) order[ordered++] = i;
+		}
+	}
+
+
+	// Walk the tree for the bodies at order[from..to)
+	@Override
+	public void accelerate(BodySystem b, int from, int to) {
+		int[] walk = WALK_STACK.get();
+		for (int k = from; k < to; k++) {
+			accelerate(b, order[k], walk);
+		}
+	}
+
+
+	// Walk the tree for bodies indices[from..to)
+	@Override
+	public void accelerate(BodySystem b, int[] indices, int from, int to) {
+		int[] walk = WALK_STACK.get();
+		for (int k = from; k < to; k++) {
+			accelerate(b, indices[k], walk);
+		}
+	}
+
+
+	// Build the octree from the massive bodies.
+	// Returns how many sources were written into order[]
+	int buildTree(BodySystem b) {
+		final double[] x = b.x, y = b.y, z = b.z, m = b.mass;
+		nodeCount = 0;
+
+		// 1. Find the bounding cube of the sources
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		int first = -1;
+		for (int i = 0; i < b.count; i++) {
+			if (m[i] == 0.0) continue;
+			if (first < 0) first = i;
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			minZ = Math.min(minZ, z[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+			maxZ = Math.max(maxZ, z[i]);
+		}
+		if (first < 0) return 0; // Nothing has mass, so there's no gravity
+
+		// 2. The root is a leaf holding the first source
+		double half = 0.5 * Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+		half = half * 1.0001 + 1e-12; // A little slack so bodies on the edge are inside
+		newLeaf(0.5 * (minX + maxX), 0.5 * (minY + maxY), 0.5 * (minZ + maxZ), half, first);
+
+		// 3. Insert the rest
+		for (int i = first + 1; i < b.count; i++) {
+			if (m[i] != 0.0) insert(b, i);
+		}
+
+		// 4. Sum up masses from the leaves to the root.
+		// Children are always created after their parent, so walking the pool backwards
+		// visits every child before its parent.
+		for (int k = nodeCount - 1; k >= 0; k--) {
+			double sm = 0.0, sx = 0.0, sy = 0.0, sz = 0.0;
+			if (body[k] != INTERNAL) {
+				for (int j = body[k]; j >= 0; j = nextInLeaf[j]) {
+					sm += m[j];
+					sx += m[j] * x[j];
+					sy += m[j] * y[j];
+					sz += m[j] * z[j];
+				}
+			} else {
+				for (int c = 0; c < 8; c++) {
+					int ch = child[k * 8 + c];
+					if (ch < 0) continue;
+					int o = ch * NODE_STRIDE;
+					double cm = node[o + MASS];
+					sm += cm;
+					sx += cm * node[o + MX];
+					sy += cm * node[o + MY];
+					sz += cm * node[o + MZ];
+				}
+			}
+			int o = k * NODE_STRIDE;
+			node[o + MASS] = sm;
+			node[o + MX] = sx / sm;
+			node[o + MY] = sy / sm;
+			node[o + MZ] = sz / sm;
+		}
+
+		// 5. List the sources in tree order (depth first)
+		int ordered = 0;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int k = stack[--top];
+			if (body[k] != INTERNAL) {
+				for (int j = body[k]; j >= 0; j = nextInLeaf[j]) order[ordered++] = j;
+				continue;
+			}
+			for (int c = 7; c >= 0; c--) {
+				int ch = child[k * 8 + c];
+				if (ch >= 0) stack[top++] = ch;
+			}
+		}
+		return ordered;
+	}
+
+
+	private void insert(BodySystem b, int i) {
+		double px = b.x[i], py = b.y[i], pz = b.z[i];
+		int node = 0;
+		int depth = 0;
+		while (true) {
+			int resident = body[node];
+			if (resident != INTERNAL) {
+				// A leaf. Either chain onto it, or split it and push the resident down a level
+				if (depth >= MAX_DEPTH) {
+					nextInLeaf[i] = resident;
+					body[node] = i;
+					return;
+				}
+				body[node] = INTERNAL;
+				int oct = octant(node, b.x[resident], b.y[resident], b.z[resident]);
+				child[node * 8 + oct] = newChild(node, oct, resident);
+			}
+			int oct = octant(node, px, py, pz);
+			int c = child[node * 8 + oct];
+			if (c < 0) {
+				child[node * 8 + oct] = newChild(node, oct, i);
+				return;
+			}
+			node = c;
+			depth++;
+		}
+	}
+
+
+	// Which of the 8 sub-cubes a point falls in. Bit 0 = x, bit 1 = y, bit 2 = z
+	private int octant(int k, double px, double py, double pz) {
+		int o = k * NODE_STRIDE;
+		int oct = 0;
+		if (px >= node[o + CX]) oct |= 1;
+		if (py >= node[o + CY]) oct |= 2;
+		if (pz >= node[o + CZ]) oct |= 4;
+		return oct;
+	}
+
+
+	private int newChild(int parent, int oct, int bodyIndex) {
+		int o = parent * NODE_STRIDE;
+		double h = 0.5 * node[o + HALF];
+		double cx = node[o + CX] + ((oct & 1) != 0 ? h : -h);
+		double cy = node[o + CY] + ((oct & 2) != 0 ? h : -h);
+		double cz = node[o + CZ] + ((oct & 4) != 0 ? h : -h);
+		return newLeaf(cx, cy, cz, h, bodyIndex);
+	}
+
+
+	private int newLeaf(double cx, double cy, double cz, double half, int bodyIndex) {
+		if (nodeCount == nodeCapacity) {
+			// Only happens while the pool is still finding its size
+			growNodes(nodeCapacity * 2);
+		}
+		int k = nodeCount++;
+		int o = k * NODE_STRIDE;
+		node[o + CX] = cx;
+		node[o + CY] = cy;
+		node[o + CZ] = cz;
+		node[o + HALF] = half;
+		body[k] = bodyIndex;
+		nextInLeaf[bodyIndex] = -1;
+		for (int c = 0; c < 8; c++) child[k * 8 + c] = -1;
+		return k;
+	}
+
+
+	// Walk the tree and add up the pull on body i
+	private void accelerate(BodySystem b, int i, int[] stack) {
+		final double[] x = b.x, y = b.y, z = b.z, m = b.mass;
+		double xi = x[i], yi = y[i], zi = z[i];
+		double sx = 0.0, sy = 0.0, sz = 0.0;
+
+		if (nodeCount > 0) {
+			int top = 0;
+			stack[top++] = 0;
+			while (top > 0) {
+				int k = stack[--top];
+				if (body[k] != INTERNAL) {
+					// Leaf: add its bodies one by one
+					for (int j = body[k]; j >= 0; j = nextInLeaf[j]) {
+						if (j == i) continue;
+						double dx = x[j] - xi, dy = y[j] - yi, dz = z[j] - zi;
+						double inv = 1.0 / Math.sqrt(dx * dx + dy * dy + dz * dz + softening2);
+						double s = m[j] * inv * inv * inv;
+						sx += dx * s;
+						sy += dy * s;
+						sz += dz * s;
+					}
+					continue;
+				}
+				int o = k * NODE_STRIDE;
+				double dx = node[o + MX] - xi, dy = node[o + MY] - yi, dz = node[o + MZ] - zi;
+				double r2 = dx * dx + dy * dy + dz * dz;
+				double h = node[o + HALF];
+				double size = 2.0 * h;
+				boolean inside = Math.abs(xi - node[o + CX]) <= h && Math.abs(yi - node[o + CY]) <= h && Math.abs(zi - node[o + CZ]) <= h;
+				if (!inside && size * size < theta2 * r2) {
+					// Far enough away: treat the whole cube as one body
+					double inv = 1.0 / Math.sqrt(r2 + softening2);
+					double s = node[o + MASS] * inv * inv * inv;
+					sx += dx * s;
+					sy += dy * s;
+					sz += dz * s;
+				} else {
+					// Too close: open it up and look at the children
+					for (int c = 0; c < 8; c++) {
+						int ch = child[k * 8 + c];
+						if (ch >= 0) stack[top++] = ch;
+					}
+				}
+			}
+		}
+
+		b.ax[i] = BodySystem.G * sx;
+		b.ay[i] = BodySystem.G * sy;
+		b.az[i] = BodySystem.G * sz;
+	}
+
+
+	private void allocateNodes(int capacity) {
+		nodeCapacity = capacity;
+		node = new double[capacity * NODE_STRIDE];
+		child = new int[capacity * 8];
+		body = new int[capacity];
+	}
+
+
+	private void growNodes(int capacity) {
+		nodeCapacity = capacity;
+		node = Arrays.copyOf(node, capacity * NODE_STRIDE);
+		child = Arrays.copyOf(child, capacity * 8);
+		body = Arrays.copyOf(body, capacity);
+	}
+}
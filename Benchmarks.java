@@ -0,0 +1,824 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Benchmarks.java
+ *
+ * Headless benchmarks for the simulation. No window, no OpenGL, just the physics.
+ *
+ * Run with:
+ * 	java Benchmarks            (runs everything)
+ * 	java Benchmarks step       (runs one benchmark by name)
+ *
+ * "micro" runs the hot paths through the Microbench harness (warmup, fixed length iterations,
+ * median ns/op), so the numbers can be compared between commits:
+ * 	java -Doutermilds.benchOut=new.csv -Doutermilds.benchBaseline=old.csv Benchmarks micro
+ * exits with status 1 if anything got slower than the tolerance. So does any benchmark whose
+ * results fail its own checks (an error over its bound, a speedup that isn't one). Plain Java: the benchmarks that
+ * need the renderer's classes (and so the JOGL jars) are in RenderBenchmarks.
+ *
+ * @author CLLFTVTV
+ */
+public class Benchmarks {
+
+
+	// Bounds the accuracy checks fail over
+	private static final double BARNES_HUT_ERROR = 1e-5; // 99th percentile relative error at theta 0.5 (about 1e-6 now)
+
+
+	public static void main(String[] args) {
+		String which = args.length > 0 ? args[0] : "all";
+		int failures = 0;
+
+		if (which.equals("all") || which.equals("step")) {
+			benchmarkStep(10_000, 0.1, 200, 1000);
+		}
+		if (which.equals("all") || which.equals("barneshut")) {
+			failures += benchmarkBarnesHut(20_000, new double[] {0.3, 0.5, 0.7, 1.0});
+			benchmarkBarnesHutLarge(1_000_000, 0.7);
+		}
+		if (which.equals("all") || which.equals("scaling")) {
+			failures += benchmarkScaling(100_000, 5);
+		}
+		if (which.equals("all") || which.equals("blocksteps")) {
+			benchmarkBlockTimesteps(2_000, 200, 32.0, 2.0);
+		}
+		if (which.equals("all") || which.equals("collisions")) {
+			failures += benchmarkCollisions(20_000, 1_000_000, 1e-3, 5);
+		}
+		if (which.equals("all") || which.equals("culling")) {
+			failures += benchmarkCulling(1_000_000, 180, 2.0, 5);
+		}
+		if (which.equals("all") || which.equals("stars")) {
+			benchmarkStars(1_000_000, 5);
+		}
+		if (which.equals("all") || which.equals("resolution")) {
+			benchmarkResolution(1000.0 * 0.85 / 60.0, 1.5, 9.0, 2.5, 1800);
+		}
+		if (which.equals("all") || which.equals("replay")) {
+			failures += benchmarkReplay(2_000, 320, 64);
+		}
+		if (which.equals("all") || which.equals("micro")) {
+			failures += benchmarkMicro();
+		}
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+	}
+
+
+	// The hot paths, timed the same way every run. Returns the number of regressions against the baseline
+	static int benchmarkMicro() {
+		Microbench bench = new Microbench(5, 10, 200);
+		System.out.println("micro:");
+
+		// Gravity: one force evaluation
+		BodySystem small = Scenes.solarSystem(2_000, 1e-12, 5L);
+		DirectGravity direct = new DirectGravity(small.capacity, 1e-4);
+		bench.run("gravity.direct.2k", () -> {
+			direct.computeAccelerations(small);
+			return Double.doubleToLongBits(small.ax[small.count - 1]);
+		});
+		BodySystem belt = Scenes.solarSystem(20_000, 1e-12, 7L);
+		BarnesHut tree = new BarnesHut(belt.capacity, 1e-4, 0.7);
+		bench.run("gravity.barneshut.20k", () -> {
+			tree.computeAccelerations(belt);
+			return Double.doubleToLongBits(belt.ax[belt.count - 1]);
+		});
+
+		// A whole step of the default scene (10k massless asteroids)
+		BodySystem bodies = Scenes.solarSystem(10_000, 42L);
+		Simulation sim = new Simulation(bodies, new DirectGravity(bodies.capacity, 0.0), new VelocityVerlet(), 0.1);
+		bench.run("step.verlet.10k", () -> {
+			sim.step();
+			return sim.getStepCount();
+		});
+
+		benchmarkMatrices(bench, bodies);
+		benchmarkEphemeris(bench);
+		return saveAndCompare(bench, "micro");
+	}
+
+
+	// Save a Microbench run to BENCH_OUT, and compare it with BENCH_BASELINE. Returns the number of regressions
+	static int saveAndCompare(Microbench bench, String label) {
+		try {
+			if (!Settings.BENCH_OUT.isEmpty()) {
+				bench.writeCsv(Paths.get(Settings.BENCH_OUT));
+				System.out.println(label + ": results written to " + Settings.BENCH_OUT);
+			}
+			if (!Settings.BENCH_BASELINE.isEmpty()) {
+				int regressions = bench.compare(Microbench.readCsv(Paths.get(Settings.BENCH_BASELINE)), Settings.BENCH_TOLERANCE);
+				System.out.printf("%s: %d regressions (tolerance %.0f%%)%n", label, regressions, Settings.BENCH_TOLERANCE * 100.0);
+				return regressions;
+			}
+		} catch (IOException e) {
+			System.err.println(label + ": " + e.getMessage());
+		}
+		return 0;
+	}
+
+
+	// Where the planets are: solving Kepler's equation vs the Chebyshev tables.
+	// Steps 0.1 days per evaluation, like the simulation, so the tables refit every 160 calls
+	static void benchmarkEphemeris(Microbench bench) {
+		KeplerOrbit[] orbits = Scenes.planetOrbits();
+		ChebyshevEphemeris ephemeris = new ChebyshevEphemeris(orbits);
+		double[] out = new double[6 * orbits.length];
+		double[] exact = new double[6];
+
+		// Worst position error over a century, so a fast but wrong table can't sneak through
+		double maxError = 0.0;
+		for (double t = 0.0; t < 36525.0; t += 0.37) {
+			ephemeris.evaluate(t, out);
+			for (int k = 0; k < orbits.length; k++) {
+				orbits[k].state(t, exact, 0);
+				double dx = out[6 * k] - exact[0], dy = out[6 * k + 1] - exact[1], dz = out[6 * k + 2] - exact[2];
+				maxError = Math.max(maxError, Math.sqrt(dx * dx + dy * dy + dz * dz));
+			}
+		}
+		System.out.printf("  ephemeris: max position error %.2e AU over 100 years, %d windows fitted%n", maxError, ephemeris.getMisses());
+
+		double[] time = new double[1];
+		bench.run("ephemeris.kepler.9", () -> {
+			double t = time[0] += 0.1;
+			for (int k = 0; k < orbits.length; k++) {
+				orbits[k].state(t, out, 6 * k);
+			}
+			return Double.doubleToLongBits(out[6 * 3]);
+		});
+		bench.run("ephemeris.chebyshev.9", () -> {
+			double t = time[0] += 0.1;
+			ephemeris.evaluate(t, out);
+			return Double.doubleToLongBits(out[6 * 3]);
+		});
+	}
+
+
+	// Building and multiplying a model matrix per body, the MatBatch way (flat float[], no objects)
+	static void benchmarkMatrices(Microbench bench, BodySystem bodies) {
+		int n = bodies.count;
+		float[] models = new float[n * 16];
+		float[] modelViews = new float[n * 16];
+		Mat4 view = new Mat4().lookAt(new Vec3(0.0f, -7.0f, 12.0f), new Vec3(), new Vec3(0.0f, 1.0f, 0.0f));
+
+		bench.run("math.modelMatrices.10k", () -> {
+			MatBatch.translationScale(bodies.x, bodies.y, bodies.z, bodies.radius, 40.0f, n, models);
+			return Float.floatToIntBits(models[n * 16 - 2]);
+		});
+		bench.run("math.matbatch.mul.10k", () -> {
+			MatBatch.mul(view, models, modelViews, n);
+			return Float.floatToIntBits(modelViews[n * 16 - 2]);
+		});
+
+		// The same multiply one Mat4 at a time, for comparison
+		Mat4 model = new Mat4();
+		Mat4 modelView = new Mat4();
+		bench.run("math.mat4.mul.10k", () -> {
+			long bits = 0;
+			for (int i = 0; i < n; i++) {
+				model.set(models, i * 16);
+				modelView.mul(view, model);
+				bits += Float.floatToIntBits(modelView.m[14]);
+			}
+			return bits;
+		});
+	}
+
+
+	// Record a run to a replay file and read it back: size against raw doubles, the worst position
+	// error, what a random seek costs, and whether a run restored from a checkpoint carries on exactly.
+	// Fails if the error is over half the grid, the resumed run differs, or the file can't be written or read
+	static int benchmarkReplay(int asteroids, int frames, int keyframeInterval) {
+		double quantum = 1e-8;
+		int failures = 0;
+		BodySystem bodies = Scenes.solarSystem(asteroids, 42L);
+		Simulation sim = new Simulation(bodies, new DirectGravity(bodies.capacity, 0.0), new VelocityVerlet(), 0.5);
+		int n = bodies.count;
+		double[][] reference = new double[frames][];
+		try {
+			Path file = Files.createTempFile("outermilds", ".omrp");
+			try {
+				// Record every step, keeping the exact positions to check against
+				ReplayWriter writer = new ReplayWriter(file, n, keyframeInterval, quantum);
+				long waits = 0;
+				long recordNanos = 0;
+				for (int f = 0; f < frames; f++) {
+					sim.step();
+					reference[f] = new double[3 * n];
+					for (int i = 0; i < n; i++) {
+						reference[f][3 * i] = bodies.x[i];
+						reference[f][3 * i + 1] = bodies.y[i];
+						reference[f][3 * i + 2] = bodies.z[i];
+					}
+					while (true) {
+						long start = System.nanoTime();
+						boolean recorded = writer.record(bodies, sim.getTime(), sim.getStepCount());
+						recordNanos += System.nanoTime() - start;
+						if (recorded) break;
+						waits++; // The benchmark wants every frame, the simulation thread would just drop it
+						Thread.sleep(1);
+					}
+				}
+				writer.close();
+				long rawBytes = (long) frames * n * 6 * 8;
+				System.out.printf("replay: %d bodies, %d frames, %.2f MB (raw doubles %.2f MB, %.1fx smaller), record() %.3f ms, writer behind %d times%n",
+						n, frames, writer.getBytesWritten() / 1048576.0, rawBytes / 1048576.0,
+						(double) rawBytes / writer.getBytesWritten(), recordNanos / 1e6 / frames, waits);
+
+				try (ReplayReader reader = new ReplayReader(file)) {
+					BodySystem out = new BodySystem(n);
+
+					// Every frame in order (scrubbing forwards), and the worst error
+					double maxError = 0.0;
+					long start = System.nanoTime();
+					for (int f = 0; f < frames; f++) {
+						reader.seek(reader.getFrameTime(f), out);
+						for (int i = 0; i < n; i++) {
+							maxError = Math.max(maxError, Math.abs(out.x[i] - reference[f][3 * i]));
+							maxError = Math.max(maxError, Math.abs(out.y[i] - reference[f][3 * i + 1]));
+							maxError = Math.max(maxError, Math.abs(out.z[i] - reference[f][3 * i + 2]));
+						}
+					}
+					double forwardMs = (System.nanoTime() - start) / 1e6 / frames;
+
+					// Random seeks
+					java.util.Random random = new java.util.Random(1);
+					int seeks = 200;
+					long decodedBefore = reader.getFramesDecoded();
+					start = System.nanoTime();
+					for (int k = 0; k < seeks; k++) {
+						reader.seek(random.nextDouble() * reader.getFrameTime(frames - 1), out);
+					}
+					double seekMs = (System.nanoTime() - start) / 1e6 / seeks;
+					double decodedPerSeek = (double) (reader.getFramesDecoded() - decodedBefore) / seeks;
+					System.out.printf("replay: max position error %.2e AU (grid %.0e), scrub forward %.3f ms/frame, random seek %.3f ms (%.1f frames decoded)%n",
+							maxError, quantum, forwardMs, seekMs, decodedPerSeek);
+					if (maxError > quantum / 2.0 * 1.001) { // The slack is for the doubles' own rounding
+						System.out.println("  FAILED: error over half the grid");
+						failures++;
+					}
+
+					// Carry on from a checkpoint and compare with the original run
+					BodySystem restored = Scenes.solarSystem(asteroids, 42L);
+					int key = reader.loadCheckpoint(reader.getFrameTime(keyframeInterval + 5), restored);
+					Simulation resumed = new Simulation(restored, new DirectGravity(restored.capacity, 0.0), new VelocityVerlet(), 0.5);
+					resumed.setTime(reader.getFrameTime(key), reader.getFrameStep(key));
+					int target = Math.min(frames - 1, key + 10);
+					for (int f = key; f < target; f++) resumed.step();
+					boolean identical = true;
+					for (int i = 0; i < n && identical; i++) {
+						identical = restored.x[i] == reference[target][3 * i] && restored.y[i] == reference[target][3 * i + 1]
+								&& restored.z[i] == reference[target][3 * i + 2];
+					}
+					System.out.printf("replay: resumed from keyframe %d, %d steps later %s%n", key, target - key,
+							identical ? "identical to the original run" : "DIFFERENT from the original run");
+					if (!identical) failures++;
+				}
+			} finally {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			System.err.println("replay: " + e.getMessage());
+			failures++;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return failures;
+	}
+
+
+	// Planets, moons, comets and asteroids (Scenes.moonsAndComets) for `days` days:
+	// 	block timesteps, biggest step maxStep, at the default eta and a quarter of it
+	// 	one global step, as small as the finest step the block run needed (what you'd have to use without it)
+	// 	a global step half that again, as the reference the others are measured against
+	// Reports the time, the force evaluations, the energy drift and the position error of each kind of body,
+	// and for the block runs how many times the global step's error that is
+	static void benchmarkBlockTimesteps(int asteroids, int comets, double days, double maxStep) {
+		int moons = Scenes.MOON_MASS.length;
+		int firstMoon = 1 + Scenes.PLANET_MASS.length, firstAsteroid = firstMoon + moons, firstComet = firstAsteroid + asteroids;
+		double[] etas = {BlockTimestep.DEFAULT_ETA, BlockTimestep.DEFAULT_ETA / 4};
+
+		// Warm up the JIT on a small copy of the scene
+		BodySystem warm = Scenes.moonsAndComets(200, 20, days, 11L);
+		Simulation warmBlock = new Simulation(warm, new DirectGravity(warm.capacity, 0.0), new BlockTimestep(), maxStep);
+		for (int i = 0; i < 4; i++) warmBlock.step();
+		Simulation warmGlobal = new Simulation(warm, new DirectGravity(warm.capacity, 0.0), new VelocityVerlet(), maxStep / 512);
+		for (int i = 0; i < 2000; i++) warmGlobal.step();
+
+		BodySystem[] blocks = new BodySystem[etas.length];
+		BlockTimestep[] integrators = new BlockTimestep[etas.length];
+		double[] blockMs = new double[etas.length], blockDrift = new double[etas.length];
+		int finest = 0;
+		for (int e = 0; e < etas.length; e++) {
+			BodySystem bodies = blocks[e] = Scenes.moonsAndComets(asteroids, comets, days, 17L);
+			BlockTimestep integrator = integrators[e] = new BlockTimestep(new PhysicsPool(1), BlockTimestep.DEFAULT_MAX_LEVEL, etas[e]);
+			Simulation sim = new Simulation(bodies, new DirectGravity(bodies.capacity, 0.0), integrator, maxStep);
+			double energyBefore = bodies.totalEnergy(0.0);
+			int steps = (int) Math.round(days / maxStep);
+			long start = System.nanoTime();
+			for (int i = 0; i < steps; i++) {
+				sim.step();
+				if (e == 0) finest = Math.max(finest, integrator.getFinestLevel());
+			}
+			blockMs[e] = (System.nanoTime() - start) / 1e6;
+			blockDrift[e] = Math.abs((bodies.totalEnergy(0.0) - energyBefore) / energyBefore);
+		}
+		BodySystem first = blocks[0];
+		System.out.printf("blocksteps: %d bodies (%d moons, %d comets), %.0f days, steps %.3g .. %.3g days%n",
+				first.count, moons, comets, days, maxStep, maxStep / (1 << finest));
+		StringBuilder levels = new StringBuilder();
+		for (int l = 0; l <= integrators[0].getMaxLevel(); l++) levels.append(' ').append(integrators[0].getLevelCount(l));
+		System.out.println("  bodies per level at the end:" + levels);
+
+		double globalStep = maxStep / (1 << finest);
+		BodySystem global = Scenes.moonsAndComets(asteroids, comets, days, 17L);
+		long globalEvaluations = runGlobal(global, globalStep, days);
+		double globalMs = lastRunMs, globalDrift = lastRunDrift;
+		System.out.printf("  global step %.3g: %9.1f ms, %10d force evaluations, energy drift %.2e",
+				globalStep, globalMs, globalEvaluations, globalDrift);
+
+		BodySystem reference = Scenes.moonsAndComets(asteroids, comets, days, 17L);
+		runGlobal(reference, globalStep / 2, days);
+		double moonError = maxError(global, reference, firstMoon, firstAsteroid);
+		double cometError = maxError(global, reference, firstComet, global.count);
+		double asteroidError = maxError(global, reference, firstAsteroid, firstComet);
+		System.out.printf(", error moons %.2e comets %.2e asteroids %.2e AU%n", moonError, cometError, asteroidError);
+
+		for (int e = 0; e < etas.length; e++) {
+			double moon = maxError(blocks[e], reference, firstMoon, firstAsteroid);
+			double comet = maxError(blocks[e], reference, firstComet, first.count);
+			double asteroid = maxError(blocks[e], reference, firstAsteroid, firstComet);
+			System.out.printf("  block eta %.3f:   %9.1f ms, %10d force evaluations, energy drift %.2e, error moons %.2e comets %.2e asteroids %.2e AU, speedup %.1fx%n",
+					etas[e], blockMs[e], integrators[e].getEvaluations(), blockDrift[e], moon, comet, asteroid, globalMs / blockMs[e]);
+			System.out.printf("    vs the global step: error moons %.3gx comets %.3gx asteroids %.3gx, energy drift %.3gx%n",
+					moon / moonError, comet / cometError, asteroid / asteroidError, blockDrift[e] / globalDrift);
+		}
+	}
+
+
+	// benchmarkBlockTimesteps: time and energy drift of the last runGlobal()
+	private static double lastRunMs, lastRunDrift;
+
+
+	// Velocity Verlet with a fixed step for `days`. Returns the force evaluations done
+	private static long runGlobal(BodySystem bodies, double dt, double days) {
+		Simulation sim = new Simulation(bodies, new DirectGravity(bodies.capacity, 0.0), new VelocityVerlet(), dt);
+		double energyBefore = bodies.totalEnergy(0.0);
+		long steps = Math.round(days / dt);
+		long start = System.nanoTime();
+		for (long i = 0; i < steps; i++) sim.step();
+		lastRunMs = (System.nanoTime() - start) / 1e6;
+		lastRunDrift = Math.abs((bodies.totalEnergy(0.0) - energyBefore) / energyBefore);
+		return steps * bodies.count;
+	}
+
+
+	// Biggest distance between the same body in two runs, over bodies [from, to)
+	private static double maxError(BodySystem a, BodySystem b, int from, int to) {
+		double max = 0.0;
+		for (int i = from; i < to; i++) {
+			double dx = a.x[i] - b.x[i], dy = a.y[i] - b.y[i], dz = a.z[i] - b.z[i];
+			max = Math.max(max, Math.sqrt(dx * dx + dy * dy + dz * dz));
+		}
+		return max;
+	}
+
+
+	// The collision grid: first checked against testing every pair on a small belt, then timed on a
+	// big one on 1 .. THREADS threads. The asteroids get a (much too big) radius so they actually touch,
+	// 5 times bigger again in the small belt so it has enough pairs to check. Fails if the grid missed a
+	// pair or found one twice, or merging changed the total mass
+	static int benchmarkCollisions(int checkAsteroids, int asteroids, double radius, int repeats) {
+		BodySystem small = collisionBelt(checkAsteroids, 5.0 * radius);
+		CollisionDetector detector = new CollisionDetector(small.capacity, 10.0 * radius, 1 << 20, new PhysicsPool(1));
+		int found = detector.detect(small);
+		java.util.HashSet<Long> grid = new java.util.HashSet<>();
+		for (int k = 0; k < found; k++) grid.add((long) detector.getPairA(k) << 32 | detector.getPairB(k));
+		int brute = 0, missing = 0;
+		for (int i = 0; i < small.count; i++) {
+			for (int j = i + 1; j < small.count; j++) {
+				double dx = small.x[j] - small.x[i], dy = small.y[j] - small.y[i], dz = small.z[j] - small.z[i];
+				double reach = small.radius[i] + small.radius[j];
+				if (dx * dx + dy * dy + dz * dz >= reach * reach) continue;
+				brute++;
+				if (!grid.contains((long) i << 32 | j)) missing++;
+			}
+		}
+		System.out.printf("collisions: %d bodies, grid %d pairs, every pair %d pairs, %d missing, %d duplicates%n",
+				small.count, found, brute, missing, found - grid.size());
+		int failures = 0;
+		if (missing > 0 || found != grid.size()) {
+			System.out.println("  FAILED: the grid doesn't find every touching pair exactly once");
+			failures++;
+		}
+
+		BodySystem belt = collisionBelt(asteroids, radius);
+		int pairs = 0;
+		double baseline = 0.0;
+		for (int threads = 1; threads <= Settings.THREADS; threads *= 2) {
+			PhysicsPool pool = new PhysicsPool(threads);
+			CollisionDetector big = new CollisionDetector(belt.capacity, 2.0 * radius, 1 << 20, pool);
+			big.detect(belt); // Warm up
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < repeats; r++) {
+				long start = System.nanoTime();
+				pairs = big.detect(belt);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			pool.shutdown();
+			double ms = best / 1e6;
+			if (threads == 1) baseline = ms;
+			System.out.printf("  %d bodies, %2d threads: %7.1f ms, %d pairs, speedup %.2fx%n", belt.count, threads, ms, pairs, baseline / ms);
+		}
+
+		// And merging them, as the Simulation does after a step
+		CollisionDetector merger = new CollisionDetector(belt.capacity, 2.0 * radius, 1 << 20, new PhysicsPool(1));
+		merger.detect(belt);
+		double massBefore = 0.0;
+		for (int i = 0; i < belt.count; i++) massBefore += belt.mass[i];
+		long start = System.nanoTime();
+		int merged = merger.merge(belt);
+		double mergeMs = (System.nanoTime() - start) / 1e6;
+		double massAfter = 0.0;
+		for (int i = 0; i < belt.count; i++) massAfter += belt.mass[i];
+		System.out.printf("  merge: %d bodies removed in %.1f ms, %d left touching, mass %.17g -> %.17g%n",
+				merged, mergeMs, merger.detect(belt), massBefore, massAfter);
+		// A few ulps for the sums' rounding: still far less than one asteroid (1e-14)
+		if (Math.abs(massAfter - massBefore) > 4.0 * Math.ulp(massBefore)) {
+			System.out.println("  FAILED: merging changed the total mass");
+			failures++;
+		}
+		return failures;
+	}
+
+
+	// The usual belt, every asteroid weighing a little and `radius` AU big
+	private static BodySystem collisionBelt(int asteroids, double radius) {
+		BodySystem b = Scenes.solarSystem(asteroids, 1e-14, 23L);
+		for (int i = 1 + Scenes.PLANET_MASS.length; i < b.count; i++) b.radius[i] = radius;
+		return b;
+	}
+
+
+	// Frustum culling (BodyBvh) of a big belt seen close up from above its outer edge. The belt turns on
+	// circular orbits, frameDays a frame: how often the tree has to be rebuilt rather than refit, and
+	// whether every body whose centre is on screen was kept (against projecting every body). Then the
+	// build, refit and cull times on 1 .. THREADS threads, against that projection of every body.
+	// Fails if any body on screen was culled
+	static int benchmarkCulling(int asteroids, int frames, double frameDays, int repeats) {
+		BodySystem bodies = Scenes.solarSystem(asteroids, 29L);
+		StateSnapshot snapshot = new StateSnapshot(bodies.capacity);
+		int n = snapshot.count = bodies.count;
+		for (int i = 0; i < n; i++) {
+			snapshot.curX[i] = snapshot.prevX[i] = (float) bodies.x[i];
+			snapshot.curY[i] = snapshot.prevY[i] = (float) bodies.y[i];
+			snapshot.curZ[i] = snapshot.prevZ[i] = (float) bodies.z[i];
+			snapshot.radius[i] = (float) bodies.radius[i];
+		}
+		Mat4 view = new Mat4().lookAt(new Vec3(3.5f, -2.5f, 1.5f), new Vec3(2.5f, 0.0f, 0.0f), new Vec3(0.0f, 0.0f, 1.0f));
+		Mat4 viewProjection = new Mat4().perspective((float) Math.toRadians(45.0), 16.0f / 9.0f, 0.01f, 1000.0f).mul(view);
+		float padX = 2.0f * 2.5f / 1280, padY = 2.0f * 2.5f / 720;
+
+		PhysicsPool pool = new PhysicsPool(Settings.THREADS);
+		BodyBvh bvh = new BodyBvh(pool);
+		long missing = 0, onScreen = 0, kept = 0;
+		boolean[] isVisible = new boolean[n];
+		for (int f = 0; f < frames; f++) {
+			for (int i = 1; i < n; i++) {
+				// Everything but the Sun turns about z by its circular orbit's angle
+				float x = snapshot.curX[i], y = snapshot.curY[i];
+				double r = Math.sqrt(x * x + y * y);
+				double angle = Math.sqrt(BodySystem.G / (r * r * r)) * frameDays;
+				float c = (float) Math.cos(angle), sn = (float) Math.sin(angle);
+				snapshot.prevX[i] = x;
+				snapshot.prevY[i] = y;
+				snapshot.curX[i] = x * c - y * sn;
+				snapshot.curY[i] = x * sn + y * c;
+			}
+			snapshot.publishNanos = f + 1;
+			bvh.update(snapshot, 40.0f);
+			int count = bvh.cull(snapshot, viewProjection, padX, padY);
+			java.util.Arrays.fill(isVisible, false);
+			for (int k = 0; k < count; k++) isVisible[bvh.getVisible()[k]] = true;
+			for (int i = 0; i < n; i++) {
+				if (!centreOnScreen(viewProjection.m, snapshot, i)) continue;
+				onScreen++;
+				if (!isVisible[i]) missing++;
+			}
+			kept += count;
+		}
+		pool.shutdown();
+		System.out.printf("culling: %d bodies, %d frames of %.0f days: %d visible, %d culled per frame, %d centres on screen, %d of them missing%n",
+				n, frames, frameDays, kept / frames, n - kept / frames, onScreen / frames, missing);
+		System.out.printf("  %d nodes, %d deep, %d rebuilds in %d refits%n", bvh.getNodeCount(), bvh.getDepth(), bvh.getRebuilds(), bvh.getRefits());
+		if (missing > 0) System.out.println("  FAILED: bodies on screen were culled");
+
+		// The same without the tree: every body projected and tested
+		long best = Long.MAX_VALUE;
+		int linear = 0;
+		for (int r = 0; r < repeats; r++) {
+			long start = System.nanoTime();
+			linear = 0;
+			for (int i = 0; i < n; i++) {
+				if (centreOnScreen(viewProjection.m, snapshot, i)) linear++;
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("  projecting every body: %.2f ms (%d centres on screen)%n", best / 1e6, linear);
+
+		double baseline = 0.0;
+		for (int threads = 1; threads <= Settings.THREADS; threads *= 2) {
+			PhysicsPool p = new PhysicsPool(threads);
+			BodyBvh timed = new BodyBvh(p);
+			long build = Long.MAX_VALUE, refit = Long.MAX_VALUE, cull = Long.MAX_VALUE;
+			for (int r = 0; r < repeats; r++) {
+				long start = System.nanoTime();
+				timed.update(snapshot, r % 2 == 0 ? 40.0f : 41.0f); // A new radius scale forces a rebuild
+				build = Math.min(build, System.nanoTime() - start);
+				snapshot.publishNanos++;
+				start = System.nanoTime();
+				timed.update(snapshot, r % 2 == 0 ? 40.0f : 41.0f);
+				refit = Math.min(refit, System.nanoTime() - start);
+				start = System.nanoTime();
+				timed.cull(snapshot, viewProjection, padX, padY);
+				cull = Math.min(cull, System.nanoTime() - start);
+			}
+			p.shutdown();
+			if (threads == 1) baseline = cull;
+			System.out.printf("  %2d threads: build %7.1f ms, refit %6.2f ms, cull %6.2f ms (speedup %.2fx)%n",
+					threads, build / 1e6, refit / 1e6, cull / 1e6, baseline / cull);
+		}
+		return missing > 0 ? 1 : 0;
+	}
+
+
+	// Is body i's position (cur) inside the view (column major viewProjection)?
+	private static boolean centreOnScreen(float[] m, StateSnapshot s, int i) {
+		float x = s.curX[i], y = s.curY[i], z = s.curZ[i];
+		float cx = m[0] * x + m[4] * y + m[8] * z + m[12];
+		float cy = m[1] * x + m[5] * y + m[9] * z + m[13];
+		float cz = m[2] * x + m[6] * y + m[10] * z + m[14];
+		float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+		return w > 0.0f && Math.abs(cx) <= w && Math.abs(cy) <= w && Math.abs(cz) <= w;
+	}
+
+
+	// The star catalog: a made up sky of `stars` stars written as a CSV, converted to a .omst, then loaded
+	// both ways (parsing the CSV against mapping the .omst and copying its records out, which is what the
+	// upload costs). Then how far the quantization moves the stars, and how many the default view draws
+	static void benchmarkStars(int stars, int repeats) {
+		StarCatalog.Stars sky = StarCatalog.synthetic(stars, 37L);
+		try {
+			Path csv = Files.createTempFile("outermilds-stars", ".csv");
+			Path omst = Files.createTempFile("outermilds-stars", ".omst");
+			try {
+				// The ecliptic directions back to equatorial ra, dec (a turn about x the other way)
+				double e = Math.toRadians(23.4393);
+				try (java.io.BufferedWriter out = Files.newBufferedWriter(csv)) {
+					out.write("id,ra,dec,mag,ci\n");
+					for (int i = 0; i < sky.count; i++) {
+						double y = Math.cos(e) * sky.y[i] - Math.sin(e) * sky.z[i], z = Math.sin(e) * sky.y[i] + Math.cos(e) * sky.z[i];
+						double ra = Math.toDegrees(Math.atan2(y, sky.x[i])), dec = Math.toDegrees(Math.asin(Math.max(-1.0, Math.min(1.0, z))));
+						out.write(String.format(java.util.Locale.ROOT, "%d,%.6f,%.6f,%.2f,%.3f%n", i, ra < 0 ? ra + 360.0 : ra, dec, sky.magnitude[i], sky.colorIndex[i]));
+					}
+				}
+
+				long parse = Long.MAX_VALUE, load = Long.MAX_VALUE;
+				StarCatalog.Stars parsed = null;
+				for (int r = 0; r < repeats; r++) {
+					long start = System.nanoTime();
+					parsed = StarCatalog.readCsv(csv);
+					parse = Math.min(parse, System.nanoTime() - start);
+				}
+				long start = System.nanoTime();
+				StarCatalog.write(omst, parsed, StarCatalog.DEFAULT_SIDE);
+				long convert = System.nanoTime() - start;
+				ByteBuffer upload = ByteBuffer.allocateDirect(stars * StarCatalog.RECORD_BYTES);
+				StarCatalog catalog = null;
+				for (int r = 0; r < repeats; r++) {
+					start = System.nanoTime();
+					catalog = StarCatalog.open(omst);
+					upload.clear();
+					upload.put(catalog.getRecords());
+					load = Math.min(load, System.nanoTime() - start);
+				}
+				System.out.printf("stars: %d stars, CSV %.1f MB parsed in %.0f ms, .omst %.1f MB (converted in %.0f ms) loaded in %.1f ms (%.0fx)%n",
+						catalog.starCount, Files.size(csv) / 1048576.0, parse / 1e6, Files.size(omst) / 1048576.0, convert / 1e6, load / 1e6,
+						(double) parse / load);
+
+				// The quantization error, against the stars as parsed (the catalog is sorted, so go round-trip star by star)
+				float[] d = new float[3];
+				double worstAngle = 0.0, worstMagnitude = 0.0;
+				for (int i = 0; i < parsed.count; i++) {
+					StarCatalog.decodeDirection(StarCatalog.encodeDirection(parsed.x[i], parsed.y[i], parsed.z[i]), d);
+					double dx = d[0] - parsed.x[i], dy = d[1] - parsed.y[i], dz = d[2] - parsed.z[i]; // The chord (acos of a float dot is too coarse)
+					worstAngle = Math.max(worstAngle, 2.0 * Math.asin(0.5 * Math.sqrt(dx * dx + dy * dy + dz * dz)));
+					float m = StarCatalog.MAG_MIN + StarCatalog.magnitudeCode(parsed.magnitude[i]) * StarCatalog.MAG_STEP;
+					worstMagnitude = Math.max(worstMagnitude, Math.abs(m - parsed.magnitude[i]));
+				}
+				System.out.printf("  quantization: directions within %.1f arcseconds, magnitudes within %.3f%n",
+						Math.toDegrees(worstAngle) * 3600.0, worstMagnitude);
+
+				// The default camera: 45 degrees high, 16:9, looking at the Sun from 30 degrees off the ecliptic's pole
+				int[] first = new int[catalog.cellCount], count = new int[catalog.cellCount];
+				double tilt = Math.toRadians(30.0), tanY = Math.tan(Math.toRadians(45.0) / 2.0);
+				float halfAngle = (float) Math.atan(tanY * Math.sqrt(1.0 + (16.0 / 9.0) * (16.0 / 9.0)));
+				int runs = catalog.visibleRuns(0.0f, (float) Math.sin(tilt), (float) -Math.cos(tilt), halfAngle, first, count);
+				int drawn = 0;
+				for (int r = 0; r < runs; r++) drawn += count[r];
+				System.out.printf("  default view: %d stars drawn (%.1f%%) in %d runs of the %d cells%n",
+						drawn, 100.0 * drawn / catalog.starCount, runs, catalog.cellCount);
+			} finally {
+				Files.deleteIfExists(csv);
+				Files.deleteIfExists(omst);
+			}
+		} catch (IOException e) {
+			System.err.println("stars: " + e.getMessage());
+		}
+	}
+
+
+	// Dynamic resolution against a made up GPU: fixedMs a frame plus pixelMs at full size (times the scale
+	// squared), 5% noise, and each time coming back 4 frames late like the timer queries. The scene is `heavy`
+	// times as expensive in the middle third of the frames. Per third: the mean scale, the frames over budget
+	// (and how many would have been at full size), the scale changes, and the last frame over budget
+	static void benchmarkResolution(double budgetMs, double fixedMs, double pixelMs, double heavy, int frames) {
+		ResolutionController controller = new ResolutionController(budgetMs, 0.5);
+		java.util.Random random = new java.util.Random(11);
+		long[] inFlight = new long[4];
+		System.out.printf("resolution: %.1f ms budget, %.1f ms + %.1f ms of pixels at full size, %.1fx the pixels in the middle third%n",
+				budgetMs, fixedMs, pixelMs, heavy);
+		String[] names = { "light", "heavy", "light again" };
+		int third = frames / 3, frame = 0;
+		for (int part = 0; part < 3; part++) {
+			double load = part == 1 ? heavy : 1.0, scaleTotal = 0.0;
+			int over = 0, overFull = 0, lastOver = -1;
+			long changes = controller.getChanges();
+			for (int f = 0; f < third; f++, frame++) {
+				double scale = controller.getScale(), noise = 1.0 + 0.05 * random.nextGaussian();
+				double ms = (fixedMs + pixelMs * load * scale * scale) * noise;
+				scaleTotal += scale;
+				if (ms > budgetMs) {
+					over++;
+					lastOver = f;
+				}
+				if ((fixedMs + pixelMs * load) * noise > budgetMs) overFull++;
+
+				// Frame `frame - 4`'s time arrives as this one is drawn
+				int slot = frame % inFlight.length;
+				if (frame >= inFlight.length) controller.update(inFlight[slot]);
+				inFlight[slot] = (long) (ms * 1e6);
+			}
+			System.out.printf("  %-11s scale %.2f on average (%.2f at the end), %d of %d frames over budget (%d at full size), %d changes, last over at frame %d%n",
+					names[part], scaleTotal / third, controller.getScale(), over, third, overFull, controller.getChanges() - changes, lastOver);
+		}
+	}
+
+
+	// Step a 10k body solar system and report the time per step, the energy drift,
+	// and how many bytes were allocated during the timed steps (should be 0).
+	static void benchmarkStep(int asteroids, double dt, int warmupSteps, int timedSteps) {
+		BodySystem bodies = Scenes.solarSystem(asteroids, 42L);
+		Simulation sim = new Simulation(bodies, new DirectGravity(bodies.capacity, 0.0), new VelocityVerlet(), dt);
+
+		// Let the JIT compile the hot loops first
+		for (int i = 0; i < warmupSteps; i++) sim.step();
+
+		double energyBefore = bodies.totalEnergy(0.0);
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < timedSteps; i++) sim.step();
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+		double energyAfter = bodies.totalEnergy(0.0);
+
+		System.out.printf("step: %d bodies, %.4f ms/step, energy drift %.3e, %d bytes allocated over %d steps%n",
+				bodies.count, elapsed / 1e6 / timedSteps,
+				Math.abs((energyAfter - energyBefore) / energyBefore), allocated, timedSteps);
+	}
+
+
+	// Accuracy versus speed of the tree code against the direct sum.
+	// Every asteroid has mass here, otherwise the tree only holds the 9 big bodies and there's nothing to win.
+	// Fails if theta 0.5's 99th percentile error is over BARNES_HUT_ERROR, or any theta is slower than the direct sum
+	static int benchmarkBarnesHut(int asteroids, double[] thetas) {
+		BodySystem bodies = Scenes.solarSystem(asteroids, 1e-12, 7L);
+		int n = bodies.count;
+
+		// The reference answer
+		DirectGravity direct = new DirectGravity(bodies.capacity, 1e-4);
+		direct.computeAccelerations(bodies);
+		direct.computeAccelerations(bodies); // Once more so the JIT has had a look
+		long start = System.nanoTime();
+		direct.computeAccelerations(bodies);
+		double directMs = (System.nanoTime() - start) / 1e6;
+		double[] refX = bodies.ax.clone(), refY = bodies.ay.clone(), refZ = bodies.az.clone();
+		System.out.printf("barneshut: %d bodies, direct sum %.1f ms%n", n, directMs);
+
+		double[] errors = new double[n];
+		int failures = 0;
+		for (double theta : thetas) {
+			BarnesHut tree = new BarnesHut(bodies.capacity, 1e-4, theta);
+			for (int i = 0; i < 3; i++) tree.computeAccelerations(bodies);
+			start = System.nanoTime();
+			tree.computeAccelerations(bodies);
+			double treeMs = (System.nanoTime() - start) / 1e6;
+
+			// Relative error of every acceleration vector
+			for (int i = 0; i < n; i++) {
+				double dx = bodies.ax[i] - refX[i], dy = bodies.ay[i] - refY[i], dz = bodies.az[i] - refZ[i];
+				double ref = Math.sqrt(refX[i] * refX[i] + refY[i] * refY[i] + refZ[i] * refZ[i]);
+				errors[i] = Math.sqrt(dx * dx + dy * dy + dz * dz) / ref;
+			}
+			java.util.Arrays.sort(errors);
+			System.out.printf("  theta %.1f: %8.1f ms (%5.1fx), %d nodes, error median %.2e, 99%% %.2e, max %.2e%n",
+					theta, treeMs, directMs / treeMs, tree.getNodeCount(),
+					errors[n / 2], errors[(int) (n * 0.99)], errors[n - 1]);
+			if (directMs / treeMs < 1.0) {
+				System.out.printf("  FAILED: theta %.1f is slower than the direct sum%n", theta);
+				failures++;
+			}
+			if (theta == 0.5 && errors[(int) (n * 0.99)] > BARNES_HUT_ERROR) {
+				System.out.printf("  FAILED: theta 0.5 99%% error over %.0e%n", BARNES_HUT_ERROR);
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+
+	// Time the tree on a belt far too big for the direct sum
+	static void benchmarkBarnesHutLarge(int asteroids, double theta) {
+		BodySystem bodies = Scenes.solarSystem(asteroids, 1e-15, 11L);
+		BarnesHut tree = new BarnesHut(bodies.capacity, 1e-4, theta);
+		tree.computeAccelerations(bodies);
+		long start = System.nanoTime();
+		tree.computeAccelerations(bodies);
+		System.out.printf("barneshut: %d bodies, theta %.1f, %.1f ms per force evaluation%n",
+				bodies.count, theta, (System.nanoTime() - start) / 1e6);
+	}
+
+
+	// Step the same scene on 1, 2, 4 ... up to every core, and check every run ends
+	// in exactly the same state (same bits), whatever the thread count. Fails for every run that doesn't
+	static int benchmarkScaling(int asteroids, int steps) {
+		int cores = Runtime.getRuntime().availableProcessors();
+		double baseline = 0.0;
+		long expectedHash = 0;
+		int failures = 0;
+		for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+			BodySystem bodies = Scenes.solarSystem(asteroids, 1e-12, 3L);
+			PhysicsPool pool = new PhysicsPool(threads);
+			Simulation sim = new Simulation(bodies, new BarnesHut(bodies.capacity, 1e-4, 0.7), new VelocityVerlet(pool), 0.1);
+			sim.step(); // Warm up
+
+			long start = System.nanoTime();
+			for (int i = 0; i < steps; i++) sim.step();
+			double ms = (System.nanoTime() - start) / 1e6 / steps;
+			double energy = bodies.totalEnergy(pool, 1e-4);
+			pool.shutdown();
+
+			long hash = stateHash(bodies);
+			if (threads == 1) {
+				baseline = ms;
+				expectedHash = hash;
+			}
+			System.out.printf("scaling: %2d threads, %8.1f ms/step, speedup %5.2fx, energy %.17e, state %016x %s%n",
+					threads, ms, baseline / ms, energy, hash, hash == expectedHash ? "identical" : "DIFFERENT");
+			if (hash != expectedHash) failures++;
+			if (threads == cores) break;
+		}
+		return failures;
+	}
+
+
+	// A hash of the exact bits of every position and velocity
+	static long stateHash(BodySystem b) {
+		long h = 1125899906842597L;
+		for (int i = 0; i < b.count; i++) {
+			h = 31 * h + Double.doubleToLongBits(b.x[i]);
+			h = 31 * h + Double.doubleToLongBits(b.y[i]);
+			h = 31 * h + Double.doubleToLongBits(b.z[i]);
+			h = 31 * h + Double.doubleToLongBits(b.vx[i]);
+			h = 31 * h + Double.doubleToLongBits(b.vy[i]);
+			h = 31 * h + Double.doubleToLongBits(b.vz[i]);
+		}
+		return h;
+	}
+
+
+	// Bytes allocated by this thread so far (HotSpot only, -1 if not supported)
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
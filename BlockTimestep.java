@@ -0,0 +1,316 @@
+/**
+ * BlockTimestep.java
+ *
+ * Kick-Drift-Kick like VelocityVerlet, but every body gets its own step, so a moon going round
+ * Jupiter in 1.8 days or a comet at perihelion can take tiny steps while the asteroids that need
+ * days per step don't have to.
+ *
+ * The steps are a hierarchy: level L steps dt / 2^L, for L = 0 (the dt passed to step()) down to
+ * maxLevel. One step() is 2^maxLevel substeps ("ticks"), though only the ticks on which some body's
+ * step ends are actually run (the finest occupied level's). On tick t the bodies whose step ends at t are
+ * active: level L is active when t is a multiple of 2^(maxLevel - L), so every level is also active
+ * whenever a coarser one is, and at the end of step() everything is. Only the active bodies get
+ * their forces computed, so the cost is about the number of (body, own step) pairs instead of
+ * (every body, smallest step).
+ *
+ * The level comes from how fast the acceleration is changing (Aarseth's criterion, simplified):
+ * 	step = eta * |a| / |jerk|
+ * with the jerk (da/dt) taken as the change in acceleration over the body's last step, so it costs
+ * nothing extra.
+ * A body may go down to a finer level at any kick, but only up one level at a time, and only when
+ * the coarser step starts at that tick (so the levels stay in sync). New bodies start on the finest
+ * level and climb from there.
+ *
+ * The bodies are kept sorted by level, coarsest first, so the active ones are always one run at the
+ * end of that list, and the force model gets it as an index list (ForceModel.accelerate(indices)).
+ * Positions are only brought up to date when they're needed: the massive bodies every tick (they are
+ * the sources of the forces), everything else when it's active. In the middle of its step a body is
+ * put where a(t) says it is (x0 + v0 t + a t^2 / 2, the "predictor"), not where the straight KDK drift
+ * would have it: the Earth coasting 2 days in a straight line would be 1e-4 AU off, and the Moon
+ * would feel that. At the end of the step both agree exactly, so the KDK step itself is unchanged.
+ *
+ * Unlike the global step this isn't exactly symplectic (a body's step changes with its orbit),
+ * so energy drifts slowly instead of just wobbling. eta keeps that small.
+ *
+ * @author CLLFTVTV
+ */
+public class BlockTimestep implements Integrator {
+
+
+	public static final int DEFAULT_MAX_LEVEL = 10;
+	public static final double DEFAULT_ETA = 0.02; // About 300 steps per circular orbit
+
+
+	private final PhysicsPool pool;
+	private final int maxLevel;
+	private final double eta;
+
+	// Per body: level, the tick of its last kick, the tick its position was last brought up to date,
+	// and its acceleration at its last kick
+	private int bodyCount = -1;
+	private int[] level;
+	private int[] kickTick;
+	private int[] lastTick;
+	private double[] lastAx, lastAy, lastAz;
+
+	// Body indices sorted by level, coarsest first, and where each level starts in there (levelStart[maxLevel + 1] = count)
+	private int[] byLevel, sortScratch;
+	private final int[] levelStart;
+	private final int[] histogram;
+
+	// The massive bodies, drifted every tick
+	private int[] sources;
+	private int sourceCount;
+
+	// The step being taken. In fields so the loop bodies below are created once
+	private BodySystem b;
+	private ForceModel forces;
+	private double dt, tickDt;
+	private int tick, activeFrom;
+
+	private final PhysicsPool.Range openingKick = this::openingKick;
+	private final PhysicsPool.Range driftActive = this::driftActive;
+	private final PhysicsPool.Range accelerate = this::accelerate;
+	private final PhysicsPool.Range closingKick = this::closingKick;
+
+	// Stats
+	private long substeps;
+	private long evaluations;
+
+
+	// Single threaded, default levels
+	public BlockTimestep() {
+		this(new PhysicsPool(1), DEFAULT_MAX_LEVEL, DEFAULT_ETA);
+	}
+
+
+	public BlockTimestep(PhysicsPool pool) {
+		this(pool, DEFAULT_MAX_LEVEL, DEFAULT_ETA);
+	}
+
+
+	// maxLevel: the finest step is dt / 2^maxLevel (0 .. 20). eta: the accuracy, smaller = finer steps
+	public BlockTimestep(PhysicsPool pool, int maxLevel, double eta) {
+		if (maxLevel < 0 || maxLevel > 20) throw new IllegalArgumentException("maxLevel must be 0 .. 20, got " + maxLevel);
+		this.pool = pool;
+		this.maxLevel = maxLevel;
+		this.eta = eta;
+		this.levelStart = new int[maxLevel + 2];
+		this.histogram = new int[maxLevel + 1];
+	}
+
+
+	@Override
+	public void step(BodySystem bodies, ForceModel forces, double dt) {
+		this.b = bodies;
+		this.forces = forces;
+		this.dt = dt;
+		int n = bodies.count;
+		if (n != bodyCount) reset(bodies);
+		int ticks = 1 << maxLevel;
+		tickDt = dt / ticks;
+
+		sourceCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (bodies.mass[i] != 0.0) sources[sourceCount++] = i;
+		}
+
+		// Everyone starts their step together
+		tick = 0;
+		pool.run(n, openingKick);
+
+		// Only the ticks that wake someone: on the others nobody is active, and drifting the sources and
+		// preparing the force model (a whole tree build for Barnes-Hut) would be for nothing. The next one is
+		// the next multiple of the finest occupied level's step, which can get finer as bodies change level
+		while (tick < ticks) {
+			int stride = ticks >> getFinestLevel();
+			tick += stride - tick % stride;
+			int coarsest = maxLevel - Integer.numberOfTrailingZeros(tick);
+			activeFrom = levelStart[coarsest];
+			int active = n - activeFrom;
+
+			for (int k = 0; k < sourceCount; k++) drift(sources[k]);
+			pool.run(active, driftActive);
+			forces.prepare(bodies);
+			pool.run(active, accelerate);
+			pool.run(active, closingKick);
+			sortActive(coarsest);
+
+			substeps++;
+			evaluations += active;
+		}
+
+		this.b = null;
+		this.forces = null;
+	}
+
+
+	// Put every body back on the finest level. Happens by itself when the body count changes;
+	// call it after moving bodies behind the integrator's back (loading a checkpoint...)
+	public void reset(BodySystem bodies) {
+		int n = bodies.count;
+		if (level == null || level.length < n) {
+			int capacity = Math.max(n, bodies.capacity);
+			level = new int[capacity];
+			kickTick = new int[capacity];
+			lastTick = new int[capacity];
+			lastAx = new double[capacity];
+			lastAy = new double[capacity];
+			lastAz = new double[capacity];
+			byLevel = new int[capacity];
+			sortScratch = new int[capacity];
+			sources = new int[capacity];
+		}
+		for (int i = 0; i < n; i++) {
+			level[i] = maxLevel;
+			byLevel[i] = i;
+			lastAx[i] = bodies.ax[i];
+			lastAy[i] = bodies.ay[i];
+			lastAz[i] = bodies.az[i];
+		}
+		for (int l = 0; l <= maxLevel; l++) levelStart[l] = 0;
+		levelStart[maxLevel + 1] = n;
+		bodyCount = n;
+	}
+
+
+	// Tick 0: half a kick of each body's own step
+	private void openingKick(int from, int to) {
+		final BodySystem b = this.b;
+		for (int i = from; i < to; i++) {
+			double half = 0.5 * stepOf(level[i]);
+			b.vx[i] += b.ax[i] * half;
+			b.vy[i] += b.ay[i] * half;
+			b.vz[i] += b.az[i] * half;
+			kickTick[i] = 0;
+			lastTick[i] = 0;
+		}
+	}
+
+
+	private void driftActive(int from, int to) {
+		final int[] byLevel = this.byLevel;
+		for (int k = activeFrom + from, end = activeFrom + to; k < end; k++) {
+			drift(byLevel[k]);
+		}
+	}
+
+
+	// Bring body i's position up to the current tick, along x0 + v0 t + a t^2 / 2 from its last kick.
+	// v is the half kicked velocity v0 + a h, so that's v t + a t (t / 2 - h), and at t = 2h it's the KDK drift
+	private void drift(int i) {
+		if (lastTick[i] == tick) return;
+		double t1 = (lastTick[i] - kickTick[i]) * tickDt;
+		double t2 = (tick - kickTick[i]) * tickDt;
+		double half = 0.5 * stepOf(level[i]);
+		double d = t2 - t1;
+		double c = 0.5 * (t2 * t2 - t1 * t1) - half * d;
+		b.x[i] += b.vx[i] * d + lastAx[i] * c;
+		b.y[i] += b.vy[i] * d + lastAy[i] * c;
+		b.z[i] += b.vz[i] * d + lastAz[i] * c;
+		lastTick[i] = tick;
+	}
+
+
+	private void accelerate(int from, int to) {
+		forces.accelerate(b, byLevel, activeFrom + from, activeFrom + to);
+	}
+
+
+	// The active bodies: close their step, pick the next level, and open the next step
+	// (unless this is the last tick, the next step() opens it)
+	private void closingKick(int from, int to) {
+		final BodySystem b = this.b;
+		final int[] byLevel = this.byLevel;
+		final int ticks = 1 << maxLevel;
+		for (int k = activeFrom + from, end = activeFrom + to; k < end; k++) {
+			int i = byLevel[k];
+			double ax = b.ax[i], ay = b.ay[i], az = b.az[i];
+			double step = stepOf(level[i]);
+			double half = 0.5 * step;
+			b.vx[i] += ax * half;
+			b.vy[i] += ay * half;
+			b.vz[i] += az * half;
+
+			// |a| / |jerk|, with the jerk = the change in a over the step just taken
+			double jx = (ax - lastAx[i]) / step, jy = (ay - lastAy[i]) / step, jz = (az - lastAz[i]) / step;
+			double j2 = jx * jx + jy * jy + jz * jz;
+			int wanted = 0;
+			if (j2 > 0.0) {
+				double ideal = eta * Math.sqrt((ax * ax + ay * ay + az * az) / j2);
+				while (wanted < maxLevel && stepOf(wanted) > ideal) wanted++;
+			}
+			int next = Math.max(wanted, level[i] - 1);
+			while (next < level[i] && (tick & ((ticks >> next) - 1)) != 0) next++; // Coarser step must start now
+			level[i] = next;
+			kickTick[i] = tick;
+			lastAx[i] = ax;
+			lastAy[i] = ay;
+			lastAz[i] = az;
+
+			if (tick < ticks) {
+				half = 0.5 * stepOf(next);
+				b.vx[i] += ax * half;
+				b.vy[i] += ay * half;
+				b.vz[i] += az * half;
+			}
+		}
+	}
+
+
+	private double stepOf(int level) {
+		return dt / (1 << level);
+	}
+
+
+	// Counting sort the active run by (new) level. They can only land on levels >= coarsest
+	// (anything coarser wouldn't be starting this tick), so the run stays at the end of the list
+	private void sortActive(int coarsest) {
+		int from = activeFrom, to = bodyCount;
+		for (int l = coarsest; l <= maxLevel; l++) histogram[l] = 0;
+		for (int k = from; k < to; k++) histogram[level[byLevel[k]]]++;
+		int sum = from;
+		for (int l = coarsest; l <= maxLevel; l++) {
+			levelStart[l] = sum;
+			int c = histogram[l];
+			histogram[l] = sum;
+			sum += c;
+		}
+		for (int k = from; k < to; k++) {
+			int i = byLevel[k];
+			sortScratch[histogram[level[i]]++] = i;
+		}
+		System.arraycopy(sortScratch, from, byLevel, from, to - from);
+	}
+
+
+	// Bodies on each level right now
+	public int getLevelCount(int level) {
+		return levelStart[level + 1] - levelStart[level];
+	}
+
+
+	// The finest level anything is on
+	public int getFinestLevel() {
+		for (int l = maxLevel; l > 0; l--) {
+			if (getLevelCount(l) > 0) return l;
+		}
+		return 0;
+	}
+
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+
+	// Substeps taken (ticks actually run) and single body force evaluations done, since the start
+	public long getSubsteps() {
+		return substeps;
+	}
+
+
+	public long getEvaluations() {
+		return evaluations;
+	}
+}
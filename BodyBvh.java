@@ -0,0 +1,424 @@
+import java.util.Arrays;
+
+/**
+ * BodyBvh.java
+ *
+ * Frustum culling: finds the bodies the camera can see, so only those get drawn.
+ *
+ * The bodies' bounding spheres go into a bounding volume hierarchy (BVH): a binary tree of boxes,
+ * each box around everything below it, with up to LEAF_SIZE bodies in a leaf. One box outside the
+ * view throws away everything under it without looking at the bodies, and one box completely inside
+ * takes everything under it without testing any more planes. The tree is built by splitting at the
+ * median of the longest axis, into a node array with the bodies of every node one run of a
+ * permutation (order[]).
+ *
+ * The bodies move every frame, but the tree doesn't need building again: refit() only grows and
+ * shrinks the boxes to where the bodies are now, leaves first, then each parent from its two
+ * children. That slowly makes the boxes worse (bodies that started together drift apart),
+ * so when the leaves' boxes have twice the surface area they had when built, the tree is rebuilt.
+ * Refits only happen when the simulation has published a new snapshot, and cover both of its
+ * positions (prev and cur), so the boxes hold whatever alpha the frame draws at.
+ *
+ * The splits near the top are put on multiples of PhysicsPool.CHUNK, so each chunk of order[] is
+ * whole subtrees. The frustum test runs one chunk per task, each walking only the nodes that overlap
+ * its chunk and writing what it sees into its own part of the visible array. The parts are then
+ * packed together in chunk order, so the visible list is the same on any number of threads.
+ *
+ * @author CLLFTVTV
+ */
+public class BodyBvh {
+
+
+	// Bodies per leaf
+	static final int LEAF_SIZE = 16;
+
+	// Rebuild once the leaf boxes add up to this many times the surface they had when built
+	private static final double REBUILD_GROWTH = 2.0;
+
+	// The frustum: left, right, bottom, top, near, far. A point is inside a plane when a x + b y + c z + d >= 0
+	private static final int PLANES = 6;
+	private static final int ALL_PLANES = (1 << PLANES) - 1;
+
+
+	private final PhysicsPool pool;
+
+	// The bodies the tree was built for, and their radius scale (the renderer's exaggeration)
+	private int bodyCount = -1;
+	private float radiusScale = 1.0f;
+
+	// The tree. Node 0 is the root, a node's left child is the node after it (-1 right = leaf).
+	// Node n holds the bodies order[first[n] .. first[n] + size[n])
+	private int[] order = new int[0];
+	private int nodeCount;
+	private float[] minX = new float[0], minY = new float[0], minZ = new float[0];
+	private float[] maxX = new float[0], maxY = new float[0], maxZ = new float[0];
+	private int[] first = new int[0], size = new int[0], right = new int[0];
+	private int[] leaves = new int[0];
+	private int[] leafOf = new int[0]; // Per body: the leaf it's in
+	private int leafCount;
+	private int depth;
+	private double builtArea;
+
+	// Build scratch: where each body is (the middle of prev and cur)
+	private float[] keyX = new float[0], keyY = new float[0], keyZ = new float[0];
+
+	// The snapshot being refit or culled, and the last one refit
+	private StateSnapshot snapshot;
+	private long refitPublishNanos = Long.MIN_VALUE;
+	private final float[] planes = new float[4 * PLANES];
+
+	// The output: visible body indices. While culling, chunk c writes from c * CHUNK
+	private int[] visible = new int[0];
+	private int[] chunkVisible = new int[0];
+	private long[] chunkNodes = new long[0];
+	private int[][] stacks = new int[0][];
+	private int visibleCount;
+
+	private final PhysicsPool.Range cullChunk = this::cullChunk;
+
+	// Stats
+	private long rebuilds;
+	private long refits;
+	private long nodesTested;
+
+
+	public BodyBvh(PhysicsPool pool) {
+		this.pool = pool;
+	}
+
+
+	// Bring the tree up to date with the snapshot: refit if it's a new one, rebuild if the body count
+	// changed or the boxes got too loose. radiusScale: how much bigger than their radius bodies are drawn
+	public void update(StateSnapshot s, float radiusScale) {
+		if (s.count != bodyCount || radiusScale != this.radiusScale) {
+			this.radiusScale = radiusScale;
+			build(s);
+			return;
+		}
+		if (s.publishNanos == refitPublishNanos) return; // Nothing moved since the last refit
+		if (refit(s) > REBUILD_GROWTH * builtArea) build(s);
+	}
+
+
+	private void build(StateSnapshot s) {
+		int n = s.count;
+		if (order.length < n) {
+			int capacity = Math.max(n, s.capacity);
+			order = new int[capacity];
+			leafOf = new int[capacity];
+			visible = new int[capacity];
+			keyX = new float[capacity];
+			keyY = new float[capacity];
+			keyZ = new float[capacity];
+		}
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			keyX[i] = 0.5f * (s.prevX[i] + s.curX[i]);
+			keyY[i] = 0.5f * (s.prevY[i] + s.curY[i]);
+			keyZ[i] = 0.5f * (s.prevZ[i] + s.curZ[i]);
+		}
+		nodeCount = 0;
+		leafCount = 0;
+		depth = 0;
+		if (n > 0) buildNode(0, n, 1);
+		bodyCount = n;
+
+		int chunks = (n + PhysicsPool.CHUNK - 1) / PhysicsPool.CHUNK;
+		if (stacks.length < chunks || (chunks > 0 && stacks[0].length < depth + 2)) {
+			stacks = new int[chunks][depth + 2];
+			chunkVisible = new int[chunks];
+			chunkNodes = new long[chunks];
+		}
+		builtArea = refit(s);
+		rebuilds++;
+	}
+
+
+	// Build the node for order[from, from + count), and everything below it. Returns its index
+	private int buildNode(int from, int count, int level) {
+		int node = nodeCount++;
+		if (node == first.length) grow();
+		depth = Math.max(depth, level);
+		first[node] = from;
+		size[node] = count;
+		if (count <= LEAF_SIZE) {
+			right[node] = -1;
+			if (leafCount == leaves.length) leaves = Arrays.copyOf(leaves, Math.max(16, leafCount * 2));
+			leaves[leafCount++] = node;
+			for (int k = from; k < from + count; k++) leafOf[order[k]] = node;
+			return node;
+		}
+
+		// Split along the longest side of the box around the bodies' middles
+		float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE, z0 = Float.MAX_VALUE;
+		float x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE, z1 = -Float.MAX_VALUE;
+		for (int k = from; k < from + count; k++) {
+			int i = order[k];
+			x0 = Math.min(x0, keyX[i]);
+			x1 = Math.max(x1, keyX[i]);
+			y0 = Math.min(y0, keyY[i]);
+			y1 = Math.max(y1, keyY[i]);
+			z0 = Math.min(z0, keyZ[i]);
+			z1 = Math.max(z1, keyZ[i]);
+		}
+		float dx = x1 - x0, dy = y1 - y0, dz = z1 - z0;
+		float[] key = dx >= dy && dx >= dz ? keyX : dy >= dz ? keyY : keyZ;
+
+		// At the median, or bigger than a chunk: at the multiple of CHUNK nearest it (from is one too)
+		int half;
+		if (count > PhysicsPool.CHUNK) {
+			int chunks = Math.round(count / (2.0f * PhysicsPool.CHUNK));
+			half = PhysicsPool.CHUNK * Math.max(1, Math.min((count - 1) / PhysicsPool.CHUNK, chunks));
+		} else {
+			half = count / 2;
+		}
+		select(from, from + count, from + half, key);
+
+		buildNode(from, half, level + 1);
+		int r = buildNode(from + half, count - half, level + 1);
+		right[node] = r;
+		return node;
+	}
+
+
+	private void grow() {
+		int capacity = Math.max(64, first.length * 2);
+		minX = Arrays.copyOf(minX, capacity);
+		minY = Arrays.copyOf(minY, capacity);
+		minZ = Arrays.copyOf(minZ, capacity);
+		maxX = Arrays.copyOf(maxX, capacity);
+		maxY = Arrays.copyOf(maxY, capacity);
+		maxZ = Arrays.copyOf(maxZ, capacity);
+		first = Arrays.copyOf(first, capacity);
+		size = Arrays.copyOf(size, capacity);
+		right = Arrays.copyOf(right, capacity);
+	}
+
+
+	// Quickselect: reorder order[lo, hi) so the k smallest keys come first
+	private void select(int lo, int hi, int k, float[] key) {
+		hi--;
+		while (hi > lo) {
+			float pivot = key[order[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (key[order[i]] < pivot) i++;
+				while (key[order[j]] > pivot) j--;
+				if (i <= j) {
+					int swap = order[i];
+					order[i] = order[j];
+					order[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+
+	// Fit every box to the snapshot's bodies. Returns the leaves' total surface area.
+	// The bodies are read in index order and each grows its leaf's box: reading them leaf by leaf
+	// (through order[]) is a cache miss per body per array, 5 times slower for a million bodies
+	private double refit(StateSnapshot s) {
+		for (int k = 0; k < leafCount; k++) {
+			int node = leaves[k];
+			minX[node] = minY[node] = minZ[node] = Float.MAX_VALUE;
+			maxX[node] = maxY[node] = maxZ[node] = -Float.MAX_VALUE;
+		}
+		final float scale = radiusScale;
+		for (int i = 0; i < bodyCount; i++) {
+			int node = leafOf[i];
+			float r = s.radius[i] * scale;
+			float x0 = s.prevX[i], x1 = s.curX[i], y0 = s.prevY[i], y1 = s.curY[i], z0 = s.prevZ[i], z1 = s.curZ[i];
+			minX[node] = Math.min(minX[node], Math.min(x0, x1) - r);
+			maxX[node] = Math.max(maxX[node], Math.max(x0, x1) + r);
+			minY[node] = Math.min(minY[node], Math.min(y0, y1) - r);
+			maxY[node] = Math.max(maxY[node], Math.max(y0, y1) + r);
+			minZ[node] = Math.min(minZ[node], Math.min(z0, z1) - r);
+			maxZ[node] = Math.max(maxZ[node], Math.max(z0, z1) + r);
+		}
+		double area = 0.0;
+		for (int k = 0; k < leafCount; k++) {
+			int node = leaves[k];
+			double dx = maxX[node] - minX[node], dy = maxY[node] - minY[node], dz = maxZ[node] - minZ[node];
+			area += 2.0 * (dx * dy + dy * dz + dz * dx);
+		}
+		// Parents come before their children, so going backwards every child is done before its parent
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			int r = right[node];
+			if (r < 0) continue;
+			int l = node + 1;
+			minX[node] = Math.min(minX[l], minX[r]);
+			minY[node] = Math.min(minY[l], minY[r]);
+			minZ[node] = Math.min(minZ[l], minZ[r]);
+			maxX[node] = Math.max(maxX[l], maxX[r]);
+			maxY[node] = Math.max(maxY[l], maxY[r]);
+			maxZ[node] = Math.max(maxZ[l], maxZ[r]);
+		}
+		refitPublishNanos = s.publishNanos;
+		snapshot = null;
+		refits++;
+		return area;
+	}
+
+
+	// Find the bodies inside the view of viewProjection (projection * view). The frustum is widened by
+	// padX, padY (fractions of the half screen), for bodies drawn bigger than their radius (a minimum
+	// size in pixels). Returns how many are visible; their indices are in getVisible()
+	public int cull(StateSnapshot s, Mat4 viewProjection, float padX, float padY) {
+		setPlanes(viewProjection.m, padX, padY);
+		snapshot = s;
+		pool.run(bodyCount, cullChunk);
+		snapshot = null;
+
+		// Pack the chunks' parts together, in chunk order
+		int chunks = (bodyCount + PhysicsPool.CHUNK - 1) / PhysicsPool.CHUNK;
+		visibleCount = 0;
+		for (int c = 0; c < chunks; c++) {
+			System.arraycopy(visible, c * PhysicsPool.CHUNK, visible, visibleCount, chunkVisible[c]);
+			visibleCount += chunkVisible[c];
+			nodesTested += chunkNodes[c];
+		}
+		return visibleCount;
+	}
+
+
+	// The planes from the rows of the (column major) matrix: a point is on screen when -w <= x, y, z <= w.
+	// The sides are moved out to -w (1 + pad) <= x <= w (1 + pad)
+	private void setPlanes(float[] m, float padX, float padY) {
+		float sx = 1.0f + padX, sy = 1.0f + padY;
+		for (int c = 0; c < 4; c++) {
+			float row0 = m[4 * c], row1 = m[4 * c + 1], row2 = m[4 * c + 2], row3 = m[4 * c + 3];
+			planes[c] = row3 * sx + row0;
+			planes[4 + c] = row3 * sx - row0;
+			planes[8 + c] = row3 * sy + row1;
+			planes[12 + c] = row3 * sy - row1;
+			planes[16 + c] = row3 + row2;
+			planes[20 + c] = row3 - row2;
+		}
+		// Normalized, so the plane equation is a distance (for the bodies' spheres)
+		for (int p = 0; p < PLANES; p++) {
+			int o = 4 * p;
+			float length = (float) Math.sqrt(planes[o] * planes[o] + planes[o + 1] * planes[o + 1] + planes[o + 2] * planes[o + 2]);
+			for (int k = 0; k < 4; k++) planes[o + k] /= length;
+		}
+	}
+
+
+	// One chunk of order[]: walk the nodes that overlap it, keeping only the planes a box isn't already
+	// completely inside of (the mask), and write the visible bodies from visible[from]
+	private void cullChunk(int from, int to) {
+		int chunk = from / PhysicsPool.CHUNK;
+		int[] stack = stacks[chunk];
+		final StateSnapshot s = snapshot;
+		int out = from;
+		long tested = 0;
+		int top = 0;
+		stack[top++] = ALL_PLANES; // The root (node 0), with every plane to test
+		while (top > 0) {
+			int entry = stack[--top];
+			int node = entry >>> PLANES;
+			int begin = Math.max(first[node], from), end = Math.min(first[node] + size[node], to);
+			if (begin >= end) continue; // Another chunk's
+			tested++;
+			int mask = classify(node, entry & ALL_PLANES);
+			if (mask < 0) continue; // Outside
+
+			if (mask == 0) {
+				// Completely inside: everything under it is visible
+				for (int k = begin; k < end; k++) visible[out++] = order[k];
+			} else if (right[node] < 0) {
+				for (int k = begin; k < end; k++) {
+					int i = order[k];
+					if (sphereVisible(s, i, mask)) visible[out++] = i;
+				}
+			} else {
+				stack[top++] = right[node] << PLANES | mask;
+				stack[top++] = (node + 1) << PLANES | mask;
+			}
+		}
+		chunkVisible[chunk] = out - from;
+		chunkNodes[chunk] = tested;
+	}
+
+
+	// Test the node's box against the planes in mask. -1 = outside one of them, otherwise the planes
+	// it's still partly outside of (0 = completely inside the frustum)
+	private int classify(int node, int mask) {
+		for (int p = 0; p < PLANES; p++) {
+			int bit = 1 << p;
+			if ((mask & bit) == 0) continue;
+			int o = 4 * p;
+			float a = planes[o], b = planes[o + 1], c = planes[o + 2], d = planes[o + 3];
+			// The corner furthest along the plane's normal, and the one furthest back
+			float far = a * (a >= 0 ? maxX[node] : minX[node]) + b * (b >= 0 ? maxY[node] : minY[node]) + c * (c >= 0 ? maxZ[node] : minZ[node]) + d;
+			if (far < 0.0f) return -1;
+			float near = a * (a >= 0 ? minX[node] : maxX[node]) + b * (b >= 0 ? minY[node] : maxY[node]) + c * (c >= 0 ? minZ[node] : maxZ[node]) + d;
+			if (near >= 0.0f) mask &= ~bit;
+		}
+		return mask;
+	}
+
+
+	// A body's sphere around its prev and cur positions against the planes in mask
+	private boolean sphereVisible(StateSnapshot s, int i, int mask) {
+		float x = 0.5f * (s.prevX[i] + s.curX[i]), y = 0.5f * (s.prevY[i] + s.curY[i]), z = 0.5f * (s.prevZ[i] + s.curZ[i]);
+		float dx = s.curX[i] - s.prevX[i], dy = s.curY[i] - s.prevY[i], dz = s.curZ[i] - s.prevZ[i];
+		float r = s.radius[i] * radiusScale + 0.5f * (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		for (int p = 0; p < PLANES; p++) {
+			if ((mask & (1 << p)) == 0) continue;
+			int o = 4 * p;
+			if (planes[o] * x + planes[o + 1] * y + planes[o + 2] * z + planes[o + 3] < -r) return false;
+		}
+		return true;
+	}
+
+
+	// The visible body indices from the last cull(), getVisibleCount() of them
+	public int[] getVisible() {
+		return visible;
+	}
+
+
+	public int getVisibleCount() {
+		return visibleCount;
+	}
+
+
+	public int getCulledCount() {
+		return bodyCount - visibleCount;
+	}
+
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+
+	public int getDepth() {
+		return depth;
+	}
+
+
+	// Since the start: full builds, refits (including the one in every build) and boxes tested while culling
+	public long getRebuilds() {
+		return rebuilds;
+	}
+
+
+	public long getRefits() {
+		return refits;
+	}
+
+
+	public long getNodesTested() {
+		return nodesTested;
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * BodySystem.java
+ *
+ * The body store for the simulation.
+ * Instead of one Body object per planet/asteroid (which scatters them all over the heap),
+ * every property lives in its own primitive array. Body number i is just index i in every array.
+ * This is called "Structure of Arrays" (SoA). The hot loops walk straight through memory,
+ * which keeps the CPU cache happy and lets the JIT vectorize.
+ *
+ * Units: distance in AU, time in days, mass in solar masses.
+ *
+ * @author CLLFTVTV
+ */
+public class BodySystem {
+
+
+	// Gravitational constant in AU^3 / (solar mass * day^2)
+	public static final double G = 2.9591220828559115e-4;
+
+
+	// The arrays are allocated once, so nothing grows (or allocates) while the simulation runs
+	public final int capacity;
+	public int count;
+
+	// Position (AU)
+	public final double[] x;
+	public final double[] y;
+	public final double[] z;
+
+	// Velocity (AU / day)
+	public final double[] vx;
+	public final double[] vy;
+	public final double[] vz;
+
+	// Acceleration (AU / day^2). Filled in by a ForceModel
+	public final double[] ax;
+	public final double[] ay;
+	public final double[] az;
+
+	// Mass (solar masses). A mass of 0 is a "test particle": it feels gravity but doesn't pull on anything
+	public final double[] mass;
+
+	// Physical radius (AU) and display colour (packed 0xRRGGBBAA). Only used for drawing (for now)
+	public final double[] radius;
+	public final int[] color;
+
+
+	public BodySystem(int capacity) {
+		this.capacity = capacity;
+		x = new double[capacity];
+		y = new double[capacity];
+		z = new double[capacity];
+		vx = new double[capacity];
+		vy = new double[capacity];
+		vz = new double[capacity];
+		ax = new double[capacity];
+		ay = new double[capacity];
+		az = new double[capacity];
+		mass = new double[capacity];
+		radius = new double[capacity];
+		color = new int[capacity];
+	}
+
+
+	// Add a body and return its index
+	public int add(double m, double px, double py, double pz, double pvx, double pvy, double pvz) {
+		if (count == capacity) {
+			throw new IllegalStateException("BodySystem is full (capacity " + capacity + ")");
+		}
+		int i = count++;
+		mass[i] = m;
+		x[i] = px;
+		y[i] = py;
+		z[i] = pz;
+		vx[i] = pvx;
+		vy[i] = pvy;
+		vz[i] = pvz;
+		ax[i] = 0.0;
+		ay[i] = 0.0;
+		az[i] = 0.0;
+		radius[i] = 0.0;
+		color[i] = 0xFFFFFFFF;
+		return i;
+	}
+
+
+	// Forget all bodies. The arrays are kept for reuse
+	public void clear() {
+		count = 0;
+	}
+
+
+	// Remove body i by moving the last body into its place. Only that one body changes index
+	public void remove(int i) {
+		int last = --count;
+		if (i == last) return;
+		mass[i] = mass[last];
+		x[i] = x[last];
+		y[i] = y[last];
+		z[i] = z[last];
+		vx[i] = vx[last];
+		vy[i] = vy[last];
+		vz[i] = vz[last];
+		ax[i] = ax[last];
+		ay[i] = ay[last];
+		az[i] = az[last];
+		radius[i] = radius[last];
+		color[i] = color[last];
+	}
+
+
+	// Shift positions and velocities so the centre of mass sits still at the origin.
+	// Without this the whole solar system slowly drifts off the screen.
+	public void toBarycentric() {
+		double totalMass = 0.0;
+		double cx = 0.0, cy = 0.0, cz = 0.0;
+		double cvx = 0.0, cvy = 0.0, cvz = 0.0;
+		for (int i = 0; i < count; i++) {
+			double m = mass[i];
+			totalMass += m;
+			cx += m * x[i];
+			cy += m * y[i];
+			cz += m * z[i];
+			cvx += m * vx[i];
+			cvy += m * vy[i];
+			cvz += m * vz[i];
+		}
+		if (totalMass == 0.0) return;
+		cx /= totalMass;
+		cy /= totalMass;
+		cz /= totalMass;
+		cvx /= totalMass;
+		cvy /= totalMass;
+		cvz /= totalMass;
+		for (int i = 0; i < count; i++) {
+			x[i] -= cx;
+			y[i] -= cy;
+			z[i] -= cz;
+			vx[i] -= cvx;
+			vy[i] -= cvy;
+			vz[i] -= cvz;
+		}
+	}
+
+
+	// Total energy (kinetic + potential) of the massive bodies.
+	// A symplectic integrator should keep this almost constant, so it's our main sanity check.
+	// Test particles are skipped because they carry no mass (their energy is always 0).
+	public double totalEnergy(double softening) {
+		return partialEnergy(0, count, softening);
+	}
+
+
+	// Same, but spread over the pool. The chunks are summed in a fixed order,
+	// so the answer is identical whatever the thread count.
+	public double totalEnergy(PhysicsPool pool, double softening) {
+		return pool.sum(count, (from, to) -> partialEnergy(from, to, softening));
+	}
+
+
+	// Kinetic energy of bodies [from, to), plus their potential energy with every body after them
+	public double partialEnergy(int from, int to, double softening) {
+		double eps2 = softening * softening;
+		double kinetic = 0.0;
+		double potential = 0.0;
+		for (int i = from; i < to; i++) {
+			double mi = mass[i];
+			if (mi == 0.0) continue;
+			kinetic += 0.5 * mi * (vx[i] * vx[i] + vy[i] * vy[i] + vz[i] * vz[i]);
+			for (int j = i + 1; j < count; j++) {
+				double mj = mass[j];
+				if (mj == 0.0) continue;
+				double dx = x[j] - x[i];
+				double dy = y[j] - y[i];
+				double dz = z[j] - z[i];
+				potential -= G * mi * mj / Math.sqrt(dx * dx + dy * dy + dz * dz + eps2);
+			}
+		}
+		return kinetic + potential;
+	}
+}
@@ -0,0 +1,204 @@
+import java.util.Arrays;
+
+/**
+ * ChebyshevEphemeris.java
+ *
+ * Where the on-rails bodies (planets that follow fixed Kepler orbits) are at any time, fast.
+ *
+ * Solving Kepler's equation for every planet every step is a Newton loop full of sin/cos.
+ * Instead, time is cut into windows of windowDays, and inside each window every coordinate of every
+ * body is approximated by a Chebyshev polynomial (the same trick the JPL ephemerides use).
+ * Fitting a window costs (degree + 1) Kepler solves per body, once. After that a position is a
+ * dot product of the coefficients with the Chebyshev basis, and the basis is the same for all
+ * bodies at the same time, so it's worked out once per evaluate() and shared.
+ * The velocity comes from the derivative of the same polynomial, for free.
+ *
+ * The fitted windows are kept in a fixed number of slots, all in one flat double[]. When a new
+ * window is needed the least recently used slot is refitted, so a long time warp uses the same
+ * memory as standing still (and going back and forth between two windows never refits).
+ *
+ * Not thread safe: give each thread its own.
+ *
+ * @author CLLFTVTV
+ */
+public class ChebyshevEphemeris {
+
+
+	private final KeplerOrbit[] orbits;
+	private final double windowDays;
+	private final int terms; // degree + 1
+	private final int slots;
+
+	// coefficients[((slot * bodies + body) * 3 + axis) * terms + j]
+	private final double[] coefficients;
+	private final long[] slotWindow;
+	private final long[] slotLastUsed;
+	private long useCounter;
+
+	// Scratch: the Chebyshev basis and its derivative at the current time, and one Kepler state
+	private final double[] basis, basisDerivative;
+	private final double[] nodeValues;
+
+	// The fitting matrix, cos(pi j (k + 1/2) / N) for every term j and node k, worked out once
+	private final double[] fitCosines;
+	private final double[] state = new double[6];
+
+	private long hits, misses;
+
+
+	// degree: of each polynomial (12 over 16 days is far below float precision even for Mercury).
+	// slots: how many windows to keep fitted
+	public ChebyshevEphemeris(KeplerOrbit[] orbits, double windowDays, int degree, int slots) {
+		this.orbits = orbits.clone();
+		this.windowDays = windowDays;
+		this.terms = degree + 1;
+		this.slots = slots;
+		this.coefficients = new double[slots * orbits.length * 3 * terms];
+		this.slotWindow = new long[slots];
+		this.slotLastUsed = new long[slots];
+		Arrays.fill(slotWindow, Long.MIN_VALUE); // Empty
+		this.basis = new double[terms];
+		this.basisDerivative = new double[terms];
+		this.nodeValues = new double[terms * orbits.length * 3];
+		this.fitCosines = new double[terms * terms];
+		for (int j = 0; j < terms; j++) {
+			for (int k = 0; k < terms; k++) {
+				fitCosines[j * terms + k] = Math.cos(Math.PI * j * (k + 0.5) / terms);
+			}
+		}
+	}
+
+
+	public ChebyshevEphemeris(KeplerOrbit[] orbits) {
+		this(orbits, 16.0, 12, 8);
+	}
+
+
+	public int getBodyCount() {
+		return orbits.length;
+	}
+
+
+	// Position and velocity of every body at time t (days):
+	// out[6 * body .. 6 * body + 5] = x, y, z, vx, vy, vz
+	public void evaluate(double t, double[] out) {
+		long window = (long) Math.floor(t / windowDays);
+		int slot = slotFor(window);
+
+		// Where t is inside the window, mapped to -1..1, and the basis there
+		double start = window * windowDays;
+		double x = 2.0 * (t - start) / windowDays - 1.0;
+		chebyshevBasis(x);
+		double dxdt = 2.0 / windowDays;
+
+		int n = orbits.length;
+		int terms = this.terms;
+		double[] c = coefficients;
+		double[] basis = this.basis, basisDerivative = this.basisDerivative;
+		for (int body = 0; body < n; body++) {
+			for (int axis = 0; axis < 3; axis++) {
+				int base = ((slot * n + body) * 3 + axis) * terms;
+				double p = 0.0, v = 0.0;
+				for (int j = 0; j < terms; j++) {
+					p += c[base + j] * basis[j];
+					v += c[base + j] * basisDerivative[j];
+				}
+				out[6 * body + axis] = p;
+				out[6 * body + 3 + axis] = v * dxdt;
+			}
+		}
+	}
+
+
+	// Write the positions and velocities at time t straight into the bodies, body k of the
+	// ephemeris going to index indices[k]. scratch needs 6 * getBodyCount() doubles
+	public void apply(double t, BodySystem b, int[] indices, double[] scratch) {
+		evaluate(t, scratch);
+		for (int k = 0; k < indices.length; k++) {
+			int i = indices[k];
+			b.x[i] = scratch[6 * k];
+			b.y[i] = scratch[6 * k + 1];
+			b.z[i] = scratch[6 * k + 2];
+			b.vx[i] = scratch[6 * k + 3];
+			b.vy[i] = scratch[6 * k + 4];
+			b.vz[i] = scratch[6 * k + 5];
+		}
+	}
+
+
+	// The slot holding this window, fitting it into the least recently used slot if it isn't there
+	private int slotFor(long window) {
+		int oldest = 0;
+		for (int s = 0; s < slots; s++) {
+			if (slotWindow[s] == window) {
+				slotLastUsed[s] = ++useCounter;
+				hits++;
+				return s;
+			}
+			if (slotLastUsed[s] < slotLastUsed[oldest]) oldest = s;
+		}
+		misses++;
+		fit(oldest, window);
+		slotWindow[oldest] = window;
+		slotLastUsed[oldest] = ++useCounter;
+		return oldest;
+	}
+
+
+	// Chebyshev interpolation at the Chebyshev nodes: sample the exact orbits at the nodes,
+	// then c_j = 2/N * sum_k f(x_k) cos(pi j (k + 1/2) / N), with c_0 halved
+	private void fit(int slot, long window) {
+		int n = orbits.length;
+		int terms = this.terms;
+		double start = window * windowDays;
+
+		for (int k = 0; k < terms; k++) {
+			double node = Math.cos(Math.PI * (k + 0.5) / terms);
+			double t = start + (node + 1.0) * 0.5 * windowDays;
+			for (int body = 0; body < n; body++) {
+				orbits[body].state(t, state, 0);
+				for (int axis = 0; axis < 3; axis++) {
+					nodeValues[(body * 3 + axis) * terms + k] = state[axis];
+				}
+			}
+		}
+
+		for (int series = 0; series < n * 3; series++) {
+			int base = (slot * n * 3 + series) * terms;
+			for (int j = 0; j < terms; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < terms; k++) {
+					sum += nodeValues[series * terms + k] * fitCosines[j * terms + k];
+				}
+				coefficients[base + j] = 2.0 * sum / terms;
+			}
+			coefficients[base] *= 0.5;
+		}
+	}
+
+
+	// T_j(x) and T_j'(x) by the recurrences
+	// T_j+1 = 2x T_j - T_j-1 and T'_j+1 = 2 T_j + 2x T'_j - T'_j-1
+	private void chebyshevBasis(double x) {
+		basis[0] = 1.0;
+		basisDerivative[0] = 0.0;
+		if (terms == 1) return;
+		basis[1] = x;
+		basisDerivative[1] = 1.0;
+		for (int j = 1; j < terms - 1; j++) {
+			basis[j + 1] = 2.0 * x * basis[j] - basis[j - 1];
+			basisDerivative[j + 1] = 2.0 * basis[j] + 2.0 * x * basisDerivative[j] - basisDerivative[j - 1];
+		}
+	}
+
+
+	// Evaluations answered from an already fitted window, and ones that had to fit a new window
+	public long getHits() {
+		return hits;
+	}
+
+
+	public long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,487 @@
+import java.util.Arrays;
+
+/**
+ * CollisionDetector.java
+ *
+ * Finds every pair of bodies whose spheres overlap, without testing every pair (that's n^2/2, half a
+ * trillion tests for a million asteroids).
+ *
+ * Broad phase: a uniform grid, stored as a sorted list instead of a table. Space is cut into cubes of
+ * cellSize (at least the diameter of the bodies), so two bodies can only touch if they're in the same
+ * or neighbouring cells. Every body gets its cell's number, counted z-major over the box the bodies
+ * are in (with a spare cell on each side, so stepping one cell never wraps into the next row), and the
+ * bodies are radix sorted by it. A row of three cells (x-1, x, x+1) is then one run of the sorted list.
+ * Narrow phase: walking the list, every body looks at its own cell and the 13 of the 26 around it that
+ * come later in the list (the other 13 look back at it): the rest of its own row plus 4 rows of 3 cells.
+ * Those rows only ever move forwards as the walk does, so each one is followed with its own pointer.
+ * Everything is read front to back, which is what keeps a million bodies cheap: a hash table
+ * would cost a cache miss per neighbour per body.
+ *
+ * Bodies too big for the cells (the Sun, planets) aren't put in the grid at all. There are only a few,
+ * so every body is just tested against each of them.
+ *
+ * The cell numbering, gathering the bodies into list order and the narrow phase run over the
+ * PhysicsPool. Each chunk writes its pairs into its own buffer, and the buffers are joined in chunk
+ * order into the preallocated output, so the pairs come out in the same order whatever the thread
+ * count. Pairs beyond the output's capacity are dropped and counted. Nothing is allocated per call
+ * unless a chunk finds more pairs than ever before.
+ *
+ * The grid spans up to 2^20 cells a side; bodies further out share the edge cells (still correct, just
+ * slower if there are many). It tests the positions as they are: a body fast enough to pass right
+ * through another within one step isn't seen. Usable on its own (detect(), then getPairA/B), or hooked
+ * into the Simulation (setCollisions) to merge whatever touches after every step.
+ *
+ * @author CLLFTVTV
+ */
+public class CollisionDetector {
+
+
+	private static final int MAX_SPAN = 1 << 20; // Cells a side
+	private static final long NOT_IN_GRID = Long.MAX_VALUE; // Sorts after every cell
+	private static final int RADIX_BITS = 8;
+	private static final int RADIX = 1 << RADIX_BITS;
+
+
+	private final PhysicsPool pool;
+	private final double cellSize, inverseCellSize;
+
+	// Per body: its cell coordinates
+	private final int[] cellX, cellY, cellZ;
+
+	// The grid: cell numbers in sorted order, which body each entry is, and its position and radius.
+	// (Two of the first two: the radix sort ping-pongs)
+	private long[] keys, keysScratch;
+	private int[] order, orderScratch;
+	private final double[] sx, sy, sz, sr;
+	private int gridCount;
+
+	// Radix sort: how many keys of each chunk have each digit, digit-major (digit * chunks + chunk),
+	// turned into where that chunk writes its first key with that digit
+	private final int[] digitCounts;
+	private int sortChunks, sortShift;
+
+	// The numbering: cell number = ((z - minZ + 1) * spanY + (y - minY + 1)) * spanX + (x - minX + 1)
+	private int minX, minY, minZ;
+	private long spanX, spanY, spanZ;
+	private long[] rowOffsets = new long[4]; // From a cell to the x-1 cell of each forward row
+
+	// Bodies too big for the grid
+	private int[] large = new int[16];
+	private int largeCount;
+
+	// Pairs found by each chunk (a, b interleaved), and the joined result
+	private int[][] chunkPairs = new int[0][];
+	private int[] chunkPairCount = new int[0];
+	private final int[] pairs;
+	private int pairCount;
+	private long droppedPairs;
+
+	// The detect() running. In fields so the loop bodies below are created once
+	private BodySystem b;
+	private final PhysicsPool.Range cells = this::cells;
+	private final PhysicsPool.Range number = this::number;
+	private final PhysicsPool.Range countDigits = this::countDigits;
+	private final PhysicsPool.Range scatter = this::scatter;
+	private final PhysicsPool.Range gather = this::gather;
+	private final PhysicsPool.Range narrow = this::narrow;
+
+
+	// cellSize (AU) must be at least the diameter of the bodies meant to go in the grid; bigger ones
+	// are tested one by one (against everything), so leave some room for bodies that grow by merging.
+	// maxPairs: the capacity of the output
+	public CollisionDetector(int capacity, double cellSize, int maxPairs, PhysicsPool pool) {
+		this.pool = pool;
+		this.cellSize = cellSize;
+		this.inverseCellSize = 1.0 / cellSize;
+		this.cellX = new int[capacity];
+		this.cellY = new int[capacity];
+		this.cellZ = new int[capacity];
+		this.keys = new long[capacity];
+		this.keysScratch = new long[capacity];
+		this.order = new int[capacity];
+		this.orderScratch = new int[capacity];
+		this.sx = new double[capacity];
+		this.sy = new double[capacity];
+		this.sz = new double[capacity];
+		this.sr = new double[capacity];
+		this.pairs = new int[2 * maxPairs];
+		this.digitCounts = new int[RADIX * ((capacity + PhysicsPool.CHUNK - 1) / PhysicsPool.CHUNK + 1)];
+	}
+
+
+	// Find every overlapping pair at the current positions. Returns how many went into the output
+	public int detect(BodySystem bodies) {
+		this.b = bodies;
+		int n = bodies.count;
+
+		// Cell coordinates (parallel), the box around them, then the cell numbers (parallel)
+		pool.run(n, cells);
+		minX = minY = minZ = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+		largeCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (cellX[i] == Integer.MIN_VALUE) {
+				if (largeCount == large.length) large = Arrays.copyOf(large, largeCount * 2);
+				large[largeCount++] = i;
+				continue;
+			}
+			minX = Math.min(minX, cellX[i]);
+			maxX = Math.max(maxX, cellX[i]);
+			minY = Math.min(minY, cellY[i]);
+			maxY = Math.max(maxY, cellY[i]);
+			minZ = Math.min(minZ, cellZ[i]);
+			maxZ = Math.max(maxZ, cellZ[i]);
+		}
+		gridCount = n - largeCount;
+		if (gridCount == 0) minX = minY = minZ = maxX = maxY = maxZ = 0;
+		spanX = Math.min((long) maxX - minX + 1, MAX_SPAN) + 2;
+		spanY = Math.min((long) maxY - minY + 1, MAX_SPAN) + 2;
+		spanZ = Math.min((long) maxZ - minZ + 1, MAX_SPAN) + 2;
+		rowOffsets[0] = spanX - 1;                  // (y + 1, z)
+		rowOffsets[1] = spanX * spanY - spanX - 1;  // (y - 1, z + 1)
+		rowOffsets[2] = spanX * spanY - 1;          // (y,     z + 1)
+		rowOffsets[3] = spanX * spanY + spanX - 1;  // (y + 1, z + 1)
+		pool.run(n, number);
+
+		// Sort by cell number, then line the positions up in that order (parallel)
+		for (int i = 0; i < n; i++) order[i] = i;
+		sort(n, 64 - Long.numberOfLeadingZeros(spanX * spanY * spanZ));
+		pool.run(gridCount, gather);
+
+		// Narrow phase, in parallel over the list
+		int chunks = (gridCount + PhysicsPool.CHUNK - 1) / PhysicsPool.CHUNK;
+		if (chunkPairs.length < chunks + 1) {
+			int old = chunkPairs.length;
+			chunkPairs = Arrays.copyOf(chunkPairs, chunks + 1);
+			chunkPairCount = Arrays.copyOf(chunkPairCount, chunks + 1);
+			for (int c = old; c <= chunks; c++) chunkPairs[c] = new int[64];
+		}
+		pool.run(gridCount, narrow);
+
+		// The big bodies against each other go in the last buffer
+		chunkPairCount[chunks] = 0;
+		for (int p = 0; p < largeCount; p++) {
+			int i = large[p];
+			for (int q = p + 1; q < largeCount; q++) {
+				int j = large[q];
+				test(i, j, bodies.x[i], bodies.y[i], bodies.z[i], bodies.radius[i],
+						bodies.x[j], bodies.y[j], bodies.z[j], bodies.radius[j], chunks);
+			}
+		}
+
+		// Join the chunks, in chunk order
+		pairCount = 0;
+		for (int c = 0; c <= chunks; c++) {
+			int count = chunkPairCount[c];
+			int room = pairs.length - 2 * pairCount;
+			int copy = Math.min(count * 2, room);
+			System.arraycopy(chunkPairs[c], 0, pairs, 2 * pairCount, copy);
+			pairCount += copy / 2;
+			droppedPairs += count - copy / 2;
+		}
+
+		this.b = null;
+		return pairCount;
+	}
+
+
+	// Cell coordinates, Integer.MIN_VALUE in cellX = too big for the grid
+	private void cells(int from, int to) {
+		final double[] x = b.x, y = b.y, z = b.z, r = b.radius;
+		final double half = 0.5 * cellSize, inverse = inverseCellSize;
+		for (int i = from; i < to; i++) {
+			if (r[i] > half) {
+				cellX[i] = Integer.MIN_VALUE;
+				continue;
+			}
+			cellX[i] = toCell(x[i] * inverse);
+			cellY[i] = toCell(y[i] * inverse);
+			cellZ[i] = toCell(z[i] * inverse);
+		}
+	}
+
+
+	private static int toCell(double c) {
+		double f = Math.floor(c);
+		return (int) Math.max(-(double) (1 << 30), Math.min(1 << 30, f));
+	}
+
+
+	private void number(int from, int to) {
+		final long span = MAX_SPAN - 1;
+		for (int i = from; i < to; i++) {
+			if (cellX[i] == Integer.MIN_VALUE) {
+				keys[i] = NOT_IN_GRID;
+				continue;
+			}
+			long x = Math.min((long) cellX[i] - minX, span) + 1;
+			long y = Math.min((long) cellY[i] - minY, span) + 1;
+			long z = Math.min((long) cellZ[i] - minZ, span) + 1;
+			keys[i] = (z * spanY + y) * spanX + x;
+		}
+	}
+
+
+	// LSD radix sort of keys[0..n) (and order[] along with them), a byte a pass, over the low `bits` bits.
+	// NOT_IN_GRID is all ones there too, so the big bodies still end up last. Each pass counts and scatters
+	// chunk by chunk over the pool; a stable sort has only one answer, so the threads can't change it
+	private void sort(int n, int bits) {
+		sortChunks = (n + PhysicsPool.CHUNK - 1) / PhysicsPool.CHUNK;
+		int cells = RADIX * sortChunks;
+		for (sortShift = 0; sortShift < bits; sortShift += RADIX_BITS) {
+			Arrays.fill(digitCounts, 0, cells, 0);
+			pool.run(n, countDigits);
+
+			// Every key with a smaller digit goes first, then the same digit from earlier chunks
+			int sum = 0, largest = 0;
+			for (int d = 0; d < RADIX; d++) {
+				int digitStart = sum;
+				for (int c = d * sortChunks, end = c + sortChunks; c < end; c++) {
+					int count = digitCounts[c];
+					digitCounts[c] = sum;
+					sum += count;
+				}
+				largest = Math.max(largest, sum - digitStart);
+			}
+			if (largest == n) continue; // Every key has the same digit here
+
+			pool.run(n, scatter);
+			long[] swapKeys = keys;
+			keys = keysScratch;
+			keysScratch = swapKeys;
+			int[] swapOrder = order;
+			order = orderScratch;
+			orderScratch = swapOrder;
+		}
+	}
+
+
+	private void countDigits(int from, int to) {
+		final long[] keys = this.keys;
+		final int chunk = from / PhysicsPool.CHUNK, chunks = sortChunks, shift = sortShift;
+		for (int i = from; i < to; i++) {
+			digitCounts[((int) (keys[i] >>> shift) & (RADIX - 1)) * chunks + chunk]++;
+		}
+	}
+
+
+	private void scatter(int from, int to) {
+		final long[] keys = this.keys, out = keysScratch;
+		final int[] order = this.order, orderOut = orderScratch;
+		final int chunk = from / PhysicsPool.CHUNK, chunks = sortChunks, shift = sortShift;
+		for (int i = from; i < to; i++) {
+			int slot = digitCounts[((int) (keys[i] >>> shift) & (RADIX - 1)) * chunks + chunk]++;
+			out[slot] = keys[i];
+			orderOut[slot] = order[i];
+		}
+	}
+
+
+	private void gather(int from, int to) {
+		final double[] x = b.x, y = b.y, z = b.z, r = b.radius;
+		for (int k = from; k < to; k++) {
+			int i = order[k];
+			sx[k] = x[i];
+			sy[k] = y[i];
+			sz[k] = z[i];
+			sr[k] = r[i];
+		}
+	}
+
+
+	// List entries [from, to): the rest of the own cell and the next one in the row, the 4 forward rows,
+	// and the big bodies
+	private void narrow(int from, int to) {
+		final int chunk = from / PhysicsPool.CHUNK;
+		final long[] keys = this.keys;
+		final int end = gridCount;
+		chunkPairCount[chunk] = 0;
+
+		// Where each forward row starts, for the first entry; from there they only move forwards
+		long first = keys[from];
+		int p0 = lowerBound(first + rowOffsets[0]);
+		int p1 = lowerBound(first + rowOffsets[1]);
+		int p2 = lowerBound(first + rowOffsets[2]);
+		int p3 = lowerBound(first + rowOffsets[3]);
+
+		for (int k = from; k < to; k++) {
+			long key = keys[k];
+			double x = sx[k], y = sy[k], z = sz[k], r = sr[k];
+
+			for (int s = k + 1; s < end && keys[s] <= key + 1; s++) {
+				test(k, s, x, y, z, r, chunk);
+			}
+			p0 = row(k, key + rowOffsets[0], p0, x, y, z, r, chunk);
+			p1 = row(k, key + rowOffsets[1], p1, x, y, z, r, chunk);
+			p2 = row(k, key + rowOffsets[2], p2, x, y, z, r, chunk);
+			p3 = row(k, key + rowOffsets[3], p3, x, y, z, r, chunk);
+
+			int i = order[k];
+			for (int p = 0; p < largeCount; p++) {
+				int j = large[p];
+				test(i, j, x, y, z, r, b.x[j], b.y[j], b.z[j], b.radius[j], chunk);
+			}
+		}
+	}
+
+
+	// Entry k against the three cells starting at cell number `start`. p is where that row was for the
+	// entry before; returns where it is now
+	private int row(int k, long start, int p, double x, double y, double z, double r, int chunk) {
+		final long[] keys = this.keys;
+		final int end = gridCount;
+		while (p < end && keys[p] < start) p++;
+		for (int s = p; s < end && keys[s] <= start + 2; s++) {
+			test(k, s, x, y, z, r, chunk);
+		}
+		return p;
+	}
+
+
+	// First list entry with a cell number >= key
+	private int lowerBound(long key) {
+		int lo = 0, hi = gridCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+
+	// Entries k and s of the list (k's position passed in, it's the same for all of k's tests)
+	private void test(int k, int s, double x, double y, double z, double r, int chunk) {
+		double dx = sx[s] - x, dy = sy[s] - y, dz = sz[s] - z;
+		double reach = r + sr[s];
+		if (dx * dx + dy * dy + dz * dz >= reach * reach) return;
+		add(order[k], order[s], chunk);
+	}
+
+
+	// Sphere test of bodies i and j
+	private void test(int i, int j, double xi, double yi, double zi, double ri,
+			double xj, double yj, double zj, double rj, int chunk) {
+		double dx = xj - xi, dy = yj - yi, dz = zj - zi;
+		double reach = ri + rj;
+		if (dx * dx + dy * dy + dz * dz >= reach * reach) return;
+		add(i, j, chunk);
+	}
+
+
+	// A touching pair into the chunk's buffer, lower index first
+	private void add(int i, int j, int chunk) {
+		int[] buffer = chunkPairs[chunk];
+		int count = chunkPairCount[chunk];
+		if (2 * count + 2 > buffer.length) buffer = chunkPairs[chunk] = Arrays.copyOf(buffer, buffer.length * 2);
+		buffer[2 * count] = Math.min(i, j);
+		buffer[2 * count + 1] = Math.max(i, j);
+		chunkPairCount[chunk] = count + 1;
+	}
+
+
+	// Merge every touching pair found by the last detect(): the lighter body goes into the heavier one,
+	// keeping the total mass and momentum, at the centre of mass, with the volumes added up.
+	// (Massless bodies are weighed by volume instead.) Bodies touching several others all end up in one.
+	// The absorbed bodies are removed (BodySystem.remove), so the body count drops and a few bodies
+	// change index. Returns how many bodies were removed
+	public int merge(BodySystem bodies) {
+		if (pairCount == 0) return 0;
+		// Each body's index points at what it was merged into, itself if it's still there.
+		// order[] and cellX[] aren't needed again until the next detect()
+		int[] into = order;
+		int[] removedList = cellX;
+		for (int i = 0; i < bodies.count; i++) into[i] = i;
+
+		int removed = 0;
+		for (int p = 0; p < pairCount; p++) {
+			int i = root(into, pairs[2 * p]);
+			int j = root(into, pairs[2 * p + 1]);
+			if (i == j) continue;
+			if (outweighs(bodies, j, i)) {
+				int swap = i;
+				i = j;
+				j = swap;
+			}
+			absorb(bodies, i, j);
+			into[j] = i;
+			removedList[removed++] = j;
+		}
+
+		// Highest index first: then the body moved into each hole is never one still to be removed
+		Arrays.sort(removedList, 0, removed);
+		for (int k = removed - 1; k >= 0; k--) bodies.remove(removedList[k]);
+		pairCount = 0;
+		return removed;
+	}
+
+
+	private static int root(int[] into, int i) {
+		while (into[i] != i) {
+			into[i] = into[into[i]];
+			i = into[i];
+		}
+		return i;
+	}
+
+
+	// Heavier, or if both weigh the same (massless), bigger
+	private static boolean outweighs(BodySystem b, int i, int j) {
+		if (b.mass[i] != b.mass[j]) return b.mass[i] > b.mass[j];
+		return b.radius[i] > b.radius[j];
+	}
+
+
+	// Body i takes in body j
+	private static void absorb(BodySystem b, int i, int j) {
+		double ri3 = b.radius[i] * b.radius[i] * b.radius[i];
+		double rj3 = b.radius[j] * b.radius[j] * b.radius[j];
+		double wi = b.mass[i], wj = b.mass[j];
+		if (wi + wj == 0.0) {
+			wi = ri3;
+			wj = rj3;
+		}
+		double f = wi + wj > 0.0 ? wj / (wi + wj) : 0.5;
+		b.x[i] += (b.x[j] - b.x[i]) * f;
+		b.y[i] += (b.y[j] - b.y[i]) * f;
+		b.z[i] += (b.z[j] - b.z[i]) * f;
+		b.vx[i] += (b.vx[j] - b.vx[i]) * f;
+		b.vy[i] += (b.vy[j] - b.vy[i]) * f;
+		b.vz[i] += (b.vz[j] - b.vz[i]) * f;
+		b.mass[i] += b.mass[j];
+		b.radius[i] = Math.cbrt(ri3 + rj3);
+	}
+
+
+	// The pairs of the last detect(): body getPairA(k) touches body getPairB(k), A < B
+	public int getPairCount() {
+		return pairCount;
+	}
+
+
+	public int getPairA(int k) {
+		return pairs[2 * k];
+	}
+
+
+	public int getPairB(int k) {
+		return pairs[2 * k + 1];
+	}
+
+
+	// Pairs that didn't fit in the output, since the start
+	public long getDroppedPairs() {
+		return droppedPairs;
+	}
+
+
+	// Bodies too big for the grid in the last detect()
+	public int getLargeCount() {
+		return largeCount;
+	}
+
+
+	public double getCellSize() {
+		return cellSize;
+	}
+}
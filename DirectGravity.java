@@ -0,0 +1,87 @@
+/**
+ * DirectGravity.java
+ *
+ * Newtonian gravity by direct summation. Every body is pulled by every massive body.
+ *
+ * In a solar system almost everything (asteroids, dust) is a massless test particle,
+ * so we first gather the few bodies that actually have mass (the "sources") and only
+ * loop over those. That makes the cost O(n * sources) instead of O(n^2),
+ * which is what lets 10k asteroids run around a handful of planets cheaply.
+ *
+ * @author CLLFTVTV
+ */
+public class DirectGravity implements ForceModel {
+
+
+	// Softening length (AU). Stops the force blowing up when two bodies get really close
+	private final double softening2;
+
+	// Indices of the bodies with mass > 0. Allocated once, refilled every step
+	private final int[] sources;
+	private int sourceCount;
+
+
+	public DirectGravity(int capacity, double softening) {
+		this.softening2 = softening * softening;
+		this.sources = new int[capacity];
+	}
+
+
+	// Gather the sources
+	@Override
+	public void prepare(BodySystem b) {
+		final double[] m = b.mass;
+		sourceCount = 0;
+		for (int i = 0; i < b.count; i++) {
+			if (m[i] != 0.0) sources[sourceCount++] = i;
+		}
+	}
+
+
+	// Sum the pull of every source on every body in [from, to)
+	@Override
+	public void accelerate(BodySystem b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			accelerate(b, i);
+		}
+	}
+
+
+	// Same, for bodies indices[from..to)
+	@Override
+	public void accelerate(BodySystem b, int[] indices, int from, int to) {
+		for (int k = from; k < to; k++) {
+			accelerate(b, indices[k]);
+		}
+	}
+
+
+	private void accelerate(BodySystem b, int i) {
+		final double[] x = b.x, y = b.y, z = b.z, m = b.mass;
+		final int[] sources = this.sources;
+		final int sourceCount = this.sourceCount;
+		double xi = x[i], yi = y[i], zi = z[i];
+		double sx = 0.0, sy = 0.0, sz = 0.0;
+		for (int k = 0; k < sourceCount; k++) {
+			int j = sources[k];
+			if (j == i) continue; // A body doesn't pull on itself
+			double dx = x[j] - xi;
+			double dy = y[j] - yi;
+			double dz = z[j] - zi;
+			double r2 = dx * dx + dy * dy + dz * dz + softening2;
+			double inv = 1.0 / Math.sqrt(r2);
+			double s = m[j] * inv * inv * inv; // m / r^3
+			sx += dx * s;
+			sy += dy * s;
+			sz += dz * s;
+		}
+		b.ax[i] = BodySystem.G * sx;
+		b.ay[i] = BodySystem.G * sy;
+		b.az[i] = BodySystem.G * sz;
+	}
+
+
+	public int getSourceCount() {
+		return sourceCount;
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * ForceModel.java
+ *
+ * Anything that can work out the acceleration of every body.
+ * The integrators don't care HOW the forces are computed (direct sum, tree code, ...),
+ * they just ask the force model to fill in ax/ay/az.
+ *
+ * It's split in two phases so the second one can run on many threads:
+ * 	1. prepare(): one thread. Gather sources, build trees, etc.
+ * 	2. accelerate(from, to): any number of threads at once, each on its own range of [0, count).
+ * A force model may visit the bodies in its own order (a tree order for example),
+ * but every body is covered by exactly one index in [0, count).
+ *
+ * Integrators that only move some of the bodies on a substep (BlockTimestep) use the other
+ * accelerate(), which takes an explicit list of body indices instead of a range.
+ *
+ * @author CLLFTVTV
+ */
+public interface ForceModel {
+
+	// Get ready for accelerate() calls at the current positions
+	void prepare(BodySystem bodies);
+
+	// Overwrite ax/ay/az for the bodies covered by [from, to). Safe to call from many threads at once
+	void accelerate(BodySystem bodies, int from, int to);
+
+	// Overwrite ax/ay/az for bodies indices[from..to) only (real body indices, not the model's own order).
+	// Same threading rules as above
+	void accelerate(BodySystem bodies, int[] indices, int from, int to);
+
+	// Both phases on the calling thread
+	default void computeAccelerations(BodySystem bodies) {
+		prepare(bodies);
+		accelerate(bodies, 0, bodies.count);
+	}
+}
@@ -0,0 +1,205 @@
+import com.jogamp.opengl.GL3;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FrameCapture.java
+ *
+ * Saves every rendered frame to a PNG, without stalling the GPU.
+ *
+ * A plain glReadPixels into client memory makes the CPU wait until the GPU has finished drawing
+ * the frame AND copied it back. Instead we read into a Pixel Buffer Object (PBO): glReadPixels
+ * then returns straight away and the copy happens on the GPU's own time.
+ * There is a ring of PBOs, so frame N is read into one PBO while we pick up frame N-2 from another
+ * (its copy finished long ago, fenced with glFenceSync).
+ * Encoding the PNG is slow, so that happens on a background thread.
+ *
+ * @author CLLFTVTV
+ */
+public class FrameCapture {
+
+
+	private static final int PBO_COUNT = 3;
+
+	// Frames that can be waiting for the PNG writer. When they're all in use we wait for the writer
+	private static final int POOL_SIZE = 4;
+
+
+	private final File directory;
+
+	private final int[] pbos = new int[PBO_COUNT];
+	private final long[] fences = new long[PBO_COUNT];
+	private final long[] pendingFrame = new long[PBO_COUNT]; // Which frame each PBO holds (-1 = none)
+	private final int[] pendingWidth = new int[PBO_COUNT];
+	private final int[] pendingHeight = new int[PBO_COUNT];
+	private int pboSize;
+	private long frameNumber;
+
+	// Pixel copies travel: free pool -> writer thread -> back to the free pool
+	private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(POOL_SIZE);
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "FrameCapture writer");
+		t.setDaemon(true);
+		return t;
+	});
+	private final AtomicInteger framesInFlight = new AtomicInteger(); // Handed to the writer, not written yet
+	private BufferedImage image; // Only touched by the writer thread
+
+	private long framesWritten;
+
+
+	public FrameCapture(File directory) {
+		this.directory = directory;
+	}
+
+
+	public void init(GL3 gl) {
+		directory.mkdirs();
+		gl.glGenBuffers(PBO_COUNT, pbos, 0);
+		for (int i = 0; i < PBO_COUNT; i++) pendingFrame[i] = -1;
+	}
+
+
+	// Call at the end of display(), once the frame is drawn
+	public void capture(GL3 gl, int width, int height) {
+		int size = width * height * 4;
+		if (size != pboSize) resize(gl, size);
+
+		int slot = (int) (frameNumber % PBO_COUNT);
+
+		// This PBO still holds an old frame: collect it first
+		if (pendingFrame[slot] >= 0) collect(gl, slot);
+
+		// Start the copy into the PBO. With a PBO bound, the last argument is an offset, not a pointer,
+		// so glReadPixels doesn't wait for anything
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pbos[slot]);
+		gl.glPixelStorei(GL3.GL_PACK_ALIGNMENT, 1);
+		gl.glReadPixels(0, 0, width, height, GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE, 0L);
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+		fences[slot] = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		pendingFrame[slot] = frameNumber;
+		pendingWidth[slot] = width;
+		pendingHeight[slot] = height;
+		frameNumber++;
+	}
+
+
+	// Map a finished PBO, copy the pixels out and hand them to the writer
+	private void collect(GL3 gl, int slot) {
+		// By now this is almost always signalled already
+		int status;
+		do {
+			status = gl.glClientWaitSync(fences[slot], GL3.GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000L);
+		} while (status == GL3.GL_TIMEOUT_EXPIRED);
+		gl.glDeleteSync(fences[slot]);
+		fences[slot] = 0;
+
+		int width = pendingWidth[slot], height = pendingHeight[slot];
+		int size = width * height * 4;
+		ByteBuffer copy = takeBuffer(size);
+
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pbos[slot]);
+		ByteBuffer mapped = gl.glMapBufferRange(GL3.GL_PIXEL_PACK_BUFFER, 0, size, GL3.GL_MAP_READ_BIT);
+		mapped.limit(size);
+		copy.put(mapped).flip();
+		gl.glUnmapBuffer(GL3.GL_PIXEL_PACK_BUFFER);
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+
+		long frame = pendingFrame[slot];
+		pendingFrame[slot] = -1;
+		framesInFlight.incrementAndGet();
+		writer.execute(() -> write(copy, width, height, frame));
+	}
+
+
+	private ByteBuffer takeBuffer(int size) {
+		ByteBuffer buffer = freeBuffers.poll();
+		// The writer is behind: wait for it rather than pile up memory. A frame it finishes always frees a
+		// buffer, but check the count again now and then instead of waiting on the queue for good
+		while (buffer == null && framesInFlight.get() >= POOL_SIZE) {
+			try {
+				buffer = freeBuffers.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		// One from before the window grew is too small: let it go and make a bigger one
+		if (buffer == null || buffer.capacity() < size) {
+			buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+
+	// Writer thread: flip the rows (OpenGL's origin is bottom left) and save a PNG
+	private void write(ByteBuffer pixels, int width, int height, long frame) {
+		try {
+			if (image == null || image.getWidth() != width || image.getHeight() != height) {
+				image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			}
+			// Write straight into the image's pixel array
+			int[] out = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			for (int y = 0; y < height; y++) {
+				int row = (height - 1 - y) * width * 4;
+				int outRow = y * width;
+				for (int x = 0; x < width; x++) {
+					int p = row + x * 4;
+					int r = pixels.get(p) & 0xFF, g = pixels.get(p + 1) & 0xFF, b = pixels.get(p + 2) & 0xFF;
+					out[outRow + x] = (r << 16) | (g << 8) | b;
+				}
+			}
+			ImageIO.write(image, "png", new File(directory, String.format("frame_%06d.png", frame)));
+			framesWritten++;
+		} catch (IOException e) {
+			System.err.println("FrameCapture: couldn't write frame " + frame + ": " + e.getMessage());
+		} finally {
+			freeBuffers.offer(pixels);
+			framesInFlight.decrementAndGet();
+		}
+	}
+
+
+	private void resize(GL3 gl, int size) {
+		// Collect whatever is still in flight at the old size first
+		for (int i = 0; i < PBO_COUNT; i++) {
+			if (pendingFrame[i] >= 0) collect(gl, i);
+		}
+		for (int i = 0; i < PBO_COUNT; i++) {
+			gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pbos[i]);
+			gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, size, null, GL3.GL_STREAM_READ);
+		}
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+		pboSize = size;
+	}
+
+
+	// Collect the last frames, wait for the writer, and free the PBOs
+	public void dispose(GL3 gl) {
+		for (int n = 0; n < PBO_COUNT; n++) {
+			int slot = (int) ((frameNumber + n) % PBO_COUNT); // Oldest first
+			if (pendingFrame[slot] >= 0) collect(gl, slot);
+		}
+		gl.glDeleteBuffers(PBO_COUNT, pbos, 0);
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("FrameCapture: wrote " + framesWritten + " frames to " + directory);
+	}
+}
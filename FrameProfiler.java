@@ -0,0 +1,281 @@
+import com.jogamp.opengl.GL3;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * FrameProfiler.java
+ *
+ * Where does the frame time go? Records how long each phase of a frame took:
+ * 	CPU: simulate, upload (filling the instance buffer), draw (issuing the GL calls), swap
+ * 	GPU: how long the GPU actually spent on the frame's commands (GL_TIME_ELAPSED queries)
+ *
+ * The GPU result isn't known until the GPU has finished the frame, and asking for it early makes the
+ * CPU wait. So there's a ring of GPU_LATENCY query objects: each frame starts a new one and picks up
+ * the result from the one started GPU_LATENCY frames ago, which is done by then.
+ *
+ * Every phase goes into a Histogram (no allocation per frame). The percentiles are available over
+ * JMX, printed at shutdown, and drawn by the ProfilerOverlay. So are the frustum culling counts
+ * (bodies visible and culled), when the renderer reports them.
+ *
+ * @author CLLFTVTV
+ */
+public class FrameProfiler implements FrameProfilerMBean {
+
+
+	public enum Phase { SIMULATE, UPLOAD, DRAW, SWAP }
+
+	// The histograms: one per Phase, then the whole CPU frame, then the GPU
+	public static final int FRAME = Phase.values().length;
+	public static final int GPU = FRAME + 1;
+	private static final String[] NAMES = { "simulate", "upload", "draw", "swap", "frame", "gpu" };
+
+	// How many frames late the GPU timings are read
+	private static final int GPU_LATENCY = 4;
+
+	private static final String JMX_NAME = "outermilds:type=FrameProfiler";
+
+
+	private final Histogram[] histograms = new Histogram[NAMES.length];
+	private final long[] phaseStart = new long[FRAME];
+	private long frameStart;
+	private long frames;
+
+	// GPU timer queries, used round robin. queryActive = begun and not read back yet
+	private final int[] queries = new int[GPU_LATENCY];
+	private final boolean[] queryActive = new boolean[GPU_LATENCY];
+	private final int[] available = new int[1];
+	private final long[] elapsed = new long[1];
+	private int queryIndex;
+	private long droppedGpuQueries;
+	private boolean gpuTimers;
+
+	// Frustum culling: last frame's counts, and the totals over cullFrames frames for the means
+	private int lastVisible, lastCulled;
+	private long visibleTotal, culledTotal, cullFrames;
+
+	private ObjectName jmxName;
+
+
+	public FrameProfiler() {
+		for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+	}
+
+
+	// Create the queries (needs a current GL context) and register with JMX
+	public void init(GL3 gl) {
+		// GL_TIME_ELAPSED comes with ARB_timer_query (core in 3.3)
+		gpuTimers = gl.isFunctionAvailable("glQueryCounter");
+		if (gpuTimers) {
+			gl.glGenQueries(GPU_LATENCY, queries, 0);
+		}
+		try {
+			jmxName = new ObjectName(JMX_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, jmxName);
+		} catch (JMException e) {
+			// Only diagnostics, carry on without them
+			System.err.println("FrameProfiler: couldn't register with JMX: " + e.getMessage());
+			jmxName = null;
+		}
+	}
+
+
+	// Call first thing in display(). Starts the GPU timer for this frame
+	public void beginFrame(GL3 gl) {
+		frameStart = System.nanoTime();
+		if (!gpuTimers) return;
+
+		// This query was started GPU_LATENCY frames ago. Collect it if the GPU is done, otherwise give up on it
+		int q = queryIndex;
+		if (queryActive[q]) {
+			gl.glGetQueryObjectiv(queries[q], GL3.GL_QUERY_RESULT_AVAILABLE, available, 0);
+			if (available[0] != GL3.GL_FALSE) {
+				gl.glGetQueryObjectui64v(queries[q], GL3.GL_QUERY_RESULT, elapsed, 0);
+				histograms[GPU].record(elapsed[0]);
+			} else {
+				droppedGpuQueries++;
+			}
+		}
+		gl.glBeginQuery(GL3.GL_TIME_ELAPSED, queries[q]);
+		queryActive[q] = true;
+	}
+
+
+	public void start(Phase phase) {
+		phaseStart[phase.ordinal()] = System.nanoTime();
+	}
+
+
+	public void stop(Phase phase) {
+		histograms[phase.ordinal()].record(System.nanoTime() - phaseStart[phase.ordinal()]);
+	}
+
+
+	// Call after the last GL command of the frame (before the swap)
+	public void endGpu(GL3 gl) {
+		if (!gpuTimers) return;
+		gl.glEndQuery(GL3.GL_TIME_ELAPSED);
+		queryIndex = (queryIndex + 1) % GPU_LATENCY;
+	}
+
+
+	// Call last thing in display()
+	public void endFrame() {
+		histograms[FRAME].record(System.nanoTime() - frameStart);
+		frames++;
+	}
+
+
+	// False when the driver has no timer queries: the GPU histogram stays empty
+	public boolean hasGpuTimers() {
+		return gpuTimers;
+	}
+
+
+	// The bodies the frustum culling kept and dropped this frame
+	public void recordCulling(int visible, int culled) {
+		lastVisible = visible;
+		lastCulled = culled;
+		visibleTotal += visible;
+		culledTotal += culled;
+		cullFrames++;
+	}
+
+
+	// Histogram i: a Phase ordinal, FRAME or GPU
+	public Histogram getHistogram(int i) {
+		return histograms[i];
+	}
+
+
+	public Histogram getHistogram(Phase phase) {
+		return histograms[phase.ordinal()];
+	}
+
+
+	// One line per phase: p50 / p95 / p99 / max in milliseconds
+	public String summary() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-9s %9s %9s %9s %9s%n", "ms", "p50", "p95", "p99", "max"));
+		for (int i = 0; i < NAMES.length; i++) {
+			Histogram h = histograms[i];
+			if (h.getCount() == 0) continue;
+			out.append(String.format("%-9s %9.3f %9.3f %9.3f %9.3f%n", NAMES[i],
+					h.percentile(0.50) / 1e6, h.percentile(0.95) / 1e6, h.percentile(0.99) / 1e6, h.getMax() / 1e6));
+		}
+		if (cullFrames > 0) {
+			out.append(String.format("culling: %d visible, %d culled per frame (mean), last frame %d / %d%n",
+					visibleTotal / cullFrames, culledTotal / cullFrames, lastVisible, lastCulled));
+		}
+		return out.toString();
+	}
+
+
+	// Free the queries and leave JMX
+	public void dispose(GL3 gl) {
+		if (gpuTimers) {
+			gl.glDeleteQueries(GPU_LATENCY, queries, 0);
+		}
+		if (jmxName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+			} catch (JMException e) {
+				// Already gone
+			}
+			jmxName = null;
+		}
+	}
+
+
+	// JMX attributes
+
+
+	@Override
+	public long getFrameCount() {
+		return frames;
+	}
+
+
+	@Override
+	public String[] getPhaseNames() {
+		return NAMES.clone();
+	}
+
+
+	@Override
+	public double[] getLastMillis() {
+		double[] ms = new double[NAMES.length];
+		for (int i = 0; i < ms.length; i++) ms[i] = histograms[i].getLast() / 1e6;
+		return ms;
+	}
+
+
+	@Override
+	public double[] getMeanMillis() {
+		double[] ms = new double[NAMES.length];
+		for (int i = 0; i < ms.length; i++) ms[i] = histograms[i].getMean() / 1e6;
+		return ms;
+	}
+
+
+	@Override
+	public double[] getP50Millis() {
+		return percentileMillis(0.50);
+	}
+
+
+	@Override
+	public double[] getP95Millis() {
+		return percentileMillis(0.95);
+	}
+
+
+	@Override
+	public double[] getP99Millis() {
+		return percentileMillis(0.99);
+	}
+
+
+	@Override
+	public double[] getMaxMillis() {
+		double[] ms = new double[NAMES.length];
+		for (int i = 0; i < ms.length; i++) ms[i] = histograms[i].getMax() / 1e6;
+		return ms;
+	}
+
+
+	private double[] percentileMillis(double p) {
+		double[] ms = new double[NAMES.length];
+		for (int i = 0; i < ms.length; i++) ms[i] = histograms[i].percentile(p) / 1e6;
+		return ms;
+	}
+
+
+	@Override
+	public long getDroppedGpuQueries() {
+		return droppedGpuQueries;
+	}
+
+
+	@Override
+	public int getLastVisibleBodies() {
+		return lastVisible;
+	}
+
+
+	@Override
+	public int getLastCulledBodies() {
+		return lastCulled;
+	}
+
+
+	// Called from the JMX thread. Might race the render thread, at worst one sample goes missing
+	@Override
+	public void reset() {
+		for (Histogram h : histograms) h.reset();
+		frames = 0;
+		droppedGpuQueries = 0;
+		visibleTotal = culledTotal = cullFrames = 0;
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * FrameProfilerMBean.java
+ *
+ * What FrameProfiler shows over JMX (jconsole, VisualVM, ...), under "outermilds:type=FrameProfiler".
+ * The arrays line up with getPhaseNames(): simulate, upload, draw, swap, frame (CPU total), gpu.
+ *
+ * @author CLLFTVTV
+ */
+public interface FrameProfilerMBean {
+
+	long getFrameCount();
+
+	String[] getPhaseNames();
+
+	double[] getLastMillis();
+
+	double[] getMeanMillis();
+
+	double[] getP50Millis();
+
+	double[] getP95Millis();
+
+	double[] getP99Millis();
+
+	double[] getMaxMillis();
+
+	// GPU timings thrown away because the result still wasn't ready when the query was needed again
+	long getDroppedGpuQueries();
+
+	// Frustum culling, last frame: bodies drawn and bodies skipped (0 with culling off)
+	int getLastVisibleBodies();
+
+	int getLastCulledBodies();
+
+	// Start counting from scratch
+	void reset();
+}
@@ -0,0 +1,251 @@
+import com.jogamp.opengl.GLAutoDrawable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FrameScheduler.java
+ *
+ * Decides WHEN to draw a frame. Replaces JOGL's Animator, which just draws as fast as it can and
+ * keeps a whole core busy even when nobody is looking at the window.
+ *
+ * Three modes:
+ * 	TARGET_FPS: sleep between frames so we draw at a fixed rate (vsync off)
+ * 	VSYNC:      draw back to back and let the buffer swap wait for the monitor (vsync on)
+ * 	ON_DEMAND:  only draw when something changed (new simulation state, camera moved...),
+ * 	            signalled with requestRedraw(). Never faster than the target rate
+ * On top of that:
+ * 	- Minimized window: nothing is drawn at all
+ * 	- Unfocused window: drops to the background rate
+ * 	- Under load: if a frame runs more than a whole frame late, the missed frames are skipped
+ * 	  instead of drawn back to back to catch up (which would only make it later)
+ *
+ * It also measures how much CPU each frame costs (the render thread's CPU time around display()),
+ * and the whole process's CPU use, printed every REPORT_SECONDS so the savings are visible.
+ *
+ * @author CLLFTVTV
+ */
+public class FrameScheduler {
+
+
+	public enum Mode { TARGET_FPS, VSYNC, ON_DEMAND }
+
+
+	// A pacing setting (Settings.FRAME_PACING: target, vsync or ondemand) as a Mode. Anything else is vsync
+	public static Mode parseMode(String setting) {
+		switch (setting.toLowerCase()) {
+			case "target":
+				return Mode.TARGET_FPS;
+			case "ondemand":
+				return Mode.ON_DEMAND;
+			default:
+				return Mode.VSYNC;
+		}
+	}
+
+
+	// How often to look again while minimized, or while waiting for a redraw request
+	private static final long MINIMIZED_POLL_NANOS = 100_000_000L;
+	private static final long IDLE_POLL_NANOS = 250_000_000L;
+
+	private static final double REPORT_SECONDS = 10.0;
+
+
+	private final GLAutoDrawable drawable;
+	private final Mode mode;
+	private final long targetPeriodNanos;
+	private final long backgroundPeriodNanos;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	// Set from the AWT thread (window events) and the simulation thread (redraw requests)
+	private volatile boolean minimized;
+	private volatile boolean focused = true;
+	private final AtomicBoolean redrawRequested = new AtomicBoolean(true);
+
+	// Stats, only written by the scheduler thread
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final boolean threadCpuSupported;
+	private final Histogram cpuPerFrame = new Histogram();
+	private long frames;
+	private long skippedFrames;
+	private long reportStartNanos, reportStartProcessCpu, reportStartFrames;
+
+
+	public FrameScheduler(GLAutoDrawable drawable, Mode mode, double targetFps, double backgroundFps) {
+		this.drawable = drawable;
+		this.mode = mode;
+		this.targetPeriodNanos = (long) (1e9 / targetFps);
+		this.backgroundPeriodNanos = (long) (1e9 / backgroundFps);
+		this.threadCpuSupported = threadBean.isCurrentThreadCpuTimeSupported();
+		if (threadCpuSupported && !threadBean.isThreadCpuTimeEnabled()) {
+			threadBean.setThreadCpuTimeEnabled(true);
+		}
+	}
+
+
+	// Swap interval the GL context should use for this mode (call gl.setSwapInterval with it in init())
+	public static int swapInterval(Mode mode) {
+		return mode == Mode.VSYNC ? 1 : 0;
+	}
+
+
+	public void start() {
+		running = true;
+		thread = new Thread(this::run, "FrameScheduler");
+		thread.start();
+	}
+
+
+	// Stop drawing and wait for the last frame to finish
+	public void stop() {
+		running = false;
+		if (thread == null) return;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+		report();
+	}
+
+
+	public boolean isStarted() {
+		return thread != null;
+	}
+
+
+	// Something on screen changed. Only matters in ON_DEMAND mode. Can be called from any thread
+	public void requestRedraw() {
+		if (!redrawRequested.getAndSet(true) && mode == Mode.ON_DEMAND) {
+			Thread t = thread;
+			if (t != null) LockSupport.unpark(t);
+		}
+	}
+
+
+	public void setMinimized(boolean minimized) {
+		this.minimized = minimized;
+		requestRedraw(); // Coming back from minimized needs a fresh frame
+	}
+
+
+	public void setFocused(boolean focused) {
+		this.focused = focused;
+	}
+
+
+	private void run() {
+		long next = System.nanoTime();
+		startReport(next);
+		while (running) {
+			if (minimized) {
+				LockSupport.parkNanos(this, MINIMIZED_POLL_NANOS);
+				next = System.nanoTime();
+				continue;
+			}
+
+			// In VSYNC mode the swap does the waiting, unless we're in the background and throttling ourselves
+			long period = focused ? targetPeriodNanos : backgroundPeriodNanos;
+			boolean paced = mode != Mode.VSYNC || !focused;
+			if (paced) {
+				waitUntil(next);
+			}
+
+			if (mode == Mode.ON_DEMAND && !redrawRequested.getAndSet(false)) {
+				// Nothing changed. Sleep until requestRedraw() wakes us up
+				LockSupport.parkNanos(this, IDLE_POLL_NANOS);
+				next = Math.max(next, System.nanoTime());
+				continue;
+			}
+
+			drawFrame();
+
+			long now = System.nanoTime();
+			next += period;
+			if (!paced) {
+				next = now;
+			} else if (now - next > period) {
+				// More than a whole frame late: skip the frames we missed rather than rushing through them
+				skippedFrames += (now - next) / period;
+				next = now;
+			}
+
+			if (now - reportStartNanos > REPORT_SECONDS * 1e9) {
+				report();
+				startReport(now);
+			}
+		}
+	}
+
+
+	// Sleep until the deadline. parkNanos can wake early (or be woken), so loop
+	private void waitUntil(long deadline) {
+		long now;
+		while (running && (now = System.nanoTime()) < deadline) {
+			LockSupport.parkNanos(this, deadline - now);
+		}
+	}
+
+
+	private void drawFrame() {
+		long cpuBefore = threadCpuSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+		drawable.display();
+		if (threadCpuSupported) {
+			cpuPerFrame.record(threadBean.getCurrentThreadCpuTime() - cpuBefore);
+		}
+		frames++;
+	}
+
+
+	private void startReport(long now) {
+		reportStartNanos = now;
+		reportStartProcessCpu = processCpuNanos();
+		reportStartFrames = frames;
+	}
+
+
+	// Frame rate, CPU per frame on this thread, and the whole process's CPU (physics threads included)
+	private void report() {
+		double seconds = (System.nanoTime() - reportStartNanos) / 1e9;
+		if (seconds <= 0) return;
+		long cpu = processCpuNanos();
+		String process = cpu < 0 ? "n/a" : String.format("%.0f%% of a core", (cpu - reportStartProcessCpu) / 1e7 / seconds);
+		System.out.printf("FrameScheduler: %s%s, %.1f fps, render thread CPU %.2f ms/frame (p99 %.2f), process %s, %d frames skipped%n",
+				mode, minimized ? " (minimized)" : focused ? "" : " (background)",
+				(frames - reportStartFrames) / seconds, cpuPerFrame.getMean() / 1e6, cpuPerFrame.percentile(0.99) / 1e6,
+				process, skippedFrames);
+	}
+
+
+	// CPU time used by the whole JVM (HotSpot only, -1 if not supported)
+	private static long processCpuNanos() {
+		OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+
+	public long getFrames() {
+		return frames;
+	}
+
+
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+
+
+	// CPU time the render thread spent per frame, in nanoseconds
+	public Histogram getCpuPerFrame() {
+		return cpuPerFrame;
+	}
+}
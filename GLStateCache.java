@@ -0,0 +1,138 @@
+import com.jogamp.opengl.GL3;
+
+import java.util.Arrays;
+
+/**
+ * GLStateCache.java
+ *
+ * Remembers what's bound (program, VAO, textures, blending, depth testing) and skips the GL call when the
+ * same thing is bound again. Every GL call costs CPU time in the driver, even when it changes
+ * nothing, and a frame of many draws binds the same program and VAO over and over.
+ *
+ * This only works if every bind goes through here. Code that binds behind its back has to call
+ * invalidate() afterwards (the RenderQueue does that at the start of every flush).
+ *
+ * @author CLLFTVTV
+ */
+public class GLStateCache {
+
+
+	private static final int TEXTURE_UNITS = 8;
+	private static final int UNKNOWN = -1;
+
+	// setDepth(): no depth test, test only, test and write
+	public static final int DEPTH_OFF = 0;
+	public static final int DEPTH_TEST = 1;
+	public static final int DEPTH_WRITE = 2;
+
+
+	private int program = UNKNOWN;
+	private int vertexArray = UNKNOWN;
+	private final int[] textures = new int[TEXTURE_UNITS];
+	private int activeUnit = UNKNOWN;
+	private int blend = UNKNOWN; // 0 = off, 1 = on
+	private int depth = UNKNOWN; // DEPTH_OFF, DEPTH_TEST or DEPTH_WRITE
+
+	private long binds;
+	private long bindsAvoided;
+
+
+	public GLStateCache() {
+		invalidate();
+	}
+
+
+	// Forget everything: the next bind of each kind always goes to GL
+	public void invalidate() {
+		program = UNKNOWN;
+		vertexArray = UNKNOWN;
+		Arrays.fill(textures, UNKNOWN);
+		activeUnit = UNKNOWN;
+		blend = UNKNOWN;
+		depth = UNKNOWN;
+	}
+
+
+	public void useProgram(GL3 gl, int id) {
+		if (program == id) {
+			bindsAvoided++;
+			return;
+		}
+		gl.glUseProgram(id);
+		program = id;
+		binds++;
+	}
+
+
+	public void bindVertexArray(GL3 gl, int id) {
+		if (vertexArray == id) {
+			bindsAvoided++;
+			return;
+		}
+		gl.glBindVertexArray(id);
+		vertexArray = id;
+		binds++;
+	}
+
+
+	// A GL_TEXTURE_2D on a texture unit (0 .. 7)
+	public void bindTexture(GL3 gl, int unit, int id) {
+		if (textures[unit] == id) {
+			bindsAvoided++;
+			return;
+		}
+		if (activeUnit != unit) {
+			gl.glActiveTexture(GL3.GL_TEXTURE0 + unit);
+			activeUnit = unit;
+		}
+		gl.glBindTexture(GL3.GL_TEXTURE_2D, id);
+		textures[unit] = id;
+		binds++;
+	}
+
+
+	// Alpha blending (SRC_ALPHA, ONE_MINUS_SRC_ALPHA) on or off
+	public void setBlend(GL3 gl, boolean on) {
+		int state = on ? 1 : 0;
+		if (blend == state) {
+			bindsAvoided++;
+			return;
+		}
+		if (on) {
+			gl.glEnable(GL3.GL_BLEND);
+			gl.glBlendFunc(GL3.GL_SRC_ALPHA, GL3.GL_ONE_MINUS_SRC_ALPHA);
+		} else {
+			gl.glDisable(GL3.GL_BLEND);
+		}
+		blend = state;
+		binds++;
+	}
+
+
+	// The depth test (GL_LESS) and depth writes: DEPTH_OFF, DEPTH_TEST or DEPTH_WRITE
+	public void setDepth(GL3 gl, int mode) {
+		if (depth == mode) {
+			bindsAvoided++;
+			return;
+		}
+		if (mode == DEPTH_OFF) {
+			gl.glDisable(GL3.GL_DEPTH_TEST);
+		} else {
+			gl.glEnable(GL3.GL_DEPTH_TEST);
+		}
+		gl.glDepthMask(mode != DEPTH_TEST); // With the test off nothing is written anyway, and glClear needs the mask on
+		depth = mode;
+		binds++;
+	}
+
+
+	// State changes that went to GL, and ones skipped because nothing would have changed
+	public long getBinds() {
+		return binds;
+	}
+
+
+	public long getBindsAvoided() {
+		return bindsAvoided;
+	}
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * Histogram.java
+ *
+ * Counts durations (in nanoseconds) into buckets so we can ask for percentiles (p50, p99...)
+ * without keeping every sample.
+ *
+ * The buckets are log-linear: every power of two is split into SUB_BUCKETS equal slices.
+ * So 1.0 ms and 1.06 ms land in different buckets, 100 ms and 106 ms might not. That's about
+ * 6% precision at any size, from nanoseconds to minutes, in a fixed array of longs.
+ * The array is allocated once, so recording a sample never allocates.
+ *
+ * Not synchronized. One thread records, other threads (JMX) may read slightly stale counts.
+ *
+ * @author CLLFTVTV
+ */
+public class Histogram {
+
+
+	// Slices per power of two (must be a power of two itself)
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Enough buckets for any positive long
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+
+	private final long[] counts = new long[BUCKETS];
+	private long total;
+	private long sum;
+	private long max;
+	private long last;
+
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts[bucketOf(nanos)]++;
+		total++;
+		sum += nanos;
+		if (nanos > max) max = nanos;
+		last = nanos;
+	}
+
+
+	// Which bucket a value goes in. Values below SUB_BUCKETS get a bucket each
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int slice = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + slice;
+	}
+
+
+	// The smallest value that lands in a bucket (the inverse of bucketOf)
+	private static long bucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long slice = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + slice) << shift;
+	}
+
+
+	private static long bucketWidth(int bucket) {
+		return bucket < SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+	}
+
+
+	// The value below which a fraction p (0..1) of the samples fall. Middle of its bucket, so within ~3%
+	public long percentile(double p) {
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(max, bucketStart(i) + bucketWidth(i) / 2);
+			}
+		}
+		return max;
+	}
+
+
+	public long getCount() {
+		return total;
+	}
+
+
+	public long getMax() {
+		return max;
+	}
+
+
+	// The most recent sample
+	public long getLast() {
+		return last;
+	}
+
+
+	public double getMean() {
+		return total == 0 ? 0.0 : (double) sum / total;
+	}
+
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		total = 0;
+		sum = 0;
+		max = 0;
+		last = 0;
+	}
+}
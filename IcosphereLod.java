@@ -0,0 +1,448 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * IcosphereLod.java
+ *
+ * Draws the bodies that are big on screen as real (lit) spheres, with as many triangles as their
+ * size on screen needs, and hands everything smaller to the InstancedRenderer's discs.
+ *
+ * The spheres are icospheres: an icosahedron (level 0, 20 triangles) with every triangle split in 4
+ * for each level after it. Every level is built once, up front. Splitting only ever ADDS vertices
+ * (the midpoints go on the end), so the vertices of level L are the first ones of level L + 1: one
+ * vertex buffer (the finest level's) serves them all, and the levels' index lists sit one after the
+ * other in one index buffer. Drawing a level is a glDrawElementsInstanced of its range.
+ *
+ * A body's level comes from its radius on screen in pixels: the level whose triangle edges are about
+ * edgePixels long. Below impostorPixels it's a disc. To stop a body sitting right on a boundary from
+ * popping between two levels every frame, each body remembers its level, and only moves up once it's
+ * hysteresis (10%) past the boundary, and back down once it's 10% under it.
+ *
+ * Every frame the spheres are sorted by level into the instance buffer (a StreamingBuffer, records
+ * like the InstancedRenderer's), so each level is one instanced draw.
+ *
+ * @author CLLFTVTV
+ */
+public class IcosphereLod {
+
+
+	// Level 6 has 40962 vertices, the most that 16 bit indices can reach
+	public static final int MAX_LEVEL = 6;
+
+	// Edge of the level 0 icosahedron on the unit sphere (every level after halves it)
+	private static final float EDGE0 = 1.0515f;
+
+	// One vertex: its position on the unit sphere, which is also its normal
+	private static final int VERTEX_STRIDE = 3 * Buffers.SIZEOF_FLOAT;
+
+	// Bodies drawn as spheres per frame. Any more are drawn as discs
+	private static final int MAX_SPHERES = 4096;
+
+
+	private static final String VERTEX_SHADER =
+			"#version 330 core\n" +
+			"layout (location = 0) in vec3 aNormal;\n" + // Vertex on the unit sphere
+			"layout (location = 1) in vec4 iPosRadius;\n" + // Per instance: xyz in AU, radius in AU
+			"layout (location = 2) in vec4 iColor;\n" +
+			"uniform mat4 uView;\n" +
+			"uniform mat4 uProjection;\n" +
+			"uniform float uRadiusScale;\n" +
+			"uniform vec3 uSun;\n" +
+			"out vec4 vColor;\n" +
+			"void main() {\n" +
+			"	vec3 world = iPosRadius.xyz + aNormal * (iPosRadius.w * uRadiusScale);\n" +
+			"	vec3 toSun = uSun - iPosRadius.xyz;\n" +
+			"	float light = 1.0;\n" + // The Sun lights itself
+			"	if (length(toSun) > iPosRadius.w) {\n" +
+			"		light = 0.15 + 0.85 * max(dot(aNormal, normalize(toSun)), 0.0);\n" +
+			"	}\n" +
+			"	gl_Position = uProjection * uView * vec4(world, 1.0);\n" +
+			"	vColor = vec4(iColor.rgb * light, iColor.a);\n" +
+			"}\n";
+
+	private static final String FRAGMENT_SHADER =
+			"#version 330 core\n" +
+			"in vec4 vColor;\n" +
+			"out vec4 FragColor;\n" +
+			"void main() {\n" +
+			"	FragColor = vColor;\n" +
+			"}\n";
+
+	// Built by the ShaderCache along with every other program
+	public static final ShaderCache.ProgramSource PROGRAM = new ShaderCache.ProgramSource("spheres", VERTEX_SHADER, FRAGMENT_SHADER);
+
+
+	private final int maxLevel;
+	private final float hysteresis;
+
+	// thresholds[L]: the pixel radius level L starts at (level 0 starts at impostorPixels)
+	private final float[] thresholds;
+
+	// Every level in one mesh: the finest level's vertices, then the index lists of level 0, 1, ...
+	private final MeshFile mesh;
+	private final int[] firstIndex;
+	private final int[] indexCount;
+
+	private int shaderProgramID;
+	private int vaoID;
+	private int meshVboID;
+	private int meshIboID;
+	private final StreamingBuffer instanceStream;
+	private final StreamingBuffer.Mode streamMode;
+
+	private int viewLocation;
+	private int projectionLocation;
+	private int radiusScaleLocation;
+	private int sunLocation;
+
+	// Each body's level, kept between frames for the hysteresis. -1 = disc
+	private int[] levels = new int[0];
+
+	// This frame's spheres: body per sphere, how many on each level, and where each level starts in the region
+	private final int[] sphereBodies = new int[MAX_SPHERES];
+	private int sphereCount;
+	private final int[] levelCounts;
+	private final int[] levelStarts;
+	private final int[] cursors;
+	private long regionOffset;
+	private float sunX, sunY, sunZ;
+	private final RenderQueue.Drawer drawer = (gl, state, arg) -> drawSpheres(gl);
+
+	// View settings, set from reshape()
+	private final float[] view = new Mat4().m;
+	private final float[] projection = new Mat4().m;
+	private float radiusScale = 1.0f;
+	private float pixelScale = 1.0f; // Pixels per AU, 1 AU from the camera
+
+	// Stats
+	private long levelChanges;
+	private int drawCalls;
+	private long trianglesDrawn;
+
+
+	// Levels 0 .. maxLevel. impostorPixels: smaller than this (radius, in pixels) is a disc.
+	// edgePixels: how long a triangle edge may be on screen. hysteresis: 0.1 = 10% either side of a boundary
+	public IcosphereLod(int maxLevel, float impostorPixels, float edgePixels, float hysteresis,
+			int streamRegions, StreamingBuffer.Mode streamMode) {
+		if (maxLevel < 0 || maxLevel > MAX_LEVEL) throw new IllegalArgumentException("maxLevel must be 0 .. " + MAX_LEVEL + ", got " + maxLevel);
+		this.maxLevel = maxLevel;
+		this.hysteresis = hysteresis;
+		this.thresholds = new float[maxLevel + 1];
+		thresholds[0] = impostorPixels;
+		for (int l = 1; l <= maxLevel; l++) {
+			// Level l - 1's edges (EDGE0 / 2^(l-1) times the radius) get longer than edgePixels
+			thresholds[l] = Math.max(thresholds[l - 1], edgePixels * (1 << (l - 1)) / EDGE0);
+		}
+		this.levelCounts = new int[maxLevel + 1];
+		this.levelStarts = new int[maxLevel + 1];
+		this.cursors = new int[maxLevel + 1];
+		this.firstIndex = new int[maxLevel + 1];
+		this.indexCount = new int[maxLevel + 1];
+		this.mesh = build(maxLevel, firstIndex, indexCount);
+		this.instanceStream = new StreamingBuffer(GL3.GL_ARRAY_BUFFER, MAX_SPHERES * InstancedRenderer.INSTANCE_STRIDE, streamRegions);
+		this.streamMode = streamMode;
+	}
+
+
+	// The icospheres 0 .. maxLevel as one mesh. Fills in where each level's indices start and how many there are
+	static MeshFile build(int maxLevel, int[] firstIndex, int[] indexCount) {
+		float t = (float) ((1.0 + Math.sqrt(5.0)) / 2.0);
+		float[] corners = {
+				-1, t, 0,  1, t, 0,  -1, -t, 0,  1, -t, 0,
+				0, -1, t,  0, 1, t,  0, -1, -t,  0, 1, -t,
+				t, 0, -1,  t, 0, 1,  -t, 0, -1,  -t, 0, 1 };
+		int[] triangles = {
+				0, 11, 5,  0, 5, 1,  0, 1, 7,  0, 7, 10,  0, 10, 11,
+				1, 5, 9,  5, 11, 4,  11, 10, 2,  10, 7, 6,  7, 1, 8,
+				3, 9, 4,  3, 4, 2,  3, 2, 6,  3, 6, 8,  3, 8, 9,
+				4, 9, 5,  2, 4, 11,  6, 2, 10,  8, 6, 7,  9, 8, 1 }; // Counter-clockwise seen from outside
+
+		List<float[]> vertices = new ArrayList<>();
+		for (int v = 0; v < 12; v++) vertices.add(normalize(corners[3 * v], corners[3 * v + 1], corners[3 * v + 2]));
+
+		int[][] levels = new int[maxLevel + 1][];
+		levels[0] = triangles;
+		for (int l = 1; l <= maxLevel; l++) {
+			// Split every triangle into 4. An edge's midpoint is made once, for the first triangle that needs it
+			int[] coarse = levels[l - 1];
+			int[] fine = new int[coarse.length * 4];
+			Map<Long, Integer> midpoints = new HashMap<>();
+			for (int k = 0, f = 0; k < coarse.length; k += 3) {
+				int a = coarse[k], b = coarse[k + 1], c = coarse[k + 2];
+				int ab = midpoint(vertices, midpoints, a, b);
+				int bc = midpoint(vertices, midpoints, b, c);
+				int ca = midpoint(vertices, midpoints, c, a);
+				int[] split = {a, ab, ca,  b, bc, ab,  c, ca, bc,  ab, bc, ca};
+				System.arraycopy(split, 0, fine, f, split.length);
+				f += split.length;
+			}
+			levels[l] = fine;
+		}
+
+		int totalIndices = 0;
+		for (int l = 0; l <= maxLevel; l++) {
+			firstIndex[l] = totalIndices;
+			indexCount[l] = levels[l].length;
+			totalIndices += levels[l].length;
+		}
+		ByteBuffer vertexData = Buffers.newDirectByteBuffer(vertices.size() * VERTEX_STRIDE).order(ByteOrder.LITTLE_ENDIAN);
+		for (float[] v : vertices) vertexData.putFloat(v[0]).putFloat(v[1]).putFloat(v[2]);
+		vertexData.flip();
+		ByteBuffer indexData = Buffers.newDirectByteBuffer(totalIndices * Buffers.SIZEOF_SHORT).order(ByteOrder.LITTLE_ENDIAN);
+		for (int[] level : levels) {
+			for (int index : level) indexData.putShort((short) index);
+		}
+		indexData.flip();
+
+		MeshFile.Attribute[] attributes = {new MeshFile.Attribute(0, 3, GL3.GL_FLOAT, false, 0)};
+		return new MeshFile(GL3.GL_TRIANGLES, attributes, VERTEX_STRIDE, vertices.size(), vertexData, totalIndices, GL3.GL_UNSIGNED_SHORT, indexData);
+	}
+
+
+	private static int midpoint(List<float[]> vertices, Map<Long, Integer> midpoints, int a, int b) {
+		long key = (long) Math.min(a, b) << 32 | Math.max(a, b);
+		Integer existing = midpoints.get(key);
+		if (existing != null) return existing;
+		float[] va = vertices.get(a), vb = vertices.get(b);
+		vertices.add(normalize(va[0] + vb[0], va[1] + vb[1], va[2] + vb[2]));
+		midpoints.put(key, vertices.size() - 1);
+		return vertices.size() - 1;
+	}
+
+
+	private static float[] normalize(float x, float y, float z) {
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		return new float[] {x / length, y / length, z / length};
+	}
+
+
+	// Upload the mesh and set up the VAO. Needs a current GL context.
+	// program is PROGRAM, already built (see ShaderCache)
+	public void init(GL3 gl, int program) {
+		shaderProgramID = program;
+		viewLocation = gl.glGetUniformLocation(shaderProgramID, "uView");
+		projectionLocation = gl.glGetUniformLocation(shaderProgramID, "uProjection");
+		radiusScaleLocation = gl.glGetUniformLocation(shaderProgramID, "uRadiusScale");
+		sunLocation = gl.glGetUniformLocation(shaderProgramID, "uSun");
+
+		meshVboID = mesh.createVertexBuffer(gl);
+		instanceStream.init(gl, streamMode);
+
+		IntBuffer vaoBuffers = Buffers.newDirectIntBuffer(1);
+		gl.glGenVertexArrays(1, vaoBuffers);
+		vaoID = vaoBuffers.get(0);
+		gl.glBindVertexArray(vaoID);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, meshVboID);
+		mesh.setAttributePointers(gl);
+		meshIboID = mesh.createIndexBuffer(gl);
+
+		// The instance attributes, pointed at each level's part of the region in drawSpheres()
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, instanceStream.getBufferID());
+		gl.glEnableVertexAttribArray(1);
+		gl.glVertexAttribDivisor(1, 1);
+		gl.glEnableVertexAttribArray(2);
+		gl.glVertexAttribDivisor(2, 1);
+
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+	}
+
+
+	// Set the camera. pixelScale: pixels per AU at 1 AU from the camera. The matrices are copied
+	public void setView(Mat4 view, Mat4 projection, float radiusScale, float pixelScale) {
+		view.get(this.view, 0);
+		projection.get(this.projection, 0);
+		this.radiusScale = radiusScale;
+		this.pixelScale = pixelScale;
+	}
+
+
+	// The level for a body `pixelRadius` pixels big that was on level `current` last frame (-1 = disc).
+	// It only moves once it's clear of the boundary by the hysteresis
+	public int select(int current, float pixelRadius) {
+		int level = current;
+		while (level < maxLevel && pixelRadius > thresholds[level + 1] * (1.0f + hysteresis)) level++;
+		while (level >= 0 && pixelRadius < thresholds[level] * (1.0f - hysteresis)) level--;
+		return level;
+	}
+
+
+	// Sort every body in the snapshot (alpha of the way from prev to cur) into spheres, by level,
+	// and discs, which go to `discs` (already begun)
+	public void putAll(GL3 gl, StateSnapshot s, float alpha, InstancedRenderer discs) {
+		putAll(gl, s, alpha, null, s.count, discs);
+	}
+
+
+	// Same, for only the bodies indices[0 .. count) (the ones BodyBvh found on screen). null = all of them.
+	// Bodies left out keep their level from when they were last seen
+	public void putAll(GL3 gl, StateSnapshot s, float alpha, int[] indices, int count, InstancedRenderer discs) {
+		int n = s.count;
+		if (levels.length < n) {
+			int old = levels.length;
+			levels = Arrays.copyOf(levels, s.capacity);
+			Arrays.fill(levels, old, levels.length, -1);
+		}
+		sunX = s.prevX[0] + (s.curX[0] - s.prevX[0]) * alpha;
+		sunY = s.prevY[0] + (s.curY[0] - s.prevY[0]) * alpha;
+		sunZ = s.prevZ[0] + (s.curZ[0] - s.prevZ[0]) * alpha;
+
+		// 1. Pick the levels. Only the z row of the view matrix is needed: the distance from the camera
+		final float[] v = view;
+		Arrays.fill(levelCounts, 0);
+		sphereCount = 0;
+		for (int k = 0; k < count; k++) {
+			int i = indices != null ? indices[k] : k;
+			float x = s.prevX[i] + (s.curX[i] - s.prevX[i]) * alpha;
+			float y = s.prevY[i] + (s.curY[i] - s.prevY[i]) * alpha;
+			float z = s.prevZ[i] + (s.curZ[i] - s.prevZ[i]) * alpha;
+			float distance = -(v[2] * x + v[6] * y + v[10] * z + v[14]);
+			float pixels = distance > 0.0f ? s.radius[i] * radiusScale * pixelScale / distance : 0.0f;
+			int level = select(levels[i], pixels);
+			if (level != levels[i]) levelChanges++;
+			levels[i] = level;
+			if (level >= 0 && sphereCount < MAX_SPHERES) {
+				sphereBodies[sphereCount++] = i;
+				levelCounts[level]++;
+			} else {
+				discs.put(x, y, z, s.radius[i], s.color[i]);
+			}
+		}
+
+		// 2. Write the spheres into the region, grouped by level
+		int sum = 0;
+		for (int l = 0; l <= maxLevel; l++) {
+			levelStarts[l] = sum;
+			sum += levelCounts[l];
+		}
+		ByteBuffer instances = instanceStream.begin(gl);
+		int base = instances.position();
+		System.arraycopy(levelStarts, 0, cursors, 0, cursors.length);
+		for (int k = 0; k < sphereCount; k++) {
+			int i = sphereBodies[k];
+			instances.position(base + cursors[levels[i]]++ * InstancedRenderer.INSTANCE_STRIDE);
+			InstancedRenderer.packInstance(instances,
+					s.prevX[i] + (s.curX[i] - s.prevX[i]) * alpha,
+					s.prevY[i] + (s.curY[i] - s.prevY[i]) * alpha,
+					s.prevZ[i] + (s.curZ[i] - s.prevZ[i]) * alpha,
+					s.radius[i], s.color[i]);
+		}
+		instances.position(base + sphereCount * InstancedRenderer.INSTANCE_STRIDE);
+	}
+
+
+	// Finish this frame's spheres and queue their draw
+	public void submit(GL3 gl, RenderQueue queue) {
+		regionOffset = instanceStream.end(gl);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		drawCalls = 0;
+		trianglesDrawn = 0;
+		if (sphereCount > 0) {
+			queue.submit(RenderQueue.LAYER_OPAQUE, shaderProgramID, vaoID, 0, 0.0f, drawer, 0);
+		} else {
+			instanceStream.fence(gl); // Nothing will read it, but the ring still expects a fence
+		}
+	}
+
+
+	// Called by the queue: one instanced draw per level that has spheres on it
+	private void drawSpheres(GL3 gl) {
+		gl.glUniformMatrix4fv(viewLocation, 1, false, view, 0);
+		gl.glUniformMatrix4fv(projectionLocation, 1, false, projection, 0);
+		gl.glUniform1f(radiusScaleLocation, radiusScale);
+		gl.glUniform3f(sunLocation, sunX, sunY, sunZ);
+
+		// The queue depth tests the opaque layer, so spheres and discs hide each other properly.
+		// Closed and convex: the back faces are always hidden, don't even shade them
+		gl.glEnable(GL3.GL_CULL_FACE);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, instanceStream.getBufferID());
+		for (int l = 0; l <= maxLevel; l++) {
+			int count = levelCounts[l];
+			if (count == 0) continue;
+			long offset = regionOffset + (long) levelStarts[l] * InstancedRenderer.INSTANCE_STRIDE;
+			gl.glVertexAttribPointer(1, 4, GL3.GL_FLOAT, false, InstancedRenderer.INSTANCE_STRIDE, offset);
+			gl.glVertexAttribPointer(2, 4, GL3.GL_UNSIGNED_BYTE, true, InstancedRenderer.INSTANCE_STRIDE, offset + 4 * Buffers.SIZEOF_FLOAT);
+			gl.glDrawElementsInstanced(GL3.GL_TRIANGLES, indexCount[l], GL3.GL_UNSIGNED_SHORT, (long) firstIndex[l] * Buffers.SIZEOF_SHORT, count);
+			drawCalls++;
+			trianglesDrawn += (long) count * indexCount[l] / 3;
+		}
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		gl.glDisable(GL3.GL_CULL_FACE);
+
+		instanceStream.fence(gl);
+	}
+
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+
+	// Vertices level l uses (the first ones of the shared buffer) and its triangles
+	public int getVertexCount(int level) {
+		return 10 * (1 << (2 * level)) + 2;
+	}
+
+
+	public int getTriangleCount(int level) {
+		return indexCount[level] / 3;
+	}
+
+
+	// Where level l starts, in pixels of radius on screen (without the hysteresis)
+	public float getThreshold(int level) {
+		return thresholds[level];
+	}
+
+
+	public MeshFile getMesh() {
+		return mesh;
+	}
+
+
+	// Last frame: bodies drawn as spheres, on each level, draw calls and triangles
+	public int getSphereCount() {
+		return sphereCount;
+	}
+
+
+	public int getLevelCount(int level) {
+		return levelCounts[level];
+	}
+
+
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+
+	public long getTrianglesDrawn() {
+		return trianglesDrawn;
+	}
+
+
+	// Level changes of all bodies since the start (a body popping back and forth shows up here)
+	public long getLevelChanges() {
+		return levelChanges;
+	}
+
+
+	// Free the GPU objects
+	public void dispose(GL3 gl) {
+		gl.glDeleteProgram(shaderProgramID);
+		IntBuffer ids = Buffers.newDirectIntBuffer(new int[] {meshVboID, meshIboID});
+		gl.glDeleteBuffers(2, ids);
+		instanceStream.dispose(gl);
+		IntBuffer vao = Buffers.newDirectIntBuffer(new int[] {vaoID});
+		gl.glDeleteVertexArrays(1, vao);
+	}
+}
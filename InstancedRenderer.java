@@ -0,0 +1,369 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * InstancedRenderer.java
+ *
+ * Draws every body with ONE draw call, using instancing.
+ *
+ * Before, drawing one object was glUseProgram + glBindVertexArray + glDrawArrays.
+ * Doing that 10,000 times a frame would spend all our time talking to the driver.
+ * Instead there are two buffers:
+ * 	1. The mesh VBO: one small disc (or a MeshFile), shared by every body (uploaded once, like the triangle was)
+ * 	2. The instance VBO: one record per body (position, radius, colour), rewritten every frame.
+ * 	   It's a StreamingBuffer, so we write straight into a ring of mapped regions without stalling
+ * glDrawArraysInstanced draws the mesh N times, and glVertexAttribDivisor tells OpenGL to step
+ * through the instance buffer once per copy instead of once per vertex.
+ *
+ * @author CLLFTVTV
+ */
+public class InstancedRenderer {
+
+
+	// Triangles around the edge of the disc
+	private static final int DISC_SEGMENTS = 16;
+
+	// One instance record: x, y, z, radius (4 floats) + colour (4 unsigned bytes) = 20 bytes
+	static final int INSTANCE_STRIDE = 4 * Buffers.SIZEOF_FLOAT + 4;
+
+	// Instances per draw call. 100k bodies is a handful of draws
+	private static final int MAX_INSTANCES_PER_DRAW = 65536;
+
+
+	private static final String VERTEX_SHADER =
+			"#version 330 core\n" +
+			"layout (location = 0) in vec2 aCorner;\n" + // Disc vertex, in a unit circle
+			"layout (location = 1) in vec4 iPosRadius;\n" + // Per instance: xyz in AU, radius in AU
+			"layout (location = 2) in vec4 iColor;\n" + // Per instance: colour (bytes, normalised to 0..1)
+			"uniform mat4 uView;\n" + // World (AU) -> camera space
+			"uniform mat4 uProjection;\n" + // Camera space -> screen
+			"uniform float uRadiusScale;\n" + // Blow the radius up so planets aren't invisible
+			"uniform float uMinRadius;\n" + // Smallest radius, in AU per AU of distance from the camera (so, in pixels)
+			"out vec4 vColor;\n" +
+			"void main() {\n" +
+			"	vec4 viewPos = uView * vec4(iPosRadius.xyz, 1.0);\n" +
+			"	float r = max(iPosRadius.w * uRadiusScale, uMinRadius * max(-viewPos.z, 0.0));\n" +
+			"	viewPos.xy += aCorner * r;\n" + // Spread the disc out in camera space, so it always faces us
+			"	gl_Position = uProjection * viewPos;\n" +
+			"	vColor = iColor;\n" +
+			"}\n";
+
+	private static final String FRAGMENT_SHADER =
+			"#version 330 core\n" +
+			"in vec4 vColor;\n" +
+			"out vec4 FragColor;\n" +
+			"void main() {\n" +
+			"	FragColor = vColor;\n" +
+			"}\n";
+
+	// Built by the ShaderCache along with every other program
+	public static final ShaderCache.ProgramSource PROGRAM = new ShaderCache.ProgramSource("bodies", VERTEX_SHADER, FRAGMENT_SHADER);
+
+
+	private final int maxInstances;
+
+	private int shaderProgramID;
+	private int vaoID;
+	private int meshVboID;
+	private int meshIboID;
+	private MeshFile mesh;
+
+	// The per frame instance data
+	private final StreamingBuffer instanceStream;
+	private final StreamingBuffer.Mode streamMode;
+
+	private int viewLocation;
+	private int projectionLocation;
+	private int radiusScaleLocation;
+	private int minRadiusLocation;
+
+	// This frame's region of the instance stream (mapped GPU memory, or a staging copy)
+	private ByteBuffer instances;
+	private int instanceCount;
+
+	// View settings, set from reshape()
+	private final float[] view = new Mat4().m;
+	private final float[] projection = new Mat4().m;
+	private float radiusScale = 1.0f;
+	private float minRadius = 0.005f;
+
+	// Where this frame's region starts in the instance stream, for drawInstances()
+	private long regionOffset;
+	private final RenderQueue.Drawer drawer = (gl, state, arg) -> drawInstances(gl);
+
+	// Draw calls issued last frame
+	private int drawCalls;
+
+
+	// streamRegions: how many frames of instance data can be in flight. streamMode null = pick the best
+	public InstancedRenderer(int maxInstances, int streamRegions, StreamingBuffer.Mode streamMode) {
+		this.maxInstances = maxInstances;
+		this.instanceStream = new StreamingBuffer(GL3.GL_ARRAY_BUFFER, maxInstances * INSTANCE_STRIDE, streamRegions);
+		this.streamMode = streamMode;
+	}
+
+
+	// Build the shared mesh and the instance buffer. Needs a current GL context.
+	// program is PROGRAM, already built (see ShaderCache)
+	public void init(GL3 gl, int program) {
+		shaderProgramID = program;
+
+		viewLocation = gl.glGetUniformLocation(shaderProgramID, "uView");
+		projectionLocation = gl.glGetUniformLocation(shaderProgramID, "uProjection");
+		radiusScaleLocation = gl.glGetUniformLocation(shaderProgramID, "uRadiusScale");
+		minRadiusLocation = gl.glGetUniformLocation(shaderProgramID, "uMinRadius");
+
+		// The shared mesh: the disc, unless a mesh file was set. Uploaded straight from its buffer
+		if (mesh == null) mesh = disc(DISC_SEGMENTS);
+		meshVboID = mesh.createVertexBuffer(gl);
+
+		// The instances change every frame. Allocate the ring now, fill it later
+		instanceStream.init(gl, streamMode);
+
+		IntBuffer vaoBuffers = Buffers.newDirectIntBuffer(1);
+		gl.glGenVertexArrays(1, vaoBuffers);
+		vaoID = vaoBuffers.get(0);
+		gl.glBindVertexArray(vaoID);
+
+		// The mesh attributes (attribute 0, the corner), read once per vertex, laid out as its header says
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, meshVboID);
+		mesh.setAttributePointers(gl);
+		meshIboID = mesh.createIndexBuffer(gl);
+
+		// Attributes 1 and 2: read once per INSTANCE (divisor 1).
+		// The pointers are set in drawInstances(), because the region we read from moves every frame
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, instanceStream.getBufferID());
+		gl.glEnableVertexAttribArray(1);
+		gl.glVertexAttribDivisor(1, 1);
+		gl.glEnableVertexAttribArray(2);
+		gl.glVertexAttribDivisor(2, 1);
+
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+	}
+
+
+	// Draw every body as this mesh instead of the disc (call before init). Attribute 0 is the corner:
+	// its xy is spread out in camera space, in units of the body's radius
+	public void setMesh(MeshFile mesh) {
+		checkMesh(mesh);
+		this.mesh = mesh;
+	}
+
+
+	// Switch to a mesh after init, already uploaded (MeshFile.createBuffers, maybe on another context).
+	// The mesh drawn so far (the disc) is deleted
+	public void setMesh(GL3 gl, MeshFile mesh, int vbo, int ibo) {
+		checkMesh(mesh);
+		gl.glDeleteBuffers(meshIboID != 0 ? 2 : 1, new int[] {meshVboID, meshIboID}, 0);
+		this.mesh = mesh;
+		meshVboID = vbo;
+		meshIboID = ibo;
+
+		gl.glBindVertexArray(vaoID);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, meshVboID);
+		mesh.setAttributePointers(gl);
+		gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, meshIboID); // 0 unbinds the old one, if it had one
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+	}
+
+
+	static void checkMesh(MeshFile mesh) {
+		MeshFile.Attribute corner = mesh.getAttribute(0);
+		if (corner == null || corner.type != GL3.GL_FLOAT || corner.components < 2) {
+			throw new IllegalArgumentException("The body mesh needs attribute 0 as 2 or more floats");
+		}
+	}
+
+
+	// The disc, as a triangle fan: the centre, then the points around the edge (first one repeated to close it)
+	static MeshFile disc(int segments) {
+		int vertexCount = segments + 2;
+		ByteBuffer disc = Buffers.newDirectByteBuffer(vertexCount * 2 * Buffers.SIZEOF_FLOAT).order(ByteOrder.LITTLE_ENDIAN);
+		disc.putFloat(0.0f).putFloat(0.0f);
+		for (int i = 0; i <= segments; i++) {
+			double angle = 2.0 * Math.PI * i / segments;
+			disc.putFloat((float) Math.cos(angle)).putFloat((float) Math.sin(angle));
+		}
+		disc.flip();
+		MeshFile.Attribute[] attributes = {new MeshFile.Attribute(0, 2, GL3.GL_FLOAT, false, 0)};
+		return new MeshFile(GL3.GL_TRIANGLE_FAN, attributes, 2 * Buffers.SIZEOF_FLOAT, vertexCount, disc, 0, 0, null);
+	}
+
+
+	// Set the camera, and how big bodies are drawn. The matrices are copied
+	public void setView(Mat4 view, Mat4 projection, float radiusScale, float minRadius) {
+		view.get(this.view, 0);
+		projection.get(this.projection, 0);
+		this.radiusScale = radiusScale;
+		this.minRadius = minRadius;
+	}
+
+
+	// Start a new frame of instances
+	public void begin(GL3 gl) {
+		instances = instanceStream.begin(gl);
+		instanceCount = 0;
+	}
+
+
+	// Add one body. colour is 0xRRGGBBAA
+	public void put(float x, float y, float z, float radius, int color) {
+		if (instanceCount == maxInstances) return; // Full. The rest just don't get drawn
+		packInstance(instances, x, y, z, radius, color);
+		instanceCount++;
+	}
+
+
+	// Add every body in the system
+	public void putAll(BodySystem b) {
+		int count = Math.min(b.count, maxInstances - instanceCount);
+		packInstances(instances, b, 0, count);
+		instanceCount += count;
+	}
+
+
+	// Add every body in a snapshot, alpha of the way from its previous to its current positions
+	public void putAll(StateSnapshot s, float alpha) {
+		int count = Math.min(s.count, maxInstances - instanceCount);
+		packInterpolated(instances, s, alpha, count);
+		instanceCount += count;
+	}
+
+
+	// Add only the bodies indices[0 .. count) of a snapshot (the ones BodyBvh found on screen)
+	public void putAll(StateSnapshot s, float alpha, int[] indices, int count) {
+		count = Math.min(count, maxInstances - instanceCount);
+		packInterpolated(instances, s, alpha, indices, count);
+		instanceCount += count;
+	}
+
+
+	// Write one instance record at the buffer's position (native byte order)
+	static void packInstance(ByteBuffer out, float x, float y, float z, float radius, int color) {
+		out.putFloat(x);
+		out.putFloat(y);
+		out.putFloat(z);
+		out.putFloat(radius);
+		// Bytes in memory order R, G, B, A
+		out.put((byte) (color >>> 24));
+		out.put((byte) (color >>> 16));
+		out.put((byte) (color >>> 8));
+		out.put((byte) color);
+	}
+
+
+	// Write the records for bodies [first, first + count). Also used by the benchmarks.
+	// Absolute puts: no position to update after every float, over twice as fast as packInstance in a loop
+	static void packInstances(ByteBuffer out, BodySystem b, int first, int count) {
+		int p = out.position();
+		boolean swapColor = out.order() == ByteOrder.LITTLE_ENDIAN; // The colour bytes must land R, G, B, A in memory
+		for (int i = first; i < first + count; i++, p += INSTANCE_STRIDE) {
+			out.putFloat(p, (float) b.x[i]);
+			out.putFloat(p + 4, (float) b.y[i]);
+			out.putFloat(p + 8, (float) b.z[i]);
+			out.putFloat(p + 12, (float) b.radius[i]);
+			out.putInt(p + 16, swapColor ? Integer.reverseBytes(b.color[i]) : b.color[i]);
+		}
+		out.position(p);
+	}
+
+
+	// Like packInstances, blending each position between the snapshot's prev and cur
+	static void packInterpolated(ByteBuffer out, StateSnapshot s, float alpha, int count) {
+		int p = out.position();
+		boolean swapColor = out.order() == ByteOrder.LITTLE_ENDIAN;
+		for (int i = 0; i < count; i++, p += INSTANCE_STRIDE) {
+			out.putFloat(p, s.prevX[i] + (s.curX[i] - s.prevX[i]) * alpha);
+			out.putFloat(p + 4, s.prevY[i] + (s.curY[i] - s.prevY[i]) * alpha);
+			out.putFloat(p + 8, s.prevZ[i] + (s.curZ[i] - s.prevZ[i]) * alpha);
+			out.putFloat(p + 12, s.radius[i]);
+			out.putInt(p + 16, swapColor ? Integer.reverseBytes(s.color[i]) : s.color[i]);
+		}
+		out.position(p);
+	}
+
+
+	// Same, for the bodies in indices[0 .. count)
+	static void packInterpolated(ByteBuffer out, StateSnapshot s, float alpha, int[] indices, int count) {
+		int p = out.position();
+		boolean swapColor = out.order() == ByteOrder.LITTLE_ENDIAN;
+		for (int k = 0; k < count; k++, p += INSTANCE_STRIDE) {
+			int i = indices[k];
+			out.putFloat(p, s.prevX[i] + (s.curX[i] - s.prevX[i]) * alpha);
+			out.putFloat(p + 4, s.prevY[i] + (s.curY[i] - s.prevY[i]) * alpha);
+			out.putFloat(p + 8, s.prevZ[i] + (s.curZ[i] - s.prevZ[i]) * alpha);
+			out.putFloat(p + 12, s.radius[i]);
+			out.putInt(p + 16, swapColor ? Integer.reverseBytes(s.color[i]) : s.color[i]);
+		}
+		out.position(p);
+	}
+
+
+	// Finish this frame's instances and queue the draw. The queue binds the program and VAO
+	public void submit(GL3 gl, RenderQueue queue) {
+		drawCalls = 0;
+		regionOffset = instanceStream.end(gl);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		instances = null;
+		if (instanceCount > 0) {
+			queue.submit(RenderQueue.LAYER_OPAQUE, shaderProgramID, vaoID, 0, 0.0f, drawer, 0);
+		} else {
+			instanceStream.fence(gl); // Nothing will read it, but the ring still expects a fence
+		}
+	}
+
+
+	// Called by the queue: one draw per batch, the instance attributes pointed at the start of each batch
+	private void drawInstances(GL3 gl) {
+		gl.glUniformMatrix4fv(viewLocation, 1, false, view, 0);
+		gl.glUniformMatrix4fv(projectionLocation, 1, false, projection, 0);
+		gl.glUniform1f(radiusScaleLocation, radiusScale);
+		gl.glUniform1f(minRadiusLocation, minRadius);
+
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, instanceStream.getBufferID());
+		for (int first = 0; first < instanceCount; first += MAX_INSTANCES_PER_DRAW) {
+			int count = Math.min(MAX_INSTANCES_PER_DRAW, instanceCount - first);
+			long offset = regionOffset + (long) first * INSTANCE_STRIDE;
+			gl.glVertexAttribPointer(1, 4, GL3.GL_FLOAT, false, INSTANCE_STRIDE, offset);
+			gl.glVertexAttribPointer(2, 4, GL3.GL_UNSIGNED_BYTE, true, INSTANCE_STRIDE, offset + 4 * Buffers.SIZEOF_FLOAT);
+			mesh.drawInstanced(gl, count);
+			drawCalls++;
+		}
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+
+		// The GPU reads this region until these draws finish
+		instanceStream.fence(gl);
+	}
+
+
+	public StreamingBuffer getInstanceStream() {
+		return instanceStream;
+	}
+
+
+	public int getInstanceCount() {
+		return instanceCount;
+	}
+
+
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+
+	// Free the GPU objects
+	public void dispose(GL3 gl) {
+		gl.glDeleteProgram(shaderProgramID);
+		IntBuffer ids = Buffers.newDirectIntBuffer(new int[] {meshVboID, meshIboID});
+		gl.glDeleteBuffers(meshIboID != 0 ? 2 : 1, ids);
+		instanceStream.dispose(gl);
+		IntBuffer vao = Buffers.newDirectIntBuffer(new int[] {vaoID});
+		gl.glDeleteVertexArrays(1, vao);
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ * Integrator.java
+ *
+ * Moves the bodies forward by one timestep.
+ * All the integrators here are symplectic, meaning they don't slowly pump energy
+ * into (or out of) an orbit. A plain Euler step would spiral the planets outwards in a few orbits.
+ *
+ * @author CLLFTVTV
+ */
+public interface Integrator {
+
+	// Advance every body by dt days.
+	// On entry bodies.ax/ay/az must hold the accelerations at the current positions,
+	// and on exit they hold the accelerations at the new positions.
+	void step(BodySystem bodies, ForceModel forces, double dt);
+}
@@ -0,0 +1,92 @@
+/**
+ * KeplerOrbit.java
+ *
+ * An ellipse around the Sun, given by the six classic orbital elements.
+ * state() solves Kepler's equation (E - e sin E = M) by Newton iteration, which is exact
+ * but costs a loop of sin/cos per call. The ChebyshevEphemeris calls this a few times per
+ * time window to build its tables, and answers everything else with polynomials.
+ *
+ * Units: AU, days, radians. The orbit is around a fixed centre at the origin.
+ *
+ * @author CLLFTVTV
+ */
+public class KeplerOrbit {
+
+
+	private static final int MAX_ITERATIONS = 30;
+	private static final double TOLERANCE = 1e-14;
+
+
+	// Semi-major axis (AU), eccentricity, and G * (central mass + body mass)
+	public final double a;
+	public final double e;
+	public final double mu;
+
+	// Mean anomaly at time epoch (days), and the mean motion (radians per day)
+	public final double meanAnomalyAtEpoch;
+	public final double epoch;
+	public final double meanMotion;
+
+	// Orbit plane -> ecliptic rotation, worked out once from inclination, node and argument of periapsis
+	private final double px, py, pz; // Where the periapsis direction points
+	private final double qx, qy, qz; // 90 degrees further along the orbit
+
+
+	public KeplerOrbit(double a, double e, double inclination, double ascendingNode, double argumentOfPeriapsis,
+			double meanAnomalyAtEpoch, double epoch, double mu) {
+		this.a = a;
+		this.e = e;
+		this.mu = mu;
+		this.meanAnomalyAtEpoch = meanAnomalyAtEpoch;
+		this.epoch = epoch;
+		this.meanMotion = a > 0.0 ? Math.sqrt(mu / (a * a * a)) : 0.0;
+
+		double cosO = Math.cos(ascendingNode), sinO = Math.sin(ascendingNode);
+		double cosW = Math.cos(argumentOfPeriapsis), sinW = Math.sin(argumentOfPeriapsis);
+		double cosI = Math.cos(inclination), sinI = Math.sin(inclination);
+		px = cosO * cosW - sinO * sinW * cosI;
+		py = sinO * cosW + cosO * sinW * cosI;
+		pz = sinW * sinI;
+		qx = -cosO * sinW - sinO * cosW * cosI;
+		qy = -sinO * sinW + cosO * cosW * cosI;
+		qz = cosW * sinI;
+	}
+
+
+	// Solve Kepler's equation for the eccentric anomaly E
+	public double eccentricAnomaly(double t) {
+		double m = meanAnomalyAtEpoch + meanMotion * (t - epoch);
+		m = Math.IEEEremainder(m, 2.0 * Math.PI); // -pi..pi, keeps Newton well behaved
+		double ecc = e;
+		double eAnomaly = ecc < 0.8 ? m : Math.PI * Math.signum(m);
+		for (int i = 0; i < MAX_ITERATIONS; i++) {
+			double f = eAnomaly - ecc * Math.sin(eAnomaly) - m;
+			double step = f / (1.0 - ecc * Math.cos(eAnomaly));
+			eAnomaly -= step;
+			if (Math.abs(step) < TOLERANCE) break;
+		}
+		return eAnomaly;
+	}
+
+
+	// Position and velocity at time t (days): out[off .. off+5] = x, y, z, vx, vy, vz
+	public void state(double t, double[] out, int off) {
+		double eAnomaly = eccentricAnomaly(t);
+		double cosE = Math.cos(eAnomaly), sinE = Math.sin(eAnomaly);
+		double b = a * Math.sqrt(1.0 - e * e);
+
+		// In the orbit plane (periapsis along the first axis)
+		double x = a * (cosE - e);
+		double y = b * sinE;
+		double eDot = meanMotion / (1.0 - e * cosE);
+		double vx = -a * sinE * eDot;
+		double vy = b * cosE * eDot;
+
+		out[off] = x * px + y * qx;
+		out[off + 1] = x * py + y * qy;
+		out[off + 2] = x * pz + y * qz;
+		out[off + 3] = vx * px + vy * qx;
+		out[off + 4] = vx * py + vy * qy;
+		out[off + 5] = vx * pz + vy * qz;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Leapfrog.java
+ *
+ * Leapfrog in "Drift-Kick-Drift" form:
+ * 	1. Drift: half a step of position
+ * 	2. Compute the acceleration at that midpoint
+ * 	3. Kick: a full step of velocity
+ * 	4. Drift: the other half step of position
+ * 	5. Compute the acceleration at the new position
+ *
+ * Same accuracy as VelocityVerlet, it just samples the force in the middle of the step. Step 5 is
+ * only there for the Integrator contract (the accelerations on exit are at the new positions, which
+ * Simulation.setTime and the other integrators rely on), and it doubles the force evaluations.
+ * So VelocityVerlet is the one to use, this one is for comparison.
+ *
+ * @author CLLFTVTV
+ */
+public class Leapfrog implements Integrator {
+
+
+	private final PhysicsPool pool;
+
+	// The step being taken (see VelocityVerlet)
+	private BodySystem b;
+	private ForceModel forces;
+	private double dt;
+
+	private final PhysicsPool.Range drift = this::drift;
+	private final PhysicsPool.Range accelerate = this::accelerate;
+	private final PhysicsPool.Range kickDrift = this::kickDrift;
+
+
+	// Single threaded
+	public Leapfrog() {
+		this(new PhysicsPool(1));
+	}
+
+
+	public Leapfrog(PhysicsPool pool) {
+		this.pool = pool;
+	}
+
+
+	@Override
+	public void step(BodySystem bodies, ForceModel forces, double dt) {
+		this.b = bodies;
+		this.forces = forces;
+		this.dt = dt;
+
+		pool.run(bodies.count, drift);
+		forces.prepare(bodies);
+		pool.run(bodies.count, accelerate);
+		pool.run(bodies.count, kickDrift);
+		forces.prepare(bodies);
+		pool.run(bodies.count, accelerate);
+
+		this.b = null;
+		this.forces = null;
+	}
+
+
+	private void drift(int from, int to) {
+		final BodySystem b = this.b;
+		final double half = 0.5 * dt;
+		for (int i = from; i < to; i++) {
+			b.x[i] += b.vx[i] * half;
+			b.y[i] += b.vy[i] * half;
+			b.z[i] += b.vz[i] * half;
+		}
+	}
+
+
+	private void accelerate(int from, int to) {
+		forces.accelerate(b, from, to);
+	}
+
+
+	private void kickDrift(int from, int to) {
+		final BodySystem b = this.b;
+		final double dt = this.dt, half = 0.5 * dt;
+		for (int i = from; i < to; i++) {
+			b.vx[i] += b.ax[i] * dt;
+			b.vy[i] += b.ay[i] * dt;
+			b.vz[i] += b.az[i] * dt;
+			b.x[i] += b.vx[i] * half;
+			b.y[i] += b.vy[i] * half;
+			b.z[i] += b.vz[i] * half;
+		}
+	}
+}
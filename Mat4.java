@@ -0,0 +1,186 @@
+/**
+ * Mat4.java
+ *
+ * A 4x4 float matrix, for the Model / View / Projection transforms.
+ *
+ * The 16 numbers are in COLUMN-MAJOR order (m[column * 4 + row]), which is what OpenGL expects,
+ * so m can go straight into glUniformMatrix4fv(location, 1, false, m, 0).
+ *
+ * Mutable and allocation free: every method overwrites this matrix and returns it, and
+ * mul() works even when an argument is this matrix. Keep them as fields and reuse them.
+ * For thousands of matrices at once use MatBatch, which works on flat float[] arrays.
+ *
+ * @author CLLFTVTV
+ */
+public final class Mat4 {
+
+
+	public final float[] m = new float[16];
+
+
+	public Mat4() {
+		identity();
+	}
+
+
+	public Mat4 identity() {
+		for (int i = 0; i < 16; i++) m[i] = 0.0f;
+		m[0] = m[5] = m[10] = m[15] = 1.0f;
+		return this;
+	}
+
+
+	public Mat4 set(Mat4 other) {
+		System.arraycopy(other.m, 0, m, 0, 16);
+		return this;
+	}
+
+
+	// Copy 16 floats (column-major) from src at offset
+	public Mat4 set(float[] src, int offset) {
+		System.arraycopy(src, offset, m, 0, 16);
+		return this;
+	}
+
+
+	// Copy the 16 floats into dst at offset
+	public void get(float[] dst, int offset) {
+		System.arraycopy(m, 0, dst, offset, 16);
+	}
+
+
+	// this = a * b (b is applied first). a and b can be this
+	public Mat4 mul(Mat4 a, Mat4 b) {
+		MatBatch.mul(a.m, 0, b.m, 0, m, 0);
+		return this;
+	}
+
+
+	// this = this * b
+	public Mat4 mul(Mat4 b) {
+		return mul(this, b);
+	}
+
+
+	public Mat4 translation(float x, float y, float z) {
+		identity();
+		m[12] = x;
+		m[13] = y;
+		m[14] = z;
+		return this;
+	}
+
+
+	public Mat4 scaling(float x, float y, float z) {
+		identity();
+		m[0] = x;
+		m[5] = y;
+		m[10] = z;
+		return this;
+	}
+
+
+	public Mat4 rotation(Quat q) {
+		return translationRotationScale(0.0f, 0.0f, 0.0f, q, 1.0f);
+	}
+
+
+	// The usual model matrix: scale, then rotate, then move to (x, y, z)
+	public Mat4 translationRotationScale(float x, float y, float z, Quat q, float scale) {
+		float xx = q.x * q.x, yy = q.y * q.y, zz = q.z * q.z;
+		float xy = q.x * q.y, xz = q.x * q.z, yz = q.y * q.z;
+		float wx = q.w * q.x, wy = q.w * q.y, wz = q.w * q.z;
+		m[0] = (1.0f - 2.0f * (yy + zz)) * scale;
+		m[1] = 2.0f * (xy + wz) * scale;
+		m[2] = 2.0f * (xz - wy) * scale;
+		m[3] = 0.0f;
+		m[4] = 2.0f * (xy - wz) * scale;
+		m[5] = (1.0f - 2.0f * (xx + zz)) * scale;
+		m[6] = 2.0f * (yz + wx) * scale;
+		m[7] = 0.0f;
+		m[8] = 2.0f * (xz + wy) * scale;
+		m[9] = 2.0f * (yz - wx) * scale;
+		m[10] = (1.0f - 2.0f * (xx + yy)) * scale;
+		m[11] = 0.0f;
+		m[12] = x;
+		m[13] = y;
+		m[14] = z;
+		m[15] = 1.0f;
+		return this;
+	}
+
+
+	// Perspective projection, like gluPerspective. fovY in radians, near and far > 0
+	public Mat4 perspective(float fovY, float aspect, float near, float far) {
+		float f = (float) (1.0 / Math.tan(fovY * 0.5));
+		for (int i = 0; i < 16; i++) m[i] = 0.0f;
+		m[0] = f / aspect;
+		m[5] = f;
+		m[10] = (far + near) / (near - far);
+		m[11] = -1.0f;
+		m[14] = 2.0f * far * near / (near - far);
+		return this;
+	}
+
+
+	// View matrix for a camera at eye looking at target, like gluLookAt
+	public Mat4 lookAt(Vec3 eye, Vec3 target, Vec3 up) {
+		// Forward
+		float fx = target.x - eye.x, fy = target.y - eye.y, fz = target.z - eye.z;
+		float fl = 1.0f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+		fx *= fl;
+		fy *= fl;
+		fz *= fl;
+		// Side = forward x up
+		float sx = fy * up.z - fz * up.y, sy = fz * up.x - fx * up.z, sz = fx * up.y - fy * up.x;
+		float sl = 1.0f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+		sx *= sl;
+		sy *= sl;
+		sz *= sl;
+		// The real up = side x forward
+		float ux = sy * fz - sz * fy, uy = sz * fx - sx * fz, uz = sx * fy - sy * fx;
+
+		m[0] = sx;
+		m[1] = ux;
+		m[2] = -fx;
+		m[3] = 0.0f;
+		m[4] = sy;
+		m[5] = uy;
+		m[6] = -fy;
+		m[7] = 0.0f;
+		m[8] = sz;
+		m[9] = uz;
+		m[10] = -fz;
+		m[11] = 0.0f;
+		m[12] = -(sx * eye.x + sy * eye.y + sz * eye.z);
+		m[13] = -(ux * eye.x + uy * eye.y + uz * eye.z);
+		m[14] = fx * eye.x + fy * eye.y + fz * eye.z;
+		m[15] = 1.0f;
+		return this;
+	}
+
+
+	// out = this * (p, 1), divided by w. out can be p
+	public Vec3 transformPoint(Vec3 p, Vec3 out) {
+		float x = m[0] * p.x + m[4] * p.y + m[8] * p.z + m[12];
+		float y = m[1] * p.x + m[5] * p.y + m[9] * p.z + m[13];
+		float z = m[2] * p.x + m[6] * p.y + m[10] * p.z + m[14];
+		float w = m[3] * p.x + m[7] * p.y + m[11] * p.z + m[15];
+		float inv = w != 0.0f ? 1.0f / w : 1.0f;
+		return out.set(x * inv, y * inv, z * inv);
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		for (int row = 0; row < 4; row++) {
+			out.append(row == 0 ? "[" : " ");
+			for (int col = 0; col < 4; col++) {
+				out.append(String.format("%10.4f", m[col * 4 + row]));
+			}
+			out.append(row == 3 ? " ]" : "\n");
+		}
+		return out.toString();
+	}
+}
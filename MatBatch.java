@@ -0,0 +1,101 @@
+/**
+ * MatBatch.java
+ *
+ * Matrix math on thousands of matrices at once, stored back to back in flat float[] arrays
+ * (16 floats each, column-major like Mat4). No objects per matrix, so building a model matrix
+ * for every body every frame doesn't give the garbage collector anything to do.
+ *
+ * The loops are written so the JIT can turn them into SIMD code by itself: one matrix kept in
+ * local variables, straight-line math on the other, no branches or calls inside the loop.
+ * (The JDK Vector API would make that explicit, but it's still an incubator module that needs
+ * extra compiler flags, so it isn't used here.)
+ *
+ * @author CLLFTVTV
+ */
+public final class MatBatch {
+
+
+	private MatBatch() {
+	}
+
+
+	// out = a * b, one matrix each at the given offsets. out may be a or b
+	public static void mul(float[] a, int ao, float[] b, int bo, float[] out, int oo) {
+		float a00 = a[ao], a10 = a[ao + 1], a20 = a[ao + 2], a30 = a[ao + 3];
+		float a01 = a[ao + 4], a11 = a[ao + 5], a21 = a[ao + 6], a31 = a[ao + 7];
+		float a02 = a[ao + 8], a12 = a[ao + 9], a22 = a[ao + 10], a32 = a[ao + 11];
+		float a03 = a[ao + 12], a13 = a[ao + 13], a23 = a[ao + 14], a33 = a[ao + 15];
+		for (int c = 0; c < 4; c++) {
+			// Column c of b is read completely before column c of out is written, so aliasing is fine
+			int bc = bo + c * 4, oc = oo + c * 4;
+			float b0 = b[bc], b1 = b[bc + 1], b2 = b[bc + 2], b3 = b[bc + 3];
+			out[oc] = a00 * b0 + a01 * b1 + a02 * b2 + a03 * b3;
+			out[oc + 1] = a10 * b0 + a11 * b1 + a12 * b2 + a13 * b3;
+			out[oc + 2] = a20 * b0 + a21 * b1 + a22 * b2 + a23 * b3;
+			out[oc + 3] = a30 * b0 + a31 * b1 + a32 * b2 + a33 * b3;
+		}
+	}
+
+
+	// out[i] = left * in[i] for count matrices (e.g. view * model for every body). out may be in.
+	// Each column of each matrix is just a vec4 multiplied by left, so it's one long loop over columns
+	public static void mul(Mat4 left, float[] in, float[] out, int count) {
+		float[] a = left.m;
+		float a00 = a[0], a10 = a[1], a20 = a[2], a30 = a[3];
+		float a01 = a[4], a11 = a[5], a21 = a[6], a31 = a[7];
+		float a02 = a[8], a12 = a[9], a22 = a[10], a32 = a[11];
+		float a03 = a[12], a13 = a[13], a23 = a[14], a33 = a[15];
+		int end = count * 16;
+		for (int i = 0; i < end; i += 4) {
+			float b0 = in[i], b1 = in[i + 1], b2 = in[i + 2], b3 = in[i + 3];
+			out[i] = a00 * b0 + a01 * b1 + a02 * b2 + a03 * b3;
+			out[i + 1] = a10 * b0 + a11 * b1 + a12 * b2 + a13 * b3;
+			out[i + 2] = a20 * b0 + a21 * b1 + a22 * b2 + a23 * b3;
+			out[i + 3] = a30 * b0 + a31 * b1 + a32 * b2 + a33 * b3;
+		}
+	}
+
+
+	// A translate + uniform scale model matrix for every body, straight from the BodySystem's arrays:
+	// position (x, y, z), scale = radius[i] * radiusScale
+	public static void translationScale(double[] x, double[] y, double[] z, double[] radius, float radiusScale,
+			int count, float[] out) {
+		for (int i = 0, o = 0; i < count; i++, o += 16) {
+			float s = (float) radius[i] * radiusScale;
+			out[o] = s;
+			out[o + 1] = 0.0f;
+			out[o + 2] = 0.0f;
+			out[o + 3] = 0.0f;
+			out[o + 4] = 0.0f;
+			out[o + 5] = s;
+			out[o + 6] = 0.0f;
+			out[o + 7] = 0.0f;
+			out[o + 8] = 0.0f;
+			out[o + 9] = 0.0f;
+			out[o + 10] = s;
+			out[o + 11] = 0.0f;
+			out[o + 12] = (float) x[i];
+			out[o + 13] = (float) y[i];
+			out[o + 14] = (float) z[i];
+			out[o + 15] = 1.0f;
+		}
+	}
+
+
+	// Transform count points (x, y, z packed back to back) by m, as (x, y, z, 1). No divide by w,
+	// so use it with affine matrices (model, view). out may be in
+	public static void transformPoints(Mat4 m, float[] in, float[] out, int count) {
+		float[] a = m.m;
+		float a00 = a[0], a10 = a[1], a20 = a[2];
+		float a01 = a[4], a11 = a[5], a21 = a[6];
+		float a02 = a[8], a12 = a[9], a22 = a[10];
+		float a03 = a[12], a13 = a[13], a23 = a[14];
+		int end = count * 3;
+		for (int i = 0; i < end; i += 3) {
+			float px = in[i], py = in[i + 1], pz = in[i + 2];
+			out[i] = a00 * px + a01 * py + a02 * pz + a03;
+			out[i + 1] = a10 * px + a11 * py + a12 * pz + a13;
+			out[i + 2] = a20 * px + a21 * py + a22 * pz + a23;
+		}
+	}
+}
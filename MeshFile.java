@@ -0,0 +1,325 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.common.nio.Buffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MeshFile.java
+ *
+ * A mesh stored exactly the way the GPU wants it, so loading it is (almost) free.
+ *
+ * The old way was a float[] built in init(), copied into a direct buffer, then copied into the VBO:
+ * two copies and a pile of garbage for every mesh. A .omsh file is instead memory mapped
+ * (FileChannel.map) and the mapping is handed straight to glBufferData, so the only copy is the
+ * driver's, and the pages come from the OS file cache.
+ *
+ * The file (all ints little endian):
+ * 	0   'O' 'M' 'S' 'H'
+ * 	4   version (1)
+ * 	8   primitive (GL_TRIANGLES, GL_TRIANGLE_FAN...)
+ * 	12  vertex count
+ * 	16  vertex stride in bytes (the vertices are interleaved)
+ * 	20  index count (0 = not indexed)
+ * 	24  index type (GL_UNSIGNED_SHORT or GL_UNSIGNED_INT, 0 if not indexed)
+ * 	28  attribute count
+ * 	32  per attribute: location, components, type (GL_FLOAT...), normalized (0/1), offset in the vertex
+ * 	then the vertex data, starting on a 16 byte boundary
+ * 	then the index data, starting on a 4 byte boundary
+ * The attribute table is what the VAO pointers are set up from, so nothing about the layout is hard-coded.
+ *
+ * Meshes built in code (like the body disc) use the same class with an ordinary direct buffer.
+ * write() saves either kind as a .omsh.
+ *
+ * @author CLLFTVTV
+ */
+public class MeshFile {
+
+
+	private static final byte[] MAGIC = {'O', 'M', 'S', 'H'};
+	private static final int VERSION = 1;
+	private static final int FIXED_HEADER_BYTES = 32;
+	private static final int ATTRIBUTE_BYTES = 20;
+
+
+	// One vertex attribute: where it goes in the shader, and where it is in the vertex
+	public static class Attribute {
+		public final int location;
+		public final int components;
+		public final int type;
+		public final boolean normalized;
+		public final int offset;
+
+		public Attribute(int location, int components, int type, boolean normalized, int offset) {
+			this.location = location;
+			this.components = components;
+			this.type = type;
+			this.normalized = normalized;
+			this.offset = offset;
+		}
+	}
+
+
+	public final int primitive;
+	public final int vertexCount;
+	public final int vertexStride;
+	public final int indexCount;
+	public final int indexType;
+	private final Attribute[] attributes;
+
+	// Straight views into the file mapping (or a direct buffer), position 0, little endian
+	private final ByteBuffer vertices;
+	private final ByteBuffer indices;
+
+
+	// A mesh from buffers built in code. vertices holds vertexCount * vertexStride bytes from its
+	// position, indices (null = not indexed) indexCount indices of indexType
+	public MeshFile(int primitive, Attribute[] attributes, int vertexStride, int vertexCount, ByteBuffer vertices,
+			int indexCount, int indexType, ByteBuffer indices) {
+		this.primitive = primitive;
+		this.attributes = attributes.clone();
+		this.vertexStride = vertexStride;
+		this.vertexCount = vertexCount;
+		this.indexCount = indices == null ? 0 : indexCount;
+		this.indexType = indices == null ? 0 : indexType;
+		this.vertices = slice(vertices, vertexCount * vertexStride);
+		this.indices = indices == null ? null : slice(indices, indexCount * indexSize(indexType));
+		for (Attribute a : attributes) {
+			if (a.offset < 0 || a.offset + a.components * typeSize(a.type) > vertexStride) {
+				throw new IllegalArgumentException("Attribute " + a.location + " doesn't fit in a " + vertexStride + " byte vertex");
+			}
+		}
+	}
+
+
+	// Map a .omsh file. Nothing is read yet: the pages are loaded when glBufferData touches them.
+	// The mapping stays valid after the channel is closed, and goes away when this is garbage collected
+	public static MeshFile open(Path path) throws IOException {
+		ByteBuffer file;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		String name = path.getFileName().toString();
+		if (file.limit() < FIXED_HEADER_BYTES) throw new IOException(name + ": too short for a mesh file");
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (file.get(i) != MAGIC[i]) throw new IOException(name + ": not a mesh file");
+		}
+		if (file.getInt(4) != VERSION) throw new IOException(name + ": unsupported mesh version " + file.getInt(4));
+
+		int primitive = file.getInt(8);
+		int vertexCount = file.getInt(12);
+		int vertexStride = file.getInt(16);
+		int indexCount = file.getInt(20);
+		int indexType = file.getInt(24);
+		int attributeCount = file.getInt(28);
+		if (vertexCount < 0 || vertexStride <= 0 || indexCount < 0 || attributeCount < 0) {
+			throw new IOException(name + ": corrupt header");
+		}
+
+		Attribute[] attributes = new Attribute[attributeCount];
+		int headerBytes = FIXED_HEADER_BYTES + attributeCount * ATTRIBUTE_BYTES;
+		if (file.limit() < headerBytes) throw new IOException(name + ": truncated attribute table");
+		for (int a = 0; a < attributeCount; a++) {
+			int p = FIXED_HEADER_BYTES + a * ATTRIBUTE_BYTES;
+			attributes[a] = new Attribute(file.getInt(p), file.getInt(p + 4), file.getInt(p + 8), file.getInt(p + 12) != 0, file.getInt(p + 16));
+		}
+
+		long vertexStart = align(headerBytes, 16);
+		long vertexBytes = (long) vertexCount * vertexStride;
+		long indexStart = align(vertexStart + vertexBytes, 4);
+		if (indexCount > 0 && indexType != GL3.GL_UNSIGNED_SHORT && indexType != GL3.GL_UNSIGNED_INT && indexType != GL3.GL_UNSIGNED_BYTE) {
+			throw new IOException(name + ": unknown index type 0x" + Integer.toHexString(indexType));
+		}
+		long indexBytes = indexCount == 0 ? 0 : (long) indexCount * indexSize(indexType);
+		if (indexStart + indexBytes > file.limit()) {
+			throw new IOException(name + ": truncated (" + file.limit() + " bytes, header says " + (indexStart + indexBytes) + ")");
+		}
+
+		file.position((int) vertexStart);
+		ByteBuffer vertices = file.slice();
+		ByteBuffer indices = null;
+		if (indexCount > 0) {
+			file.position((int) indexStart);
+			indices = file.slice();
+		}
+		try {
+			return new MeshFile(primitive, attributes, vertexStride, vertexCount, vertices, indexCount, indexType, indices);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(name + ": " + e.getMessage());
+		}
+	}
+
+
+	// Save as a .omsh that open() can map
+	public void write(Path path) throws IOException {
+		int headerBytes = FIXED_HEADER_BYTES + attributes.length * ATTRIBUTE_BYTES;
+		int vertexStart = align(headerBytes, 16);
+		int vertexEnd = vertexStart + vertices.limit();
+		ByteBuffer header = ByteBuffer.allocate(vertexStart).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putInt(VERSION).putInt(primitive).putInt(vertexCount).putInt(vertexStride)
+				.putInt(indexCount).putInt(indexType).putInt(attributes.length);
+		for (Attribute a : attributes) {
+			header.putInt(a.location).putInt(a.components).putInt(a.type).putInt(a.normalized ? 1 : 0).putInt(a.offset);
+		}
+		header.position(0); // The rest is padding (zeros)
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, header);
+			writeFully(channel, vertices.duplicate());
+			if (indices != null) {
+				writeFully(channel, ByteBuffer.allocate(align(vertexEnd, 4) - vertexEnd));
+				writeFully(channel, indices.duplicate());
+			}
+		}
+	}
+
+
+	// Create a VBO holding the vertices, straight from the mapping. Leaves it bound to GL_ARRAY_BUFFER
+	public int createVertexBuffer(GL3 gl) {
+		int id = genBuffer(gl);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, id);
+		gl.glBufferData(GL3.GL_ARRAY_BUFFER, vertices.limit(), vertices, GL3.GL_STATIC_DRAW);
+		return id;
+	}
+
+
+	// Create the index buffer (0 if not indexed). Call it with the VAO bound: the VAO remembers it
+	public int createIndexBuffer(GL3 gl) {
+		if (indices == null) return 0;
+		int id = genBuffer(gl);
+		gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, id);
+		gl.glBufferData(GL3.GL_ELEMENT_ARRAY_BUFFER, indices.limit(), indices, GL3.GL_STATIC_DRAW);
+		return id;
+	}
+
+
+	// Both buffers at once, { vertex, index (0 if not indexed) }, without touching GL_ELEMENT_ARRAY_BUFFER
+	// (that binding belongs to the VAO). Uploads through GL_COPY_WRITE_BUFFER instead, so it works on a
+	// context with no VAO at all, like an AssetLoader's upload context
+	public int[] createBuffers(GL3 gl) {
+		int[] ids = {genBuffer(gl), indices == null ? 0 : genBuffer(gl)};
+		gl.glBindBuffer(GL3.GL_COPY_WRITE_BUFFER, ids[0]);
+		gl.glBufferData(GL3.GL_COPY_WRITE_BUFFER, vertices.limit(), vertices, GL3.GL_STATIC_DRAW);
+		if (indices != null) {
+			gl.glBindBuffer(GL3.GL_COPY_WRITE_BUFFER, ids[1]);
+			gl.glBufferData(GL3.GL_COPY_WRITE_BUFFER, indices.limit(), indices, GL3.GL_STATIC_DRAW);
+		}
+		gl.glBindBuffer(GL3.GL_COPY_WRITE_BUFFER, 0);
+		return ids;
+	}
+
+
+	// Read every page of the mapping now, so the disk reads happen on this thread and not inside
+	// glBufferData on the GL thread. Returns a sum of the bytes read, so the reads can't be skipped
+	public int touch() {
+		int sum = 0;
+		for (int p = 0; p < vertices.limit(); p += 4096) sum += vertices.get(p);
+		if (indices != null) {
+			for (int p = 0; p < indices.limit(); p += 4096) sum += indices.get(p);
+		}
+		return sum;
+	}
+
+
+	// Point and enable every attribute in the table, reading from the VBO bound to GL_ARRAY_BUFFER
+	public void setAttributePointers(GL3 gl) {
+		for (Attribute a : attributes) {
+			gl.glVertexAttribPointer(a.location, a.components, a.type, a.normalized, vertexStride, a.offset);
+			gl.glEnableVertexAttribArray(a.location);
+		}
+	}
+
+
+	// Draw `instances` copies (the VAO with this mesh must be bound)
+	public void drawInstanced(GL3 gl, int instances) {
+		if (indices != null) {
+			gl.glDrawElementsInstanced(primitive, indexCount, indexType, 0, instances);
+		} else {
+			gl.glDrawArraysInstanced(primitive, 0, vertexCount, instances);
+		}
+	}
+
+
+	public Attribute getAttribute(int location) {
+		for (Attribute a : attributes) {
+			if (a.location == location) return a;
+		}
+		return null;
+	}
+
+
+	public int getByteSize() {
+		return vertices.limit() + (indices == null ? 0 : indices.limit());
+	}
+
+
+	private static int genBuffer(GL3 gl) {
+		IntBuffer ids = Buffers.newDirectIntBuffer(1);
+		gl.glGenBuffers(1, ids);
+		return ids.get(0);
+	}
+
+
+	// A little endian view of exactly `bytes` bytes from the buffer's position
+	private static ByteBuffer slice(ByteBuffer buffer, int bytes) {
+		ByteBuffer copy = buffer.duplicate();
+		if (copy.remaining() < bytes) {
+			throw new IllegalArgumentException("Need " + bytes + " bytes of mesh data, got " + copy.remaining());
+		}
+		copy.limit(copy.position() + bytes);
+		return copy.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+
+	private static int align(int value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+
+	private static long align(long value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+
+	private static int indexSize(int indexType) {
+		switch (indexType) {
+			case GL3.GL_UNSIGNED_SHORT:
+				return 2;
+			case GL3.GL_UNSIGNED_INT:
+				return 4;
+			case GL3.GL_UNSIGNED_BYTE:
+				return 1;
+			default:
+				throw new IllegalArgumentException("Unknown index type 0x" + Integer.toHexString(indexType));
+		}
+	}
+
+
+	private static int typeSize(int type) {
+		switch (type) {
+			case GL3.GL_BYTE:
+			case GL3.GL_UNSIGNED_BYTE:
+				return 1;
+			case GL3.GL_SHORT:
+			case GL3.GL_UNSIGNED_SHORT:
+				return 2;
+			case GL3.GL_INT:
+			case GL3.GL_UNSIGNED_INT:
+			case GL3.GL_FLOAT:
+				return 4;
+			default:
+				throw new IllegalArgumentException("Unknown attribute type 0x" + Integer.toHexString(type));
+		}
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Microbench.java
+ *
+ * A tiny benchmark harness, so timings are taken the same way every time and can be compared
+ * between commits. The same ideas as JMH, without the dependency:
+ * 	1. Warmup iterations first, thrown away, so we time the JIT compiled code and not the interpreter
+ * 	2. Then measured iterations of a fixed length. Each one reports nanoseconds per operation,
+ * 	   and the result is the median over the iterations (with the spread, to see how noisy it was)
+ * 	3. Every operation returns a long that gets folded into a volatile "sink", so the JIT can't
+ * 	   decide the work is unused and delete it
+ * The results go into a CSV file. Pass an older CSV as the baseline and anything that got
+ * slower than the tolerance is flagged as a regression.
+ *
+ * @author CLLFTVTV
+ */
+public class Microbench {
+
+
+	// One benchmarked operation. Return something computed from the work (a checksum, a count...)
+	public interface Op {
+		long run();
+	}
+
+
+	public static final class Result {
+		public final String name;
+		public final double nsPerOp; // Median over the measured iterations
+		public final double minNsPerOp;
+		public final double maxNsPerOp;
+
+		Result(String name, double nsPerOp, double minNsPerOp, double maxNsPerOp) {
+			this.name = name;
+			this.nsPerOp = nsPerOp;
+			this.minNsPerOp = minNsPerOp;
+			this.maxNsPerOp = maxNsPerOp;
+		}
+	}
+
+
+	private static volatile long sink;
+
+
+	private final int warmupIterations;
+	private final int measureIterations;
+	private final long iterationNanos;
+	private final List<Result> results = new ArrayList<>();
+
+
+	public Microbench(int warmupIterations, int measureIterations, double iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.measureIterations = measureIterations;
+		this.iterationNanos = (long) (iterationMillis * 1e6);
+	}
+
+
+	// Benchmark one operation and print the result
+	public Result run(String name, Op op) {
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(op);
+		}
+		double[] nsPerOp = new double[measureIterations];
+		for (int i = 0; i < measureIterations; i++) {
+			nsPerOp[i] = iteration(op);
+		}
+		Arrays.sort(nsPerOp);
+		Result result = new Result(name, nsPerOp[measureIterations / 2], nsPerOp[0], nsPerOp[measureIterations - 1]);
+		results.add(result);
+		System.out.printf("  %-32s %14.1f ns/op  (min %.1f, max %.1f)%n", name, result.nsPerOp, result.minNsPerOp, result.maxNsPerOp);
+		return result;
+	}
+
+
+	// Call op until iterationNanos has passed (at least once). Returns ns per call
+	private double iteration(Op op) {
+		long checksum = 0;
+		long calls = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			checksum += op.run();
+			calls++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < iterationNanos);
+		sink ^= checksum;
+		return (double) elapsed / calls;
+	}
+
+
+	public List<Result> getResults() {
+		return results;
+	}
+
+
+	// CSV: name,ns_per_op,min,max. Lines starting with # describe the machine
+	public void writeCsv(Path file) throws IOException {
+		StringBuilder out = new StringBuilder();
+		out.append("# java ").append(System.getProperty("java.version"))
+				.append(", ").append(Runtime.getRuntime().availableProcessors()).append(" cores, ")
+				.append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.arch")).append('\n');
+		out.append("name,ns_per_op,min_ns_per_op,max_ns_per_op\n");
+		for (Result r : results) {
+			out.append(String.format("%s,%.1f,%.1f,%.1f%n", r.name, r.nsPerOp, r.minNsPerOp, r.maxNsPerOp));
+		}
+		Files.write(file, out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	// name -> ns/op from a CSV written by writeCsv
+	public static Map<String, Double> readCsv(Path file) throws IOException {
+		Map<String, Double> times = new LinkedHashMap<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.isEmpty() || line.startsWith("#") || line.startsWith("name,")) continue;
+			String[] parts = line.split(",");
+			times.put(parts[0], Double.parseDouble(parts[1]));
+		}
+		return times;
+	}
+
+
+	// Print every result next to the baseline. Returns how many got slower by more than tolerance (0.1 = 10%)
+	public int compare(Map<String, Double> baseline, double tolerance) {
+		int regressions = 0;
+		System.out.println("Compared with the baseline:");
+		for (Result r : results) {
+			Double before = baseline.get(r.name);
+			if (before == null) {
+				System.out.printf("  %-32s %14.1f ns/op  (new)%n", r.name, r.nsPerOp);
+				continue;
+			}
+			double change = r.nsPerOp / before - 1.0;
+			boolean regressed = change > tolerance;
+			if (regressed) regressions++;
+			System.out.printf("  %-32s %14.1f ns/op  was %.1f  %+6.1f%%%s%n",
+					r.name, r.nsPerOp, before, change * 100.0, regressed ? "  REGRESSION" : "");
+		}
+		return regressions;
+	}
+}
@@ -0,0 +1,580 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLException;
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.FloatBuffer;
+
+/**
+ * ParticleSystem.java
+ *
+ * Comet tails: tens of thousands of dust and gas particles, moved on the GPU.
+ *
+ * Moving them on the CPU would mean uploading every particle again every frame (131k particles is
+ * 4 MB a frame, 250 MB/s at 60 fps). Instead the particles live in two buffers on the GPU, and a
+ * vertex shader with transform feedback reads one and writes the next frame into the other
+ * ("ping-pong"), with GL_RASTERIZER_DISCARD so nothing is drawn while it does. Then the buffer just
+ * written is drawn as point sprites. The only thing uploaded per frame is a few uniforms: the time
+ * step, the Sun, and where the emitters (the comets) are.
+ *
+ * A particle is 8 floats: position + age, velocity + lifetime (days). When its age passes its
+ * lifetime it's reborn at a random emitter, with a small random offset and velocity, and a new
+ * lifetime. With no emitter active it waits out another lifetime with a negative lifetime (not
+ * drawn), so the particles keep being born at a steady rate instead of all at once. The random
+ * numbers are an integer hash of the particle number and the frame, so there's no state to keep.
+ * Each particle also has a fixed beta (the push of sunlight relative to the Sun's pull): low beta
+ * dust trails behind along the orbit, high beta gas is blown straight away from the Sun.
+ *
+ * Mode.CPU runs exactly the same update in Java and uploads the result, for drivers without
+ * transform feedback (or to compare with). setVerify() makes the GPU mode run both every so many
+ * frames from the same state, read the GPU's result back, and keep the biggest difference, so the
+ * shader can be checked against the Java on any driver (llvmpipe included). It stalls the GPU, so
+ * it's for testing only.
+ *
+ * @author CLLFTVTV
+ */
+public class ParticleSystem {
+
+
+	public enum Mode {
+		GPU, // Transform feedback
+		CPU  // Java, uploaded every frame
+	}
+
+
+	// A mode setting (Settings.PARTICLES) as a Mode, or null for off
+	public static Mode parseMode(String setting) {
+		if (setting.equalsIgnoreCase("off")) return null;
+		return Mode.valueOf(setting.toUpperCase());
+	}
+
+
+	// A particle: x, y, z, age, vx, vy, vz, lifetime
+	static final int FLOATS_PER_PARTICLE = 8;
+	static final int STRIDE = FLOATS_PER_PARTICLE * Buffers.SIZEOF_FLOAT;
+
+	// Comets that can emit at once (a uniform array each for positions and velocities)
+	public static final int MAX_EMITTERS = 16;
+
+	// Comets only outgas this close to the Sun (AU)
+	public static final double EMIT_DISTANCE_AU = 3.0;
+
+	// The particles. Lifetimes in days, beta between BETA_MIN and BETA_MIN + BETA_SPAN (most near the low end)
+	static final float LIFE_MIN = 5.0f, LIFE_SPAN = 35.0f;
+	static final float BETA_MIN = 0.3f, BETA_SPAN = 8.0f;
+	static final float COMA_AU = 2e-4f; // Born up to this far from the comet
+	static final float EJECT_SPEED = 5e-4f; // And up to this fast away from it (AU / day, about 1 km/s)
+	static final float MIN_DISTANCE2 = 1e-4f; // Closer than 0.01 AU to the Sun, the pull stops growing
+	static final float GM_SUN = (float) BodySystem.G;
+
+	// A long pause (or a breakpoint) doesn't throw the particles across the solar system
+	private static final double MAX_STEP_DAYS = 1.0;
+
+	private static final float POINT_PIXELS = 2.5f;
+
+
+	// The random numbers: lowbias32, the same integer hash in GLSL and Java
+	private static final String HASH =
+			"uint hash(uint x) {\n" +
+			"	x ^= x >> 16u;\n" +
+			"	x *= 0x7FEB352Du;\n" +
+			"	x ^= x >> 15u;\n" +
+			"	x *= 0x846CA68Bu;\n" +
+			"	x ^= x >> 16u;\n" +
+			"	return x;\n" +
+			"}\n" +
+			"float random(uint x) {\n" + // 0 .. 1, 24 bits (exactly representable, same in Java)
+			"	return float(hash(x) >> 8u) / 16777216.0;\n" +
+			"}\n" +
+			"float beta(uint id) {\n" +
+			"	float b = random(id ^ 0x5BD1E995u);\n" +
+			"	return " + BETA_MIN + " + " + BETA_SPAN + " * b * b;\n" +
+			"}\n";
+
+	// One step of every particle. Must stay in step with step() below, operation for operation
+	private static final String UPDATE_SHADER =
+			"#version 330 core\n" +
+			"layout (location = 0) in vec4 aPosAge;\n" +
+			"layout (location = 1) in vec4 aVelLife;\n" +
+			"uniform float uDt;\n" + // Days
+			"uniform uint uSeed;\n" + // A new one every frame
+			"uniform int uEmitterCount;\n" +
+			"uniform vec3 uEmitterPos[" + MAX_EMITTERS + "];\n" +
+			"uniform vec3 uEmitterVel[" + MAX_EMITTERS + "];\n" +
+			"uniform vec3 uSun;\n" +
+			"out vec4 outPosAge;\n" +
+			"out vec4 outVelLife;\n" +
+			HASH +
+			"void main() {\n" +
+			"	uint id = uint(gl_VertexID);\n" +
+			"	vec3 p = aPosAge.xyz;\n" +
+			"	vec3 v = aVelLife.xyz;\n" +
+			"	float age = aPosAge.w + uDt;\n" +
+			"	float life = aVelLife.w;\n" +
+			"	if (age >= abs(life)) {\n" + // Reborn
+			"		age -= abs(life);\n" +
+			"		uint r = hash(id ^ uSeed);\n" +
+			"		life = " + LIFE_MIN + " + " + LIFE_SPAN + " * random(r + 1u);\n" +
+			"		if (uEmitterCount > 0) {\n" +
+			"			int e = int(hash(r + 2u) % uint(uEmitterCount));\n" +
+			"			vec3 d = vec3(random(r + 3u), random(r + 4u), random(r + 5u)) * 2.0 - 1.0;\n" +
+			"			vec3 s = vec3(random(r + 6u), random(r + 7u), random(r + 8u)) * 2.0 - 1.0;\n" +
+			"			p = uEmitterPos[e] + d * " + COMA_AU + ";\n" +
+			"			v = uEmitterVel[e] + s * " + EJECT_SPEED + ";\n" +
+			"		} else {\n" +
+			"			life = -life;\n" + // Nothing to come out of: sit this one out
+			"		}\n" +
+			"	} else if (life > 0.0) {\n" + // Alive: gravity minus light pressure, so (1 - beta) of the Sun's pull
+			"		vec3 r = p - uSun;\n" +
+			"		float r2 = max(dot(r, r), " + MIN_DISTANCE2 + ");\n" +
+			"		float k = " + GM_SUN + " * (beta(id) - 1.0) / (r2 * sqrt(r2));\n" +
+			"		v += r * k * uDt;\n" +
+			"		p += v * uDt;\n" +
+			"	}\n" +
+			"	outPosAge = vec4(p, age);\n" +
+			"	outVelLife = vec4(v, life);\n" +
+			"}\n";
+
+	// Point sprites, fading out with age. Dust (low beta) yellowish, gas (high beta) blue
+	private static final String DRAW_VERTEX_SHADER =
+			"#version 330 core\n" +
+			"layout (location = 0) in vec4 aPosAge;\n" +
+			"layout (location = 1) in vec4 aVelLife;\n" +
+			"uniform mat4 uView;\n" +
+			"uniform mat4 uProjection;\n" +
+			"uniform float uPointSize;\n" +
+			"out vec4 vColor;\n" +
+			HASH +
+			"void main() {\n" +
+			"	float age = aPosAge.w, life = aVelLife.w;\n" +
+			"	if (life <= 0.0 || age < 0.0) {\n" + // Not born, or waiting: outside the clip volume, so not drawn
+			"		gl_Position = vec4(2.0, 2.0, 2.0, 1.0);\n" +
+			"		gl_PointSize = 1.0;\n" +
+			"		vColor = vec4(0.0);\n" +
+			"		return;\n" +
+			"	}\n" +
+			"	float b = (beta(uint(gl_VertexID)) - " + BETA_MIN + ") / " + BETA_SPAN + ";\n" +
+			"	vColor = vec4(mix(vec3(0.95, 0.85, 0.6), vec3(0.5, 0.75, 1.0), sqrt(b)), 0.6 * (1.0 - age / life));\n" +
+			"	gl_Position = uProjection * uView * vec4(aPosAge.xyz, 1.0);\n" +
+			"	gl_PointSize = uPointSize;\n" +
+			"}\n";
+
+	private static final String DRAW_FRAGMENT_SHADER =
+			"#version 330 core\n" +
+			"in vec4 vColor;\n" +
+			"out vec4 FragColor;\n" +
+			"void main() {\n" +
+			"	vec2 c = gl_PointCoord * 2.0 - 1.0;\n" +
+			"	float d = dot(c, c);\n" +
+			"	if (d > 1.0) discard;\n" + // Round, soft edged
+			"	FragColor = vec4(vColor.rgb, vColor.a * (1.0 - d));\n" +
+			"}\n";
+
+
+	private final int capacity;
+	private Mode mode;
+
+	// The CPU's copy of the particles: the particles themselves in CPU mode, the reference when verifying
+	private final float[] state;
+	private final FloatBuffer transfer; // Uploads and read backs
+
+	// Two buffers and a VAO reading each. current = the one holding this frame's particles
+	private int updateProgramID;
+	private int drawProgramID;
+	private final int[] bufferIDs = new int[2];
+	private final int[] vaoIDs = new int[2];
+	private int current;
+
+	private int dtLocation, seedLocation, emitterCountLocation, emitterPosLocation, emitterVelLocation, sunLocation;
+	private int viewLocation, projectionLocation, pointSizeLocation;
+
+	// The emitters: body indices, their positions last frame (for their velocity), and this frame's active ones
+	private int[] emitters = new int[0];
+	private float[] lastEmitterPos = new float[0];
+	private boolean haveLastEmitterPos;
+	private final float[] emitterPos = new float[3 * MAX_EMITTERS];
+	private final float[] emitterVel = new float[3 * MAX_EMITTERS];
+	private int emitterCount;
+	private float sunX, sunY, sunZ;
+
+	// This frame's step
+	private int frame;
+	private int seed;
+	private float dt;
+
+	// View settings, set from reshape()
+	private final float[] view = new Mat4().m;
+	private final float[] projection = new Mat4().m;
+	private final RenderQueue.Drawer drawer = (gl, glState, arg) -> drawParticles(gl);
+
+	// Checking the GPU against the CPU: every verifyEvery frames (0 = never)
+	private int verifyEvery;
+	private float[] verifyState;
+	private int checks;
+	private float maxError;
+	private long mismatches;
+
+
+	public ParticleSystem(int capacity, Mode mode) {
+		this.capacity = capacity;
+		this.mode = mode;
+		this.state = new float[capacity * FLOATS_PER_PARTICLE];
+		this.transfer = Buffers.newDirectFloatBuffer(state.length);
+		initialState(state, capacity);
+	}
+
+
+	// Everyone starts unborn (lifetime 0), due at a random time in the first LIFE_MIN + LIFE_SPAN days,
+	// so they come out as a steady stream
+	static void initialState(float[] state, int count) {
+		for (int i = 0; i < count; i++) {
+			int o = i * FLOATS_PER_PARTICLE;
+			for (int k = 0; k < FLOATS_PER_PARTICLE; k++) state[o + k] = 0.0f;
+			state[o + 3] = -(LIFE_MIN + LIFE_SPAN) * random(i ^ 0x2545F491);
+		}
+	}
+
+
+	// The bodies particles come out of (the comets). They only emit within EMIT_DISTANCE_AU of the Sun (body 0)
+	public void setEmitters(int[] bodies) {
+		emitters = bodies.clone();
+		lastEmitterPos = new float[3 * bodies.length];
+		haveLastEmitterPos = false;
+	}
+
+
+	// Compare the GPU with the CPU every this many frames (0 = off). Reads the particles back, so it's slow
+	public void setVerify(int everyFrames) {
+		verifyEvery = everyFrames;
+	}
+
+
+	// Build the programs and both buffers. Needs a current GL context.
+	// If the transform feedback program won't build, falls back to Mode.CPU
+	public void init(GL3 gl) {
+		drawProgramID = buildProgram(gl, DRAW_VERTEX_SHADER, DRAW_FRAGMENT_SHADER);
+		viewLocation = gl.glGetUniformLocation(drawProgramID, "uView");
+		projectionLocation = gl.glGetUniformLocation(drawProgramID, "uProjection");
+		pointSizeLocation = gl.glGetUniformLocation(drawProgramID, "uPointSize");
+
+		if (mode == Mode.GPU) {
+			try {
+				updateProgramID = buildProgram(gl, UPDATE_SHADER, null, "outPosAge", "outVelLife");
+				dtLocation = gl.glGetUniformLocation(updateProgramID, "uDt");
+				seedLocation = gl.glGetUniformLocation(updateProgramID, "uSeed");
+				emitterCountLocation = gl.glGetUniformLocation(updateProgramID, "uEmitterCount");
+				emitterPosLocation = gl.glGetUniformLocation(updateProgramID, "uEmitterPos");
+				emitterVelLocation = gl.glGetUniformLocation(updateProgramID, "uEmitterVel");
+				sunLocation = gl.glGetUniformLocation(updateProgramID, "uSun");
+			} catch (GLException e) {
+				System.err.println("Particles: no transform feedback (" + e.getMessage().trim() + "), moving them on the CPU");
+				mode = Mode.CPU;
+			}
+		}
+
+		// Both buffers start with the initial particles. On the GPU they're only ever copied between
+		// each other (DYNAMIC_COPY), on the CPU they're rewritten every frame
+		transfer.clear();
+		transfer.put(state).flip();
+		gl.glGenBuffers(2, bufferIDs, 0);
+		gl.glGenVertexArrays(2, vaoIDs, 0);
+		for (int k = 0; k < 2; k++) {
+			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, bufferIDs[k]);
+			gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) capacity * STRIDE, transfer, mode == Mode.GPU ? GL3.GL_DYNAMIC_COPY : GL3.GL_STREAM_DRAW);
+
+			// The same layout for updating and drawing
+			gl.glBindVertexArray(vaoIDs[k]);
+			gl.glEnableVertexAttribArray(0);
+			gl.glVertexAttribPointer(0, 4, GL3.GL_FLOAT, false, STRIDE, 0);
+			gl.glEnableVertexAttribArray(1);
+			gl.glVertexAttribPointer(1, 4, GL3.GL_FLOAT, false, STRIDE, 4 * Buffers.SIZEOF_FLOAT);
+		}
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+	}
+
+
+	// fragment null = a transform feedback only program, capturing these outputs
+	private static int buildProgram(GL3 gl, String vertex, String fragment, String... feedbackVaryings) {
+		int vertexShader = Shaders.compileShader(gl, GL3.GL_VERTEX_SHADER, vertex);
+		int fragmentShader = 0;
+		try {
+			if (fragment != null) {
+				fragmentShader = Shaders.compileShader(gl, GL3.GL_FRAGMENT_SHADER, fragment);
+			}
+			return feedbackVaryings.length > 0
+					? Shaders.linkProgram(gl, vertexShader, fragmentShader, feedbackVaryings)
+					: Shaders.linkProgram(gl, vertexShader, fragmentShader);
+		} finally {
+			// The program keeps what it needs
+			gl.glDeleteShader(vertexShader);
+			if (fragmentShader != 0) gl.glDeleteShader(fragmentShader);
+		}
+	}
+
+
+	// Set the camera. The matrices are copied
+	public void setView(Mat4 view, Mat4 projection) {
+		view.get(this.view, 0);
+		projection.get(this.projection, 0);
+	}
+
+
+	// Move every particle on by dtDays of simulated time, emitting from where the snapshot has the emitters
+	public void update(GL3 gl, StateSnapshot s, double dtDays) {
+		if (dtDays <= 0.0) return; // The same snapshot as last frame: nothing moved
+		prepare(s, dtDays);
+
+		if (mode == Mode.CPU) {
+			step(state, 0, capacity);
+			transfer.clear();
+			transfer.put(state).flip();
+			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, bufferIDs[current]);
+			gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) capacity * STRIDE, transfer, GL3.GL_STREAM_DRAW); // A new store, so no waiting for the last draw
+			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+			return;
+		}
+
+		boolean check = verifyEvery > 0 && frame % verifyEvery == 0;
+		if (check) {
+			readBack(gl, bufferIDs[current], state);
+			step(state, 0, capacity);
+		}
+
+		// current -> the other buffer, nothing rasterized
+		gl.glUseProgram(updateProgramID);
+		gl.glUniform1f(dtLocation, dt);
+		gl.glUniform1ui(seedLocation, seed);
+		gl.glUniform1i(emitterCountLocation, emitterCount);
+		if (emitterCount > 0) {
+			gl.glUniform3fv(emitterPosLocation, emitterCount, emitterPos, 0);
+			gl.glUniform3fv(emitterVelLocation, emitterCount, emitterVel, 0);
+		}
+		gl.glUniform3f(sunLocation, sunX, sunY, sunZ);
+		gl.glBindVertexArray(vaoIDs[current]);
+		gl.glBindBufferBase(GL3.GL_TRANSFORM_FEEDBACK_BUFFER, 0, bufferIDs[current ^ 1]);
+		gl.glEnable(GL3.GL_RASTERIZER_DISCARD);
+		gl.glBeginTransformFeedback(GL3.GL_POINTS);
+		gl.glDrawArrays(GL3.GL_POINTS, 0, capacity);
+		gl.glEndTransformFeedback();
+		gl.glDisable(GL3.GL_RASTERIZER_DISCARD);
+		gl.glBindBufferBase(GL3.GL_TRANSFORM_FEEDBACK_BUFFER, 0, 0);
+		gl.glBindVertexArray(0);
+		gl.glUseProgram(0);
+		current ^= 1;
+
+		if (check) {
+			if (verifyState == null) verifyState = new float[state.length];
+			readBack(gl, bufferIDs[current], verifyState);
+			compare(state, verifyState);
+		}
+	}
+
+
+	// The CPU path without any GL: what Mode.CPU does every frame before uploading. Used by the benchmarks
+	void simulate(StateSnapshot s, double dtDays) {
+		if (dtDays <= 0.0) return;
+		prepare(s, dtDays);
+		step(state, 0, capacity);
+	}
+
+
+	// This frame's step, seed, Sun and active emitters (with velocities from how far they moved since last frame)
+	private void prepare(StateSnapshot s, double dtDays) {
+		dt = (float) Math.min(dtDays, MAX_STEP_DAYS);
+		seed = hash(++frame);
+		sunX = s.curX[0];
+		sunY = s.curY[0];
+		sunZ = s.curZ[0];
+
+		emitterCount = 0;
+		for (int k = 0; k < emitters.length; k++) {
+			int i = emitters[k];
+			if (i >= s.count) continue; // Gone (merged away)
+			float x = s.curX[i], y = s.curY[i], z = s.curZ[i];
+			float vx = (float) ((x - lastEmitterPos[3 * k]) / dtDays);
+			float vy = (float) ((y - lastEmitterPos[3 * k + 1]) / dtDays);
+			float vz = (float) ((z - lastEmitterPos[3 * k + 2]) / dtDays);
+			lastEmitterPos[3 * k] = x;
+			lastEmitterPos[3 * k + 1] = y;
+			lastEmitterPos[3 * k + 2] = z;
+
+			// Not on the first frame: its velocity isn't known yet
+			double dx = x - sunX, dy = y - sunY, dz = z - sunZ;
+			if (haveLastEmitterPos && emitterCount < MAX_EMITTERS && dx * dx + dy * dy + dz * dz < EMIT_DISTANCE_AU * EMIT_DISTANCE_AU) {
+				int e = 3 * emitterCount++;
+				emitterPos[e] = x;
+				emitterPos[e + 1] = y;
+				emitterPos[e + 2] = z;
+				emitterVel[e] = vx;
+				emitterVel[e + 1] = vy;
+				emitterVel[e + 2] = vz;
+			}
+		}
+		haveLastEmitterPos = true;
+	}
+
+
+	// UPDATE_SHADER in Java, for particles [from, to). Floats throughout, in the shader's order,
+	// so the results agree to the last bit or two (drivers may fuse a multiply and add)
+	void step(float[] state, int from, int to) {
+		final float dt = this.dt;
+		for (int id = from; id < to; id++) {
+			int o = id * FLOATS_PER_PARTICLE;
+			float age = state[o + 3] + dt;
+			float life = state[o + 7];
+			if (age >= Math.abs(life)) {
+				age -= Math.abs(life);
+				int r = hash(id ^ seed);
+				life = LIFE_MIN + LIFE_SPAN * random(r + 1);
+				if (emitterCount > 0) {
+					int e = 3 * Integer.remainderUnsigned(hash(r + 2), emitterCount);
+					state[o] = emitterPos[e] + (random(r + 3) * 2.0f - 1.0f) * COMA_AU;
+					state[o + 1] = emitterPos[e + 1] + (random(r + 4) * 2.0f - 1.0f) * COMA_AU;
+					state[o + 2] = emitterPos[e + 2] + (random(r + 5) * 2.0f - 1.0f) * COMA_AU;
+					state[o + 4] = emitterVel[e] + (random(r + 6) * 2.0f - 1.0f) * EJECT_SPEED;
+					state[o + 5] = emitterVel[e + 1] + (random(r + 7) * 2.0f - 1.0f) * EJECT_SPEED;
+					state[o + 6] = emitterVel[e + 2] + (random(r + 8) * 2.0f - 1.0f) * EJECT_SPEED;
+				} else {
+					life = -life;
+				}
+			} else if (life > 0.0f) {
+				float rx = state[o] - sunX, ry = state[o + 1] - sunY, rz = state[o + 2] - sunZ;
+				float r2 = Math.max(rx * rx + ry * ry + rz * rz, MIN_DISTANCE2);
+				float k = GM_SUN * (beta(id) - 1.0f) / (r2 * (float) Math.sqrt(r2));
+				float vx = state[o + 4] + rx * k * dt;
+				float vy = state[o + 5] + ry * k * dt;
+				float vz = state[o + 6] + rz * k * dt;
+				state[o] += vx * dt;
+				state[o + 1] += vy * dt;
+				state[o + 2] += vz * dt;
+				state[o + 4] = vx;
+				state[o + 5] = vy;
+				state[o + 6] = vz;
+			}
+			state[o + 3] = age;
+			state[o + 7] = life;
+		}
+	}
+
+
+	// The same hash as the shaders'
+	static int hash(int x) {
+		x ^= x >>> 16;
+		x *= 0x7FEB352D;
+		x ^= x >>> 15;
+		x *= 0x846CA68B;
+		x ^= x >>> 16;
+		return x;
+	}
+
+
+	static float random(int x) {
+		return (hash(x) >>> 8) / 16777216.0f;
+	}
+
+
+	static float beta(int id) {
+		float b = random(id ^ 0x5BD1E995);
+		return BETA_MIN + BETA_SPAN * b * b;
+	}
+
+
+	private void readBack(GL3 gl, int bufferID, float[] out) {
+		transfer.clear();
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, bufferID);
+		gl.glGetBufferSubData(GL3.GL_ARRAY_BUFFER, 0, (long) capacity * STRIDE, transfer);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		transfer.get(out, 0, out.length);
+	}
+
+
+	// Keep the worst position difference of the particles both sides have alive,
+	// and count the ones only one side has alive
+	private void compare(float[] cpu, float[] gpu) {
+		for (int o = 0; o < cpu.length; o += FLOATS_PER_PARTICLE) {
+			boolean cpuAlive = cpu[o + 7] > 0.0f && cpu[o + 3] >= 0.0f;
+			boolean gpuAlive = gpu[o + 7] > 0.0f && gpu[o + 3] >= 0.0f;
+			if (cpuAlive != gpuAlive) {
+				mismatches++;
+			} else if (cpuAlive) {
+				for (int k = 0; k < 3; k++) {
+					maxError = Math.max(maxError, Math.abs(cpu[o + k] - gpu[o + k]));
+				}
+			}
+		}
+		checks++;
+	}
+
+
+	// Queue the draw of the particles (transparent, after the bodies)
+	public void submit(GL3 gl, RenderQueue queue) {
+		queue.submit(RenderQueue.LAYER_TRANSPARENT, drawProgramID, vaoIDs[current], 0, 0.0f, drawer, 0);
+	}
+
+
+	// Called by the queue, with the program, the VAO of the current buffer, and blending set
+	private void drawParticles(GL3 gl) {
+		gl.glUniformMatrix4fv(viewLocation, 1, false, view, 0);
+		gl.glUniformMatrix4fv(projectionLocation, 1, false, projection, 0);
+		gl.glUniform1f(pointSizeLocation, POINT_PIXELS);
+		gl.glEnable(GL3.GL_PROGRAM_POINT_SIZE);
+		gl.glDrawArrays(GL3.GL_POINTS, 0, capacity);
+		gl.glDisable(GL3.GL_PROGRAM_POINT_SIZE);
+	}
+
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+
+	// GPU, or CPU if asked for or the GPU path couldn't be built
+	public Mode getMode() {
+		return mode;
+	}
+
+
+	// Particles alive in the CPU's copy (in GPU mode that's only as fresh as the last check)
+	public int countAlive() {
+		int alive = 0;
+		for (int o = 0; o < state.length; o += FLOATS_PER_PARTICLE) {
+			if (state[o + 7] > 0.0f && state[o + 3] >= 0.0f) alive++;
+		}
+		return alive;
+	}
+
+
+	float[] getState() {
+		return state;
+	}
+
+
+	int getActiveEmitters() {
+		return emitterCount;
+	}
+
+
+	// GPU vs CPU checks done, the biggest position difference seen (AU), and particles that were alive on one side only
+	public int getChecks() {
+		return checks;
+	}
+
+
+	public float getMaxError() {
+		return maxError;
+	}
+
+
+	public long getMismatches() {
+		return mismatches;
+	}
+
+
+	// Free the GPU objects
+	public void dispose(GL3 gl) {
+		if (updateProgramID != 0) gl.glDeleteProgram(updateProgramID);
+		gl.glDeleteProgram(drawProgramID);
+		gl.glDeleteBuffers(2, bufferIDs, 0);
+		gl.glDeleteVertexArrays(2, vaoIDs, 0);
+	}
+}
@@ -0,0 +1,155 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * PhysicsPool.java
+ *
+ * Spreads the physics loops over all the CPU cores with a ForkJoinPool.
+ *
+ * The work is always cut into the same fixed size chunks (CHUNK bodies each), no matter how many
+ * threads there are. Each chunk only writes to its own bodies, and sums are added up chunk by chunk
+ * in chunk order at the end. So the floating point math happens in exactly the same order with
+ * 1 thread or 64 threads, and the results are bit-for-bit identical. Threads only change how fast.
+ *
+ * The chunk tasks are created once and reused every step, so stepping doesn't allocate.
+ *
+ * @author CLLFTVTV
+ */
+public class PhysicsPool {
+
+
+	// Bodies per chunk. Fixed, because changing it would change the order of the sums
+	public static final int CHUNK = 1024;
+
+
+	// A loop body over bodies [from, to)
+	public interface Range {
+		void run(int from, int to);
+	}
+
+
+	// A loop body over bodies [from, to) that returns a partial sum
+	public interface RangeSum {
+		double sum(int from, int to);
+	}
+
+
+	private final int threads;
+	private final ForkJoinPool pool; // null when running on one thread
+
+	// Reused tasks: one per chunk, plus the root that forks them
+	private Chunk[] chunks = new Chunk[0];
+	private double[] partials = new double[0];
+	private final Root root = new Root();
+
+
+	public PhysicsPool(int threads) {
+		this.threads = Math.max(1, threads);
+		this.pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+	}
+
+
+	public int getThreads() {
+		return threads;
+	}
+
+
+	// Run task over [0, n) in chunks
+	public void run(int n, Range task) {
+		int count = chunkCount(n);
+		if (pool == null || count <= 1) {
+			for (int c = 0; c < count; c++) {
+				task.run(c * CHUNK, Math.min(n, (c + 1) * CHUNK));
+			}
+			return;
+		}
+		prepare(n, count, task, null);
+		pool.invoke(root);
+	}
+
+
+	// Sum task over [0, n). Chunks are added in chunk order, whatever order they finished in
+	public double sum(int n, RangeSum task) {
+		int count = chunkCount(n);
+		if (pool == null || count <= 1) {
+			double total = 0.0;
+			for (int c = 0; c < count; c++) {
+				total += task.sum(c * CHUNK, Math.min(n, (c + 1) * CHUNK));
+			}
+			return total;
+		}
+		prepare(n, count, null, task);
+		pool.invoke(root);
+		double total = 0.0;
+		for (int c = 0; c < count; c++) {
+			total += partials[c];
+		}
+		return total;
+	}
+
+
+	// Stop the worker threads
+	public void shutdown() {
+		if (pool != null) pool.shutdown();
+	}
+
+
+	private static int chunkCount(int n) {
+		return (n + CHUNK - 1) / CHUNK;
+	}
+
+
+	private void prepare(int n, int count, Range range, RangeSum sum) {
+		if (chunks.length < count) {
+			// Only grows when there are more bodies than ever before
+			Chunk[] grown = new Chunk[count];
+			System.arraycopy(chunks, 0, grown, 0, chunks.length);
+			for (int c = chunks.length; c < count; c++) grown[c] = new Chunk();
+			chunks = grown;
+			partials = new double[count];
+		}
+		for (int c = 0; c < count; c++) {
+			Chunk chunk = chunks[c];
+			chunk.reinitialize();
+			chunk.range = range;
+			chunk.sum = sum;
+			chunk.index = c;
+			chunk.from = c * CHUNK;
+			chunk.to = Math.min(n, (c + 1) * CHUNK);
+		}
+		root.reinitialize();
+		root.count = count;
+	}
+
+
+	// Forks every chunk, runs the first one itself, then waits for the rest.
+	// (RecursiveAction is Serializable, but these never leave the pool)
+	@SuppressWarnings("serial")
+	private final class Root extends RecursiveAction {
+		int count;
+
+		@Override
+		protected void compute() {
+			for (int c = 1; c < count; c++) chunks[c].fork();
+			chunks[0].compute();
+			for (int c = 1; c < count; c++) chunks[c].join();
+		}
+	}
+
+
+	@SuppressWarnings("serial")
+	private final class Chunk extends RecursiveAction {
+		Range range;
+		RangeSum sum;
+		int index, from, to;
+
+		@Override
+		protected void compute() {
+			if (range != null) {
+				range.run(from, to);
+			} else {
+				partials[index] = sum.sum(from, to);
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.FloatBuffer;
+
+/**
+ * ProfilerOverlay.java
+ *
+ * Draws the FrameProfiler's numbers as bars in the top left corner. No text (that needs a font),
+ * just one row per phase, top to bottom: simulate, upload, draw, swap, gpu.
+ * 	The filled bar is the median (p50) time, the thin white tick is the p99.
+ * 	The whole row is BAR_FULL_MS wide, and the yellow line marks one 60 fps frame (16.7 ms).
+ * Exact numbers are over JMX, or printed at shutdown.
+ *
+ * @author CLLFTVTV
+ */
+public class ProfilerOverlay {
+
+
+	// A full bar is this many milliseconds
+	private static final float BAR_FULL_MS = 33.3f;
+	private static final float FRAME_BUDGET_MS = 1000.0f / 60.0f;
+
+	// Size and position, in screen units (-1..1)
+	private static final float LEFT = -0.98f, TOP = 0.96f;
+	private static final float WIDTH = 0.6f, ROW_HEIGHT = 0.035f, ROW_GAP = 0.012f;
+
+	// Rows, and the histogram each one shows
+	private static final int[] ROWS = {
+			FrameProfiler.Phase.SIMULATE.ordinal(), FrameProfiler.Phase.UPLOAD.ordinal(),
+			FrameProfiler.Phase.DRAW.ordinal(), FrameProfiler.Phase.SWAP.ordinal(), FrameProfiler.GPU };
+	private static final int[] ROW_COLORS = { 0x4FC3F7FF, 0x81C784FF, 0xFFB74DFF, 0xBA68C8FF, 0xE57373FF };
+
+	// Per vertex: x, y, r, g, b, a
+	private static final int FLOATS_PER_VERTEX = 6;
+	private static final int VERTICES_PER_RECT = 6;
+	private static final int MAX_RECTS = ROWS.length * 3 + 1;
+
+
+	private static final String VERTEX_SHADER =
+			"#version 330 core\n" +
+			"layout (location = 0) in vec2 aPos;\n" +
+			"layout (location = 1) in vec4 aColor;\n" +
+			"out vec4 vColor;\n" +
+			"void main() {\n" +
+			"	gl_Position = vec4(aPos, 0.0, 1.0);\n" +
+			"	vColor = aColor;\n" +
+			"}\n";
+
+	private static final String FRAGMENT_SHADER =
+			"#version 330 core\n" +
+			"in vec4 vColor;\n" +
+			"out vec4 FragColor;\n" +
+			"void main() {\n" +
+			"	FragColor = vColor;\n" +
+			"}\n";
+
+	public static final ShaderCache.ProgramSource PROGRAM = new ShaderCache.ProgramSource("overlay", VERTEX_SHADER, FRAGMENT_SHADER);
+
+
+	private int shaderProgramID;
+	private int vaoID;
+	private int vboID;
+	private final RenderQueue.Drawer drawer = (gl, state, vertexCount) -> gl.glDrawArrays(GL3.GL_TRIANGLES, 0, vertexCount);
+
+	// Rebuilt every frame, allocated once
+	private final FloatBuffer vertices = Buffers.newDirectFloatBuffer(MAX_RECTS * VERTICES_PER_RECT * FLOATS_PER_VERTEX);
+	private int rects;
+
+
+	public void init(GL3 gl, int program) {
+		shaderProgramID = program;
+
+		int[] ids = new int[1];
+		gl.glGenBuffers(1, ids, 0);
+		vboID = ids[0];
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vboID);
+		gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) vertices.capacity() * Buffers.SIZEOF_FLOAT, null, GL3.GL_STREAM_DRAW);
+
+		gl.glGenVertexArrays(1, ids, 0);
+		vaoID = ids[0];
+		gl.glBindVertexArray(vaoID);
+		int stride = FLOATS_PER_VERTEX * Buffers.SIZEOF_FLOAT;
+		gl.glVertexAttribPointer(0, 2, GL3.GL_FLOAT, false, stride, 0);
+		gl.glEnableVertexAttribArray(0);
+		gl.glVertexAttribPointer(1, 4, GL3.GL_FLOAT, false, stride, 2 * Buffers.SIZEOF_FLOAT);
+		gl.glEnableVertexAttribArray(1);
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+	}
+
+
+	// Build this frame's bars and queue them (drawn blended, on top of everything)
+	public void submit(GL3 gl, RenderQueue queue, FrameProfiler profiler) {
+		vertices.clear();
+		rects = 0;
+
+		float scale = WIDTH / BAR_FULL_MS;
+		for (int row = 0; row < ROWS.length; row++) {
+			Histogram h = profiler.getHistogram(ROWS[row]);
+			float top = TOP - row * (ROW_HEIGHT + ROW_GAP);
+			float bottom = top - ROW_HEIGHT;
+			float p50 = Math.min(BAR_FULL_MS, h.percentile(0.50) / 1e6f);
+			float p99 = Math.min(BAR_FULL_MS, h.percentile(0.99) / 1e6f);
+
+			rect(LEFT, bottom, LEFT + WIDTH, top, 0x00000099); // Background
+			rect(LEFT, bottom, LEFT + p50 * scale, top, ROW_COLORS[row]);
+			rect(LEFT + p99 * scale - 0.003f, bottom, LEFT + p99 * scale, top, 0xFFFFFFFF);
+		}
+		float budgetX = LEFT + FRAME_BUDGET_MS * scale;
+		float bottom = TOP - ROWS.length * (ROW_HEIGHT + ROW_GAP) + ROW_GAP;
+		rect(budgetX - 0.002f, bottom, budgetX + 0.002f, TOP, 0xFFEB3BFF);
+		vertices.flip();
+
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vboID);
+		gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) vertices.capacity() * Buffers.SIZEOF_FLOAT, null, GL3.GL_STREAM_DRAW); // Orphan
+		gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, 0, (long) vertices.limit() * Buffers.SIZEOF_FLOAT, vertices);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+
+		queue.submit(RenderQueue.LAYER_OVERLAY, shaderProgramID, vaoID, 0, 0.0f, drawer, rects * VERTICES_PER_RECT);
+	}
+
+
+	// Two triangles. colour is 0xRRGGBBAA
+	private void rect(float x0, float y0, float x1, float y1, int color) {
+		float r = (color >>> 24) / 255.0f, g = ((color >>> 16) & 0xFF) / 255.0f;
+		float b = ((color >>> 8) & 0xFF) / 255.0f, a = (color & 0xFF) / 255.0f;
+		vertex(x0, y0, r, g, b, a);
+		vertex(x1, y0, r, g, b, a);
+		vertex(x1, y1, r, g, b, a);
+		vertex(x0, y0, r, g, b, a);
+		vertex(x1, y1, r, g, b, a);
+		vertex(x0, y1, r, g, b, a);
+		rects++;
+	}
+
+
+	private void vertex(float x, float y, float r, float g, float b, float a) {
+		vertices.put(x).put(y).put(r).put(g).put(b).put(a);
+	}
+
+
+	public void dispose(GL3 gl) {
+		gl.glDeleteProgram(shaderProgramID);
+		gl.glDeleteBuffers(1, new int[] {vboID}, 0);
+		gl.glDeleteVertexArrays(1, new int[] {vaoID}, 0);
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Quat.java
+ *
+ * A rotation, stored as a unit quaternion (x, y, z, w).
+ * Quaternions don't suffer from gimbal lock, blend smoothly, and are 4 numbers instead of 9.
+ * Turn one into a matrix with Mat4.rotation(q) or Mat4.translationRotationScale(...).
+ *
+ * Mutable and allocation free, like Vec3 and Mat4.
+ *
+ * @author CLLFTVTV
+ */
+public final class Quat {
+
+
+	public float x, y, z, w = 1.0f;
+
+
+	public Quat identity() {
+		return set(0.0f, 0.0f, 0.0f, 1.0f);
+	}
+
+
+	public Quat set(float x, float y, float z, float w) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.w = w;
+		return this;
+	}
+
+
+	public Quat set(Quat q) {
+		return set(q.x, q.y, q.z, q.w);
+	}
+
+
+	// A rotation of angle radians around axis (axis doesn't have to be unit length)
+	public Quat axisAngle(float axisX, float axisY, float axisZ, float angle) {
+		float length = (float) Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+		if (length == 0.0f) return identity();
+		float s = (float) Math.sin(angle * 0.5) / length;
+		return set(axisX * s, axisY * s, axisZ * s, (float) Math.cos(angle * 0.5));
+	}
+
+
+	// this = this * q (rotate by q first, then by this)
+	public Quat mul(Quat q) {
+		return set(
+				w * q.x + x * q.w + y * q.z - z * q.y,
+				w * q.y - x * q.z + y * q.w + z * q.x,
+				w * q.z + x * q.y - y * q.x + z * q.w,
+				w * q.w - x * q.x - y * q.y - z * q.z);
+	}
+
+
+	// Rounding creeps in after many mul()s. Call now and then to get back to length 1
+	public Quat normalize() {
+		float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+		if (length == 0.0f) return identity();
+		float s = 1.0f / length;
+		return set(x * s, y * s, z * s, w * s);
+	}
+
+
+	// Rotate v in place
+	public Vec3 rotate(Vec3 v) {
+		// v + 2w(q x v) + 2 q x (q x v), with q = (x, y, z)
+		float tx = 2.0f * (y * v.z - z * v.y);
+		float ty = 2.0f * (z * v.x - x * v.z);
+		float tz = 2.0f * (x * v.y - y * v.x);
+		return v.set(
+				v.x + w * tx + (y * tz - z * ty),
+				v.y + w * ty + (z * tx - x * tz),
+				v.z + w * tz + (x * ty - y * tx));
+	}
+
+
+	@Override
+	public String toString() {
+		return "(" + x + ", " + y + ", " + z + ", " + w + ")";
+	}
+}
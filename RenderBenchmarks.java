@@ -0,0 +1,177 @@
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * RenderBenchmarks.java
+ *
+ * The benchmarks that run the renderer's CPU side, so unlike Benchmarks they need jogl-all.jar and
+ * gluegen-rt.jar on the classpath. Still no window or GL context.
+ *
+ * Run with:
+ * 	java RenderBenchmarks            (runs everything)
+ * 	java RenderBenchmarks lod        (runs one benchmark by name)
+ *
+ * "packing" goes through Microbench like Benchmarks' "micro", and takes the same
+ * -Doutermilds.benchOut / benchBaseline / benchTolerance (use its own files for them).
+ *
+ * @author CLLFTVTV
+ */
+public class RenderBenchmarks {
+
+
+	public static void main(String[] args) {
+		String which = args.length > 0 ? args[0] : "all";
+
+		if (which.equals("all") || which.equals("packing")) {
+			Microbench bench = new Microbench(5, 10, 200);
+			System.out.println("packing:");
+			benchmarkPacking(bench, Scenes.solarSystem(10_000, 42L));
+			if (Benchmarks.saveAndCompare(bench, "packing") > 0) System.exit(1);
+		}
+		if (which.equals("all") || which.equals("lod")) {
+			benchmarkLod(10_000, 600);
+		}
+		if (which.equals("all") || which.equals("particles")) {
+			benchmarkParticles(131_072, 8, 120.0, 0.25);
+		}
+	}
+
+
+	// Getting the instance data into a direct buffer, three ways
+	static void benchmarkPacking(Microbench bench, BodySystem bodies) {
+		int n = bodies.count;
+
+		// What the renderer does every frame: 20 byte records into one reused (mapped) buffer
+		ByteBuffer records = ByteBuffer.allocateDirect(n * InstancedRenderer.INSTANCE_STRIDE).order(ByteOrder.nativeOrder());
+		bench.run("packing.instances.reused", () -> {
+			records.clear();
+			InstancedRenderer.packInstances(records, bodies, 0, n);
+			return records.position();
+		});
+
+		// The way init() uploads static data: fill a float[], then a NEW direct buffer each time
+		float[] floats = new float[n * 4];
+		bench.run("packing.newDirectFloatBuffer", () -> {
+			fillFloats(floats, bodies);
+			FloatBuffer buffer = Buffers.newDirectFloatBuffer(floats);
+			return buffer.get(n * 4 - 1) != 0 ? 1 : 0;
+		});
+
+		// The same float[], bulk copied into a reused direct buffer
+		FloatBuffer reused = Buffers.newDirectFloatBuffer(n * 4);
+		bench.run("packing.floatbuffer.reused", () -> {
+			fillFloats(floats, bodies);
+			reused.clear();
+			reused.put(floats);
+			return reused.position();
+		});
+	}
+
+
+	private static void fillFloats(float[] out, BodySystem b) {
+		for (int i = 0; i < b.count; i++) {
+			out[i * 4] = (float) b.x[i];
+			out[i * 4 + 1] = (float) b.y[i];
+			out[i * 4 + 2] = (float) b.z[i];
+			out[i * 4 + 3] = (float) b.radius[i];
+		}
+	}
+
+
+	// The sphere levels of detail: the triangles `bodies` bodies cost (sizes from 0.1 to 300 pixels) with
+	// IcosphereLod against all on the finest level, and how often bodies whose size jitters 5% around a
+	// level boundary change level over `frames` frames, with and without the hysteresis
+	static void benchmarkLod(int bodies, int frames) {
+		IcosphereLod lod = new IcosphereLod(5, 3.0f, 8.0f, 0.1f, 1, null);
+		IcosphereLod noHysteresis = new IcosphereLod(5, 3.0f, 8.0f, 0.0f, 1, null);
+		java.util.Random random = new java.util.Random(3);
+		long triangles = 0;
+		int discs = 0;
+		for (int i = 0; i < bodies; i++) {
+			float pixels = (float) Math.pow(10.0, -1.0 + random.nextDouble() * 3.5);
+			int level = lod.select(-1, pixels);
+			if (level < 0) discs++;
+			else triangles += lod.getTriangleCount(level);
+		}
+		long finest = (long) bodies * lod.getTriangleCount(lod.getMaxLevel());
+		System.out.printf("lod: %d bodies, %d discs, %d triangles vs %d all on level %d (%.1f%%)%n",
+				bodies, discs, triangles, finest, lod.getMaxLevel(), 100.0 * triangles / finest);
+
+		int[] levels = new int[bodies], levelsWithout = new int[bodies];
+		float[] size = new float[bodies];
+		for (int i = 0; i < bodies; i++) {
+			size[i] = lod.getThreshold(1 + random.nextInt(lod.getMaxLevel()));
+			levels[i] = lod.select(-1, size[i]);
+			levelsWithout[i] = levels[i];
+		}
+		long changes = 0, changesWithout = 0;
+		for (int f = 0; f < frames; f++) {
+			for (int i = 0; i < bodies; i++) {
+				float pixels = size[i] * (1.0f + 0.05f * (float) random.nextGaussian());
+				int level = lod.select(levels[i], pixels);
+				if (level != levels[i]) changes++;
+				levels[i] = level;
+				level = noHysteresis.select(levelsWithout[i], pixels);
+				if (level != levelsWithout[i]) changesWithout++;
+				levelsWithout[i] = level;
+			}
+		}
+		System.out.printf("  on a boundary, 5%% jitter: %.3f level changes per body per frame with 10%% hysteresis, %.3f without%n",
+				(double) changes / bodies / frames, (double) changesWithout / bodies / frames);
+	}
+
+
+	// The comet tails' CPU path (what Mode.CPU does every frame, and what the GPU mode is checked against):
+	// comets swinging past the Sun, the particles moved on every frameDays. Reports the time per frame,
+	// what uploading it would cost at 60 fps, and whether the tails point away from the Sun
+	static void benchmarkParticles(int count, int comets, double days, double frameDays) {
+		BodySystem bodies = Scenes.moonsAndComets(0, comets, days / 2.0, 31L);
+		Simulation sim = new Simulation(bodies, new DirectGravity(bodies.capacity, 0.0), new VelocityVerlet(), 0.05);
+		StateSnapshot snapshot = new StateSnapshot(bodies.capacity);
+		ParticleSystem particles = new ParticleSystem(count, ParticleSystem.Mode.CPU);
+		int[] emitters = new int[comets];
+		for (int k = 0; k < comets; k++) emitters[k] = bodies.count - comets + k;
+		particles.setEmitters(emitters);
+
+		int frames = (int) Math.round(days / frameDays);
+		int stepsPerFrame = (int) Math.round(frameDays / sim.getDt());
+		long nanos = 0;
+		for (int f = 0; f < frames; f++) {
+			for (int k = 0; k < stepsPerFrame; k++) sim.step();
+			snapshot.count = bodies.count;
+			for (int i = 0; i < bodies.count; i++) {
+				snapshot.curX[i] = (float) bodies.x[i];
+				snapshot.curY[i] = (float) bodies.y[i];
+				snapshot.curZ[i] = (float) bodies.z[i];
+			}
+			long start = System.nanoTime();
+			particles.simulate(snapshot, frameDays);
+			nanos += System.nanoTime() - start;
+		}
+
+		// A particle is in its comet's tail if it's further from the Sun than the comet it's nearest to
+		float[] state = particles.getState();
+		int alive = 0, antiSunward = 0;
+		for (int o = 0; o < state.length; o += ParticleSystem.FLOATS_PER_PARTICLE) {
+			if (state[o + 7] <= 0.0f || state[o + 3] < 0.0f) continue;
+			alive++;
+			double best = Double.MAX_VALUE, along = 0.0;
+			for (int c : emitters) {
+				double dx = state[o] - bodies.x[c], dy = state[o + 1] - bodies.y[c], dz = state[o + 2] - bodies.z[c];
+				double d2 = dx * dx + dy * dy + dz * dz;
+				if (d2 < best) {
+					best = d2;
+					along = dx * (bodies.x[c] - bodies.x[0]) + dy * (bodies.y[c] - bodies.y[0]) + dz * (bodies.z[c] - bodies.z[0]);
+				}
+			}
+			if (along > 0.0) antiSunward++;
+		}
+		double ms = nanos / 1e6 / frames;
+		System.out.printf("particles: %d particles, %d comets, %d frames: %.2f ms per frame on the CPU, uploading %.1f MB per frame (%.0f MB/s at 60 fps)%n",
+				count, comets, frames, ms, count * ParticleSystem.STRIDE / 1048576.0, 60.0 * count * ParticleSystem.STRIDE / 1048576.0);
+		System.out.printf("  %d alive, %.1f%% of them on the far side of their comet from the Sun%n", alive, 100.0 * antiSunward / Math.max(1, alive));
+	}
+}
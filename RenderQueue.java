@@ -0,0 +1,245 @@
+import com.jogamp.opengl.GL3;
+
+import java.util.Arrays;
+
+/**
+ * RenderQueue.java
+ *
+ * Collects the frame's draws, sorts them so draws that need the same state end up next to each
+ * other, then issues them with a GLStateCache so a program or VAO is only bound when it changes.
+ *
+ * Every draw is a packet: a 64 bit sort key, the state it needs, and a Drawer that does the actual
+ * draw call (uniforms, attribute pointers, glDraw*). The key, from the top bit down:
+ * 	layer    4 bits   the background first, then opaque, then transparent, then overlays
+ * 	program 10 bits
+ * 	VAO     12 bits
+ * 	texture 14 bits
+ * 	depth   24 bits   front to back for opaque (less overdraw), back to front for transparent
+ * so sorting by key groups by program, then VAO, then texture. Opaque packets are depth tested and
+ * write depth, transparent ones are tested against them without writing, the rest ignore depth. The GL names are masked into their
+ * bits; two names landing in the same bits only costs some batching, the packet keeps the real ones.
+ *
+ * A flush can stop after a layer and leave the rest queued for the next flush, so the scene and the
+ * overlays can go to different framebuffers (see SceneFramebuffer).
+ *
+ * The sort is an LSD radix sort, 8 bits a pass, that skips the passes where every key has the
+ * same byte (usually most of them). Everything is preallocated and reused, nothing is allocated
+ * per frame unless the frame has more packets than ever before.
+ *
+ * @author CLLFTVTV
+ */
+public class RenderQueue {
+
+
+	public static final int LAYER_BACKGROUND = 0; // The sky: blended, under everything
+	public static final int LAYER_OPAQUE = 1;
+	public static final int LAYER_TRANSPARENT = 2;
+	public static final int LAYER_OVERLAY = 3;
+
+
+	// Does the actual draw, with the packet's program, VAO and texture already bound.
+	// arg is whatever was passed to submit() (a batch number, a mesh index...)
+	public interface Drawer {
+		void draw(GL3 gl, GLStateCache state, int arg);
+	}
+
+
+	private final GLStateCache state = new GLStateCache();
+
+	// The packets, one entry per array
+	private long[] keys;
+	private int[] programs, vertexArrays, textures, args;
+	private Drawer[] drawers;
+	private int count;
+
+	// Sort scratch: the packet order, and the keys being sorted (two of each, the radix sort ping-pongs)
+	private int[] order, orderScratch;
+	private long[] sortKeys, sortKeysScratch;
+	private final int[] histogram = new int[256];
+
+	// Last frame's counters (added up over the partial flushes). partial: packets were left for the next flush
+	private int draws;
+	private long binds;
+	private long bindsAvoided;
+	private boolean partial;
+
+
+	public RenderQueue(int initialCapacity) {
+		allocate(Math.max(16, initialCapacity));
+	}
+
+
+	private void allocate(int capacity) {
+		keys = keys == null ? new long[capacity] : Arrays.copyOf(keys, capacity);
+		programs = programs == null ? new int[capacity] : Arrays.copyOf(programs, capacity);
+		vertexArrays = vertexArrays == null ? new int[capacity] : Arrays.copyOf(vertexArrays, capacity);
+		textures = textures == null ? new int[capacity] : Arrays.copyOf(textures, capacity);
+		args = args == null ? new int[capacity] : Arrays.copyOf(args, capacity);
+		drawers = drawers == null ? new Drawer[capacity] : Arrays.copyOf(drawers, capacity);
+		order = new int[capacity];
+		orderScratch = new int[capacity];
+		sortKeys = new long[capacity];
+		sortKeysScratch = new long[capacity];
+	}
+
+
+	// depth: 0 (near) .. 1 (far). Transparent packets are flipped so the far ones come first
+	public static long key(int layer, int program, int vertexArray, int texture, float depth) {
+		float d = Math.max(0.0f, Math.min(1.0f, depth));
+		if (layer == LAYER_TRANSPARENT) d = 1.0f - d;
+		long depthBits = (long) (d * 0xFFFFFF);
+		return ((long) (layer & 0xF) << 60)
+				| ((long) (program & 0x3FF) << 50)
+				| ((long) (vertexArray & 0xFFF) << 38)
+				| ((long) (texture & 0x3FFF) << 24)
+				| depthBits;
+	}
+
+
+	// Queue a draw. texture 0 = no texture (leaves unit 0 alone)
+	public void submit(int layer, int program, int vertexArray, int texture, float depth, Drawer drawer, int arg) {
+		if (count == keys.length) allocate(count * 2);
+		keys[count] = key(layer, program, vertexArray, texture, depth);
+		programs[count] = program;
+		vertexArrays[count] = vertexArray;
+		textures[count] = texture;
+		drawers[count] = drawer;
+		args[count] = arg;
+		count++;
+	}
+
+
+	// Sort and issue everything queued, then empty the queue. Leaves no program or VAO bound
+	public void flush(GL3 gl) {
+		flush(gl, LAYER_OVERLAY);
+	}
+
+
+	// Only the layers up to lastLayer. The packets of the later layers stay queued for the next flush
+	public void flush(GL3 gl, int lastLayer) {
+		if (!partial) {
+			draws = 0;
+			binds = 0;
+			bindsAvoided = 0;
+		}
+		long bindsBefore = state.getBinds(), avoidedBefore = state.getBindsAvoided();
+		state.invalidate(); // Whatever ran before us may have bound anything
+		sort();
+
+		int s = 0;
+		for (; s < count; s++) {
+			int p = order[s];
+			int layer = (int) (keys[p] >>> 60);
+			if (layer > lastLayer) break; // Sorted by layer first: the rest are all later
+			state.setBlend(gl, layer != LAYER_OPAQUE);
+			state.setDepth(gl, depthMode(layer));
+			state.useProgram(gl, programs[p]);
+			state.bindVertexArray(gl, vertexArrays[p]);
+			if (textures[p] != 0) state.bindTexture(gl, 0, textures[p]);
+			drawers[p].draw(gl, state, args[p]);
+			drawers[p] = null; // Don't keep the renderers alive through a stale packet
+		}
+		if (s > 0) {
+			state.bindVertexArray(gl, 0);
+			state.useProgram(gl, 0);
+			state.setBlend(gl, false);
+			state.setDepth(gl, GLStateCache.DEPTH_OFF);
+		}
+
+		draws += s;
+		binds += state.getBinds() - bindsBefore;
+		bindsAvoided += state.getBindsAvoided() - avoidedBefore;
+		keepFrom(s);
+		partial = count > 0;
+	}
+
+
+	private static int depthMode(int layer) {
+		switch (layer) {
+			case LAYER_OPAQUE:
+				return GLStateCache.DEPTH_WRITE;
+			case LAYER_TRANSPARENT:
+				return GLStateCache.DEPTH_TEST; // Hidden behind opaque bodies, but not behind each other
+			default:
+				return GLStateCache.DEPTH_OFF; // The sky and the overlays
+		}
+	}
+
+
+	// Move the packets not drawn (order[from..count)) to the front, in the order they were submitted.
+	// Each one moves down or stays, so nothing is overwritten before it has moved
+	private void keepFrom(int from) {
+		int n = count - from;
+		Arrays.sort(order, from, count);
+		for (int i = 0; i < n; i++) {
+			int p = order[from + i];
+			if (p == i) continue;
+			keys[i] = keys[p];
+			programs[i] = programs[p];
+			vertexArrays[i] = vertexArrays[p];
+			textures[i] = textures[p];
+			args[i] = args[p];
+			drawers[i] = drawers[p];
+			drawers[p] = null;
+		}
+		count = n;
+	}
+
+
+	// LSD radix sort of the packet indices by key, one byte per pass. Sorts copies of the keys,
+	// ping-ponging between two buffers, and leaves the packet order in order[]
+	private void sort() {
+		int n = count;
+		if (n == 0) return;
+		long[] a = sortKeys, b = sortKeysScratch;
+		int[] oa = order, ob = orderScratch;
+		System.arraycopy(keys, 0, a, 0, n);
+		for (int i = 0; i < n; i++) oa[i] = i;
+
+		for (int shift = 0; shift < 64; shift += 8) {
+			Arrays.fill(histogram, 0);
+			for (int i = 0; i < n; i++) histogram[(int) (a[i] >>> shift) & 0xFF]++;
+			if (histogram[(int) (a[0] >>> shift) & 0xFF] == n) continue; // Every key has the same byte here
+
+			int sum = 0;
+			for (int d = 0; d < 256; d++) {
+				int c = histogram[d];
+				histogram[d] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				int to = histogram[(int) (a[i] >>> shift) & 0xFF]++;
+				b[to] = a[i];
+				ob[to] = oa[i];
+			}
+			long[] swapKeys = a;
+			a = b;
+			b = swapKeys;
+			int[] swapOrder = oa;
+			oa = ob;
+			ob = swapOrder;
+		}
+		if (oa != order) System.arraycopy(oa, 0, order, 0, n);
+	}
+
+
+	// Last frame: packets drawn, state changes sent to GL, and state changes skipped
+	public int getDraws() {
+		return draws;
+	}
+
+
+	public long getBinds() {
+		return binds;
+	}
+
+
+	public long getBindsAvoided() {
+		return bindsAvoided;
+	}
+
+
+	public GLStateCache getState() {
+		return state;
+	}
+}
@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * ReplayReader.java
+ *
+ * Plays back a file written by ReplayWriter, jumping to any time.
+ *
+ * The file is memory mapped, and opening it walks the record headers (32 bytes each, the payloads
+ * are skipped) into an index: the time, file offset and keyframe of every frame. Seeking to a time
+ * is then a binary search, one keyframe decode and the deltas between it and the frame, at most
+ * keyframeInterval - 1 of them. Scrubbing forwards from the frame last decoded just carries on
+ * from there instead of going back to the keyframe.
+ *
+ * The file can still be growing (the simulation is recording it): refresh() picks up the new frames.
+ * A record that was only half written when we looked is ignored until the next refresh().
+ *
+ * The mapping is split into SEGMENT_BYTES pieces (a single MappedByteBuffer stops at 2 GB).
+ * Each piece overlaps the next by SEGMENT_OVERLAP, so a record is always inside one piece.
+ *
+ * @author CLLFTVTV
+ */
+public class ReplayReader implements AutoCloseable {
+
+
+	private static final long SEGMENT_BYTES = 1L << 30;
+	private static final long SEGMENT_OVERLAP = 256L << 20; // Bigger than any record
+
+
+	private final Path path;
+	private final FileChannel channel;
+	public final int bodyCount;
+	public final int keyframeInterval;
+	public final double quantum;
+
+	// The mapping, one piece per segment (null = not mapped yet), and how far each piece reaches
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private long[] segmentEnds = new long[0];
+	private long fileSize;
+
+	// The index, one entry per frame
+	private int frameCount;
+	private long[] offsets = new long[256];
+	private double[] times = new double[256];
+	private long[] steps = new long[256];
+	private int[] keyframeOf = new int[256]; // The frame index of the keyframe this frame builds on
+	private long scanOffset = ReplayWriter.HEADER_BYTES; // Where the next unindexed record starts
+
+	// Decoding state: the frame last decoded, and its positions on the grid (plus the frame before)
+	private int decodedFrame = -1;
+	private final long[] previous, beforePrevious;
+	private boolean hasBeforePrevious;
+	private final double[] state; // x, y, z, vx, vy, vz per body, of decodedFrame
+	private byte[] raw;
+	private final Inflater inflater = new Inflater();
+
+	private long framesDecoded;
+
+
+	public ReplayReader(Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(ReplayWriter.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+			// Keep reading
+		}
+		String name = path.getFileName().toString();
+		if (header.hasRemaining()) throw new IOException(name + ": too short for a replay");
+		for (int i = 0; i < ReplayWriter.MAGIC.length; i++) {
+			if (header.get(i) != ReplayWriter.MAGIC[i]) throw new IOException(name + ": not a replay file");
+		}
+		if (header.getInt(4) != ReplayWriter.VERSION) throw new IOException(name + ": unsupported replay version " + header.getInt(4));
+		bodyCount = header.getInt(8);
+		keyframeInterval = header.getInt(12);
+		quantum = header.getDouble(16);
+
+		previous = new long[bodyCount * 3];
+		beforePrevious = new long[bodyCount * 3];
+		state = new double[bodyCount * 6];
+		raw = new byte[bodyCount * 6 * 8];
+		refresh();
+	}
+
+
+	// Index any frames appended since the last look. Returns how many frames there are now
+	public int refresh() throws IOException {
+		fileSize = channel.size();
+		while (scanOffset + ReplayWriter.RECORD_HEADER_BYTES <= fileSize) {
+			ByteBuffer r = record(scanOffset, ReplayWriter.RECORD_HEADER_BYTES);
+			int type = r.getInt(0);
+			int count = r.getInt(4);
+			int compressedLength = r.getInt(24);
+			long end = scanOffset + ReplayWriter.RECORD_HEADER_BYTES + compressedLength;
+			if (end > fileSize) break; // Still being written
+			if ((type != ReplayWriter.KEYFRAME && type != ReplayWriter.DELTA) || count != bodyCount || compressedLength < 0) {
+				throw new IOException(path.getFileName() + ": corrupt record at byte " + scanOffset);
+			}
+			if (type == ReplayWriter.DELTA && frameCount == 0) {
+				throw new IOException(path.getFileName() + ": first record isn't a keyframe");
+			}
+
+			if (frameCount == offsets.length) {
+				int capacity = frameCount * 2;
+				offsets = Arrays.copyOf(offsets, capacity);
+				times = Arrays.copyOf(times, capacity);
+				steps = Arrays.copyOf(steps, capacity);
+				keyframeOf = Arrays.copyOf(keyframeOf, capacity);
+			}
+			offsets[frameCount] = scanOffset;
+			times[frameCount] = r.getDouble(8);
+			steps[frameCount] = r.getLong(16);
+			keyframeOf[frameCount] = type == ReplayWriter.KEYFRAME ? frameCount : keyframeOf[frameCount - 1];
+			frameCount++;
+			scanOffset = end;
+		}
+		return frameCount;
+	}
+
+
+	// The last frame at or before `time` (the first frame if time is before it). -1 = no frames
+	public int frameAt(double time) {
+		if (frameCount == 0) return -1;
+		int index = Arrays.binarySearch(times, 0, frameCount, time);
+		if (index < 0) index = Math.max(0, -index - 2);
+		return index;
+	}
+
+
+	// Put the bodies where they were at `time` (positions only; the last frame at or before it).
+	// Returns the frame index, -1 if there are no frames yet
+	public int seek(double time, BodySystem out) throws IOException {
+		int frame = frameAt(time);
+		if (frame < 0) return -1;
+		decode(frame);
+		copyOut(out, false);
+		return frame;
+	}
+
+
+	// Restore the full state (positions AND velocities) of the last keyframe at or before `time`,
+	// so the simulation can carry on from it. Returns the keyframe's index, -1 if there are no frames
+	public int loadCheckpoint(double time, BodySystem out) throws IOException {
+		int frame = frameAt(time);
+		if (frame < 0) return -1;
+		frame = keyframeOf[frame];
+		decode(frame);
+		copyOut(out, true);
+		return frame;
+	}
+
+
+	private void copyOut(BodySystem out, boolean velocities) {
+		if (out.capacity < bodyCount) throw new IllegalArgumentException("Need room for " + bodyCount + " bodies");
+		out.count = bodyCount;
+		for (int i = 0; i < bodyCount; i++) {
+			int o = 6 * i;
+			out.x[i] = state[o];
+			out.y[i] = state[o + 1];
+			out.z[i] = state[o + 2];
+			if (velocities) {
+				out.vx[i] = state[o + 3];
+				out.vy[i] = state[o + 4];
+				out.vz[i] = state[o + 5];
+			}
+		}
+	}
+
+
+	// Get `frame` into state[]: from the frame already decoded if it's on the way, else from its keyframe
+	private void decode(int frame) throws IOException {
+		int key = keyframeOf[frame];
+		int from = decodedFrame >= key && decodedFrame <= frame ? decodedFrame + 1 : key;
+		for (int f = from; f <= frame; f++) {
+			decodeRecord(f);
+		}
+	}
+
+
+	private void decodeRecord(int frame) throws IOException {
+		ByteBuffer header = record(offsets[frame], ReplayWriter.RECORD_HEADER_BYTES);
+		int type = header.getInt(0);
+		int compressedLength = header.getInt(24);
+		int rawLength = header.getInt(28);
+		if (rawLength > raw.length) raw = new byte[rawLength];
+
+		inflater.reset();
+		inflater.setInput(record(offsets[frame] + ReplayWriter.RECORD_HEADER_BYTES, compressedLength));
+		try {
+			int n = 0;
+			while (n < rawLength && !inflater.finished()) {
+				int got = inflater.inflate(raw, n, rawLength - n);
+				if (got == 0 && inflater.needsInput()) break;
+				n += got;
+			}
+			if (n != rawLength) throw new IOException(path.getFileName() + ": frame " + frame + " is truncated");
+		} catch (DataFormatException e) {
+			throw new IOException(path.getFileName() + ": frame " + frame + ": " + e.getMessage());
+		}
+
+		if (type == ReplayWriter.KEYFRAME) {
+			ByteBuffer values = ByteBuffer.wrap(raw, 0, rawLength).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < state.length; i++) state[i] = values.getDouble();
+			for (int i = 0; i < bodyCount; i++) {
+				for (int axis = 0; axis < 3; axis++) {
+					previous[3 * i + axis] = ReplayWriter.quantize(state[6 * i + axis], quantum);
+				}
+			}
+			hasBeforePrevious = false;
+		} else {
+			// Exactly the writer's prediction, undone
+			int p = 0;
+			for (int i = 0; i < bodyCount; i++) {
+				for (int axis = 0; axis < 3; axis++) {
+					long zigzag = 0;
+					int shift = 0;
+					byte b;
+					do {
+						b = raw[p++];
+						zigzag |= (long) (b & 0x7F) << shift;
+						shift += 7;
+					} while (b < 0);
+					long residual = (zigzag >>> 1) ^ -(zigzag & 1);
+					int j = 3 * i + axis;
+					long prediction = hasBeforePrevious ? 2 * previous[j] - beforePrevious[j] : previous[j];
+					long q = prediction + residual;
+					beforePrevious[j] = previous[j];
+					previous[j] = q;
+					state[6 * i + axis] = q * quantum;
+				}
+			}
+			hasBeforePrevious = true;
+		}
+		decodedFrame = frame;
+		framesDecoded++;
+	}
+
+
+	// A little endian view of [offset, offset + length) of the file, from the segment it starts in
+	private ByteBuffer record(long offset, int length) throws IOException {
+		int s = (int) (offset / SEGMENT_BYTES);
+		if (s >= segments.length) {
+			segments = Arrays.copyOf(segments, s + 1);
+			segmentEnds = Arrays.copyOf(segmentEnds, s + 1);
+		}
+		long start = s * SEGMENT_BYTES;
+		if (segments[s] == null || offset + length > segmentEnds[s]) {
+			// Map (again, if the file grew) as far as this segment reaches
+			long end = Math.min(fileSize, start + SEGMENT_BYTES + SEGMENT_OVERLAP);
+			if (offset + length > end) throw new IOException(path.getFileName() + ": record at byte " + offset + " is too big");
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			segmentEnds[s] = end;
+		}
+		ByteBuffer view = segments[s].duplicate();
+		view.position((int) (offset - start)).limit((int) (offset - start + length));
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+
+	public double getFrameTime(int frame) {
+		return times[frame];
+	}
+
+
+	public long getFrameStep(int frame) {
+		return steps[frame];
+	}
+
+
+	public boolean isKeyframe(int frame) {
+		return keyframeOf[frame] == frame;
+	}
+
+
+	// Records decoded so far (keyframes and deltas), to see what seeking costs
+	public long getFramesDecoded() {
+		return framesDecoded;
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		channel.close();
+	}
+}
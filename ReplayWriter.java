@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * ReplayWriter.java
+ *
+ * Records a running simulation to a file, so it can be scrubbed back and forth later
+ * (ReplayReader) without integrating again from the start.
+ *
+ * The file is append-only: a header, then one record per recorded frame.
+ * 	Keyframes (every keyframeInterval frames) hold the exact state: every position and velocity
+ * 	as a double. A keyframe is a full checkpoint, the simulation can carry on from it.
+ * 	Every other frame is a delta: positions only, rounded to a grid of `quantum` AU, and stored as
+ * 	the difference from where the last two frames say the body should be (2 * prev - prevprev).
+ * 	Orbits are smooth, so that guess is nearly right and the differences are tiny numbers, written
+ * 	as zigzag varints (1 or 2 bytes for most bodies). The rounding is done on whole grid units, so
+ * 	the error never grows along the chain: it's at most quantum / 2, however many deltas follow.
+ * Both are deflated (fastest level).
+ *
+ * The simulation thread only copies the state into a spare frame (record()). Encoding,
+ * compressing and writing happen on the "ReplayWriter" thread. If the writer falls behind and no
+ * spare frame is left, the frame is dropped (and counted) instead of making the simulation wait.
+ *
+ * File layout (little endian):
+ * 	header:  'O' 'M' 'R' 'P', version, body count, keyframe interval, quantum (double)   = 24 bytes
+ * 	record:  type (1 = keyframe, 2 = delta), body count, time (double), step (long),
+ * 	         compressed size, raw size (ints)                                          = 32 bytes
+ * 	         then the compressed payload
+ *
+ * @author CLLFTVTV
+ */
+public class ReplayWriter {
+
+
+	static final byte[] MAGIC = {'O', 'M', 'R', 'P'};
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 24;
+	static final int RECORD_HEADER_BYTES = 32;
+	static final int KEYFRAME = 1;
+	static final int DELTA = 2;
+
+	// Spare frames between the simulation thread and the writer
+	private static final int FRAME_POOL = 4;
+
+
+	// One copy of the state, handed from the simulation thread to the writer
+	private static class Frame {
+		final double[] state; // x, y, z, vx, vy, vz per body
+		double time;
+		long step;
+
+		Frame(int bodies) {
+			state = new double[bodies * 6];
+		}
+	}
+
+
+	private final int bodyCount;
+	private final int keyframeInterval;
+	private final double quantum;
+	private final FileChannel channel;
+
+	private final ArrayBlockingQueue<Frame> free = new ArrayBlockingQueue<>(FRAME_POOL);
+	private final ArrayBlockingQueue<Frame> filled = new ArrayBlockingQueue<>(FRAME_POOL);
+	private final Thread thread;
+	private volatile boolean running = true;
+	private volatile IOException error;
+
+	// Writer thread only: the last two frames on the grid, and the encoding buffers
+	private final long[] previous, beforePrevious;
+	private boolean hasBeforePrevious;
+	private long framesWritten;
+	private byte[] raw;
+	private byte[] compressed;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+	// Stats
+	private volatile long framesDropped;
+	private volatile long bytesWritten;
+	private volatile long keyframes;
+	private volatile long deltas;
+
+
+	// quantum: the position grid of the delta frames, in AU (1e-8 AU is 1.5 km)
+	public ReplayWriter(Path path, int bodyCount, int keyframeInterval, double quantum) throws IOException {
+		this.bodyCount = bodyCount;
+		this.keyframeInterval = keyframeInterval;
+		this.quantum = quantum;
+		this.previous = new long[bodyCount * 3];
+		this.beforePrevious = new long[bodyCount * 3];
+		this.raw = new byte[bodyCount * 6 * 8];
+		this.compressed = new byte[raw.length + 64];
+		for (int i = 0; i < FRAME_POOL; i++) free.add(new Frame(bodyCount));
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putInt(VERSION).putInt(bodyCount).putInt(keyframeInterval).putDouble(quantum);
+		header.flip();
+		writeFully(header);
+
+		thread = new Thread(this::run, "ReplayWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	// Simulation thread: queue the current state. Never blocks. False if the frame was dropped
+	// (the writer is behind) or the writer stopped on an error
+	public boolean record(BodySystem b, double time, long step) {
+		if (b.count != bodyCount) throw new IllegalArgumentException("Recording " + bodyCount + " bodies, got " + b.count);
+		Frame f = free.poll();
+		if (f == null || error != null) {
+			if (f != null) free.add(f);
+			framesDropped++;
+			return false;
+		}
+		double[] s = f.state;
+		for (int i = 0; i < bodyCount; i++) {
+			int o = 6 * i;
+			s[o] = b.x[i];
+			s[o + 1] = b.y[i];
+			s[o + 2] = b.z[i];
+			s[o + 3] = b.vx[i];
+			s[o + 4] = b.vy[i];
+			s[o + 5] = b.vz[i];
+		}
+		f.time = time;
+		f.step = step;
+		filled.add(f); // Can't be full: there are only FRAME_POOL frames
+		return true;
+	}
+
+
+	private void run() {
+		try {
+			while (running || !filled.isEmpty()) {
+				Frame f = filled.poll(50, TimeUnit.MILLISECONDS);
+				if (f == null) continue;
+				try {
+					write(f);
+				} finally {
+					free.add(f);
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+			System.err.println("ReplayWriter: stopped, " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	// Writer thread: encode, compress and append one frame
+	private void write(Frame f) throws IOException {
+		boolean key = framesWritten % keyframeInterval == 0;
+		int rawLength = key ? encodeKeyframe(f) : encodeDelta(f);
+
+		deflater.reset();
+		deflater.setInput(raw, 0, rawLength);
+		deflater.finish();
+		int compressedLength = 0;
+		while (!deflater.finished()) {
+			if (compressedLength == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+		}
+
+		recordHeader.clear();
+		recordHeader.putInt(key ? KEYFRAME : DELTA).putInt(bodyCount).putDouble(f.time).putLong(f.step)
+				.putInt(compressedLength).putInt(rawLength);
+		recordHeader.flip();
+		writeFully(recordHeader);
+		writeFully(ByteBuffer.wrap(compressed, 0, compressedLength));
+
+		framesWritten++;
+		bytesWritten += RECORD_HEADER_BYTES + compressedLength;
+		if (key) keyframes++;
+		else deltas++;
+	}
+
+
+	// The exact state as doubles. Also restarts the prediction from this frame
+	private int encodeKeyframe(Frame f) {
+		double[] s = f.state;
+		int p = 0;
+		for (int i = 0; i < s.length; i++) {
+			long bits = Double.doubleToRawLongBits(s[i]);
+			for (int k = 0; k < 8; k++) raw[p++] = (byte) (bits >>> (8 * k));
+		}
+		for (int i = 0; i < bodyCount; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				previous[3 * i + axis] = quantize(s[6 * i + axis], quantum);
+			}
+		}
+		hasBeforePrevious = false;
+		return p;
+	}
+
+
+	// Positions on the grid, minus the prediction, as zigzag varints
+	private int encodeDelta(Frame f) {
+		double[] s = f.state;
+		int p = 0;
+		for (int i = 0; i < bodyCount; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				int j = 3 * i + axis;
+				long q = quantize(s[6 * i + axis], quantum);
+				long prediction = hasBeforePrevious ? 2 * previous[j] - beforePrevious[j] : previous[j];
+				long residual = q - prediction;
+				long zigzag = (residual << 1) ^ (residual >> 63);
+				if (p + 10 > raw.length) raw = Arrays.copyOf(raw, raw.length * 2);
+				while ((zigzag & ~0x7FL) != 0) {
+					raw[p++] = (byte) ((zigzag & 0x7F) | 0x80);
+					zigzag >>>= 7;
+				}
+				raw[p++] = (byte) zigzag;
+				beforePrevious[j] = previous[j];
+				previous[j] = q;
+			}
+		}
+		hasBeforePrevious = true;
+		return p;
+	}
+
+
+	// Shared with ReplayReader, which has to land on exactly the same grid points
+	static long quantize(double value, double quantum) {
+		return Math.round(value / quantum);
+	}
+
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+
+	// Write out what's queued, stop the thread and close the file
+	public void close() throws IOException {
+		running = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		deflater.end();
+		channel.close();
+		if (error != null) throw error;
+	}
+
+
+	public long getFramesDropped() {
+		return framesDropped;
+	}
+
+
+	public long getBytesWritten() {
+		return HEADER_BYTES + bytesWritten;
+	}
+
+
+	public long getKeyframes() {
+		return keyframes;
+	}
+
+
+	public long getDeltas() {
+		return deltas;
+	}
+}
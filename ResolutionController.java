@@ -0,0 +1,108 @@
+/**
+ * ResolutionController.java
+ *
+ * Picks the scale the scene is rendered at (a fraction of the window's width and height) so the GPU
+ * stays inside a frame time budget. It's fed each frame's GPU time as the FrameProfiler's timer
+ * queries bring it back.
+ *
+ * Most of a frame's GPU time is per pixel, so it goes with the scale squared: the scale that would
+ * just fit the budget is scale * sqrt(budget / time). The controller
+ * 	- averages the times (an exponential moving average), so one slow frame changes nothing
+ * 	- goes down as soon as the average is over budget, straight to the scale that fits, less HEADROOM
+ * 	- goes up only when the average is well under budget (UP_BELOW), by at most MAX_UP at a time,
+ * 	  so it creeps back up instead of overshooting and bouncing between two sizes
+ * 	- ignores the first SETTLE times after every change: they come back several frames late, and the
+ * 	  ones still in flight were drawn at the old scale
+ * Between UP_BELOW and the budget it holds still. Scales are multiples of STEP, from the minimum to 1.
+ *
+ * No GL here, so Benchmarks can run it against a made up GPU.
+ *
+ * @author CLLFTVTV
+ */
+public class ResolutionController {
+
+
+	private static final double SMOOTHING = 0.25; // Weight of the newest time in the average
+	private static final double HEADROOM = 0.9; // Going down: aim for 81% of the budget (0.9 squared)
+	private static final double UP_BELOW = 0.7; // Going up: only under 70% of the budget
+	private static final double MAX_UP = 0.1;
+	private static final double STEP = 1.0 / 32.0;
+
+	// Times skipped after a change (more than the FrameProfiler's query latency), then times averaged before deciding
+	private static final int SETTLE = 6;
+	private static final int AVERAGE = 4;
+
+
+	private final double budgetNanos;
+	private final double minScale;
+
+	private double scale = 1.0;
+	private double averageNanos;
+	private int samples; // Since the last change
+
+	// Stats
+	private long updates, changes;
+	private double scaleTotal;
+	private double lowestScale = 1.0;
+
+
+	// budgetMillis: GPU time per frame. minScale: never below this (0..1)
+	public ResolutionController(double budgetMillis, double minScale) {
+		this.budgetNanos = budgetMillis * 1e6;
+		this.minScale = Math.max(STEP, Math.min(1.0, minScale));
+	}
+
+
+	// One frame's GPU time. Returns the scale to draw the next frame at
+	public double update(long gpuNanos) {
+		updates++;
+		scaleTotal += scale;
+		samples++;
+		if (samples <= SETTLE) return scale;
+		averageNanos = samples == SETTLE + 1 ? gpuNanos : averageNanos + SMOOTHING * (gpuNanos - averageNanos);
+		if (samples < SETTLE + AVERAGE || averageNanos <= 0.0) return scale;
+
+		double fit = scale * Math.sqrt(budgetNanos / averageNanos);
+		double next = scale;
+		if (averageNanos > budgetNanos) {
+			next = Math.floor(fit * HEADROOM / STEP) * STEP;
+		} else if (averageNanos < budgetNanos * UP_BELOW) {
+			next = Math.floor(Math.min(fit * HEADROOM, scale + MAX_UP) / STEP) * STEP;
+		}
+		next = Math.max(minScale, Math.min(1.0, next));
+		if (next != scale) {
+			scale = next;
+			samples = 0;
+			changes++;
+			lowestScale = Math.min(lowestScale, scale);
+		}
+		return scale;
+	}
+
+
+	// Start over at the current scale (the window was resized: the old times don't apply)
+	public void reset() {
+		samples = 0;
+	}
+
+
+	public double getScale() {
+		return scale;
+	}
+
+
+	public double getAverageMillis() {
+		return averageNanos / 1e6;
+	}
+
+
+	public long getChanges() {
+		return changes;
+	}
+
+
+	public String summary() {
+		return String.format("%.2f now, %.2f on average, %.2f at the lowest, %d changes in %d frames, %.1f ms GPU against a %.1f ms budget",
+				scale, updates == 0 ? scale : scaleTotal / updates, lowestScale, changes, updates, getAverageMillis(), budgetNanos / 1e6);
+	}
+}
@@ -0,0 +1,93 @@
+import com.jogamp.opengl.GL3;
+
+/**
+ * SceneFramebuffer.java
+ *
+ * An offscreen framebuffer the scene is drawn into at a fraction of the window's size, then
+ * stretched onto the window with glBlitFramebuffer (linear filtering). Whatever is drawn after
+ * that (the overlays) goes straight to the window, at full resolution.
+ *
+ * The attachments are the full window size, allocated again only when the window is resized.
+ * The scene just uses their bottom left corner, so a new scale is a different viewport and blit
+ * rectangle, never a reallocation.
+ *
+ * The window isn't always framebuffer 0 (an offscreen drawable has its own FBO), so end() binds
+ * whatever the context says the default one is.
+ *
+ * @author CLLFTVTV
+ */
+public class SceneFramebuffer {
+
+
+	private int framebufferID;
+	private int colorID, depthID; // Renderbuffers
+	private int width, height; // The window
+	private int sceneWidth, sceneHeight;
+
+
+	public void init(GL3 gl) {
+		int[] ids = new int[2];
+		gl.glGenFramebuffers(1, ids, 0);
+		framebufferID = ids[0];
+		gl.glGenRenderbuffers(2, ids, 0);
+		colorID = ids[0];
+		depthID = ids[1];
+	}
+
+
+	// The window's new size. Returns false if the driver won't complete the framebuffer at that size
+	public boolean resize(GL3 gl, int width, int height) {
+		this.width = sceneWidth = width;
+		this.height = sceneHeight = height;
+		gl.glBindRenderbuffer(GL3.GL_RENDERBUFFER, colorID);
+		gl.glRenderbufferStorage(GL3.GL_RENDERBUFFER, GL3.GL_RGBA8, width, height);
+		gl.glBindRenderbuffer(GL3.GL_RENDERBUFFER, depthID);
+		gl.glRenderbufferStorage(GL3.GL_RENDERBUFFER, GL3.GL_DEPTH_COMPONENT24, width, height);
+		gl.glBindRenderbuffer(GL3.GL_RENDERBUFFER, 0);
+
+		gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, framebufferID);
+		gl.glFramebufferRenderbuffer(GL3.GL_FRAMEBUFFER, GL3.GL_COLOR_ATTACHMENT0, GL3.GL_RENDERBUFFER, colorID);
+		gl.glFramebufferRenderbuffer(GL3.GL_FRAMEBUFFER, GL3.GL_DEPTH_ATTACHMENT, GL3.GL_RENDERBUFFER, depthID);
+		int status = gl.glCheckFramebufferStatus(GL3.GL_FRAMEBUFFER);
+		gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+		return status == GL3.GL_FRAMEBUFFER_COMPLETE;
+	}
+
+
+	// Draw the scene from here on: at scale (0..1) of the window's size, in the bottom left corner
+	public void begin(GL3 gl, double scale) {
+		sceneWidth = Math.max(1, (int) Math.round(width * scale));
+		sceneHeight = Math.max(1, (int) Math.round(height * scale));
+		gl.glBindFramebuffer(GL3.GL_FRAMEBUFFER, framebufferID);
+		gl.glViewport(0, 0, sceneWidth, sceneHeight);
+	}
+
+
+	// Stretch the scene onto the window. Leaves the window bound, with a viewport over all of it
+	public void end(GL3 gl) {
+		boolean fullSize = sceneWidth == width && sceneHeight == height;
+		gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, framebufferID);
+		gl.glBindFramebuffer(GL3.GL_DRAW_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+		gl.glBlitFramebuffer(0, 0, sceneWidth, sceneHeight, 0, 0, width, height,
+				GL3.GL_COLOR_BUFFER_BIT, fullSize ? GL3.GL_NEAREST : GL3.GL_LINEAR);
+		gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, gl.getDefaultReadFramebuffer());
+		gl.glViewport(0, 0, width, height);
+	}
+
+
+	// What the scene was last drawn at
+	public int getSceneWidth() {
+		return sceneWidth;
+	}
+
+
+	public int getSceneHeight() {
+		return sceneHeight;
+	}
+
+
+	public void dispose(GL3 gl) {
+		gl.glDeleteFramebuffers(1, new int[] {framebufferID}, 0);
+		gl.glDeleteRenderbuffers(2, new int[] {colorID, depthID}, 0);
+	}
+}
@@ -0,0 +1,251 @@
+import java.util.Random;
+
+/**
+ * Scenes.java
+ *
+ * Starting conditions for the simulation.
+ * Planets start on circular orbits at their real distances and masses,
+ * which is close enough to look right without needing a real ephemeris.
+ * The rails scene uses the real (J2000) orbits instead, see planetOrbits().
+ *
+ * @author CLLFTVTV
+ */
+public class Scenes {
+
+
+	// Mercury .. Neptune. Lower case, for file names (textures...)
+	static final String[] PLANET_NAME = {
+			"mercury", "venus", "earth", "mars", "jupiter", "saturn", "uranus", "neptune"
+	};
+	// Mass in solar masses, semi-major axis in AU
+	static final double[] PLANET_MASS = {
+			1.660e-7, 2.448e-6, 3.040e-6, 3.227e-7, 9.548e-4, 2.859e-4, 4.366e-5, 5.151e-5
+	};
+	static final double[] PLANET_DISTANCE = {
+			0.387, 0.723, 1.000, 1.524, 5.203, 9.537, 19.19, 30.07
+	};
+	// Radius in AU, and a colour (0xRRGGBBAA) for drawing
+	static final double[] PLANET_RADIUS = {
+			1.63e-5, 4.05e-5, 4.26e-5, 2.27e-5, 4.78e-4, 4.03e-4, 1.71e-4, 1.65e-4
+	};
+	static final int[] PLANET_COLOR = {
+			0xA9A9A9FF, 0xE6C27AFF, 0x4F7FD9FF, 0xC1440EFF, 0xD8B48AFF, 0xE3D6A2FF, 0x9FD8E0FF, 0x4062D8FF
+	};
+
+	// Mean orbital elements at J2000 (degrees): inclination, longitude of the ascending node,
+	// longitude of perihelion and mean longitude, plus eccentricity and semi-major axis (AU).
+	// Good to a few arcminutes for a couple of centuries, which is plenty for drawing
+	static final double[] PLANET_SEMI_MAJOR_AXIS = {
+			0.38710, 0.72333, 1.00000, 1.52368, 5.20260, 9.55491, 19.21845, 30.11039
+	};
+	static final double[] PLANET_ECCENTRICITY = {
+			0.20563, 0.00677, 0.01671, 0.09340, 0.04849, 0.05551, 0.04630, 0.00899
+	};
+	static final double[] PLANET_INCLINATION = {
+			7.005, 3.395, 0.000, 1.850, 1.303, 2.489, 0.773, 1.770
+	};
+	static final double[] PLANET_ASCENDING_NODE = {
+			48.331, 76.680, 0.000, 49.560, 100.464, 113.666, 74.006, 131.784
+	};
+	static final double[] PLANET_PERIHELION_LONGITUDE = {
+			77.456, 131.602, 102.937, 336.060, 14.331, 93.057, 173.005, 48.124
+	};
+	static final double[] PLANET_MEAN_LONGITUDE = {
+			252.251, 181.980, 100.464, 355.453, 34.397, 49.944, 313.232, 304.880
+	};
+
+	// The big moons: which planet (index into the arrays above), mass, distance from the planet (AU), radius
+	static final String[] MOON_NAME = {
+			"moon", "io", "europa", "ganymede", "callisto", "titan"
+	};
+	static final int[] MOON_PARENT = {
+			2, 4, 4, 4, 4, 5
+	};
+	static final double[] MOON_MASS = {
+			3.694e-8, 4.491e-8, 2.412e-8, 7.451e-8, 5.409e-8, 6.764e-8
+	};
+	static final double[] MOON_DISTANCE = {
+			2.570e-3, 2.819e-3, 4.486e-3, 7.155e-3, 1.259e-2, 8.168e-3
+	};
+	static final double[] MOON_RADIUS = {
+			1.16e-5, 1.22e-5, 1.04e-5, 1.76e-5, 1.61e-5, 1.72e-5
+	};
+	static final int MOON_COLOR = 0xC8C4BCFF;
+
+	static final double SUN_RADIUS = 4.65e-3;
+	static final int SUN_COLOR = 0xFFD54FFF;
+	static final double ASTEROID_RADIUS = 3e-7;
+	static final int ASTEROID_COLOR = 0x8A8580FF;
+	static final double COMET_RADIUS = 3e-8;
+	static final int COMET_COLOR = 0xB8E0F0FF;
+
+
+	private Scenes() {
+	}
+
+
+	// The Sun, the eight planets, and `asteroids` massless asteroids in the main belt (2.1 - 3.3 AU).
+	// The same seed always gives the same scene.
+	public static BodySystem solarSystem(int asteroids, long seed) {
+		return solarSystem(asteroids, 0.0, seed);
+	}
+
+
+	// Same as above, but every asteroid has a mass, so they pull on each other too.
+	// That's the case the Barnes-Hut tree is for.
+	public static BodySystem solarSystem(int asteroids, double asteroidMass, long seed) {
+		BodySystem b = new BodySystem(1 + PLANET_MASS.length + asteroids);
+		Random random = new Random(seed);
+
+		// The Sun
+		int sun = b.add(1.0, 0, 0, 0, 0, 0, 0);
+		b.radius[sun] = SUN_RADIUS;
+		b.color[sun] = SUN_COLOR;
+
+		for (int p = 0; p < PLANET_MASS.length; p++) {
+			int i = addCircularOrbit(b, PLANET_MASS[p], PLANET_DISTANCE[p], random.nextDouble() * 2.0 * Math.PI, 0.0);
+			b.radius[i] = PLANET_RADIUS[p];
+			b.color[i] = PLANET_COLOR[p];
+		}
+
+		for (int a = 0; a < asteroids; a++) {
+			double distance = 2.1 + random.nextDouble() * 1.2;
+			double inclination = (random.nextDouble() - 0.5) * 0.2; // roughly +-6 degrees
+			int i = addCircularOrbit(b, asteroidMass, distance, random.nextDouble() * 2.0 * Math.PI, inclination);
+			b.radius[i] = ASTEROID_RADIUS;
+			b.color[i] = ASTEROID_COLOR;
+		}
+
+		b.toBarycentric();
+		return b;
+	}
+
+
+	// The Sun (standing still at the origin) and the eight planets on their real orbits, time 0 = J2000.
+	// These are the bodies the rails scene pins with a ChebyshevEphemeris, in the same order
+	public static KeplerOrbit[] planetOrbits() {
+		KeplerOrbit[] orbits = new KeplerOrbit[1 + PLANET_MASS.length];
+		orbits[0] = new KeplerOrbit(0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, BodySystem.G);
+		for (int p = 0; p < PLANET_MASS.length; p++) {
+			double node = Math.toRadians(PLANET_ASCENDING_NODE[p]);
+			double perihelion = Math.toRadians(PLANET_PERIHELION_LONGITUDE[p]);
+			orbits[1 + p] = new KeplerOrbit(PLANET_SEMI_MAJOR_AXIS[p], PLANET_ECCENTRICITY[p],
+					Math.toRadians(PLANET_INCLINATION[p]), node, perihelion - node,
+					Math.toRadians(PLANET_MEAN_LONGITUDE[p]) - perihelion, 0.0,
+					BodySystem.G * (1.0 + PLANET_MASS[p]));
+		}
+		return orbits;
+	}
+
+
+	// Like solarSystem(), but the Sun and planets are "on rails": they start where planetOrbits() puts
+	// them at J2000, and the Simulation keeps them there (Simulation.setRails). Only the asteroids are
+	// integrated. Heliocentric, NOT barycentric, because the Sun doesn't move on rails
+	public static BodySystem railsSolarSystem(int asteroids, long seed) {
+		KeplerOrbit[] orbits = planetOrbits();
+		BodySystem b = new BodySystem(orbits.length + asteroids);
+		Random random = new Random(seed);
+		double[] state = new double[6];
+
+		for (int k = 0; k < orbits.length; k++) {
+			orbits[k].state(0.0, state, 0);
+			int i = b.add(k == 0 ? 1.0 : PLANET_MASS[k - 1], state[0], state[1], state[2], state[3], state[4], state[5]);
+			b.radius[i] = k == 0 ? SUN_RADIUS : PLANET_RADIUS[k - 1];
+			b.color[i] = k == 0 ? SUN_COLOR : PLANET_COLOR[k - 1];
+		}
+
+		for (int a = 0; a < asteroids; a++) {
+			double distance = 2.1 + random.nextDouble() * 1.2;
+			double inclination = (random.nextDouble() - 0.5) * 0.2;
+			int i = addCircularOrbit(b, 0.0, distance, random.nextDouble() * 2.0 * Math.PI, inclination);
+			b.radius[i] = ASTEROID_RADIUS;
+			b.color[i] = ASTEROID_COLOR;
+		}
+		return b;
+	}
+
+
+	// Indices of the bodies railsSolarSystem() puts on rails (the first planetOrbits().length)
+	public static int[] railIndices() {
+		int[] indices = new int[1 + PLANET_MASS.length];
+		for (int k = 0; k < indices.length; k++) indices[k] = k;
+		return indices;
+	}
+
+
+	// solarSystem() plus the big moons of Earth, Jupiter and Saturn, and `comets` massless comets on long,
+	// very eccentric orbits (e = 0.9 .. 0.995, perihelion 0.3 .. 1.5 AU, any inclination) that all pass
+	// perihelion within the first `perihelionWindow` days. The timescales go from Io's 1.8 day orbit
+	// and a comet swinging round the Sun to asteroids taking years: the scene for block timesteps
+	public static BodySystem moonsAndComets(int asteroids, int comets, double perihelionWindow, long seed) {
+		BodySystem b = new BodySystem(1 + PLANET_MASS.length + MOON_MASS.length + asteroids + comets);
+		Random random = new Random(seed);
+
+		int sun = b.add(1.0, 0, 0, 0, 0, 0, 0);
+		b.radius[sun] = SUN_RADIUS;
+		b.color[sun] = SUN_COLOR;
+
+		int[] planets = new int[PLANET_MASS.length];
+		for (int p = 0; p < PLANET_MASS.length; p++) {
+			planets[p] = addCircularOrbit(b, PLANET_MASS[p], PLANET_DISTANCE[p], random.nextDouble() * 2.0 * Math.PI, 0.0);
+			b.radius[planets[p]] = PLANET_RADIUS[p];
+			b.color[planets[p]] = PLANET_COLOR[p];
+		}
+
+		for (int m = 0; m < MOON_MASS.length; m++) {
+			double inclination = (random.nextDouble() - 0.5) * 0.1;
+			int i = addSatellite(b, planets[MOON_PARENT[m]], MOON_MASS[m], MOON_DISTANCE[m], random.nextDouble() * 2.0 * Math.PI, inclination);
+			b.radius[i] = MOON_RADIUS[m];
+			b.color[i] = MOON_COLOR;
+		}
+
+		for (int a = 0; a < asteroids; a++) {
+			double distance = 2.1 + random.nextDouble() * 1.2;
+			double inclination = (random.nextDouble() - 0.5) * 0.2;
+			int i = addCircularOrbit(b, 0.0, distance, random.nextDouble() * 2.0 * Math.PI, inclination);
+			b.radius[i] = ASTEROID_RADIUS;
+			b.color[i] = ASTEROID_COLOR;
+		}
+
+		double[] state = new double[6];
+		for (int c = 0; c < comets; c++) {
+			double e = 0.9 + random.nextDouble() * 0.095;
+			double perihelion = 0.3 + random.nextDouble() * 1.2;
+			double a = perihelion / (1.0 - e);
+			double meanMotion = Math.sqrt(BodySystem.G / (a * a * a));
+			double perihelionTime = random.nextDouble() * perihelionWindow;
+			KeplerOrbit orbit = new KeplerOrbit(a, e, Math.acos(1.0 - 2.0 * random.nextDouble()),
+					random.nextDouble() * 2.0 * Math.PI, random.nextDouble() * 2.0 * Math.PI,
+					-meanMotion * perihelionTime, 0.0, BodySystem.G);
+			orbit.state(0.0, state, 0);
+			int i = b.add(0.0, state[0], state[1], state[2], state[3], state[4], state[5]);
+			b.radius[i] = COMET_RADIUS;
+			b.color[i] = COMET_COLOR;
+		}
+
+		b.toBarycentric();
+		return b;
+	}
+
+
+	// Put a body on a circular orbit around the Sun (index 0)
+	static int addCircularOrbit(BodySystem b, double mass, double distance, double angle, double inclination) {
+		return addSatellite(b, 0, mass, distance, angle, inclination);
+	}
+
+
+	// Put a body on a circular orbit around body `parent`, ignoring everything else's pull
+	static int addSatellite(BodySystem b, int parent, double mass, double distance, double angle, double inclination) {
+		double speed = Math.sqrt(BodySystem.G * (b.mass[parent] + mass) / distance);
+		double cosA = Math.cos(angle), sinA = Math.sin(angle);
+		double cosI = Math.cos(inclination), sinI = Math.sin(inclination);
+		// Orbit in the x-y plane, then tilted around the x axis
+		double px = distance * cosA;
+		double py = distance * sinA;
+		double vx = -speed * sinA;
+		double vy = speed * cosA;
+		return b.add(mass,
+				b.x[parent] + px, b.y[parent] + py * cosI, b.z[parent] + py * sinI,
+				b.vx[parent] + vx, b.vy[parent] + vy * cosI, b.vz[parent] + vy * sinI);
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Settings.java
+ *
+ * Knobs that can be changed without recompiling.
+ * Each one is read from a Java system property, so pass them on the command line:
+ * 	java -Doutermilds.threads=4 -cp ... V2
+ *
+ * @author CLLFTVTV
+ */
+public class Settings {
+
+
+	// Threads used by the physics. Defaults to every core
+	public static final int THREADS = Integer.getInteger("outermilds.threads", Runtime.getRuntime().availableProcessors());
+
+	// Frames of per-frame GPU data in flight (the StreamingBuffer ring depth)
+	public static final int STREAM_REGIONS = Integer.getInteger("outermilds.streamRegions", 3);
+
+	// Force a StreamingBuffer mode: persistent, unsynchronized or orphan. Empty = pick the best one
+	public static final String STREAM_MODE = System.getProperty("outermilds.streamMode", "");
+
+
+	// Where compiled shader binaries are kept between launches
+	public static final String SHADER_CACHE_DIR = System.getProperty("outermilds.shaderCache",
+			System.getProperty("user.home") + "/.outermilds/shadercache");
+
+
+	// Load files (the body mesh, the star catalog) after the window is up, uploading them on a second
+	// GL context (AssetLoader). false = load them all in init(), before the first frame.
+	// The reading and decoding is done on this many threads either way
+	public static final boolean ASYNC_LOADING = Boolean.parseBoolean(System.getProperty("outermilds.asyncLoad", "true"));
+	public static final int ASSET_THREADS = Integer.getInteger("outermilds.assetThreads", 2);
+
+
+	// Draw the bodies with this .omsh mesh (see MeshFile) instead of the built in disc. Empty = the disc
+	public static final String BODY_MESH = System.getProperty("outermilds.bodyMesh", "");
+
+
+	// Draw bodies that are big on screen as icospheres (IcosphereLod), with up to this many levels of detail
+	public static final boolean SPHERES = Boolean.parseBoolean(System.getProperty("outermilds.spheres", "true"));
+	public static final int SPHERE_LEVELS = Integer.getInteger("outermilds.sphereLevels", 5);
+
+
+	// Only draw the bodies inside the camera's view (BodyBvh)
+	public static final boolean CULLING = Boolean.parseBoolean(System.getProperty("outermilds.culling", "true"));
+
+
+	// Draw the background stars from this .omst catalog (see StarCatalog for converting one). Empty = no stars
+	public static final String STAR_CATALOG = System.getProperty("outermilds.stars", "");
+
+
+	// Stream planet textures (mercury.png, earth.jpg...) from this directory. Empty = plain colours
+	public static final String TEXTURE_DIR = System.getProperty("outermilds.textureDir", "");
+
+	// GPU memory the streamed textures may use, and how much is uploaded per frame at most
+	public static final int TEXTURE_BUDGET_MB = Integer.getInteger("outermilds.textureBudgetMB", 256);
+	public static final int TEXTURE_SLICE_KB = Integer.getInteger("outermilds.textureSliceKB", 1024);
+
+
+	// Render this many frames offscreen and exit, no window needed (for machines without a display). 0 = normal window
+	public static final int HEADLESS_FRAMES = Integer.getInteger("outermilds.headlessFrames", 0);
+
+	// Save every frame as a PNG into this directory. Empty = don't capture
+	public static final String CAPTURE_DIR = System.getProperty("outermilds.captureDir", "");
+
+
+	// Draw the frame timing bars (ProfilerOverlay) on top of the scene
+	public static final boolean PROFILER_OVERLAY = Boolean.getBoolean("outermilds.overlay");
+
+
+	// Put the Sun and planets on their real orbits (a ChebyshevEphemeris) and only integrate the asteroids
+	public static final boolean RAILS = Boolean.getBoolean("outermilds.rails");
+
+
+	// Give every body its own step (BlockTimestep) instead of one global step for all of them
+	public static final boolean BLOCK_STEPS = Boolean.getBoolean("outermilds.blockSteps");
+
+
+	// Look for touching bodies after every step (CollisionDetector) and merge them
+	public static final boolean COLLISIONS = Boolean.getBoolean("outermilds.collisions");
+
+
+	// Add this many comets (and the big moons) to the scene, see Scenes.moonsAndComets. Not with rails
+	public static final int COMETS = Integer.getInteger("outermilds.comets", 0);
+
+	// Comet tails (ParticleSystem): gpu (transform feedback), cpu (the fallback) or off. Only with comets
+	public static final String PARTICLES = System.getProperty("outermilds.particles", "gpu");
+	public static final int PARTICLE_COUNT = Integer.getInteger("outermilds.particleCount", 131_072);
+
+	// Check the GPU particles against the CPU every this many frames (0 = never). Slow, for testing
+	public static final int PARTICLE_VERIFY = Integer.getInteger("outermilds.particleVerify", 0);
+
+
+	// Record the simulation to this replay file (see ReplayWriter). Empty = don't record
+	public static final String REPLAY_OUT = System.getProperty("outermilds.replayOut", "");
+
+	// Record every this many steps, and make every this many recorded frames a keyframe
+	public static final int REPLAY_EVERY = Integer.getInteger("outermilds.replayEvery", 10);
+	public static final int REPLAY_KEYFRAMES = Integer.getInteger("outermilds.replayKeyframes", 64);
+
+
+	// Benchmarks: write the micro benchmark results to this CSV, and compare them with an older one
+	public static final String BENCH_OUT = System.getProperty("outermilds.benchOut", "");
+	public static final String BENCH_BASELINE = System.getProperty("outermilds.benchBaseline", "");
+
+	// How much slower than the baseline counts as a regression (0.10 = 10%)
+	public static final double BENCH_TOLERANCE = Double.parseDouble(System.getProperty("outermilds.benchTolerance", "0.10"));
+
+
+	// How frames are paced: target (fixed rate, vsync off), vsync, or ondemand (only when something changed)
+	public static final String FRAME_PACING = System.getProperty("outermilds.pacing", "vsync");
+
+	// Frame rate for target mode (and the cap for ondemand), and when the window isn't focused
+	public static final double TARGET_FPS = Double.parseDouble(System.getProperty("outermilds.fps", "60"));
+	public static final double BACKGROUND_FPS = Double.parseDouble(System.getProperty("outermilds.backgroundFps", "10"));
+
+
+	// Draw the scene at a lower resolution while the GPU is over its budget, and scale it up (ResolutionController).
+	// The budget is GPU milliseconds per frame, 85% of a frame at the target rate unless set.
+	// The scale never goes below MIN_RESOLUTION_SCALE of the window's width and height
+	public static final boolean DYNAMIC_RESOLUTION = Boolean.parseBoolean(System.getProperty("outermilds.dynamicResolution", "true"));
+	public static final double GPU_BUDGET_MS = Double.parseDouble(System.getProperty("outermilds.gpuBudgetMs", String.valueOf(850.0 / TARGET_FPS)));
+	public static final double MIN_RESOLUTION_SCALE = Double.parseDouble(System.getProperty("outermilds.minScale", "0.5"));
+
+
+	private Settings() {
+	}
+
+}
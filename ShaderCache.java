@@ -0,0 +1,287 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLException;
+import com.jogamp.common.nio.Buffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * ShaderCache.java
+ *
+ * Builds all the shader programs at startup, as fast as possible.
+ *
+ * 1. Binary cache: after a program is linked, the driver can hand us the finished machine code
+ *    (glGetProgramBinary). We save it to disk, and next launch we give it straight back
+ *    (glProgramBinary) and skip compiling completely. The file name is a hash of the GLSL source
+ *    plus the GL_VERSION / GL_RENDERER / GL_VENDOR strings, so a driver update or a new GPU gets
+ *    a fresh key. If the driver rejects a binary anyway, we just compile from source again.
+ *
+ * 2. Parallel compile: every program that has to be built from source is started
+ *    (glCompileShader, glLinkProgram) before we ask about ANY of them. Checking the status is what
+ *    forces the driver to finish, so by not checking until the end, drivers with
+ *    KHR_parallel_shader_compile (Mesa, NVIDIA, ...) compile them all at once on their own threads.
+ *
+ * The time taken is printed together with the last cold (compiled) and warm (cached) start times.
+ *
+ * @author CLLFTVTV
+ */
+public class ShaderCache {
+
+
+	// KHR_parallel_shader_compile: asks whether a program has finished compiling, without waiting for it
+	private static final int GL_COMPLETION_STATUS_KHR = 0x91B1;
+
+
+	// The GLSL for one program
+	public static final class ProgramSource {
+		final String name;
+		final String vertex;
+		final String fragment;
+
+		public ProgramSource(String name, String vertex, String fragment) {
+			this.name = name;
+			this.vertex = vertex;
+			this.fragment = fragment;
+		}
+	}
+
+
+	private final Path directory;
+
+	private int hits;
+	private int misses;
+	private double lastBuildMillis;
+
+
+	public ShaderCache(Path directory) {
+		this.directory = directory;
+	}
+
+
+	// Build every program, from the cache where possible. Returns the program IDs in the same order.
+	// Throws GLException if a program's GLSL doesn't compile or link.
+	public int[] buildAll(GL3 gl, ProgramSource... sources) {
+		long start = System.nanoTime();
+		int count = sources.length;
+		int[] programs = new int[count];
+		String[] keys = new String[count];
+		hits = 0;
+		misses = 0;
+
+		boolean binariesSupported = binaryFormatCount(gl) > 0;
+		String driver = gl.glGetString(GL3.GL_VERSION) + "|" + gl.glGetString(GL3.GL_RENDERER) + "|" + gl.glGetString(GL3.GL_VENDOR);
+
+		// 1. Try the cache
+		for (int i = 0; i < count; i++) {
+			keys[i] = hash(driver, sources[i]);
+			if (binariesSupported) {
+				programs[i] = loadBinary(gl, keys[i]);
+			}
+			if (programs[i] != 0) hits++;
+		}
+
+		// 2. Start compiling everything the cache didn't have. No status checks yet!
+		int[] vertexShaders = new int[count];
+		int[] fragmentShaders = new int[count];
+		for (int i = 0; i < count; i++) {
+			if (programs[i] != 0) continue;
+			vertexShaders[i] = Shaders.createShader(gl, GL3.GL_VERTEX_SHADER, sources[i].vertex);
+			fragmentShaders[i] = Shaders.createShader(gl, GL3.GL_FRAGMENT_SHADER, sources[i].fragment);
+		}
+		for (int i = 0; i < count; i++) {
+			if (programs[i] != 0) continue;
+			int program = gl.glCreateProgram();
+			if (binariesSupported) {
+				// Tell the driver we'll want the binary back, so it keeps it around
+				gl.glProgramParameteri(program, GL3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL3.GL_TRUE);
+			}
+			gl.glAttachShader(program, vertexShaders[i]);
+			gl.glAttachShader(program, fragmentShaders[i]);
+			gl.glLinkProgram(program);
+			programs[i] = program;
+			misses++;
+		}
+
+		// 3. Now wait for them, check them, and save the binaries for next time
+		boolean canPoll = misses > 1 && gl.isExtensionAvailable("GL_KHR_parallel_shader_compile");
+		for (int i = 0; i < count; i++) {
+			if (vertexShaders[i] == 0) continue;
+			if (canPoll) waitForCompletion(gl, programs[i]);
+			try {
+				if (!Shaders.isLinked(gl, programs[i])) {
+					// Look at the shaders first, their log says which line is wrong
+					Shaders.checkShader(gl, vertexShaders[i]);
+					Shaders.checkShader(gl, fragmentShaders[i]);
+					Shaders.checkProgram(gl, programs[i]);
+				}
+			} catch (GLException e) {
+				throw new GLException("Program '" + sources[i].name + "': " + e.getMessage(), e);
+			}
+			gl.glDetachShader(programs[i], vertexShaders[i]);
+			gl.glDetachShader(programs[i], fragmentShaders[i]);
+			gl.glDeleteShader(vertexShaders[i]);
+			gl.glDeleteShader(fragmentShaders[i]);
+			if (binariesSupported) {
+				saveBinary(gl, programs[i], keys[i]);
+			}
+		}
+
+		lastBuildMillis = (System.nanoTime() - start) / 1e6;
+		report();
+		return programs;
+	}
+
+
+	// Poll until the driver's compiler threads are done with this program
+	private static void waitForCompletion(GL3 gl, int program) {
+		IntBuffer done = Buffers.newDirectIntBuffer(1);
+		while (true) {
+			gl.glGetProgramiv(program, GL_COMPLETION_STATUS_KHR, done);
+			if (done.get(0) != GL3.GL_FALSE) return;
+			Thread.onSpinWait();
+		}
+	}
+
+
+	private static int binaryFormatCount(GL3 gl) {
+		IntBuffer formats = Buffers.newDirectIntBuffer(1);
+		gl.glGetIntegerv(GL3.GL_NUM_PROGRAM_BINARY_FORMATS, formats);
+		return formats.get(0);
+	}
+
+
+	// Cached binary file layout: int binaryFormat, int length, then the bytes
+	private int loadBinary(GL3 gl, String key) {
+		Path file = directory.resolve(key + ".bin");
+		if (!Files.isRegularFile(file)) return 0;
+		try {
+			byte[] bytes = Files.readAllBytes(file);
+			ByteBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			int format = data.getInt();
+			int length = data.getInt();
+			if (length != data.remaining()) throw new IOException("truncated");
+			ByteBuffer binary = Buffers.newDirectByteBuffer(length);
+			binary.put(bytes, 8, length).flip();
+
+			int program = gl.glCreateProgram();
+			gl.glProgramBinary(program, format, binary, length);
+			if (Shaders.isLinked(gl, program)) return program;
+
+			// The driver didn't like it (updated since we saved it?). Compile from source instead
+			gl.glDeleteProgram(program);
+			System.out.println("ShaderCache: binary " + key + " rejected, recompiling");
+		} catch (IOException e) {
+			System.err.println("ShaderCache: couldn't read " + file + ": " + e.getMessage());
+		}
+		deleteQuietly(file);
+		return 0;
+	}
+
+
+	private void saveBinary(GL3 gl, int program, String key) {
+		IntBuffer lengthBuffer = Buffers.newDirectIntBuffer(1);
+		gl.glGetProgramiv(program, GL3.GL_PROGRAM_BINARY_LENGTH, lengthBuffer);
+		int length = lengthBuffer.get(0);
+		if (length <= 0) return;
+
+		ByteBuffer binary = Buffers.newDirectByteBuffer(length);
+		IntBuffer written = Buffers.newDirectIntBuffer(1);
+		IntBuffer format = Buffers.newDirectIntBuffer(1);
+		gl.glGetProgramBinary(program, length, written, format, binary);
+
+		byte[] bytes = new byte[8 + written.get(0)];
+		ByteBuffer out = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(format.get(0));
+		out.putInt(written.get(0));
+		binary.limit(written.get(0));
+		out.put(binary);
+
+		try {
+			Files.createDirectories(directory);
+			// Write to a temp file and rename, so a crash never leaves half a binary behind
+			Path temp = Files.createTempFile(directory, key, ".tmp");
+			Files.write(temp, bytes);
+			Files.move(temp, directory.resolve(key + ".bin"), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.err.println("ShaderCache: couldn't save " + key + ": " + e.getMessage());
+		}
+	}
+
+
+	// Print this start's time next to the last cold and warm starts (kept in startup.txt)
+	private void report() {
+		boolean warm = misses == 0;
+		Path timings = directory.resolve("startup.txt");
+		double cold = -1, warmTime = -1;
+		try {
+			if (Files.isRegularFile(timings)) {
+				String[] parts = Files.readString(timings).trim().split("\\s+");
+				cold = Double.parseDouble(parts[0]);
+				warmTime = Double.parseDouble(parts[1]);
+			}
+			if (warm) warmTime = lastBuildMillis;
+			else cold = lastBuildMillis;
+			Files.createDirectories(directory);
+			Files.writeString(timings, cold + " " + warmTime + "\n");
+		} catch (IOException | RuntimeException e) {
+			// Timings are only for the printout, never worth failing over
+		}
+		System.out.printf("ShaderCache: %d programs in %.1f ms (%d cached, %d compiled). Last cold start %s, last warm start %s%n",
+				hits + misses, lastBuildMillis, hits, misses, formatMillis(cold), formatMillis(warmTime));
+	}
+
+
+	private static String formatMillis(double ms) {
+		return ms < 0 ? "n/a" : String.format("%.1f ms", ms);
+	}
+
+
+	// SHA-256 of the driver strings and the sources, as hex
+	private static String hash(String driver, ProgramSource source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(driver.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(source.vertex.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(source.fragment.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 missing", e); // Every JVM has it
+		}
+	}
+
+
+	private static void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			// Not fatal, it'll be overwritten
+		}
+	}
+
+
+	public int getHits() {
+		return hits;
+	}
+
+
+	public int getMisses() {
+		return misses;
+	}
+
+
+	public double getLastBuildMillis() {
+		return lastBuildMillis;
+	}
+}
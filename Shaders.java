@@ -0,0 +1,125 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLException;
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Shaders.java
+ *
+ * The shader helpers, moved out of OuterMilds so every renderer can build its own programs.
+ *
+ * Errors throw a GLException with the driver's log, instead of System.exit(1),
+ * so the ShaderCache can fall back to compiling from source when a cached binary is rejected.
+ *
+ * @author CLLFTVTV
+ */
+public class Shaders {
+
+
+	private Shaders() {
+	}
+
+
+	// Helper method to compile a shader.
+	// Includes error checking
+	public static int compileShader(GL3 gl, int type, String source) {
+		int shaderID = createShader(gl, type, source);
+		checkShader(gl, shaderID);
+		return shaderID;
+	}
+
+
+	// Create and compile a shader WITHOUT checking it.
+	// Asking for the compile status makes the driver finish compiling right there, so when
+	// compiling lots of shaders we start them all first and check them afterwards.
+	public static int createShader(GL3 gl, int type, String source) {
+		int shaderID = gl.glCreateShader(type);
+		gl.glShaderSource(shaderID, 1, new String[]{source}, null);
+		gl.glCompileShader(shaderID);
+		return shaderID;
+	}
+
+
+	// Error Checking for a compiled shader
+	public static void checkShader(GL3 gl, int shaderID) {
+		IntBuffer compileStatus = Buffers.newDirectIntBuffer(1);
+		gl.glGetShaderiv(shaderID, GL3.GL_COMPILE_STATUS, compileStatus);
+
+		if (compileStatus.get(0) == GL3.GL_FALSE) {
+            IntBuffer logLengthBuffer = Buffers.newDirectIntBuffer(1);
+            gl.glGetShaderiv(shaderID, GL3.GL_INFO_LOG_LENGTH, logLengthBuffer);
+            int logLength = logLengthBuffer.get(0);
+
+            // 1. Allocate a direct ByteBuffer (native memory)
+            ByteBuffer log = Buffers.newDirectByteBuffer(Math.max(1, logLength));
+
+            // 2. Pass the ByteBuffer (not a byte[]) to OpenGL
+            gl.glGetShaderInfoLog(shaderID, logLength, null, log);
+
+            // 3. Copy the data from the ByteBuffer into a byte[] for printing
+            byte[] logBytes = new byte[logLength];
+            log.get(logBytes);
+
+            gl.glDeleteShader(shaderID);
+            throw new GLException("Shader compile error:\n" + new String(logBytes));
+        }
+	}
+
+
+	// Helper method to link the shaders in a single program
+	// Also includes error checking
+	public static int linkProgram(GL3 gl, int vertexShader, int fragmentShader) {
+        int programID = gl.glCreateProgram();
+        gl.glAttachShader(programID, vertexShader);
+        gl.glAttachShader(programID, fragmentShader);
+        gl.glLinkProgram(programID);
+        checkProgram(gl, programID);
+        return programID;
+    }
+
+
+	// Same, for a program whose vertex shader outputs are captured with transform feedback.
+	// The captured outputs have to be named BEFORE linking, interleaved into one buffer in this order.
+	// fragmentShader can be 0 when the program only ever runs with GL_RASTERIZER_DISCARD
+	public static int linkProgram(GL3 gl, int vertexShader, int fragmentShader, String... feedbackVaryings) {
+        int programID = gl.glCreateProgram();
+        gl.glAttachShader(programID, vertexShader);
+        if (fragmentShader != 0) {
+            gl.glAttachShader(programID, fragmentShader);
+        }
+        gl.glTransformFeedbackVaryings(programID, feedbackVaryings.length, feedbackVaryings, GL3.GL_INTERLEAVED_ATTRIBS);
+        gl.glLinkProgram(programID);
+        checkProgram(gl, programID);
+        return programID;
+    }
+
+
+	// Error Checking for a linked program (from source or from a binary)
+	public static void checkProgram(GL3 gl, int programID) {
+        if (!isLinked(gl, programID)) {
+            IntBuffer logLengthBuffer = Buffers.newDirectIntBuffer(1);
+            gl.glGetProgramiv(programID, GL3.GL_INFO_LOG_LENGTH, logLengthBuffer);
+            int logLength = logLengthBuffer.get(0);
+
+            // Allocate a direct ByteBuffer (native memory) to receive the log
+            ByteBuffer log = Buffers.newDirectByteBuffer(Math.max(1, logLength));
+            gl.glGetProgramInfoLog(programID, logLength, null, log);
+
+            // Create a byte[] (JVM memory) to copy the log into for printing
+            byte[] logBytes = new byte[logLength];
+            log.get(logBytes); // Copy from the ByteBuffer to the byte[]
+
+            gl.glDeleteProgram(programID);
+            throw new GLException("Shader link error:\n" + new String(logBytes));
+        }
+    }
+
+
+	public static boolean isLinked(GL3 gl, int programID) {
+		IntBuffer linkStatus = Buffers.newDirectIntBuffer(1);
+		gl.glGetProgramiv(programID, GL3.GL_LINK_STATUS, linkStatus);
+		return linkStatus.get(0) != GL3.GL_FALSE;
+	}
+}
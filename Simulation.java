@@ -0,0 +1,190 @@
+/**
+ * Simulation.java
+ *
+ * Drives the physics with a FIXED timestep.
+ * The Animator calls display() whenever it feels like it (60fps, 144fps, 20fps when the machine is busy...).
+ * If we used the frame time as the physics step the orbits would change depending on the frame rate.
+ * Instead we put the real time that passed into an "accumulator" and take as many
+ * fixed dt steps as fit into it. The leftover carries over to the next frame.
+ *
+ * No OpenGL in here, so it can run headless (tests, benchmarks, servers).
+ *
+ * @author CLLFTVTV
+ */
+public class Simulation {
+
+
+	private final BodySystem bodies;
+	private ForceModel forces;
+	private Integrator integrator;
+
+	// The fixed physics step, in simulated days
+	private final double dt;
+
+	// How many simulated days pass per real second
+	private double timeScale = 30.0;
+
+	// Never take more than this many steps in one advance() call.
+	// Otherwise a slow frame makes the next frame even slower ("spiral of death").
+	private int maxStepsPerAdvance = 16;
+
+	// Bodies that follow the ephemeris instead of being integrated (null = none)
+	private ChebyshevEphemeris rails;
+	private int[] railIndices;
+	private double[] railScratch;
+
+	// Checked for touching bodies after every step (null = no collisions), and whether they merge
+	private CollisionDetector collisions;
+	private boolean mergeCollisions;
+	private long collisionPairs;
+	private long mergedBodies;
+
+	private double accumulator;
+	private double time;
+	private long stepCount;
+
+
+	public Simulation(BodySystem bodies, ForceModel forces, Integrator integrator, double dt) {
+		this.bodies = bodies;
+		this.forces = forces;
+		this.integrator = integrator;
+		this.dt = dt;
+		// The integrators expect the accelerations at the starting positions
+		forces.computeAccelerations(bodies);
+	}
+
+
+	// Feed in real elapsed time (seconds). Returns how many fixed steps were taken
+	public int advance(double realSeconds) {
+		accumulator += realSeconds * timeScale;
+		int steps = 0;
+		while (accumulator >= dt && steps < maxStepsPerAdvance) {
+			step();
+			accumulator -= dt;
+			steps++;
+		}
+		// We couldn't keep up, so drop the backlog instead of trying to catch up forever
+		if (steps == maxStepsPerAdvance && accumulator > dt) {
+			accumulator = dt;
+		}
+		return steps;
+	}
+
+
+	// Take exactly one fixed step
+	public void step() {
+		integrator.step(bodies, forces, dt);
+		time += dt;
+		stepCount++;
+		if (rails != null) {
+			// The integrator moved the rail bodies too; put them back where the ephemeris says.
+			// Within one step the two hardly differ, so the forces it used on everything else still hold
+			rails.apply(time, bodies, railIndices, railScratch);
+		}
+		if (collisions != null) {
+			collisionPairs += collisions.detect(bodies);
+			if (mergeCollisions) {
+				int merged = collisions.merge(bodies);
+				if (merged > 0) {
+					// Fewer bodies, and the survivors moved and got heavier
+					mergedBodies += merged;
+					forces.computeAccelerations(bodies);
+				}
+			}
+		}
+	}
+
+
+	// How far (0..1) we are between the last step and the next one. Useful for interpolating when drawing
+	public double getAlpha() {
+		return accumulator / dt;
+	}
+
+
+	public void setForceModel(ForceModel forces) {
+		this.forces = forces;
+		forces.computeAccelerations(bodies);
+	}
+
+
+	public void setIntegrator(Integrator integrator) {
+		this.integrator = integrator;
+		forces.computeAccelerations(bodies);
+	}
+
+
+	// Pin bodies[indices[k]] to body k of the ephemeris from now on (the Sun and planets, usually).
+	// They still pull on everything else, but never drift. null = integrate everything again
+	public void setRails(ChebyshevEphemeris ephemeris, int[] indices) {
+		this.rails = ephemeris;
+		this.railIndices = indices == null ? null : indices.clone();
+		this.railScratch = ephemeris == null ? null : new double[6 * ephemeris.getBodyCount()];
+		if (ephemeris != null) {
+			ephemeris.apply(time, bodies, railIndices, railScratch);
+			forces.computeAccelerations(bodies);
+		}
+	}
+
+
+	// Look for touching bodies after every step, and merge them if `merge` (the body count then drops,
+	// which a ReplayWriter can't follow). null = stop looking
+	public void setCollisions(CollisionDetector detector, boolean merge) {
+		this.collisions = detector;
+		this.mergeCollisions = merge;
+	}
+
+
+	// Jump to a restored state (e.g. a ReplayReader checkpoint, already copied into the bodies)
+	public void setTime(double time, long stepCount) {
+		this.time = time;
+		this.stepCount = stepCount;
+		this.accumulator = 0.0;
+		forces.computeAccelerations(bodies);
+	}
+
+
+	public void setTimeScale(double daysPerSecond) {
+		this.timeScale = daysPerSecond;
+	}
+
+
+	public void setMaxStepsPerAdvance(int maxSteps) {
+		this.maxStepsPerAdvance = maxSteps;
+	}
+
+
+	public BodySystem getBodies() {
+		return bodies;
+	}
+
+
+	public ForceModel getForceModel() {
+		return forces;
+	}
+
+
+	public double getDt() {
+		return dt;
+	}
+
+
+	public double getTime() {
+		return time;
+	}
+
+
+	public long getStepCount() {
+		return stepCount;
+	}
+
+
+	// Touching pairs found and bodies merged away, since the start
+	public long getCollisionPairs() {
+		return collisionPairs;
+	}
+
+
+	public long getMergedBodies() {
+		return mergedBodies;
+	}
+}
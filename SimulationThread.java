@@ -0,0 +1,201 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SimulationThread.java
+ *
+ * Runs the Simulation on its own thread, at its own rate, so the physics and the frame rate don't
+ * hold each other up: a slow physics step doesn't drop a frame, and vsync doesn't slow the physics.
+ *
+ * Every tick it advances the Simulation by the real time that passed (fixed steps, see Simulation),
+ * then, if that took a step, copies the positions into a StateSnapshot and publishes it through
+ * a TripleBuffer. A paused simulation publishes nothing, so an on-demand renderer can sit idle.
+ * The render thread picks up the newest snapshot whenever it draws. No locks anywhere, and the
+ * snapshots are allocated up front, so neither side allocates.
+ *
+ * The Simulation belongs to this thread once start() is called. Don't touch it from anywhere else.
+ *
+ * @author CLLFTVTV
+ */
+public class SimulationThread {
+
+
+	private final Simulation simulation;
+	private final long tickNanos;
+
+	private final TripleBuffer<StateSnapshot> snapshots;
+
+	// The positions of the last publish, which become the next snapshot's prev
+	private final float[] lastX, lastY, lastZ;
+	private int lastCount;
+	private long lastPublishNanos;
+	private long lastTickNanos;
+
+	private Thread thread;
+	private volatile boolean running;
+	private volatile Runnable publishListener;
+
+	// Records the state every recordEverySteps steps, null = not recording
+	private ReplayWriter recorder;
+	private int recordEverySteps;
+	private long nextRecordStep;
+
+	// Written by the simulation thread only. Volatile so the render thread can print them
+	private volatile long ticks;
+	private volatile long lateTicks;
+
+
+	// tickHz: how often to step and publish. The Simulation's dt still decides the physics step
+	public SimulationThread(Simulation simulation, double tickHz) {
+		this.simulation = simulation;
+		this.tickNanos = (long) (1e9 / tickHz);
+		int capacity = simulation.getBodies().capacity;
+		this.snapshots = new TripleBuffer<>(new StateSnapshot(capacity), new StateSnapshot(capacity), new StateSnapshot(capacity));
+		this.lastX = new float[capacity];
+		this.lastY = new float[capacity];
+		this.lastZ = new float[capacity];
+		publish(System.nanoTime()); // So the renderer has something before the first tick
+	}
+
+
+	public void start() {
+		running = true;
+		thread = new Thread(this::run, "Simulation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	private void run() {
+		long last = System.nanoTime();
+		long next = last + tickNanos;
+		try {
+			while (running) {
+				// Sleep until the next tick
+				long now;
+				while ((now = System.nanoTime()) < next) {
+					LockSupport.parkNanos(next - now);
+				}
+				advance((now - last) / 1e9, now);
+				last = now;
+				next += tickNanos;
+
+				// Fell more than a whole tick behind: don't try to catch up, the Simulation caps its steps anyway
+				if (System.nanoTime() - next > tickNanos) {
+					lateTicks++;
+					next = System.nanoTime() + tickNanos;
+				}
+			}
+		} catch (RuntimeException e) {
+			running = false;
+			System.err.println("SimulationThread: stopped by an error");
+			e.printStackTrace();
+		}
+	}
+
+
+	// Step by realSeconds and publish (if it took a step), on the CALLING thread. For headless runs that need
+	// the same frames every time, don't start() the thread and call this once per frame instead
+	public void advance(double realSeconds) {
+		advance(realSeconds, System.nanoTime());
+	}
+
+
+	private void advance(double realSeconds, long now) {
+		// No step, nothing new to show: don't publish, so an on-demand renderer gets no redraw request
+		int steps = simulation.advance(realSeconds);
+		if (steps > 0 || lastPublishNanos == 0) publish(now);
+		lastTickNanos = now;
+		ticks++;
+		if (recorder != null && simulation.getStepCount() >= nextRecordStep) {
+			// Just a copy into a spare buffer, the writer thread does the rest
+			recorder.record(simulation.getBodies(), simulation.getTime(), simulation.getStepCount());
+			nextRecordStep = simulation.getStepCount() + recordEverySteps;
+		}
+	}
+
+
+	// Copy the current state into the back snapshot and hand it over
+	private void publish(long now) {
+		BodySystem b = simulation.getBodies();
+		StateSnapshot s = snapshots.back();
+		int n = b.count;
+		s.count = n;
+		for (int i = 0; i < n; i++) {
+			float x = (float) b.x[i], y = (float) b.y[i], z = (float) b.z[i];
+			s.prevX[i] = lastX[i];
+			s.prevY[i] = lastY[i];
+			s.prevZ[i] = lastZ[i];
+			s.curX[i] = x;
+			s.curY[i] = y;
+			s.curZ[i] = z;
+			lastX[i] = x;
+			lastY[i] = y;
+			lastZ[i] = z;
+			s.radius[i] = (float) b.radius[i];
+			s.color[i] = b.color[i];
+		}
+		// The very first snapshot has nothing before it. Nor has one after bodies merged
+		// (CollisionDetector): some of them moved to a new index, so their old positions don't line up
+		if (lastPublishNanos == 0 || n != lastCount) {
+			System.arraycopy(s.curX, 0, s.prevX, 0, n);
+			System.arraycopy(s.curY, 0, s.prevY, 0, n);
+			System.arraycopy(s.curZ, 0, s.prevZ, 0, n);
+		}
+		lastCount = n;
+		s.time = simulation.getTime();
+		s.stepCount = simulation.getStepCount();
+		// The steps were taken during this tick, so blend over the tick, even after ticks that published nothing
+		s.intervalNanos = lastPublishNanos == 0 ? 0 : now - Math.max(lastTickNanos, lastPublishNanos);
+		s.publishNanos = now;
+		lastPublishNanos = now;
+		snapshots.publish();
+
+		Runnable listener = publishListener;
+		if (listener != null) listener.run();
+	}
+
+
+	// Called (on the simulation thread) after every publish, e.g. to ask for a redraw. null = nobody
+	public void setPublishListener(Runnable publishListener) {
+		this.publishListener = publishListener;
+	}
+
+
+	// Record to a replay file every `everySteps` simulation steps (checked once per tick).
+	// Call before start(). null = stop recording (the caller closes the writer)
+	public void setRecorder(ReplayWriter recorder, int everySteps) {
+		this.recorder = recorder;
+		this.recordEverySteps = Math.max(1, everySteps);
+		this.nextRecordStep = simulation.getStepCount();
+	}
+
+
+	// Render thread: the newest snapshot. Keep using it until the next call
+	public StateSnapshot latest() {
+		return snapshots.acquire();
+	}
+
+
+	// Stop the thread and wait for it. After this the Simulation can be used directly again
+	public void stop() {
+		running = false;
+		if (thread == null) return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+
+	public long getTicks() {
+		return ticks;
+	}
+
+
+	// Ticks that ran more than a whole tick late (the physics can't keep up)
+	public long getLateTicks() {
+		return lateTicks;
+	}
+}
@@ -0,0 +1,467 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * StarCatalog.java
+ *
+ * The background stars, in a file that loads in milliseconds however many stars it holds.
+ *
+ * A catalog CSV (ra, dec, mag, ci columns) takes seconds to parse for a million stars, so it is
+ * converted once, offline (main(), or write()), into a .omst file that is memory mapped at startup
+ * and handed to glBufferData as it is (see StarField). Every star is an 8 byte record, quantized:
+ * 	direction   2 x uint16   octahedral encoding of the unit vector (ecliptic, J2000), ~20 arcseconds
+ * 	magnitude   uint8        MAG_MIN + code * MAG_STEP (1/16 of a magnitude)
+ * 	B-V colour  uint8        BV_MIN + code * BV_STEP
+ * 	spare       uint16       zero. Keeps the records 4 byte aligned, which the vertex fetch wants
+ * The shader decodes all of it, so nothing is unpacked on the CPU.
+ *
+ * The records are sorted into sky cells: each face of a cube around the sky split into
+ * side x side squares, brightest star first within a cell. The cell table (the first star of
+ * every cell) lets the renderer draw only the cells near the view, as runs of one draw call.
+ *
+ * File layout (little endian):
+ * 	0   'O' 'M' 'S' 'T'
+ * 	4   version (1)
+ * 	8   star count
+ * 	12  cells per cube face side
+ * 	16  MAG_MIN, MAG_STEP, BV_MIN, BV_STEP (floats; a file quantized differently is refused)
+ * 	32  record bytes (8), then zeros up to 48
+ * 	48  cell table: 6 * side * side + 1 ints, the first star of every cell and then the star count
+ * 	then the records, starting on a 16 byte boundary
+ *
+ * @author CLLFTVTV
+ */
+public class StarCatalog {
+
+
+	static final byte[] MAGIC = {'O', 'M', 'S', 'T'};
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 48;
+	public static final int RECORD_BYTES = 8;
+
+	// Cube face cells per side: 6 * 16 * 16 = 1536 cells, ~27 square degrees each
+	public static final int DEFAULT_SIDE = 16;
+
+	// The quantization
+	public static final float MAG_MIN = -2.0f, MAG_STEP = 1.0f / 16.0f;
+	public static final float BV_MIN = -0.5f, BV_STEP = 2.5f / 255.0f;
+
+	// Roughly the Sun's colour, for catalog rows without one
+	private static final float DEFAULT_BV = 0.65f;
+
+	// Between the celestial equator and the ecliptic (J2000)
+	private static final double OBLIQUITY = Math.toRadians(23.4393);
+
+
+	// Stars before quantizing: unit direction (ecliptic), visual magnitude, B-V colour index
+	public static class Stars {
+		public int count;
+		public float[] x, y, z, magnitude, colorIndex;
+
+		public Stars(int capacity) {
+			x = new float[capacity];
+			y = new float[capacity];
+			z = new float[capacity];
+			magnitude = new float[capacity];
+			colorIndex = new float[capacity];
+		}
+
+		void add(float dx, float dy, float dz, float mag, float bv) {
+			if (count == x.length) {
+				int capacity = Math.max(1024, count * 2);
+				x = Arrays.copyOf(x, capacity);
+				y = Arrays.copyOf(y, capacity);
+				z = Arrays.copyOf(z, capacity);
+				magnitude = Arrays.copyOf(magnitude, capacity);
+				colorIndex = Arrays.copyOf(colorIndex, capacity);
+			}
+			x[count] = dx;
+			y[count] = dy;
+			z[count] = dz;
+			magnitude[count] = mag;
+			colorIndex[count] = bv;
+			count++;
+		}
+	}
+
+
+	public final int starCount;
+	public final int side;
+	public final int cellCount;
+	private final int[] cellFirst; // cellCount + 1 entries
+
+	// Every cell's centre direction, and the angle from it to the cell's furthest corner
+	private final float[] cellX, cellY, cellZ, cellRadius;
+
+	// Straight view of the records in the file mapping, position 0, little endian
+	private final ByteBuffer records;
+
+
+	private StarCatalog(int starCount, int side, int[] cellFirst, ByteBuffer records) {
+		this.starCount = starCount;
+		this.side = side;
+		this.cellCount = 6 * side * side;
+		this.cellFirst = cellFirst;
+		this.records = records;
+		cellX = new float[cellCount];
+		cellY = new float[cellCount];
+		cellZ = new float[cellCount];
+		cellRadius = new float[cellCount];
+		float[] centre = new float[3], corner = new float[3];
+		for (int c = 0; c < cellCount; c++) {
+			int face = c / (side * side), j = c / side % side, i = c % side;
+			cellDirection(face, (i + 0.5f) * 2.0f / side - 1.0f, (j + 0.5f) * 2.0f / side - 1.0f, centre);
+			float radius = 0.0f;
+			for (int k = 0; k < 4; k++) {
+				cellDirection(face, (i + (k & 1)) * 2.0f / side - 1.0f, (j + (k >> 1)) * 2.0f / side - 1.0f, corner);
+				float dot = centre[0] * corner[0] + centre[1] * corner[1] + centre[2] * corner[2];
+				radius = Math.max(radius, (float) Math.acos(Math.min(1.0f, dot)));
+			}
+			cellX[c] = centre[0];
+			cellY[c] = centre[1];
+			cellZ[c] = centre[2];
+			cellRadius[c] = radius;
+		}
+	}
+
+
+	// Map a .omst file. Only the header and the cell table are read, the records are paged in
+	// when they're uploaded. The mapping stays valid after the channel is closed
+	public static StarCatalog open(Path path) throws IOException {
+		ByteBuffer file;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		String name = path.getFileName().toString();
+		if (file.limit() < HEADER_BYTES) throw new IOException(name + ": too short for a star catalog");
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (file.get(i) != MAGIC[i]) throw new IOException(name + ": not a star catalog");
+		}
+		if (file.getInt(4) != VERSION) throw new IOException(name + ": unsupported star catalog version " + file.getInt(4));
+		int starCount = file.getInt(8);
+		int side = file.getInt(12);
+		if (starCount < 0 || side <= 0 || side > 1024 || file.getInt(32) != RECORD_BYTES) {
+			throw new IOException(name + ": corrupt header");
+		}
+		if (file.getFloat(16) != MAG_MIN || file.getFloat(20) != MAG_STEP || file.getFloat(24) != BV_MIN || file.getFloat(28) != BV_STEP) {
+			throw new IOException(name + ": written with a different quantization, convert it again");
+		}
+
+		int cells = 6 * side * side;
+		long recordStart = align(HEADER_BYTES + 4L * (cells + 1), 16);
+		long recordEnd = recordStart + (long) starCount * RECORD_BYTES;
+		if (recordEnd > file.limit()) {
+			throw new IOException(name + ": truncated (" + file.limit() + " bytes, header says " + recordEnd + ")");
+		}
+		int[] cellFirst = new int[cells + 1];
+		for (int c = 0; c <= cells; c++) {
+			cellFirst[c] = file.getInt(HEADER_BYTES + 4 * c);
+			if (cellFirst[c] < (c == 0 ? 0 : cellFirst[c - 1]) || cellFirst[c] > starCount) {
+				throw new IOException(name + ": corrupt cell table");
+			}
+		}
+		if (cellFirst[cells] != starCount) throw new IOException(name + ": corrupt cell table");
+
+		file.position((int) recordStart);
+		file.limit((int) recordEnd);
+		return new StarCatalog(starCount, side, cellFirst, file.slice().order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+
+	// Quantize the stars, sort them into cells (brightest first within each) and save them as a .omst
+	public static void write(Path path, Stars stars, int side) throws IOException {
+		int n = stars.count, cells = 6 * side * side;
+
+		// Counting sort on (cell, magnitude code): both are small integers
+		int[] key = new int[n];
+		int[] buckets = new int[cells * 256 + 1];
+		for (int i = 0; i < n; i++) {
+			key[i] = cellOf(stars.x[i], stars.y[i], stars.z[i], side) * 256 + magnitudeCode(stars.magnitude[i]);
+			buckets[key[i] + 1]++;
+		}
+		for (int b = 1; b < buckets.length; b++) buckets[b] += buckets[b - 1];
+		int[] cellFirst = new int[cells + 1];
+		for (int c = 0; c <= cells; c++) cellFirst[c] = buckets[c * 256];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) order[buckets[key[i]]++] = i;
+
+		int recordStart = (int) align(HEADER_BYTES + 4L * (cells + 1), 16);
+		ByteBuffer out = ByteBuffer.allocate(recordStart + n * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		out.put(MAGIC).putInt(VERSION).putInt(n).putInt(side);
+		out.putFloat(MAG_MIN).putFloat(MAG_STEP).putFloat(BV_MIN).putFloat(BV_STEP).putInt(RECORD_BYTES);
+		out.position(HEADER_BYTES);
+		for (int c = 0; c <= cells; c++) out.putInt(cellFirst[c]);
+		out.position(recordStart);
+		for (int k = 0; k < n; k++) {
+			int i = order[k];
+			out.putInt(encodeDirection(stars.x[i], stars.y[i], stars.z[i]));
+			out.put((byte) magnitudeCode(stars.magnitude[i]));
+			out.put((byte) colorCode(stars.colorIndex[i]));
+			out.putShort((short) 0);
+		}
+		out.flip();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (out.hasRemaining()) channel.write(out);
+		}
+	}
+
+
+	// Read a catalog CSV. The first line names the columns: ra and dec (equatorial, degrees) or rarad
+	// and decrad (radians, preferred: the HYG catalog's ra is in hours), mag, and optionally ci (B-V).
+	// Other columns are ignored, and so are rows without a position or magnitude. Plain comma
+	// separated, no quoted fields
+	public static Stars readCsv(Path path) throws IOException {
+		Stars stars = new Stars(1024);
+		try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String header = in.readLine();
+			if (header == null) throw new IOException(path.getFileName() + ": empty");
+			String[] names = header.split(",", -1);
+			int ra = -1, dec = -1, raRad = -1, decRad = -1, mag = -1, ci = -1;
+			for (int c = 0; c < names.length; c++) {
+				String name = names[c].trim().replace("\"", "").toLowerCase();
+				if (name.equals("ra")) ra = c;
+				if (name.equals("dec")) dec = c;
+				if (name.equals("rarad")) raRad = c;
+				if (name.equals("decrad")) decRad = c;
+				if (name.equals("mag")) mag = c;
+				if (name.equals("ci")) ci = c;
+			}
+			boolean radians = raRad >= 0 && decRad >= 0;
+			if (radians) {
+				ra = raRad;
+				dec = decRad;
+			}
+			if (ra < 0 || dec < 0 || mag < 0) throw new IOException(path.getFileName() + ": needs ra, dec and mag columns");
+
+			double cosE = Math.cos(OBLIQUITY), sinE = Math.sin(OBLIQUITY);
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",", -1);
+				if (fields.length <= Math.max(Math.max(ra, dec), mag)) continue;
+				try {
+					double alpha = Double.parseDouble(fields[ra].trim()), delta = Double.parseDouble(fields[dec].trim());
+					if (!radians) {
+						alpha = Math.toRadians(alpha);
+						delta = Math.toRadians(delta);
+					}
+					float m = Float.parseFloat(fields[mag].trim());
+					float bv = ci < fields.length && ci >= 0 && !fields[ci].trim().isEmpty() ? Float.parseFloat(fields[ci].trim()) : DEFAULT_BV;
+					// Equatorial to ecliptic: a turn about x by the obliquity
+					double x = Math.cos(delta) * Math.cos(alpha), y = Math.cos(delta) * Math.sin(alpha), z = Math.sin(delta);
+					stars.add((float) x, (float) (cosE * y + sinE * z), (float) (-sinE * y + cosE * z), m, bv);
+				} catch (NumberFormatException e) {
+					// A blank or broken field: skip the star
+				}
+			}
+		}
+		return stars;
+	}
+
+
+	// A made up sky for testing and benchmarks: about as many faint stars per magnitude as the real
+	// one (3x more per magnitude fainter), with 40% of them crowded around a galactic plane
+	public static Stars synthetic(int count, long seed) {
+		Random random = new Random(seed);
+		Stars stars = new Stars(count);
+		double tilt = Math.toRadians(60.0); // The galactic plane against the ecliptic
+		for (int s = 0; s < count; s++) {
+			double x, y, z;
+			if (random.nextDouble() < 0.4) {
+				double longitude = 2.0 * Math.PI * random.nextDouble();
+				double latitude = Math.toRadians(10.0) * random.nextGaussian();
+				double px = Math.cos(latitude) * Math.cos(longitude), py = Math.cos(latitude) * Math.sin(longitude), pz = Math.sin(latitude);
+				x = px;
+				y = Math.cos(tilt) * py - Math.sin(tilt) * pz;
+				z = Math.sin(tilt) * py + Math.cos(tilt) * pz;
+			} else {
+				z = 2.0 * random.nextDouble() - 1.0;
+				double longitude = 2.0 * Math.PI * random.nextDouble(), r = Math.sqrt(1.0 - z * z);
+				x = r * Math.cos(longitude);
+				y = r * Math.sin(longitude);
+			}
+			float m = (float) Math.max(-1.5, 12.0 + Math.log10(1.0 - random.nextDouble()) / 0.45);
+			float bv = (float) Math.max(-0.4, Math.min(2.0, 0.7 + 0.4 * random.nextGaussian()));
+			stars.add((float) x, (float) y, (float) z, m, bv);
+		}
+		return stars;
+	}
+
+
+	// The records, RECORD_BYTES each, ready for glBufferData
+	public ByteBuffer getRecords() {
+		return records.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+
+	// Read every page of the records now (on a loader thread), so the upload doesn't wait on the disk.
+	// Returns a sum of the bytes read, so the reads can't be skipped
+	public int touch() {
+		int sum = 0;
+		for (int p = 0; p < records.limit(); p += 4096) sum += records.get(p);
+		return sum;
+	}
+
+
+	// Stars cellFirst(c) .. cellFirst(c + 1) are in cell c
+	public int cellFirst(int cell) {
+		return cellFirst[cell];
+	}
+
+
+	// Star i, decoded (for checking, the renderer decodes in the shader)
+	public void direction(int i, float[] out) {
+		decodeDirection(records.getInt(i * RECORD_BYTES), out);
+	}
+
+
+	public float magnitude(int i) {
+		return MAG_MIN + (records.get(i * RECORD_BYTES + 4) & 0xFF) * MAG_STEP;
+	}
+
+
+	public float colorIndex(int i) {
+		return BV_MIN + (records.get(i * RECORD_BYTES + 5) & 0xFF) * BV_STEP;
+	}
+
+
+	// The cells within halfAngle (radians) of the view direction, as runs of stars: first[r], count[r].
+	// Neighbouring cells are merged into one run. Returns the number of runs (first, count hold cellCount)
+	public int visibleRuns(float viewX, float viewY, float viewZ, float halfAngle, int[] first, int[] count) {
+		float length = (float) Math.sqrt(viewX * viewX + viewY * viewY + viewZ * viewZ);
+		int runs = 0;
+		for (int c = 0; c < cellCount; c++) {
+			int from = cellFirst[c], to = cellFirst[c + 1];
+			if (from == to) continue;
+			float dot = (cellX[c] * viewX + cellY[c] * viewY + cellZ[c] * viewZ) / length;
+			if (Math.acos(Math.max(-1.0f, Math.min(1.0f, dot))) > halfAngle + cellRadius[c]) continue;
+			if (runs > 0 && first[runs - 1] + count[runs - 1] == from) {
+				count[runs - 1] += to - from;
+			} else {
+				first[runs] = from;
+				count[runs] = to - from;
+				runs++;
+			}
+		}
+		return runs;
+	}
+
+
+	// Octahedral encoding: the unit vector projected onto the octahedron |x| + |y| + |z| = 1, the lower
+	// half folded out over the corners, then x and y as 16 bit fractions. Returns u | v << 16
+	static int encodeDirection(float x, float y, float z) {
+		float l = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		float u = x / l, v = y / l;
+		if (z < 0.0f) {
+			float fu = (1.0f - Math.abs(v)) * (u >= 0.0f ? 1.0f : -1.0f);
+			float fv = (1.0f - Math.abs(u)) * (v >= 0.0f ? 1.0f : -1.0f);
+			u = fu;
+			v = fv;
+		}
+		int qu = Math.round((u * 0.5f + 0.5f) * 65535.0f), qv = Math.round((v * 0.5f + 0.5f) * 65535.0f);
+		return qu | qv << 16;
+	}
+
+
+	// The other way (what the vertex shader does), into out[0 .. 3)
+	static void decodeDirection(int packed, float[] out) {
+		float u = (packed & 0xFFFF) / 65535.0f * 2.0f - 1.0f, v = (packed >>> 16) / 65535.0f * 2.0f - 1.0f;
+		float x = u, y = v, z = 1.0f - Math.abs(u) - Math.abs(v);
+		if (z < 0.0f) {
+			x = (1.0f - Math.abs(v)) * (u >= 0.0f ? 1.0f : -1.0f);
+			y = (1.0f - Math.abs(u)) * (v >= 0.0f ? 1.0f : -1.0f);
+		}
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		out[0] = x / length;
+		out[1] = y / length;
+		out[2] = z / length;
+	}
+
+
+	static int magnitudeCode(float magnitude) {
+		return Math.max(0, Math.min(255, Math.round((magnitude - MAG_MIN) / MAG_STEP)));
+	}
+
+
+	static int colorCode(float bv) {
+		return Math.max(0, Math.min(255, Math.round((bv - BV_MIN) / BV_STEP)));
+	}
+
+
+	// The cube face cell a direction falls in: face (+x, -x, +y, -y, +z, -z), then row, then column
+	static int cellOf(float x, float y, float z, int side) {
+		float ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+		int face;
+		float u, v;
+		if (ax >= ay && ax >= az) {
+			face = x >= 0.0f ? 0 : 1;
+			u = y / ax;
+			v = z / ax;
+		} else if (ay >= az) {
+			face = y >= 0.0f ? 2 : 3;
+			u = x / ay;
+			v = z / ay;
+		} else {
+			face = z >= 0.0f ? 4 : 5;
+			u = x / az;
+			v = y / az;
+		}
+		int i = Math.min(side - 1, (int) ((u + 1.0f) * 0.5f * side));
+		int j = Math.min(side - 1, (int) ((v + 1.0f) * 0.5f * side));
+		return (face * side + j) * side + i;
+	}
+
+
+	// The unit direction through (u, v) (-1 .. 1) on a face, the inverse of cellOf
+	private static void cellDirection(int face, float u, float v, float[] out) {
+		float x, y, z;
+		switch (face) {
+			case 0: x = 1.0f; y = u; z = v; break;
+			case 1: x = -1.0f; y = u; z = v; break;
+			case 2: x = u; y = 1.0f; z = v; break;
+			case 3: x = u; y = -1.0f; z = v; break;
+			case 4: x = u; y = v; z = 1.0f; break;
+			default: x = u; y = v; z = -1.0f; break;
+		}
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		out[0] = x / length;
+		out[1] = y / length;
+		out[2] = z / length;
+	}
+
+
+	private static long align(long value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+
+	// Convert a catalog CSV to a .omst:
+	// 	java StarCatalog hygdata.csv stars.omst
+	// or make up a sky of N stars:
+	// 	java StarCatalog synthetic:1000000 stars.omst
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java StarCatalog <catalog.csv | synthetic:N> <out.omst>");
+			System.exit(2);
+		}
+		long start = System.nanoTime();
+		Stars stars = args[0].startsWith("synthetic:")
+				? synthetic(Integer.parseInt(args[0].substring("synthetic:".length())), 1L)
+				: readCsv(Paths.get(args[0]));
+		long read = System.nanoTime();
+		write(Paths.get(args[1]), stars, DEFAULT_SIDE);
+		System.out.printf("%d stars: read in %.0f ms, written in %.0f ms (%.1f MB)%n", stars.count, (read - start) / 1e6,
+				(System.nanoTime() - read) / 1e6, Files.size(Paths.get(args[1])) / 1048576.0);
+	}
+}
@@ -0,0 +1,185 @@
+import com.jogamp.opengl.GL3;
+
+/**
+ * StarField.java
+ *
+ * Draws a StarCatalog as the sky behind everything: one static VBO holding the catalog's records
+ * exactly as they are in the file, and one draw call.
+ *
+ * The VBO is filled straight from the catalog's file mapping, once, and never touched again.
+ * The vertex shader decodes each 8 byte record itself (the octahedral direction, magnitude and
+ * B-V colour, see StarCatalog) and puts the star at infinity: only the camera's rotation moves
+ * it. Brighter stars are drawn bigger (SIZE_PER_MAG pixels per magnitude), stars fainter than
+ * the limit fade out instead, and the colour comes from B-V (blue-white to orange-red).
+ *
+ * Only the sky cells near the view are drawn. The cells are contiguous runs of the VBO, so the
+ * visible ones go to a single glMultiDrawArrays. They only change with the view (setView).
+ *
+ * @author CLLFTVTV
+ */
+public class StarField {
+
+
+	// Point size: 1 pixel at the faint limit, SIZE_PER_MAG more per magnitude brighter, up to MAX_POINT_PIXELS
+	private static final float SIZE_PER_MAG = 0.5f;
+	private static final float MAX_POINT_PIXELS = 6.0f;
+
+
+	private static final String VERTEX_SHADER =
+			"#version 330 core\n" +
+			"layout (location = 0) in vec2 aDirection;\n" + // Octahedral, 0..1
+			"layout (location = 1) in vec2 aMagnitudeColor;\n" + // The magnitude and B-V codes, 0..1
+			"uniform mat4 uSky;\n" + // projection * the view's rotation
+			"uniform float uFaintMagnitude;\n" +
+			"out vec4 vColor;\n" +
+			"vec3 starColor(float bv) {\n" +
+			"	vec3 c = mix(vec3(0.62, 0.72, 1.0), vec3(1.0, 0.98, 0.95), smoothstep(-0.3, 0.4, bv));\n" +
+			"	c = mix(c, vec3(1.0, 0.78, 0.5), smoothstep(0.4, 1.2, bv));\n" +
+			"	return mix(c, vec3(1.0, 0.58, 0.38), smoothstep(1.2, 2.0, bv));\n" +
+			"}\n" +
+			"void main() {\n" +
+			"	vec2 e = aDirection * 2.0 - 1.0;\n" +
+			"	vec3 d = vec3(e, 1.0 - abs(e.x) - abs(e.y));\n" +
+			"	if (d.z < 0.0) d.xy = (1.0 - abs(d.yx)) * vec2(d.x >= 0.0 ? 1.0 : -1.0, d.y >= 0.0 ? 1.0 : -1.0);\n" +
+			"	vec4 c = uSky * vec4(normalize(d), 0.0);\n" +
+			"	gl_Position = vec4(c.xy, 0.0, c.w);\n" + // Infinitely far, but inside the depth range. Behind us: w < 0, clipped
+			"	float magnitude = " + StarCatalog.MAG_MIN + " + aMagnitudeColor.x * 255.0 * " + StarCatalog.MAG_STEP + ";\n" +
+			"	float bv = " + StarCatalog.BV_MIN + " + aMagnitudeColor.y * 255.0 * " + StarCatalog.BV_STEP + ";\n" +
+			"	float brighter = uFaintMagnitude - magnitude;\n" +
+			"	gl_PointSize = clamp(1.0 + " + SIZE_PER_MAG + " * brighter, 1.0, " + MAX_POINT_PIXELS + ");\n" +
+			"	vColor = vec4(starColor(bv), min(1.0, pow(10.0, 0.4 * brighter)));\n" +
+			"}\n";
+
+	private static final String FRAGMENT_SHADER =
+			"#version 330 core\n" +
+			"in vec4 vColor;\n" +
+			"out vec4 FragColor;\n" +
+			"void main() {\n" +
+			"	vec2 p = gl_PointCoord * 2.0 - 1.0;\n" +
+			"	float d = dot(p, p);\n" +
+			"	if (d > 1.0) discard;\n" +
+			"	FragColor = vec4(vColor.rgb, vColor.a * (1.0 - d * d));\n" +
+			"}\n";
+
+	public static final ShaderCache.ProgramSource PROGRAM = new ShaderCache.ProgramSource("stars", VERTEX_SHADER, FRAGMENT_SHADER);
+
+
+	private final StarCatalog catalog;
+	private final float faintMagnitude;
+
+	private int shaderProgramID;
+	private int vaoID;
+	private int vboID;
+	private int skyLocation, faintLocation;
+	private final RenderQueue.Drawer drawer = (gl, state, arg) -> drawStars(gl);
+
+	// projection * the view without its translation, and the visible cells as runs of the VBO
+	private final Mat4 rotation = new Mat4(), sky = new Mat4();
+	private final int[] runFirst, runCount;
+	private int runs;
+	private int starsDrawn;
+
+
+	// faintMagnitude: stars fainter than this fade out
+	public StarField(StarCatalog catalog, float faintMagnitude) {
+		this.catalog = catalog;
+		this.faintMagnitude = faintMagnitude;
+		runFirst = new int[catalog.cellCount];
+		runCount = new int[catalog.cellCount];
+	}
+
+
+	// Upload the records and set up the VAO
+	public void init(GL3 gl, int program) {
+		init(gl, program, createBuffer(gl));
+	}
+
+
+	// The VBO of the records, straight from the mapping (the only copy is the driver's).
+	// Any context that shares objects with the one drawing will do (an AssetLoader's upload context)
+	public int createBuffer(GL3 gl) {
+		int[] ids = new int[1];
+		gl.glGenBuffers(1, ids, 0);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, ids[0]);
+		gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) catalog.starCount * StarCatalog.RECORD_BYTES, catalog.getRecords(), GL3.GL_STATIC_DRAW);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		return ids[0];
+	}
+
+
+	// The VAO over a VBO from createBuffer(), on the context that draws
+	public void init(GL3 gl, int program, int vbo) {
+		shaderProgramID = program;
+		vboID = vbo;
+		skyLocation = gl.glGetUniformLocation(program, "uSky");
+		faintLocation = gl.glGetUniformLocation(program, "uFaintMagnitude");
+
+		int[] ids = new int[1];
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vboID);
+		gl.glGenVertexArrays(1, ids, 0);
+		vaoID = ids[0];
+		gl.glBindVertexArray(vaoID);
+		gl.glVertexAttribPointer(0, 2, GL3.GL_UNSIGNED_SHORT, true, StarCatalog.RECORD_BYTES, 0);
+		gl.glEnableVertexAttribArray(0);
+		gl.glVertexAttribPointer(1, 2, GL3.GL_UNSIGNED_BYTE, true, StarCatalog.RECORD_BYTES, 4);
+		gl.glEnableVertexAttribArray(1);
+		gl.glBindVertexArray(0);
+		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+	}
+
+
+	// New camera: rebuild the sky matrix and pick the cells inside the view (plus a cell's width)
+	public void setView(Mat4 view, Mat4 projection, float fovY, float aspect) {
+		rotation.set(view);
+		rotation.m[12] = rotation.m[13] = rotation.m[14] = 0.0f;
+		sky.mul(projection, rotation);
+
+		// The camera looks down its -z: the view matrix's third row, negated. The half angle is to the corners
+		float[] v = view.m;
+		float tanY = (float) Math.tan(fovY / 2.0);
+		float halfAngle = (float) Math.atan(tanY * Math.sqrt(1.0 + aspect * aspect));
+		runs = catalog.visibleRuns(-v[2], -v[6], -v[10], halfAngle, runFirst, runCount);
+		starsDrawn = 0;
+		for (int r = 0; r < runs; r++) starsDrawn += runCount[r];
+	}
+
+
+	// Queue the stars behind everything else
+	public void submit(GL3 gl, RenderQueue queue) {
+		if (runs == 0) return;
+		queue.submit(RenderQueue.LAYER_BACKGROUND, shaderProgramID, vaoID, 0, 0.0f, drawer, 0);
+	}
+
+
+	// Called by the queue, with the program, the VAO and blending set
+	private void drawStars(GL3 gl) {
+		gl.glUniformMatrix4fv(skyLocation, 1, false, sky.m, 0);
+		gl.glUniform1f(faintLocation, faintMagnitude);
+		gl.glEnable(GL3.GL_PROGRAM_POINT_SIZE);
+		gl.glMultiDrawArrays(GL3.GL_POINTS, runFirst, 0, runCount, 0, runs);
+		gl.glDisable(GL3.GL_PROGRAM_POINT_SIZE);
+	}
+
+
+	// Stars in the cells drawn, and those cells as runs (the ranges in the one draw call)
+	public int getStarsDrawn() {
+		return starsDrawn;
+	}
+
+
+	public int getRuns() {
+		return runs;
+	}
+
+
+	public int getStarCount() {
+		return catalog.starCount;
+	}
+
+
+	public void dispose(GL3 gl) {
+		gl.glDeleteProgram(shaderProgramID);
+		gl.glDeleteBuffers(1, new int[] {vboID}, 0);
+		gl.glDeleteVertexArrays(1, new int[] {vaoID}, 0);
+	}
+}
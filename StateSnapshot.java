@@ -0,0 +1,55 @@
+/**
+ * StateSnapshot.java
+ *
+ * A copy of what the renderer needs from the simulation, made by the simulation thread.
+ *
+ * It holds TWO sets of positions: the state at the last publish (prev) and now (cur), plus when
+ * they were taken. The renderer draws a blend of the two, so bodies glide smoothly even though the
+ * simulation only publishes every few milliseconds (and not in step with the frames).
+ * That puts the picture one publish behind the simulation, which nobody can see.
+ *
+ * Positions are floats: that's what goes to the GPU anyway, and it halves the copying.
+ *
+ * @author CLLFTVTV
+ */
+public class StateSnapshot {
+
+
+	public final int capacity;
+	public int count;
+
+	public final float[] prevX, prevY, prevZ;
+	public final float[] curX, curY, curZ;
+	public final float[] radius;
+	public final int[] color;
+
+	// Simulated time of cur, in days, and how many steps the simulation has taken
+	public double time;
+	public long stepCount;
+
+	// System.nanoTime() when cur was published, and how long after prev
+	public long publishNanos;
+	public long intervalNanos;
+
+
+	public StateSnapshot(int capacity) {
+		this.capacity = capacity;
+		prevX = new float[capacity];
+		prevY = new float[capacity];
+		prevZ = new float[capacity];
+		curX = new float[capacity];
+		curY = new float[capacity];
+		curZ = new float[capacity];
+		radius = new float[capacity];
+		color = new int[capacity];
+	}
+
+
+	// How far from prev to cur the renderer should be at time nowNanos: 0 = prev, 1 = cur.
+	// We want to be one publish interval behind, so this goes from 0 to 1 over the next interval
+	public float alpha(long nowNanos) {
+		if (intervalNanos <= 0) return 1.0f;
+		double a = (double) (nowNanos - publishNanos) / intervalNanos;
+		return (float) Math.max(0.0, Math.min(1.0, a));
+	}
+}
@@ -0,0 +1,256 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GL4;
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * StreamingBuffer.java
+ *
+ * A GPU buffer for data that changes every frame (like the body positions).
+ *
+ * The problem: if we overwrite a buffer the GPU is still drawing from (last frame's draw hasn't
+ * finished yet), the driver has to stall us until it's done. So the buffer is split into a ring
+ * of N regions. Frame 0 writes region 0, frame 1 writes region 1, ... and by the time we come
+ * back around to region 0 the GPU has (hopefully) finished with it.
+ * Each region gets a fence (glFenceSync) after its draw calls. Before writing a region again
+ * we check its fence. If the GPU still isn't done we have to wait, and we count that,
+ * so the ring depth can be tuned (more regions = fewer waits, more memory).
+ *
+ * Three ways of getting the data in, best first:
+ * 	PERSISTENT:     GL 4.4 glBufferStorage. The buffer is mapped ONCE and stays mapped forever,
+ * 	                we write straight into GPU visible memory.
+ * 	UNSYNCHRONIZED: glMapBufferRange each frame with the unsynchronized + invalidate flags.
+ * 	                The fences are what make that safe.
+ * 	ORPHAN:         The fallback. glBufferData(null) gives us fresh storage, then glBufferSubData.
+ *
+ * @author CLLFTVTV
+ */
+public class StreamingBuffer {
+
+
+	public enum Mode { PERSISTENT, UNSYNCHRONIZED, ORPHAN }
+
+
+	// A mode setting (Settings.STREAM_MODE) as a Mode, or null for automatic
+	public static Mode parseMode(String setting) {
+		if (setting.isEmpty()) return null;
+		return Mode.valueOf(setting.toUpperCase());
+	}
+
+
+	// How long to block in one glClientWaitSync call (nanoseconds) before checking again
+	private static final long WAIT_TIMEOUT_NANOS = 1_000_000L;
+
+
+	private final int target;
+	private final int regionSize;
+	private final int regionCount;
+
+	private Mode mode;
+	private int bufferID;
+
+	// One fence per region (0 = nothing in flight)
+	private final long[] fences;
+
+	// PERSISTENT: one slice of the permanent mapping per region
+	private ByteBuffer[] persistentRegions;
+
+	// ORPHAN: we write here, then copy it in with glBufferSubData
+	private ByteBuffer staging;
+
+	// What begin() handed out this frame
+	private ByteBuffer current;
+	private int region;
+
+	private long frames;
+	private long fenceWaits;
+	private long fenceWaitNanos;
+
+
+	// regionSize is in bytes
+	public StreamingBuffer(int target, int regionSize, int regionCount) {
+		this.target = target;
+		this.regionSize = regionSize;
+		this.regionCount = regionCount;
+		this.fences = new long[regionCount];
+	}
+
+
+	// Create the buffer. forcedMode can be null to pick automatically
+	public void init(GL3 gl, Mode forcedMode) {
+		mode = forcedMode != null ? forcedMode : pickMode(gl);
+		if (mode == Mode.PERSISTENT && !supportsPersistent(gl)) {
+			mode = Mode.UNSYNCHRONIZED;
+		}
+
+		IntBuffer ids = Buffers.newDirectIntBuffer(1);
+		gl.glGenBuffers(1, ids);
+		bufferID = ids.get(0);
+		gl.glBindBuffer(target, bufferID);
+
+		long totalSize = (long) regionSize * regionCount;
+		if (mode == Mode.PERSISTENT) {
+			GL4 gl4 = gl.getGL4();
+			int flags = GL4.GL_MAP_WRITE_BIT | GL4.GL_MAP_PERSISTENT_BIT | GL4.GL_MAP_COHERENT_BIT;
+			gl4.glBufferStorage(target, totalSize, null, flags);
+			ByteBuffer mapped = gl4.glMapBufferRange(target, 0, totalSize, flags).order(ByteOrder.nativeOrder());
+			persistentRegions = new ByteBuffer[regionCount];
+			for (int r = 0; r < regionCount; r++) {
+				mapped.limit(r * regionSize + regionSize).position(r * regionSize);
+				persistentRegions[r] = mapped.slice().order(ByteOrder.nativeOrder());
+			}
+		} else if (mode == Mode.UNSYNCHRONIZED) {
+			gl.glBufferData(target, totalSize, null, GL3.GL_STREAM_DRAW);
+		} else {
+			// Orphaning only ever uses one region's worth of storage, the driver does the ring for us
+			gl.glBufferData(target, regionSize, null, GL3.GL_STREAM_DRAW);
+			staging = ByteBuffer.allocateDirect(regionSize).order(ByteOrder.nativeOrder());
+		}
+		gl.glBindBuffer(target, 0);
+		System.out.println("StreamingBuffer: " + mode + ", " + regionCount + " x " + regionSize + " bytes");
+	}
+
+
+	private static Mode pickMode(GL3 gl) {
+		if (supportsPersistent(gl)) return Mode.PERSISTENT;
+		if (gl.isFunctionAvailable("glMapBufferRange")) return Mode.UNSYNCHRONIZED;
+		return Mode.ORPHAN;
+	}
+
+
+	private static boolean supportsPersistent(GL3 gl) {
+		return gl.isGL4() && gl.isExtensionAvailable("GL_ARB_buffer_storage");
+	}
+
+
+	// Get the next region ready for writing and return it (position 0, limit regionSize).
+	// Blocks only if the GPU is still reading that region from N frames ago.
+	public ByteBuffer begin(GL3 gl) {
+		region = (int) (frames % regionCount);
+		if (mode != Mode.ORPHAN) {
+			waitForRegion(gl, region);
+		}
+		switch (mode) {
+			case PERSISTENT:
+				current = persistentRegions[region];
+				break;
+			case UNSYNCHRONIZED:
+				gl.glBindBuffer(target, bufferID);
+				int access = GL3.GL_MAP_WRITE_BIT | GL3.GL_MAP_INVALIDATE_RANGE_BIT | GL3.GL_MAP_UNSYNCHRONIZED_BIT;
+				current = gl.glMapBufferRange(target, (long) region * regionSize, regionSize, access).order(ByteOrder.nativeOrder());
+				break;
+			default:
+				current = staging;
+				break;
+		}
+		current.clear();
+		return current;
+	}
+
+
+	// Finish writing. Returns the byte offset of this frame's region inside the buffer
+	// (what to pass to glVertexAttribPointer). The buffer is left bound to the target.
+	public long end(GL3 gl) {
+		gl.glBindBuffer(target, bufferID);
+		switch (mode) {
+			case PERSISTENT:
+				// Coherent mapping: nothing to do, the GPU sees the writes
+				break;
+			case UNSYNCHRONIZED:
+				gl.glUnmapBuffer(target);
+				break;
+			default:
+				int used = current.position();
+				current.flip();
+				gl.glBufferData(target, regionSize, null, GL3.GL_STREAM_DRAW); // Orphan
+				gl.glBufferSubData(target, 0, used, current);
+				break;
+		}
+		current = null;
+		return getRegionOffset();
+	}
+
+
+	// Call after the last draw call that reads this frame's region
+	public void fence(GL3 gl) {
+		if (mode != Mode.ORPHAN) {
+			fences[region] = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		}
+		frames++;
+	}
+
+
+	private void waitForRegion(GL3 gl, int r) {
+		long fence = fences[r];
+		if (fence == 0) return;
+
+		// Ask without waiting first. Most frames the GPU is long done
+		int status = gl.glClientWaitSync(fence, 0, 0);
+		if (status == GL3.GL_TIMEOUT_EXPIRED) {
+			fenceWaits++;
+			long start = System.nanoTime();
+			do {
+				status = gl.glClientWaitSync(fence, GL3.GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT_NANOS);
+			} while (status == GL3.GL_TIMEOUT_EXPIRED);
+			fenceWaitNanos += System.nanoTime() - start;
+		}
+		gl.glDeleteSync(fence);
+		fences[r] = 0;
+	}
+
+
+	public long getRegionOffset() {
+		return mode == Mode.ORPHAN ? 0 : (long) region * regionSize;
+	}
+
+
+	public int getBufferID() {
+		return bufferID;
+	}
+
+
+	public int getRegionSize() {
+		return regionSize;
+	}
+
+
+	public Mode getMode() {
+		return mode;
+	}
+
+
+	public long getFrames() {
+		return frames;
+	}
+
+
+	// How many frames had to wait for the GPU before they could write. If this climbs, add regions
+	public long getFenceWaits() {
+		return fenceWaits;
+	}
+
+
+	public long getFenceWaitNanos() {
+		return fenceWaitNanos;
+	}
+
+
+	public void dispose(GL3 gl) {
+		for (int r = 0; r < regionCount; r++) {
+			if (fences[r] != 0) {
+				gl.glDeleteSync(fences[r]);
+				fences[r] = 0;
+			}
+		}
+		if (mode == Mode.PERSISTENT) {
+			gl.glBindBuffer(target, bufferID);
+			gl.glUnmapBuffer(target);
+			gl.glBindBuffer(target, 0);
+		}
+		IntBuffer ids = Buffers.newDirectIntBuffer(new int[] {bufferID});
+		gl.glDeleteBuffers(1, ids);
+	}
+}
@@ -0,0 +1,445 @@
+import com.jogamp.opengl.GL3;
+import com.jogamp.common.nio.Buffers;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TextureStreamer.java
+ *
+ * Gets big planet textures onto the GPU without freezing anything, and without running out of VRAM.
+ *
+ * Loading a 4096x4096 texture in init() means decoding it (slow), then one huge glTexImage2D (a
+ * long stall), and a handful of them fill the video memory. Instead:
+ * 	1. request() only queues the file. It's decoded and its mip chain built on a background thread
+ * 	   (virtual threads when the JVM has them, a small pool when it doesn't).
+ * 	2. update(), once a frame, uploads a SLICE of it (a few rows, at most sliceBytes) through a
+ * 	   StreamingBuffer used as a pixel unpack buffer, so glTexSubImage2D copies from a PBO and never
+ * 	   waits on us, and no frame uploads more than its share.
+ * 	3. The small mips (the "tail", TAIL_SIZE and below) go up first and are never evicted, so every
+ * 	   texture has something to draw almost at once. The bigger levels follow one at a time, biggest
+ * 	   last, and only as far as the texture is big on screen (setScreenSize).
+ * 	4. All the levels on the GPU have to fit in budgetBytes. When a new level doesn't fit, the
+ * 	   biggest level of the least recently used texture goes (LRU eviction). The tail stays.
+ *
+ * What's resident is always a contiguous run of levels, from GL_TEXTURE_BASE_LEVEL down to the
+ * smallest, so the texture is complete at every moment and sampling never hits a missing level.
+ * The decoded mips stay in system memory, so an evicted level can come back without decoding again.
+ *
+ * Everything but the decoding happens on the GL thread.
+ *
+ * @author CLLFTVTV
+ */
+public class TextureStreamer {
+
+
+	// Mip levels this size and smaller are the tail: uploaded first, never evicted
+	private static final int TAIL_SIZE = 64;
+
+	// How many levels can be uploading at once (the slice is shared between them)
+	private static final int MAX_ACTIVE_UPLOADS = 4;
+
+	private static final int BYTES_PER_PIXEL = 4; // RGBA8
+
+	// The slice has to hold at least one row of the biggest texture GL allows (16384 wide)
+	private static final int MIN_SLICE_BYTES = 16384 * BYTES_PER_PIXEL;
+
+
+	// One streamed texture. Hand it to setScreenSize() every frame it's drawn
+	public static class Texture {
+
+		public final String name;
+
+		// The GL texture (0 until the decode finishes)
+		private int id;
+		private int width, height, levels, tailLevel;
+
+		// Decoded RGBA rows per level. Written by the decode thread before the texture is queued
+		private byte[][] mips;
+
+		// Lowest (biggest) level on the GPU. levels = nothing resident yet
+		private int residentBase;
+		// The level we'd like down to, from the on screen size
+		private int wantedLevel;
+		private long lastUsedFrame;
+		private boolean uploading;
+		private volatile boolean failed;
+
+		private Texture(String name) {
+			this.name = name;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		// True once the mip tail is on the GPU, i.e. it can be sampled
+		public boolean isDrawable() {
+			return id != 0 && residentBase <= tailLevel;
+		}
+
+		// The biggest level on the GPU right now (0 = full resolution)
+		public int getResidentLevel() {
+			return residentBase;
+		}
+
+		public boolean isFailed() {
+			return failed;
+		}
+	}
+
+
+	// One mip level on its way up
+	private static class Upload {
+		Texture texture;
+		int level, width, height, nextRow;
+	}
+
+
+	private final long budgetBytes;
+	private final ExecutorService decoder;
+	private final StreamingBuffer pixelStream;
+
+	private final ConcurrentLinkedQueue<Texture> decoded = new ConcurrentLinkedQueue<>();
+	private final List<Texture> textures = new ArrayList<>();
+	private final List<Upload> active = new ArrayList<>();
+
+	// Where this frame's rows went in the pixel stream (reused every frame)
+	private final int[] pendingUpload = new int[MAX_ACTIVE_UPLOADS];
+	private final int[] pendingFirstRow = new int[MAX_ACTIVE_UPLOADS];
+	private final int[] pendingRows = new int[MAX_ACTIVE_UPLOADS];
+	private final int[] pendingOffset = new int[MAX_ACTIVE_UPLOADS];
+
+	private long frame;
+	private long residentBytes;
+	private long uploadedBytes;
+	private long evictions;
+
+
+	// budgetBytes: GPU memory all the textures may use. sliceBytes: most bytes uploaded per frame
+	public TextureStreamer(long budgetBytes, int sliceBytes) {
+		this.budgetBytes = budgetBytes;
+		this.pixelStream = new StreamingBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, Math.max(sliceBytes, MIN_SLICE_BYTES), Settings.STREAM_REGIONS);
+		this.decoder = decodeExecutor();
+	}
+
+
+	// Virtual threads (Java 21+) if this JVM has them: decoding is mostly waiting on the disk.
+	// Otherwise a small pool that leaves a core for rendering
+	private static ExecutorService decodeExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+			return Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "TextureDecode");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			});
+		}
+	}
+
+
+	public void init(GL3 gl) {
+		pixelStream.init(gl, StreamingBuffer.parseMode(Settings.STREAM_MODE));
+	}
+
+
+	// Start loading an image file (anything ImageIO reads). Returns at once
+	public Texture request(Path file) {
+		Texture texture = new Texture(file.getFileName().toString());
+		decoder.execute(() -> {
+			try {
+				decode(texture, file);
+				decoded.add(texture);
+			} catch (IOException | RuntimeException e) {
+				texture.failed = true;
+				System.err.println("TextureStreamer: " + texture.name + ": " + e);
+			}
+		});
+		return texture;
+	}
+
+
+	// Decode thread: read the image and build the whole mip chain (2x2 box filter)
+	private static void decode(Texture texture, Path file) throws IOException {
+		BufferedImage image = ImageIO.read(file.toFile());
+		if (image == null) throw new IOException("not an image ImageIO can read");
+		int width = image.getWidth(), height = image.getHeight();
+		int levels = 1 + 31 - Integer.numberOfLeadingZeros(Math.max(width, height));
+
+		byte[][] mips = new byte[levels][];
+		int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+		byte[] top = new byte[width * height * BYTES_PER_PIXEL];
+		for (int i = 0; i < argb.length; i++) {
+			int p = argb[i];
+			top[4 * i] = (byte) (p >> 16);
+			top[4 * i + 1] = (byte) (p >> 8);
+			top[4 * i + 2] = (byte) p;
+			top[4 * i + 3] = (byte) (p >>> 24);
+		}
+		mips[0] = top;
+
+		int w = width, h = height;
+		for (int level = 1; level < levels; level++) {
+			int nw = Math.max(1, w / 2), nh = Math.max(1, h / 2);
+			byte[] src = mips[level - 1];
+			byte[] dst = new byte[nw * nh * BYTES_PER_PIXEL];
+			for (int y = 0; y < nh; y++) {
+				int y0 = Math.min(2 * y, h - 1), y1 = Math.min(2 * y + 1, h - 1);
+				for (int x = 0; x < nw; x++) {
+					int x0 = Math.min(2 * x, w - 1), x1 = Math.min(2 * x + 1, w - 1);
+					for (int c = 0; c < 4; c++) {
+						int sum = (src[(y0 * w + x0) * 4 + c] & 0xFF) + (src[(y0 * w + x1) * 4 + c] & 0xFF)
+								+ (src[(y1 * w + x0) * 4 + c] & 0xFF) + (src[(y1 * w + x1) * 4 + c] & 0xFF);
+						dst[(y * nw + x) * 4 + c] = (byte) ((sum + 2) >> 2);
+					}
+				}
+			}
+			mips[level] = dst;
+			w = nw;
+			h = nh;
+		}
+
+		int tailLevel = 0;
+		while (tailLevel < levels - 1 && Math.max(levelWidth(width, tailLevel), levelWidth(height, tailLevel)) > TAIL_SIZE) {
+			tailLevel++;
+		}
+
+		texture.width = width;
+		texture.height = height;
+		texture.levels = levels;
+		texture.tailLevel = tailLevel;
+		texture.residentBase = levels;
+		texture.wantedLevel = tailLevel;
+		texture.mips = mips; // The queue hand-off publishes all of this to the GL thread
+	}
+
+
+	// The texture covers about this many pixels on screen (its widest way). Call every frame it's drawn
+	public void setScreenSize(Texture texture, float pixels) {
+		texture.lastUsedFrame = frame;
+		if (texture.id == 0) return; // Still decoding
+		int level = 0;
+		float size = Math.max(texture.width, texture.height);
+		while (level < texture.tailLevel && size / 2.0f >= pixels) {
+			size /= 2.0f;
+			level++;
+		}
+		texture.wantedLevel = level;
+	}
+
+
+	// Once a frame, on the GL thread: pick up finished decodes, evict if needed, upload one slice
+	public void update(GL3 gl) {
+		frame++;
+		Texture texture;
+		while ((texture = decoded.poll()) != null) {
+			create(gl, texture);
+		}
+
+		// Start new levels until there's enough work queued to fill the slice.
+		// glTexImage2D can't take a null image with a pixel unpack buffer bound, so this comes first
+		long queued = 0;
+		for (Upload u : active) queued += (long) (u.height - u.nextRow) * u.width * BYTES_PER_PIXEL;
+		while (active.size() < MAX_ACTIVE_UPLOADS && queued < pixelStream.getRegionSize()) {
+			Upload u = startNextLevel(gl);
+			if (u == null) break;
+			queued += (long) u.width * u.height * BYTES_PER_PIXEL;
+		}
+		if (active.isEmpty()) return;
+
+		// Copy as many rows as fit into this frame's region of the pixel stream
+		ByteBuffer region = pixelStream.begin(gl);
+		int pending = 0;
+		for (int a = 0; a < active.size() && region.hasRemaining(); a++) {
+			Upload u = active.get(a);
+			int rowBytes = u.width * BYTES_PER_PIXEL;
+			int rows = Math.min(u.height - u.nextRow, region.remaining() / rowBytes);
+			if (rows == 0) break; // The rest of the region is too small for a row, next frame
+			pendingUpload[pending] = a;
+			pendingFirstRow[pending] = u.nextRow;
+			pendingRows[pending] = rows;
+			pendingOffset[pending] = region.position();
+			region.put(u.texture.mips[u.level], u.nextRow * rowBytes, rows * rowBytes);
+			u.nextRow += rows;
+			pending++;
+		}
+		long regionOffset = pixelStream.end(gl); // Leaves it bound to GL_PIXEL_UNPACK_BUFFER
+
+		gl.glPixelStorei(GL3.GL_UNPACK_ALIGNMENT, 1);
+		for (int p = 0; p < pending; p++) {
+			Upload u = active.get(pendingUpload[p]);
+			int rowBytes = u.width * BYTES_PER_PIXEL;
+			gl.glBindTexture(GL3.GL_TEXTURE_2D, u.texture.id);
+			gl.glTexSubImage2D(GL3.GL_TEXTURE_2D, u.level, 0, pendingFirstRow[p], u.width, pendingRows[p],
+					GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE, regionOffset + pendingOffset[p]);
+			uploadedBytes += (long) pendingRows[p] * rowBytes;
+		}
+		pixelStream.fence(gl);
+		gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+		gl.glPixelStorei(GL3.GL_UNPACK_ALIGNMENT, 4);
+
+		// Finished levels join the resident run. They're uploaded biggest last, so the run stays contiguous
+		for (int a = active.size() - 1; a >= 0; a--) {
+			Upload u = active.get(a);
+			if (u.nextRow < u.height) continue;
+			active.remove(a);
+			u.texture.uploading = false;
+			u.texture.residentBase = u.level;
+			gl.glBindTexture(GL3.GL_TEXTURE_2D, u.texture.id);
+			gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_BASE_LEVEL, u.level);
+		}
+		gl.glBindTexture(GL3.GL_TEXTURE_2D, 0);
+	}
+
+
+	// The GL texture for a freshly decoded image. Nothing resident yet
+	private void create(GL3 gl, Texture texture) {
+		IntBuffer ids = Buffers.newDirectIntBuffer(1);
+		gl.glGenTextures(1, ids);
+		texture.id = ids.get(0);
+		gl.glBindTexture(GL3.GL_TEXTURE_2D, texture.id);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR_MIPMAP_LINEAR);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_WRAP_S, GL3.GL_CLAMP_TO_EDGE);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_WRAP_T, GL3.GL_CLAMP_TO_EDGE);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAX_LEVEL, texture.levels - 1);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_BASE_LEVEL, texture.levels - 1);
+		gl.glBindTexture(GL3.GL_TEXTURE_2D, 0);
+		textures.add(texture);
+	}
+
+
+	// Pick the most useful level to upload next and allocate it. null = nothing to do (or no room)
+	private Upload startNextLevel(GL3 gl) {
+		// Tails first (something drawable for everyone), then the most recently drawn texture
+		// that's furthest from the level it wants
+		Texture best = null;
+		for (Texture t : textures) {
+			if (t.uploading) continue;
+			int next = t.residentBase - 1;
+			boolean tail = next >= t.tailLevel;
+			if (!tail && next < t.wantedLevel) continue;
+			if (best == null || isBetter(t, tail, best)) best = t;
+		}
+		if (best == null) return null;
+
+		int level = best.residentBase - 1;
+		int width = levelWidth(best.width, level), height = levelWidth(best.height, level);
+		long bytes = (long) width * height * BYTES_PER_PIXEL;
+		boolean tail = level >= best.tailLevel;
+		if (!tail && residentBytes + bytes > budgetBytes && !evict(gl, residentBytes + bytes - budgetBytes, best)) {
+			return null;
+		}
+
+		gl.glBindTexture(GL3.GL_TEXTURE_2D, best.id);
+		gl.glTexImage2D(GL3.GL_TEXTURE_2D, level, GL3.GL_RGBA8, width, height, 0, GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE, (Buffer) null);
+		residentBytes += bytes;
+
+		Upload u = new Upload();
+		u.texture = best;
+		u.level = level;
+		u.width = width;
+		u.height = height;
+		best.uploading = true;
+		active.add(u);
+		return u;
+	}
+
+
+	private static boolean isBetter(Texture t, boolean tail, Texture best) {
+		boolean bestTail = best.residentBase - 1 >= best.tailLevel;
+		if (tail != bestTail) return tail;
+		if (t.lastUsedFrame != best.lastUsedFrame) return t.lastUsedFrame > best.lastUsedFrame;
+		return t.residentBase - t.wantedLevel > best.residentBase - best.wantedLevel;
+	}
+
+
+	// Free at least `bytes` by dropping the biggest level of the least recently used textures.
+	// Never the tail, never a texture that's uploading, never one drawn more recently than `forTexture`
+	// unless it has more than it wants. Returns false if that isn't enough
+	private boolean evict(GL3 gl, long bytes, Texture forTexture) {
+		long freed = 0;
+		while (freed < bytes) {
+			Texture victim = null;
+			for (Texture t : textures) {
+				if (t == forTexture || t.uploading || t.residentBase >= t.tailLevel) continue;
+				boolean surplus = t.residentBase < t.wantedLevel;
+				if (!surplus && t.lastUsedFrame >= forTexture.lastUsedFrame) continue;
+				if (victim == null || t.lastUsedFrame < victim.lastUsedFrame) victim = t;
+			}
+			if (victim == null) return false;
+			freed += dropBaseLevel(gl, victim);
+		}
+		return true;
+	}
+
+
+	// Stop sampling the biggest resident level, then give its memory back (a 0x0 image).
+	// Only called before the pixel stream is bound, see update()
+	private long dropBaseLevel(GL3 gl, Texture t) {
+		int level = t.residentBase;
+		t.residentBase = level + 1;
+		gl.glBindTexture(GL3.GL_TEXTURE_2D, t.id);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_BASE_LEVEL, t.residentBase);
+		gl.glTexImage2D(GL3.GL_TEXTURE_2D, level, GL3.GL_RGBA8, 0, 0, 0, GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE, (Buffer) null);
+		long bytes = (long) levelWidth(t.width, level) * levelWidth(t.height, level) * BYTES_PER_PIXEL;
+		residentBytes -= bytes;
+		evictions++;
+		return bytes;
+	}
+
+
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+
+
+	public long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+
+	// One line for the log: how many textures, how much is on the GPU, how much went up
+	public String summary() {
+		int drawable = 0;
+		for (Texture t : textures) if (t.isDrawable()) drawable++;
+		return String.format("%d textures (%d drawable), %.1f of %.1f MB resident, %.1f MB uploaded, %d levels evicted",
+				textures.size(), drawable, residentBytes / 1048576.0, budgetBytes / 1048576.0, uploadedBytes / 1048576.0, evictions);
+	}
+
+
+	public void dispose(GL3 gl) {
+		decoder.shutdownNow();
+		for (Texture t : textures) {
+			gl.glDeleteTextures(1, new int[] {t.id}, 0);
+			t.id = 0;
+		}
+		textures.clear();
+		active.clear();
+		pixelStream.dispose(gl);
+	}
+
+
+	// Size of a mip level along one side
+	private static int levelWidth(int size, int level) {
+		return Math.max(1, size >> level);
+	}
+}
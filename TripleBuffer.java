@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TripleBuffer.java
+ *
+ * Hands the newest version of something from one thread (the writer) to another (the reader)
+ * without locks, without waiting and without allocating.
+ *
+ * There are three slots. At any moment the writer owns one (the back slot, being filled), the reader
+ * owns one (the front slot, being read), and the third sits in the middle holding the latest
+ * finished copy. Publishing swaps the back slot with the middle one, acquiring swaps the front slot
+ * with the middle one, each with a single atomic getAndSet, so neither side ever waits on the other.
+ * If the writer publishes twice before the reader looks, the older copy is simply overwritten
+ * (the reader only ever wants the newest one).
+ *
+ * Exactly ONE writer thread and ONE reader thread.
+ *
+ * @author CLLFTVTV
+ */
+public class TripleBuffer<T> {
+
+
+	// The middle slot index lives in the low bits, plus a flag meaning "published since the reader last took it"
+	private static final int INDEX_MASK = 3;
+	private static final int FRESH = 4;
+
+
+	private final Object[] slots;
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int back = 0; // Only touched by the writer
+	private int front = 2; // Only touched by the reader
+
+
+	// The three slots, allocated by the caller (three of the same thing)
+	public TripleBuffer(T first, T second, T third) {
+		this.slots = new Object[] {first, second, third};
+	}
+
+
+	// Writer: the slot to fill next
+	@SuppressWarnings("unchecked")
+	public T back() {
+		return (T) slots[back];
+	}
+
+
+	// Writer: make the back slot the newest copy, and get a different slot to fill next time
+	public void publish() {
+		back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+	}
+
+
+	// Reader: the newest published copy (the same one as last time if nothing new was published).
+	// Before the first publish this is the untouched third slot
+	@SuppressWarnings("unchecked")
+	public T acquire() {
+		if ((middle.get() & FRESH) != 0) {
+			front = middle.getAndSet(front) & INDEX_MASK;
+		}
+		return (T) slots[front];
+	}
+}
@@ -2,20 +2,21 @@ import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
 import com.jogamp.opengl.GLEventListener;
+import com.jogamp.opengl.GLOffscreenAutoDrawable;
 import com.jogamp.opengl.GLProfile;
 import com.jogamp.opengl.awt.GLCanvas;
-import com.jogamp.opengl.util.Animator;
 import com.jogamp.opengl.util.glsl.sdk.CompileShader;
-import com.jogamp.common.nio.Buffers; // New import for Buffers
 
 import javax.swing.JFrame;
 import java.awt.Dimension;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.nio.FloatBuffer; // New import for FloatBuffer
-import java.nio.IntBuffer; // New import for IntBuffer
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * OuterMilds.java
@@ -45,10 +46,118 @@ public class OuterMilds implements GLEventListener{
 	private static final int WINDOW_HEIGHT = 720;
 	
 	
-	// We need to store the names (which are just integers) of the objects we create on the GPU
-	private int shaderProgramID;
-	private int vaoID;
-	private int vboID;
+	// Draws the bodies. It keeps the names (which are just integers) of the objects it creates on the GPU
+	private static final int MAX_DRAWN_BODIES = 131_072;
+	private static final double VIEW_HALF_HEIGHT_AU = 6.0; // How much of the solar system fits on screen (vertically)
+	private static final float RADIUS_EXAGGERATION = 40.0f; // Real planets are far too small to see at this scale
+	private static final float MIN_BODY_PIXELS = 1.5f; // Even the smallest asteroid gets this radius
+	private InstancedRenderer bodyRenderer;
+	
+	// Bodies at least IMPOSTOR_PIXELS big (radius) are drawn as spheres instead, detailed enough that
+	// no triangle edge is longer than SPHERE_EDGE_PIXELS. null = everything is a disc
+	private static final float IMPOSTOR_PIXELS = 3.0f;
+	private static final float SPHERE_EDGE_PIXELS = 8.0f;
+	private static final float LOD_HYSTERESIS = 0.1f;
+	private IcosphereLod sphereRenderer;
+	
+	// Frustum culling: only the bodies the BodyBvh finds inside the view get drawn (null = all of them).
+	// It has its own threads, the physics pool's are busy with the simulation thread's steps
+	private BodyBvh bodyBvh;
+	private PhysicsPool cullPool;
+	private final Mat4 viewProjection = new Mat4();
+	private float cullPadX, cullPadY;
+	
+	// The background stars (null unless -Doutermilds.stars=..., and until the catalog is loaded).
+	// Fainter than STAR_FAINT_MAGNITUDE fade out
+	private static final float STAR_FAINT_MAGNITUDE = 8.0f;
+	private StarField starField;
+	private int starProgram;
+	
+	// Loads the files (body mesh, star catalog) while we're already drawing: read on a pool, uploaded on
+	// a shared context. Until each one arrives the bodies are discs and the sky is empty
+	private AssetLoader assetLoader;
+	
+	
+	// The camera. Looks at the Sun from above, tilted so the orbits look 3D.
+	// It backs off far enough that VIEW_HALF_HEIGHT_AU fits on screen
+	private static final float CAMERA_FOV_DEGREES = 45.0f;
+	private static final float CAMERA_TILT_DEGREES = 30.0f; // 0 = straight down onto the ecliptic
+	private static final float NEAR_AU = 0.01f, FAR_AU = 1000.0f;
+	private final Mat4 view = new Mat4();
+	private final Mat4 projection = new Mat4();
+	
+	
+	// The physics. Lives outside of OpenGL, on its own thread. display() just draws its latest snapshot
+	private static final int ASTEROID_COUNT = 10_000;
+	private static final double COMET_PERIHELION_DAYS = 365.0; // With -Doutermilds.comets, they all swing by within the first year
+	private static final double SIM_DT_DAYS = 0.1; // The fixed physics step
+	private static final boolean USE_BARNES_HUT = false; // Tree code instead of the direct sum, for big massive belts
+	private static final double BARNES_HUT_THETA = 0.5; // Opening angle. Smaller = more accurate, slower
+	private static final double SIM_TICK_HZ = 120.0; // How often the simulation thread steps and publishes
+	private static final double REPLAY_QUANTUM_AU = 1e-8; // Position grid of the replay's delta frames (1.5 km)
+	private static final double COLLISION_CELL_AU = 1e-5; // Collision grid cell, fits anything up to 7 Earth radii (asteroids)
+	private static final int MAX_COLLISION_PAIRS = 4096; // Touching pairs one step can report
+	private Simulation simulation;
+	private SimulationThread simulationThread;
+	private ReplayWriter replayWriter; // null unless -Doutermilds.replayOut=...
+	private PhysicsPool physicsPool; // Worker threads for the physics steps
+	private Runnable redrawListener; // Told about every new snapshot (the FrameScheduler, for on-demand drawing)
+	
+	
+	// Headless mode: every frame advances the simulation by exactly this much, so runs are repeatable
+	private static final double HEADLESS_FRAME_SECONDS = 1.0 / 60.0;
+	private final double fixedFrameSeconds; // 0 = use the real time between frames
+	
+	
+	// Reads each frame back into PNGs (null = off). Needs the viewport size, so reshape() keeps it
+	private final File captureDirectory;
+	private FrameCapture frameCapture;
+	private int viewportWidth, viewportHeight;
+	
+	
+	// Times every phase of the frame (CPU and GPU). Over JMX, printed at the end, and optionally drawn
+	private final FrameProfiler profiler = new FrameProfiler();
+	private ProfilerOverlay profilerOverlay; // null unless -Doutermilds.overlay=true
+	
+	
+	// Comet tails, moved on the GPU (null unless there are comets). particleTime: the snapshot time they're at
+	private ParticleSystem particles;
+	private double particleTime;
+	
+	
+	// Every draw goes through here, sorted by state (see RenderQueue)
+	private final RenderQueue renderQueue = new RenderQueue(64);
+	
+	
+	// Dynamic resolution (null = off): the scene is drawn offscreen at the controller's scale and stretched
+	// onto the window, the overlay goes on top at full size. gpuSamples: GPU times the controller has seen
+	private SceneFramebuffer sceneFramebuffer;
+	private ResolutionController resolution;
+	private long gpuSamples;
+	
+	
+	// Planet textures, streamed in the background (null unless -Doutermilds.textureDir=...).
+	// planetTextures[p] is planet p's, or null if there's no file for it
+	private TextureStreamer textureStreamer;
+	private TextureStreamer.Texture[] planetTextures;
+	private final Vec3 bodyPosition = new Vec3(), bodyViewPosition = new Vec3();
+	
+	
+	public OuterMilds() {
+		this(0.0, null);
+	}
+	
+	
+	public OuterMilds(double fixedFrameSeconds, File captureDirectory) {
+		this.fixedFrameSeconds = fixedFrameSeconds;
+		this.captureDirectory = captureDirectory;
+	}
+	
+	
+	// Called on every new simulation state. Set before the canvas is shown
+	public void setRedrawListener(Runnable redrawListener) {
+		this.redrawListener = redrawListener;
+	}
 	
 	
 	//Main method. program starts here. set up OpenGL profile, window and animation loop
@@ -57,6 +166,12 @@ public class OuterMilds implements GLEventListener{
 		//1. Get the default OpenGL profile.
 		GLProfile glp = GLProfile.get(GLProfile.GL3);
 		
+		File captureDirectory = Settings.CAPTURE_DIR.isEmpty() ? null : new File(Settings.CAPTURE_DIR);
+		if (Settings.HEADLESS_FRAMES > 0) {
+			runHeadless(glp, Settings.HEADLESS_FRAMES, captureDirectory);
+			System.exit(0);
+		}
+		
 		
 		//2. Define the capabilities we need from the profile.
 		//Stuff like anti-aliasing, stencil buffers, etc.
@@ -64,6 +179,7 @@ public class OuterMilds implements GLEventListener{
 		GLCapabilities caps = new GLCapabilities(glp);
 		caps.setHardwareAccelerated(true); // Ensure the GPU is being used
 		caps.setDoubleBuffered(true); // Standard for smooth animation
+		caps.setDepthBits(24); // The opaque bodies are depth tested, from NEAR_AU to FAR_AU
 		
 		
 		//3. Create the JOGL canvas. This is the drawing surface, inside the JFrame, which is the OS window.
@@ -73,7 +189,7 @@ public class OuterMilds implements GLEventListener{
 		
 		//4. Create an instance of the OuterMilds class
 		//This class is the listener that will listen to the OpenGL events
-		OuterMilds outerMilds = new OuterMilds(); // Create a new instance of the class
+		OuterMilds outerMilds = new OuterMilds(0.0, captureDirectory); // Create a new instance of the class
 		canvas.addGLEventListener(outerMilds); // add that class as an event listener, on the canvas
 		
 		
@@ -86,22 +202,44 @@ public class OuterMilds implements GLEventListener{
 		frame.setLocationRelativeTo(null); // Center the window
 		
 		
-		//6. Create an Animator
-		//This is a JOGL utility that creates a dedicated thread
-		// to call our display method continuously.
-		final Animator animator = new Animator(canvas);
+		//6. Create the FrameScheduler
+		//It runs a dedicated thread that calls our display method, but only as often as needed:
+		//at the target frame rate, in step with vsync, or only when something changed (see FrameScheduler.parseMode)
+		final FrameScheduler scheduler = new FrameScheduler(canvas, FrameScheduler.parseMode(Settings.FRAME_PACING), Settings.TARGET_FPS, Settings.BACKGROUND_FPS);
+		outerMilds.setRedrawListener(scheduler::requestRedraw); // New simulation state = something to draw
 		
 		
 		//7. Add a window listener to handle closing the application.
-		//This is important for cleanly shutting down the animator's thread
+		//This is important for cleanly shutting down the scheduler's thread.
+		//It also tells the scheduler when nobody is looking, so it can draw less (or nothing)
 		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowIconified(WindowEvent e) {
+				scheduler.setMinimized(true);
+			}
+			
+			@Override
+			public void windowDeiconified(WindowEvent e) {
+				scheduler.setMinimized(false);
+			}
+			
+			@Override
+			public void windowActivated(WindowEvent e) {
+				scheduler.setFocused(true);
+			}
+			
+			@Override
+			public void windowDeactivated(WindowEvent e) {
+				scheduler.setFocused(false);
+			}
+			
 			@Override
 			public void windowClosing(WindowEvent e) {
 				// Use a new thread to avoid a potential deadlock
 				new Thread(() -> {
-					if (animator.isStarted()) {
-						System.out.println("Stopping Animator...");
-						animator.stop(); // Stop the render loop
+					if (scheduler.isStarted()) {
+						System.out.println("Stopping FrameScheduler...");
+						scheduler.stop(); // Stop the render loop
 					}
 					System.out.println("Disposing Window...");
 					frame.dispose(); // Close the window
@@ -114,18 +252,49 @@ public class OuterMilds implements GLEventListener{
 		
 		//8. Finally, make the window visible and start the animation.
 		frame.setVisible(true);
-		animator.start();
-		System.out.println("Animator started.");
+		scheduler.start();
+		System.out.println("FrameScheduler started: " + FrameScheduler.parseMode(Settings.FRAME_PACING));
 		
 	}
 	// main function ends here.
 	
 	
+	// No window: render into an offscreen framebuffer (FBO) instead, for a fixed number of frames.
+	// Works without a display, e.g. Mesa's llvmpipe on a render box. Same listener, same init/display/dispose.
+	private static void runHeadless(GLProfile glp, int frames, File captureDirectory) {
+		GLCapabilities caps = new GLCapabilities(glp);
+		caps.setOnscreen(false);
+		caps.setFBO(true);
+		caps.setDepthBits(24);
+		// No setHardwareAccelerated(true) here: a software renderer is fine (and sometimes all there is)
+		
+		GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(glp)
+				.createOffscreenAutoDrawable(null, caps, null, WINDOW_WIDTH, WINDOW_HEIGHT);
+		drawable.addGLEventListener(new OuterMilds(HEADLESS_FRAME_SECONDS, captureDirectory));
+		
+		// The first display() also runs init() and reshape(), so keep it out of the timing
+		drawable.display();
+		long start = System.nanoTime();
+		for (int i = 1; i < frames; i++) {
+			drawable.display();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int timed = frames - 1;
+		if (timed > 0) {
+			System.out.printf("Headless: %d frames at %dx%d in %.2f s (%.2f ms/frame, %.1f fps)%n",
+					timed, WINDOW_WIDTH, WINDOW_HEIGHT, seconds, seconds * 1000.0 / timed, timed / seconds);
+		}
+		
+		drawable.destroy(); // Calls dispose(), which also waits for the captured frames to be written
+	}
+	
+	
 	// Called once by the JOGL framework when the canvas is first created.
 	// This is where we do our one time setup (like loading shaders, models etc.) and set inital OpenGL state
 	@Override
 	public void init(GLAutoDrawable drawable) {
 		GL3 gl = drawable.getGL().getGL3(); // The gl object becomes our main channel to the GPU. we call methods on this object.
+		long initStart = System.nanoTime();
 		
 		System.out.println("JOGL: init() called. OpenGL Version: " + gl.glGetString(GL3.GL_VERSION));
 		
@@ -134,205 +303,177 @@ public class OuterMilds implements GLEventListener{
 		gl.glClearColor(0.0f, 0.0f, 0.1f, 1.0f);
 		
 		
-		// Define the vertices of the triangle then setup VAO and VBO and send to GPU
-		float [] vertices = {
-				0.0f,  0.5f, 0.0f, // Top vertex
-	           -0.5f, -0.5f, 0.0f, // Bottom-left vertex
-	            0.5f, -0.5f, 0.0f  // Bottom-right vertex
-		};
-		
-		// Create VBO
-		// VBOs are buffers on the GPU that store vertex data
-		
-		// We need an IntBuffer to hold the ID of the VBO:
-		// Create a new IntBuffer object, called vboBuffers.
-		// Buffers.newDirectIntBuffer(1), create "1" new IntBuffer on Native Memory (RAM).
-		// Direct means its on direct memory that C++ (OpenGL) can access, without Java
-		// The C++ OpenGL driver can't access the JVM space so we use the unsafe buffer for communication
-		IntBuffer vboBuffers = Buffers.newDirectIntBuffer(1);
-		// Tell OpenGL(gl.GenBuffers), we need one, 1, spot on your list.
-		// It writes that spot in the unsafe buffer
-		gl.glGenBuffers(1, vboBuffers);
-		// We copy that value from the unsafe buffer into out JVM space vboID variable
-		vboID = vboBuffers.get(0); // Get the generated ID
-		
-		// "Bind" (haha hollow knight silksong i miss that game, times were good then)
-		// this current buffer as the active one.
-		// vboBuffers has the memory address of our unsafe buffer.
-		// vboID has the ID of our place on OpenGL's list, which it got from the unsafe buffer.
-		// OpenGL (the gl object) is a "state machine." It has a set of global "slots" (like GL_ARRAY_BUFFER, GL_TEXTURE_2D, etc.).
-		// We put the vboID, our thing on the list, and put it in the GL_ARRAY_BUFFER slot
-		// OpenGL driver has slots, we're saying that the GL_ARRAY_BUFFER slot should be
-		// whatever is at number vboID on your list. We'll give it our vertex data later.
-		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vboID);
-		
-		// Convert our Java float[], for vertex data, to a FloatBuffer type for JOGL
-		FloatBuffer vertexBuffer = Buffers.newDirectFloatBuffer(vertices);
-		
-		// Send the data to the GPU
-		// GL_STATIC_DRAW is a hint that we won't change this data often (helps opengl make
-		// better use of it)
-		// OpenGL has a list for each type of thing and "arms". We told it above to hold the vboID from the vertex buffer list,
-		// and hold it in it's GL_ARRAY_BUFFER arm. opengl uses that arm for vertex data.
-		// we wrote a name on it's vertex buffer list above, here we allocate our vertex data's worth of
-		// GPU memory to our name on the vertex buffer list. then we reference that name on the list
-		// on it's vertex data arm
-		gl.glBufferData(GL3.GL_ARRAY_BUFFER, 
-				vertexBuffer.limit() * Buffers.SIZEOF_FLOAT, // Total size in bytes
-				vertexBuffer, 
-				GL3.GL_STATIC_DRAW);
-		
-		
-		// Create a VAO. VAO stores how our VBOs are laid out.
-		// Same as before but this time get a name on the VAO list
-		IntBuffer vaoBuffers = Buffers.newDirectIntBuffer(1);
-		gl.glGenVertexArrays(1, vaoBuffers);
-		vaoID = vaoBuffers.get(0);
-		
-		// Bind VAO
-		// Diff command cuz buffer is generic object, vao is special object
-		gl.glBindVertexArray(vaoID);
-		
-		// Bind the VBO again. This "associates" the VAO with the VBO
-		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vboID);
-		
-		// 5. Define the "layout" of our vertex data (the "Vertex Attributes")
-        // "Hey, OpenGL, our data for attribute '0' (layout = 0 in the shader):
-        //   - has 3 components (x, y, z)
-        //   - is of type GL_FLOAT
-        //   - is NOT normalized
-        //   - has a 'stride' (gap) of 0 bytes between vertices
-        //   - starts at an 'offset' of 0 bytes in the buffer"
-		// This lines tells the VAO how to read the VBO
-        gl.glVertexAttribPointer(0, 3, GL3.GL_FLOAT, false, 0, 0);
-        
-        // Enable this attribute
-        gl.glEnableVertexAttribArray(0);
-        
-        // Unbind the VAO to be safe.
-        gl.glBindVertexArray(0);
-        
-        
-        // Create the shaders
-        // Shaders are small programs written in GLSL (OpenGL Shading Language)
-        // These programs run ON the GPU. Like physically on top of the hardware.
-        
-        
-        // The Vertex Shaders runs once for each vertex.
-        // It's job is to set the final position of our vertices on the screen.
-        String vertexShaderSource = 
-        		"#version 330 core\n" + 
-        		"layout (location = 0) in vec3 aPos;\n" + // "layout = 0" matches our glVertexAttribPointer(0, ...)
-        		"void main() {\n" + 
-        		"	gl_Position = vec4(aPos, 1.0);\n" + // Set the final position
-        		"}\n";
-        
-        // The Fragment Shader runs for every pixel inside the triangle
-        // Which pixels are inside the triangle? well, it gets that information from the non-programmable
-        // Rasterizer stage that comes right before the fragment shader
-        // It's job is to determine the final color of that pixel.
-        String fragmentShaderSource = 
-        		"#version 330 core\n" + 
-        		"out vec4 FragColor;\n" + // The final color output
-        		"void main() {\n" + 
-        		"	FragColor = vec4(1.0, 0.5, 0.2, 1.0);\n" + // A nice "Outer Milds" orange
-        		"}\n";
+		// Build every shader program in one go: from the binary cache when we can,
+		// otherwise all compiled at once so the driver can work on them in parallel
+		ShaderCache shaderCache = new ShaderCache(Paths.get(Settings.SHADER_CACHE_DIR));
+		int[] programs = shaderCache.buildAll(gl,
+				InstancedRenderer.PROGRAM,
+				ProfilerOverlay.PROGRAM,
+				IcosphereLod.PROGRAM,
+				StarField.PROGRAM);
+		
+		// The body renderer: one shared disc mesh, drawn once per body with instancing.
+		// A body mesh file replaces the disc once the AssetLoader has it on the GPU
+		bodyRenderer = new InstancedRenderer(MAX_DRAWN_BODIES, Settings.STREAM_REGIONS, StreamingBuffer.parseMode(Settings.STREAM_MODE));
+		bodyRenderer.init(gl, programs[0]);
+		if (Settings.SPHERES) {
+			sphereRenderer = new IcosphereLod(Settings.SPHERE_LEVELS, IMPOSTOR_PIXELS, SPHERE_EDGE_PIXELS, LOD_HYSTERESIS,
+					Settings.STREAM_REGIONS, StreamingBuffer.parseMode(Settings.STREAM_MODE));
+			sphereRenderer.init(gl, programs[2]);
+		} else {
+			gl.glDeleteProgram(programs[2]);
+		}
+		if (Settings.CULLING) {
+			cullPool = new PhysicsPool(Settings.THREADS);
+			bodyBvh = new BodyBvh(cullPool);
+		}
+		
+		// Start loading the files. With async loading off, wait for them here like it used to
+		assetLoader = new AssetLoader(Settings.ASSET_THREADS);
+		if (Settings.ASYNC_LOADING) {
+			assetLoader.startUploadContext(drawable);
+		}
+		if (!Settings.BODY_MESH.isEmpty()) {
+			assetLoader.load(new BodyMeshAsset(Paths.get(Settings.BODY_MESH)));
+		}
+		if (!Settings.STAR_CATALOG.isEmpty()) {
+			starProgram = programs[3];
+			assetLoader.load(new StarCatalogAsset(Paths.get(Settings.STAR_CATALOG)));
+		} else {
+			gl.glDeleteProgram(programs[3]);
+		}
+		if (!Settings.ASYNC_LOADING) {
+			assetLoader.finish(gl);
+		}
+		
+		// We swap ourselves at the end of display(), so the swap can be timed like everything else
+		drawable.setAutoSwapBufferMode(false);
+		if (fixedFrameSeconds <= 0) {
+			gl.setSwapInterval(FrameScheduler.swapInterval(FrameScheduler.parseMode(Settings.FRAME_PACING))); // vsync on or off
+		}
+		profiler.init(gl);
+		if (Settings.PROFILER_OVERLAY) {
+			profilerOverlay = new ProfilerOverlay();
+			profilerOverlay.init(gl, programs[1]);
+		} else {
+			gl.glDeleteProgram(programs[1]);
+		}
+		
+		// Dynamic resolution runs on the GPU times. Headless runs always draw at full size, so every run gives the same frames
+		if (Settings.DYNAMIC_RESOLUTION && fixedFrameSeconds <= 0) {
+			if (profiler.hasGpuTimers()) {
+				sceneFramebuffer = new SceneFramebuffer();
+				sceneFramebuffer.init(gl);
+				resolution = new ResolutionController(Settings.GPU_BUDGET_MS, Settings.MIN_RESOLUTION_SCALE);
+				System.out.printf("Dynamic resolution: %.1f ms GPU budget, down to %.0f%% of the window%n",
+						Settings.GPU_BUDGET_MS, Settings.MIN_RESOLUTION_SCALE * 100.0);
+			} else {
+				System.err.println("Dynamic resolution: no GPU timer queries, drawing at full size");
+			}
+		}
+		
 		
+        // Put the camera in place
+        double fov = Math.toRadians(CAMERA_FOV_DEGREES), tilt = Math.toRadians(CAMERA_TILT_DEGREES);
+        float distance = (float) (VIEW_HALF_HEIGHT_AU / Math.tan(fov / 2.0));
+        Vec3 eye = new Vec3(0.0f, (float) (-distance * Math.sin(tilt)), (float) (distance * Math.cos(tilt)));
+        view.lookAt(eye, new Vec3(0.0f, 0.0f, 0.0f), new Vec3(0.0f, 1.0f, 0.0f));
         
-        // Compile (into machine code) and Link the Shaders into a combined "Shader Program"
-        // The compileShader helper function is defined later
-        int vertexShader = compileShader(gl, GL3.GL_VERTEX_SHADER, vertexShaderSource);
-        int fragmentShader = compileShader(gl, GL3.GL_FRAGMENT_SHADER, fragmentShaderSource);
+        // Build the solar system and the physics that moves it
+        boolean comets = Settings.COMETS > 0 && !Settings.RAILS;
+        BodySystem bodies = Settings.RAILS
+        		? Scenes.railsSolarSystem(ASTEROID_COUNT, 42L)
+        		: comets
+        		? Scenes.moonsAndComets(ASTEROID_COUNT, Settings.COMETS, COMET_PERIHELION_DAYS, 42L)
+        		: Scenes.solarSystem(ASTEROID_COUNT, 42L);
+        physicsPool = new PhysicsPool(Settings.THREADS);
+        ForceModel forces = USE_BARNES_HUT
+        		? new BarnesHut(bodies.capacity, 0.0, BARNES_HUT_THETA)
+        		: new DirectGravity(bodies.capacity, 0.0);
+        Integrator integrator = Settings.BLOCK_STEPS
+        		? new BlockTimestep(physicsPool)
+        		: new VelocityVerlet(physicsPool);
+        simulation = new Simulation(bodies, forces, integrator, SIM_DT_DAYS);
+        if (Settings.RAILS) {
+        	simulation.setRails(new ChebyshevEphemeris(Scenes.planetOrbits()), Scenes.railIndices());
+        }
+        if (Settings.COLLISIONS) {
+        	// Merging changes the body count, which a replay can't follow: just count the contacts then.
+        	// It also moves the last body into the merged one's slot, and the comet tails follow their comets by slot
+        	boolean merge = Settings.REPLAY_OUT.isEmpty() && !(comets && ParticleSystem.parseMode(Settings.PARTICLES) != null);
+        	simulation.setCollisions(new CollisionDetector(bodies.capacity, COLLISION_CELL_AU, MAX_COLLISION_PAIRS, physicsPool), merge);
+        }
+        simulationThread = new SimulationThread(simulation, SIM_TICK_HZ);
+        simulationThread.setPublishListener(redrawListener);
+        if (!Settings.REPLAY_OUT.isEmpty()) {
+        	try {
+        		replayWriter = new ReplayWriter(Paths.get(Settings.REPLAY_OUT), bodies.count, Settings.REPLAY_KEYFRAMES, REPLAY_QUANTUM_AU);
+        		simulationThread.setRecorder(replayWriter, Settings.REPLAY_EVERY);
+        	} catch (IOException e) {
+        		System.err.println("Replay: can't record, " + e.getMessage());
+        	}
+        }
+        if (fixedFrameSeconds <= 0) {
+        	simulationThread.start(); // Headless runs step it from display() instead, to get the same frames every time
+        }
+        System.out.println("Physics: " + bodies.count + " bodies on " + physicsPool.getThreads() + " threads");
         
-        // The linkProgram helper function is defined later
-        shaderProgramID = linkProgram(gl, vertexShader, fragmentShader);
+        // The comet tails. The comets are the last bodies of the scene
+        ParticleSystem.Mode particleMode = ParticleSystem.parseMode(Settings.PARTICLES);
+        if (comets && particleMode != null) {
+        	particles = new ParticleSystem(Settings.PARTICLE_COUNT, particleMode);
+        	int[] emitters = new int[Settings.COMETS];
+        	for (int k = 0; k < emitters.length; k++) emitters[k] = bodies.count - emitters.length + k;
+        	particles.setEmitters(emitters);
+        	particles.setVerify(Settings.PARTICLE_VERIFY);
+        	particles.init(gl);
+        	System.out.println("Particles: " + particles.getCapacity() + " on the " + particles.getMode());
+        }
         
-        // We can delete the individual shaders, now that they're linked
-        gl.glDeleteShader(vertexShader);
-        gl.glDeleteShader(fragmentShader);
+        if (captureDirectory != null) {
+        	frameCapture = new FrameCapture(captureDirectory);
+        	frameCapture.init(gl);
+        }
         
-		System.out.println("JOGL: init() complete");
-	}
-	
-	
-	// Helper method to compile a shader.
-	// Includes error checking
-	
-	private int compileShader(GL3 gl, int type, String source) {
-		int shaderID = gl.glCreateShader(type);
-		gl.glShaderSource(shaderID, 1, new String[]{source}, null);
-		gl.glCompileShader(shaderID);
-		
-		// Error Checking
-		IntBuffer compileStatus = Buffers.newDirectIntBuffer(1);
-		gl.glGetShaderiv(shaderID, GL3.GL_COMPILE_STATUS, compileStatus);
-		
-		if (compileStatus.get(0) == GL3.GL_FALSE) {
-            IntBuffer logLengthBuffer = Buffers.newDirectIntBuffer(1); 
-            gl.glGetShaderiv(shaderID, GL3.GL_INFO_LOG_LENGTH, logLengthBuffer);
-            int logLength = logLengthBuffer.get(0); 
-
-            // 1. Allocate a direct ByteBuffer (native memory)
-            ByteBuffer log = Buffers.newDirectByteBuffer(logLength);
-            
-            // 2. Pass the ByteBuffer (not a byte[]) to OpenGL
-            gl.glGetShaderInfoLog(shaderID, logLength, null, log); 
-
-            // 3. Copy the data from the ByteBuffer into a byte[] for printing
-            byte[] logBytes = new byte[logLength];
-            log.get(logBytes); 
-            // --- END OF FIX ---
-
-            System.err.println("!!! SHADER COMPILE ERROR !!!");
-            System.err.println(new String(logBytes)); // Print from the new byte[]
-            System.exit(1);
+        // Start decoding the planet textures. They arrive over the next frames, a slice at a time
+        if (!Settings.TEXTURE_DIR.isEmpty()) {
+        	textureStreamer = new TextureStreamer((long) Settings.TEXTURE_BUDGET_MB << 20, Settings.TEXTURE_SLICE_KB << 10);
+        	textureStreamer.init(gl);
+        	planetTextures = new TextureStreamer.Texture[Scenes.PLANET_NAME.length];
+        	for (int p = 0; p < planetTextures.length; p++) {
+        		for (String extension : new String[] {".png", ".jpg"}) {
+        			File file = new File(Settings.TEXTURE_DIR, Scenes.PLANET_NAME[p] + extension);
+        			if (planetTextures[p] == null && file.isFile()) {
+        				planetTextures[p] = textureStreamer.request(file.toPath());
+        			}
+        		}
+        	}
         }
-		// End Error Checking
-		
-		return shaderID;
+        
+		System.out.printf("JOGL: init() complete in %.1f ms%n", (System.nanoTime() - initStart) / 1e6);
 	}
 	
 	
-	// Helper method to link the shaders in a single program
-	// Also includes error checking
-	private int linkProgram(GL3 gl, int vertexShader, int fragmentShader) {
-        int programID = gl.glCreateProgram();
-        gl.glAttachShader(programID, vertexShader);
-        gl.glAttachShader(programID, fragmentShader);
-        gl.glLinkProgram(programID);
-
-        // Error Checking
-        IntBuffer linkStatus = Buffers.newDirectIntBuffer(1);
-        gl.glGetProgramiv(programID, GL3.GL_LINK_STATUS, linkStatus);
-
-        if (linkStatus.get(0) == GL3.GL_FALSE) {
-            IntBuffer logLengthBuffer = Buffers.newDirectIntBuffer(1);
-            gl.glGetProgramiv(programID, GL3.GL_INFO_LOG_LENGTH, logLengthBuffer);
-            int logLength = logLengthBuffer.get(0);
-
-            // Allocate a direct ByteBuffer (native memory) to receive the log
-            ByteBuffer log = Buffers.newDirectByteBuffer(logLength);
-            gl.glGetProgramInfoLog(programID, logLength, null, log);
-
-            // Create a byte[] (JVM memory) to copy the log into for printing
-            byte[] logBytes = new byte[logLength];
-            log.get(logBytes); // Copy from the ByteBuffer to the byte[]
-
-            System.err.println("Shader Link Error!");
-            System.err.println(new String(logBytes)); // Print from the byte[]
-            System.exit(1);
-        }
-        // Error Checking Complete
-
-        return programID;
-    }
-	
-	
 	// Called by the JOGL framework for every frame,
 	// This is our main RENDER LOOP. All drawing code goes inside this one.
 	@Override
 	public void display(GLAutoDrawable drawable) {
 		GL3 gl = drawable.getGL().getGL3(); // The gl object becomes our main channel to the GPU. we call methods on this object.
+		profiler.beginFrame(gl); // Also starts the GPU timer
+		
+		// Pick this frame's resolution from the newest GPU time (if one came back), and draw the scene offscreen at it
+		if (sceneFramebuffer != null) {
+			Histogram gpu = profiler.getHistogram(FrameProfiler.GPU);
+			if (gpu.getCount() != gpuSamples) {
+				gpuSamples = gpu.getCount();
+				resolution.update(gpu.getLast());
+			}
+			int sceneWidth = sceneFramebuffer.getSceneWidth(), sceneHeight = sceneFramebuffer.getSceneHeight();
+			sceneFramebuffer.begin(gl, resolution.getScale());
+			if (sceneFramebuffer.getSceneWidth() != sceneWidth || sceneFramebuffer.getSceneHeight() != sceneHeight) {
+				setSceneSize(sceneFramebuffer.getSceneWidth(), sceneFramebuffer.getSceneHeight());
+			}
+		}
 		
 		// Clear the color buffer and depth buffer.
 		// This wipes the canvas clean to our glClearColor (from init).
@@ -351,28 +492,170 @@ public class OuterMilds implements GLEventListener{
 		// GL_DEPTH_BUFFER_BIT is important for 3D, to make sure objects in front occlude objects behind.
 		gl.glClear(GL3.GL_COLOR_BUFFER_BIT | GL3.GL_DEPTH_BUFFER_BIT); // Wipe the Color and Depth Buffers
 		
-		// The Solar System drawing code will go here
-		
-		// Tell OpenGL which shader program to use
-		gl.glUseProgram(shaderProgramID);
-		
-		// Tell OpenGL which VAO to use
-		gl.glBindVertexArray(vaoID);
-		
-		// Draw!
-		// Draw 3 vertices starting from index 0
-		// and interpret them as GL_TRIANGLES
-		gl.glDrawArrays(GL3.GL_TRIANGLES, 0, 3);
-		
-		// Unbind the VAO, good practice
-		gl.glBindVertexArray(0);
-		
-		
-		// Not necessary with Animator and Double Buffering,
+		// Get the newest state from the simulation thread. It runs at its own rate, so we draw a blend of its
+		// last two states (alpha) for smooth motion at any frame rate.
+		// Headless runs step it right here by the same time every frame, so two runs render the same frames.
+		profiler.start(FrameProfiler.Phase.SIMULATE);
+		if (fixedFrameSeconds > 0) {
+			simulationThread.advance(fixedFrameSeconds);
+		}
+		StateSnapshot snapshot = simulationThread.latest();
+		float alpha = fixedFrameSeconds > 0 ? 1.0f : snapshot.alpha(System.nanoTime());
+		profiler.stop(FrameProfiler.Phase.SIMULATE);
+		
+		// Draw the Solar System. Every body goes into the instance buffer, then it's all drawn in one go
+		profiler.start(FrameProfiler.Phase.UPLOAD);
+		assetLoader.update(gl); // Whatever finished loading is drawn from this frame on
+		bodyRenderer.begin(gl);
+		int[] visible = null;
+		int visibleCount = snapshot.count;
+		if (bodyBvh != null) {
+			bodyBvh.update(snapshot, RADIUS_EXAGGERATION); // Only refits when the snapshot is a new one
+			visibleCount = bodyBvh.cull(snapshot, viewProjection, cullPadX, cullPadY);
+			visible = bodyBvh.getVisible();
+			profiler.recordCulling(visibleCount, bodyBvh.getCulledCount());
+		}
+		if (sphereRenderer != null) {
+			sphereRenderer.putAll(gl, snapshot, alpha, visible, visibleCount, bodyRenderer); // The big ones as spheres, the rest as discs
+		} else if (visible != null) {
+			bodyRenderer.putAll(snapshot, alpha, visible, visibleCount);
+		} else {
+			bodyRenderer.putAll(snapshot, alpha);
+		}
+		if (textureStreamer != null) {
+			streamPlanetTextures(gl, snapshot);
+		}
+		
+		// Move the comet tails on by the simulated time since the last frame (on the GPU, nothing to upload)
+		if (particles != null) {
+			particles.update(gl, snapshot, snapshot.time - particleTime);
+			particleTime = snapshot.time;
+		}
+		profiler.stop(FrameProfiler.Phase.UPLOAD);
+		profiler.start(FrameProfiler.Phase.DRAW);
+		if (starField != null) {
+			starField.submit(gl, renderQueue);
+		}
+		bodyRenderer.submit(gl, renderQueue);
+		if (sphereRenderer != null) {
+			sphereRenderer.submit(gl, renderQueue);
+		}
+		if (particles != null) {
+			particles.submit(gl, renderQueue);
+		}
+		if (profilerOverlay != null) {
+			profilerOverlay.submit(gl, renderQueue, profiler);
+		}
+		if (sceneFramebuffer != null) {
+			renderQueue.flush(gl, RenderQueue.LAYER_TRANSPARENT); // The scene, into the offscreen framebuffer
+			sceneFramebuffer.end(gl); // Stretched onto the window. The overlay goes on top, at full resolution
+		}
+		renderQueue.flush(gl); // Sorted by state, so each program and VAO is bound once
+		
+		// Start reading this frame back. Doesn't wait for the GPU, the PNG shows up a couple of frames later
+		if (frameCapture != null) {
+			frameCapture.capture(gl, viewportWidth, viewportHeight);
+		}
+		profiler.endGpu(gl);
+		
+		
+		// Not necessary with Double Buffering,
 		// but it ensures all buffered OpenGL commands are sent to the GPU
 		gl.glFlush();
+		profiler.stop(FrameProfiler.Phase.DRAW);
+		
+		// Show the frame. With vsync on, this is where we wait for the monitor
+		profiler.start(FrameProfiler.Phase.SWAP);
+		drawable.swapBuffers();
+		profiler.stop(FrameProfiler.Phase.SWAP);
+		profiler.endFrame();
+	}
+	
+	// The body mesh file: mapped and paged in on a pool thread, uploaded on the loader's context,
+	// then swapped in for the disc on the GL thread
+	private final class BodyMeshAsset extends AssetLoader.Asset {
+		private final Path path;
+		private MeshFile mesh;
+		private int[] buffers;
+		
+		BodyMeshAsset(Path path) {
+			super("body mesh " + path.getFileName());
+			this.path = path;
+		}
+		
+		@Override
+		protected void read() throws IOException {
+			mesh = MeshFile.open(path);
+			InstancedRenderer.checkMesh(mesh);
+			mesh.touch();
+		}
+		
+		@Override
+		protected void upload(GL3 gl) {
+			buffers = mesh.createBuffers(gl);
+		}
+		
+		@Override
+		protected void resident(GL3 gl) {
+			bodyRenderer.setMesh(gl, mesh, buffers[0], buffers[1]);
+			System.out.printf("Body mesh: %s, %d vertices, %d bytes, drawn %.1f ms after init()%n",
+					path, mesh.vertexCount, mesh.getByteSize(), getLoadNanos() / 1e6);
+		}
+	}
+	
+	
+	// The star catalog: the same, then the StarField starts drawing
+	private final class StarCatalogAsset extends AssetLoader.Asset {
+		private final Path path;
+		private StarField field;
+		private int vbo;
+		
+		StarCatalogAsset(Path path) {
+			super("star catalog " + path.getFileName());
+			this.path = path;
+		}
+		
+		@Override
+		protected void read() throws IOException {
+			StarCatalog catalog = StarCatalog.open(path);
+			catalog.touch();
+			field = new StarField(catalog, STAR_FAINT_MAGNITUDE);
+		}
+		
+		@Override
+		protected void upload(GL3 gl) {
+			vbo = field.createBuffer(gl);
+		}
+		
+		@Override
+		protected void resident(GL3 gl) {
+			field.init(gl, starProgram, vbo);
+			if (viewportHeight > 0) {
+				field.setView(view, projection, (float) Math.toRadians(CAMERA_FOV_DEGREES), (float) viewportWidth / viewportHeight);
+			}
+			starField = field;
+			System.out.printf("Stars: %d from %s, %.1f MB, drawn %.1f ms after init()%n", field.getStarCount(), path,
+					(double) field.getStarCount() * StarCatalog.RECORD_BYTES / 1048576.0, getLoadNanos() / 1e6);
+		}
+	}
+	
+	
+	// Tell the texture streamer how big each planet is on screen (so it knows which mip levels
+	// are worth uploading), then let it upload this frame's slice. Planets are bodies 1..8 in every scene
+	private void streamPlanetTextures(GL3 gl, StateSnapshot snapshot) {
+		float pixelsPerAu = viewportHeight / (2.0f * (float) Math.tan(Math.toRadians(CAMERA_FOV_DEGREES) / 2.0));
+		for (int p = 0; p < planetTextures.length; p++) {
+			int i = 1 + p;
+			if (planetTextures[p] == null || i >= snapshot.count) continue;
+			bodyPosition.set(snapshot.curX[i], snapshot.curY[i], snapshot.curZ[i]);
+			view.transformPoint(bodyPosition, bodyViewPosition);
+			float distance = Math.max(-bodyViewPosition.z, NEAR_AU);
+			textureStreamer.setScreenSize(planetTextures[p], 2.0f * snapshot.radius[i] * RADIUS_EXAGGERATION * pixelsPerAu / distance);
+		}
+		textureStreamer.update(gl);
 	}
 	
+	
 	// Reshape is called by the JOGL framework when the window is resized.
 	// This is where we update our viewport and projection matrix.
 	@Override
@@ -383,14 +666,53 @@ public class OuterMilds implements GLEventListener{
         // This maps OpenGL's -1 to 1 coordinates to the window's pixel coordinates.
 		if (height <= 0) height = 1; // Avoid division by zero
 		gl.glViewport(0, 0, width, height);
+		viewportWidth = width;
+		viewportHeight = height;
+		
+		// The scene's framebuffer follows the window. If it can't, draw straight to the window from now on
+		if (sceneFramebuffer != null) {
+			if (sceneFramebuffer.resize(gl, width, height)) {
+				resolution.reset();
+			} else {
+				System.err.println("Dynamic resolution: no framebuffer at " + width + "x" + height + ", drawing at full size");
+				sceneFramebuffer.dispose(gl);
+				sceneFramebuffer = null;
+			}
+		}
+		setSceneSize(width, height);
 		
-	    // Later, we will update our camera's projection matrix here.
-        // e.g.,
-        // projectionMatrix.setPerspective(45.0f, (float)width / (float)height, 0.1f, 1000.0f);
         System.out.println("JOGL: reshape() called. New dimensions: " + width + "x" + height);
 	}
 	
 	
+	// Everything that depends on the size the scene is drawn at, in pixels: the window's size,
+	// or less with dynamic resolution. The aspect ratio is always the window's
+	private void setSceneSize(int width, int height) {
+		// The projection matrix: perspective, with the window's aspect ratio so nothing is stretched
+		float fov = (float) Math.toRadians(CAMERA_FOV_DEGREES);
+		float aspect = (float) viewportWidth / viewportHeight;
+		projection.perspective(fov, aspect, NEAR_AU, FAR_AU);
+		
+		// One pixel at 1 AU from the camera is this many AU wide, so this is MIN_BODY_PIXELS at any distance
+		float minRadius = MIN_BODY_PIXELS * 2.0f * (float) Math.tan(fov / 2.0) / height;
+		bodyRenderer.setView(view, projection, RADIUS_EXAGGERATION, minRadius);
+		if (sphereRenderer != null) {
+			sphereRenderer.setView(view, projection, RADIUS_EXAGGERATION, height / (2.0f * (float) Math.tan(fov / 2.0)));
+		}
+		if (particles != null) {
+			particles.setView(view, projection);
+		}
+		if (starField != null) {
+			starField.setView(view, projection, fov, aspect);
+		}
+		
+		// The culling frustum, pushed out past the edges by a body's minimum size (plus a pixel to spare)
+		viewProjection.mul(projection, view);
+		cullPadX = 2.0f * (MIN_BODY_PIXELS + 1.0f) / width;
+		cullPadY = 2.0f * (MIN_BODY_PIXELS + 1.0f) / height;
+	}
+	
+	
 	// Dispose is called by the JOGL framework when the canvas is about to be destroyed.
 	// This is where we should clean up any OpenGL resources (buffers, shaders, etc.).
 	@Override
@@ -399,20 +721,84 @@ public class OuterMilds implements GLEventListener{
 		// We'll add resource cleaning here as we go along
 		GL3 gl = drawable.getGL().getGL3();
 		
-		// Delete the Shader Program
-		gl.glDeleteProgram(shaderProgramID);
-		
-		// Delete the VBO
-		IntBuffer vboBuf = Buffers.newDirectIntBuffer(1);
-		vboBuf.put(vboID);
-		vboBuf.rewind(); // rewind the buffer to the start
-		gl.glDeleteBuffers(1, vboBuf);
-		
-		// Delete the VBO
-		IntBuffer vaoBuf = Buffers.newDirectIntBuffer(1);
-		vaoBuf.put(vaoID);
-		vaoBuf.rewind(); // rewind the buffer to the start
-		gl.glDeleteVertexArrays(1, vboBuf);
+		// How often did we have to wait for the GPU to let go of the instance buffer?
+		StreamingBuffer stream = bodyRenderer.getInstanceStream();
+		System.out.printf("Instance stream: %s, %d fence waits in %d frames (%.1f ms waiting)%n",
+				stream.getMode(), stream.getFenceWaits(), stream.getFrames(), stream.getFenceWaitNanos() / 1e6);
+		
+		// How much state churn the render queue saved
+		GLStateCache state = renderQueue.getState();
+		System.out.printf("Render queue: last frame %d draws, %d binds, %d avoided (%d binds, %d avoided in total)%n",
+				renderQueue.getDraws(), renderQueue.getBinds(), renderQueue.getBindsAvoided(), state.getBinds(), state.getBindsAvoided());
+		
+		// What the resolution ended up at
+		if (sceneFramebuffer != null) {
+			System.out.println("Resolution: " + resolution.summary());
+			sceneFramebuffer.dispose(gl);
+		}
+		
+		// Stop loading, and see what made it
+		System.out.println("Assets: " + assetLoader.summary());
+		assetLoader.dispose(gl);
+		
+		// Where the frame time went
+		System.out.print("Frame timing (" + profiler.getFrameCount() + " frames):\n" + profiler.summary());
+		profiler.dispose(gl);
+		if (profilerOverlay != null) {
+			profilerOverlay.dispose(gl);
+		}
+		
+		// Delete the renderer's Shader Program, VBOs and VAO
+		bodyRenderer.dispose(gl);
+		if (sphereRenderer != null) {
+			System.out.printf("Spheres: last frame %d spheres in %d draws (%d triangles), %d level changes in total%n",
+					sphereRenderer.getSphereCount(), sphereRenderer.getDrawCalls(), sphereRenderer.getTrianglesDrawn(), sphereRenderer.getLevelChanges());
+			sphereRenderer.dispose(gl);
+		}
+		if (starField != null) {
+			System.out.printf("Stars: %d drawn in %d runs of one draw call%n", starField.getStarsDrawn(), starField.getRuns());
+			starField.dispose(gl);
+		} else if (starProgram != 0) {
+			gl.glDeleteProgram(starProgram); // The catalog never arrived
+		}
+		if (bodyBvh != null) {
+			System.out.printf("Culling: %d nodes, %d deep, %d rebuilds and %d refits, %d boxes tested%n",
+					bodyBvh.getNodeCount(), bodyBvh.getDepth(), bodyBvh.getRebuilds(), bodyBvh.getRefits(), bodyBvh.getNodesTested());
+			cullPool.shutdown();
+		}
+		if (particles != null) {
+			if (particles.getChecks() > 0) {
+				System.out.printf("Particles: checked against the CPU %d times, max position difference %.3g AU, %d born on one side only%n",
+						particles.getChecks(), particles.getMaxError(), particles.getMismatches());
+			}
+			particles.dispose(gl);
+		}
+		if (textureStreamer != null) {
+			System.out.println("Textures: " + textureStreamer.summary());
+			textureStreamer.dispose(gl);
+		}
+		
+		// Write out the frames still in flight
+		if (frameCapture != null) {
+			frameCapture.dispose(gl);
+		}
+		
+		// Stop the physics threads
+		simulationThread.stop();
+		System.out.println("Simulation thread: " + simulationThread.getTicks() + " ticks, " + simulationThread.getLateTicks() + " late");
+		if (Settings.COLLISIONS) {
+			System.out.println("Collisions: " + simulation.getCollisionPairs() + " touching pairs, " + simulation.getMergedBodies() + " bodies merged");
+		}
+		physicsPool.shutdown();
+		if (replayWriter != null) {
+			try {
+				replayWriter.close();
+				System.out.printf("Replay: %d keyframes, %d deltas, %.1f MB, %d frames dropped%n", replayWriter.getKeyframes(),
+						replayWriter.getDeltas(), replayWriter.getBytesWritten() / 1048576.0, replayWriter.getFramesDropped());
+			} catch (IOException e) {
+				System.err.println("Replay: " + e.getMessage());
+			}
+		}
 		
 		System.out.println("JOGL: dispose() finished.");
 	}
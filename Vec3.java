@@ -0,0 +1,82 @@
+/**
+ * Vec3.java
+ *
+ * A 3D vector of floats, for the rendering side (positions, directions, camera).
+ *
+ * Mutable on purpose: every method changes this vector and returns it, so calls chain
+ * (v.set(a).sub(b).normalize()) and nothing is allocated. Keep Vec3s as fields and reuse them,
+ * don't create them in display().
+ *
+ * @author CLLFTVTV
+ */
+public final class Vec3 {
+
+
+	public float x, y, z;
+
+
+	public Vec3() {
+	}
+
+
+	public Vec3(float x, float y, float z) {
+		set(x, y, z);
+	}
+
+
+	public Vec3 set(float x, float y, float z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+
+	public Vec3 set(Vec3 v) {
+		return set(v.x, v.y, v.z);
+	}
+
+
+	public Vec3 add(Vec3 v) {
+		return set(x + v.x, y + v.y, z + v.z);
+	}
+
+
+	public Vec3 sub(Vec3 v) {
+		return set(x - v.x, y - v.y, z - v.z);
+	}
+
+
+	public Vec3 scale(float s) {
+		return set(x * s, y * s, z * s);
+	}
+
+
+	public float dot(Vec3 v) {
+		return x * v.x + y * v.y + z * v.z;
+	}
+
+
+	// this = this x v
+	public Vec3 cross(Vec3 v) {
+		return set(y * v.z - z * v.y, z * v.x - x * v.z, x * v.y - y * v.x);
+	}
+
+
+	public float length() {
+		return (float) Math.sqrt(x * x + y * y + z * z);
+	}
+
+
+	// Make it length 1. A zero vector stays zero
+	public Vec3 normalize() {
+		float length = length();
+		return length > 0.0f ? scale(1.0f / length) : this;
+	}
+
+
+	@Override
+	public String toString() {
+		return "(" + x + ", " + y + ", " + z + ")";
+	}
+}
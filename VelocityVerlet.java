@@ -0,0 +1,86 @@
+/**
+ * VelocityVerlet.java
+ *
+ * Velocity-Verlet, a.k.a. leapfrog in "Kick-Drift-Kick" form:
+ * 	1. Kick: half a step of velocity from the old acceleration
+ * 	2. Drift: a full step of position with that velocity
+ * 	3. Compute the acceleration at the new position
+ * 	4. Kick: the other half step of velocity
+ *
+ * One force evaluation per step, and positions and velocities line up in time at the end.
+ * Every phase runs over the PhysicsPool, one chunk of bodies per task.
+ *
+ * @author CLLFTVTV
+ */
+public class VelocityVerlet implements Integrator {
+
+
+	private final PhysicsPool pool;
+
+	// The step being taken. Kept in fields so the loop bodies below
+	// can be created once, instead of a new lambda every step
+	private BodySystem b;
+	private ForceModel forces;
+	private double dt;
+
+	private final PhysicsPool.Range kickDrift = this::kickDrift;
+	private final PhysicsPool.Range accelerate = this::accelerate;
+	private final PhysicsPool.Range kick = this::kick;
+
+
+	// Single threaded
+	public VelocityVerlet() {
+		this(new PhysicsPool(1));
+	}
+
+
+	public VelocityVerlet(PhysicsPool pool) {
+		this.pool = pool;
+	}
+
+
+	@Override
+	public void step(BodySystem bodies, ForceModel forces, double dt) {
+		this.b = bodies;
+		this.forces = forces;
+		this.dt = dt;
+
+		pool.run(bodies.count, kickDrift);
+		forces.prepare(bodies);
+		pool.run(bodies.count, accelerate);
+		pool.run(bodies.count, kick);
+
+		this.b = null;
+		this.forces = null;
+	}
+
+
+	private void kickDrift(int from, int to) {
+		final BodySystem b = this.b;
+		final double dt = this.dt, half = 0.5 * dt;
+		for (int i = from; i < to; i++) {
+			b.vx[i] += b.ax[i] * half;
+			b.vy[i] += b.ay[i] * half;
+			b.vz[i] += b.az[i] * half;
+			b.x[i] += b.vx[i] * dt;
+			b.y[i] += b.vy[i] * dt;
+			b.z[i] += b.vz[i] * dt;
+		}
+	}
+
+
+	private void accelerate(int from, int to) {
+		forces.accelerate(b, from, to);
+	}
+
+
+	private void kick(int from, int to) {
+		final BodySystem b = this.b;
+		final double half = 0.5 * dt;
+		for (int i = from; i < to; i++) {
+			b.vx[i] += b.ax[i] * half;
+			b.vy[i] += b.ay[i] * half;
+			b.vz[i] += b.az[i] * half;
+		}
+	}
+}